@@ -0,0 +1,209 @@
+package com.iotlogic.blynk.benchmark
+
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.os.Bundle
+import android.util.Log
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.After
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.util.UUID
+import kotlin.random.Random
+
+/**
+ * Compares the legacy telemetry layout (UUID primary key plus single-column indices)
+ * with the clustered WITHOUT ROWID layout on insert throughput and per-sensor range scans.
+ *
+ * Slow, so it only runs when requested:
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ * Add benchmarkRows=N to change the dataset size (default 5M rows).
+ */
+@RunWith(AndroidJUnit4::class)
+class TelemetryLayoutBenchmark {
+
+    private lateinit var context: Context
+    private lateinit var arguments: Bundle
+    private val databaseFiles = mutableListOf<File>()
+
+    companion object {
+        private const val TAG = "TelemetryBenchmark"
+        private const val DEFAULT_ROWS = 5_000_000
+        private const val DEVICES = 20
+        private const val SENSORS = 5
+        private const val INSERT_BATCH = 500
+        private const val RANGE_QUERIES = 200
+        private const val RANGE_MS = 3_600_000L
+        private const val START_TIME = 1_700_000_000_000L
+
+        private const val LEGACY_SCHEMA = """
+            CREATE TABLE telemetry (
+                id TEXT NOT NULL PRIMARY KEY, deviceId TEXT NOT NULL, sensorType TEXT NOT NULL, value REAL NOT NULL,
+                unit TEXT, timestamp INTEGER NOT NULL, seq INTEGER NOT NULL, quality TEXT, rawValue TEXT, metadata TEXT,
+                isProcessed INTEGER NOT NULL, syncStatus TEXT NOT NULL, createdAt INTEGER NOT NULL
+            )
+        """
+
+        private const val CLUSTERED_SCHEMA = """
+            CREATE TABLE telemetry (
+                id TEXT NOT NULL, deviceId TEXT NOT NULL, sensorType TEXT NOT NULL, value REAL NOT NULL,
+                unit TEXT, timestamp INTEGER NOT NULL, seq INTEGER NOT NULL, quality TEXT, rawValue TEXT, metadata TEXT,
+                isProcessed INTEGER NOT NULL, syncStatus TEXT NOT NULL, createdAt INTEGER NOT NULL,
+                PRIMARY KEY(deviceId, sensorType, timestamp, seq)
+            ) WITHOUT ROWID
+        """
+    }
+
+    @Before
+    fun setUp() {
+        arguments = InstrumentationRegistry.getArguments()
+        assumeTrue("Benchmark disabled, pass benchmark=true to run it", arguments.getString("benchmark") == "true")
+        context = ApplicationProvider.getApplicationContext()
+    }
+
+    @After
+    fun tearDown() {
+        databaseFiles.forEach { SQLiteDatabase.deleteDatabase(it) }
+    }
+
+    @Test
+    fun compareLegacyAndClusteredLayouts() {
+        val rows = arguments.getString("benchmarkRows")?.toIntOrNull() ?: DEFAULT_ROWS
+
+        val legacy = run("legacy", rows, LEGACY_SCHEMA, listOf(
+            "CREATE INDEX index_telemetry_deviceId ON telemetry (deviceId)",
+            "CREATE INDEX index_telemetry_timestamp ON telemetry (timestamp)",
+            "CREATE INDEX index_telemetry_sensorType ON telemetry (sensorType)"
+        ))
+        val clustered = run("clustered", rows, CLUSTERED_SCHEMA, listOf(
+            "CREATE UNIQUE INDEX index_telemetry_id ON telemetry (id)",
+            "CREATE INDEX index_telemetry_timestamp ON telemetry (timestamp)"
+        ))
+
+        report("legacy", legacy)
+        report("clustered", clustered)
+        Log.i(TAG, "insert speedup %.2fx, range scan speedup %.2fx".format(
+            clustered.insertRowsPerSecond / legacy.insertRowsPerSecond,
+            legacy.averageRangeScanMs / clustered.averageRangeScanMs
+        ))
+    }
+
+    private fun run(name: String, rows: Int, schema: String, indices: List<String>): LayoutResult {
+        val file = context.getDatabasePath("telemetry_benchmark_$name.db")
+        SQLiteDatabase.deleteDatabase(file)
+        file.parentFile?.mkdirs()
+        databaseFiles.add(file)
+
+        val database = SQLiteDatabase.openOrCreateDatabase(file, null)
+        try {
+            database.execSQL(schema)
+            indices.forEach { database.execSQL(it) }
+
+            val insertMs = insertRows(database, rows)
+            val scannedRows = LongArray(1)
+            val scanMs = rangeScans(database, rows, scannedRows)
+
+            return LayoutResult(
+                rows = rows,
+                insertRowsPerSecond = rows * 1000.0 / insertMs,
+                averageRangeScanMs = scanMs.toDouble() / RANGE_QUERIES,
+                averageRowsPerScan = scannedRows[0] / RANGE_QUERIES,
+                fileSizeBytes = file.length()
+            )
+        } finally {
+            database.close()
+        }
+    }
+
+    /**
+     * Rows arrive time-major across all device sensors, like live ingest
+     */
+    private fun insertRows(database: SQLiteDatabase, rows: Int): Long {
+        val statement = database.compileStatement(
+            "INSERT INTO telemetry (id, deviceId, sensorType, value, unit, timestamp, seq, quality, rawValue, metadata, " +
+                "isProcessed, syncStatus, createdAt) VALUES (?, ?, ?, ?, ?, ?, ?, NULL, NULL, NULL, 0, 'PENDING', ?)"
+        )
+        val random = Random(42)
+        val startNanos = System.nanoTime()
+
+        var written = 0
+        while (written < rows) {
+            database.beginTransaction()
+            try {
+                val batchEnd = minOf(rows, written + INSERT_BATCH)
+                while (written < batchEnd) {
+                    val channel = written % (DEVICES * SENSORS)
+                    val timestamp = START_TIME + (written / (DEVICES * SENSORS)) * 1_000L
+                    statement.bindString(1, UUID.randomUUID().toString())
+                    statement.bindString(2, "device-${channel / SENSORS}")
+                    statement.bindString(3, "sensor-${channel % SENSORS}")
+                    statement.bindDouble(4, 20.0 + random.nextDouble())
+                    statement.bindString(5, "°C")
+                    statement.bindLong(6, timestamp)
+                    statement.bindLong(7, written.toLong())
+                    statement.bindLong(8, timestamp)
+                    statement.executeInsert()
+                    written++
+                }
+                database.setTransactionSuccessful()
+            } finally {
+                database.endTransaction()
+            }
+        }
+
+        return (System.nanoTime() - startNanos) / 1_000_000
+    }
+
+    private fun rangeScans(database: SQLiteDatabase, rows: Int, scannedRows: LongArray): Long {
+        val random = Random(7)
+        val endTime = START_TIME + (rows / (DEVICES * SENSORS)) * 1_000L
+        val startNanos = System.nanoTime()
+
+        repeat(RANGE_QUERIES) {
+            val from = START_TIME + (random.nextDouble() * maxOf(1L, endTime - START_TIME - RANGE_MS)).toLong()
+            database.rawQuery(
+                "SELECT timestamp, value FROM telemetry WHERE deviceId = ? AND sensorType = ? " +
+                    "AND timestamp BETWEEN ? AND ? ORDER BY timestamp",
+                arrayOf(
+                    "device-${random.nextInt(DEVICES)}",
+                    "sensor-${random.nextInt(SENSORS)}",
+                    from.toString(),
+                    (from + RANGE_MS).toString()
+                )
+            ).use { cursor ->
+                while (cursor.moveToNext()) {
+                    cursor.getDouble(1)
+                    scannedRows[0]++
+                }
+            }
+        }
+
+        return (System.nanoTime() - startNanos) / 1_000_000
+    }
+
+    private fun report(name: String, result: LayoutResult) {
+        val summary = "%s: %d rows, insert %.0f rows/s, range scan %.2f ms (%d rows), file %d MB".format(
+            name,
+            result.rows,
+            result.insertRowsPerSecond,
+            result.averageRangeScanMs,
+            result.averageRowsPerScan,
+            result.fileSizeBytes / (1024 * 1024)
+        )
+        Log.i(TAG, summary)
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, Bundle().apply { putString("stream", "$summary\n") })
+    }
+
+    private data class LayoutResult(
+        val rows: Int,
+        val insertRowsPerSecond: Double,
+        val averageRangeScanMs: Double,
+        val averageRowsPerScan: Long,
+        val fileSizeBytes: Long
+    )
+}
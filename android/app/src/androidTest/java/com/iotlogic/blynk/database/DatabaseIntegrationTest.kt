@@ -2,9 +2,11 @@ package com.iotlogic.blynk.database
 
 import androidx.arch.core.executor.testing.InstantTaskExecutorRule
 import androidx.room.Room
+import androidx.room.withTransaction
 import androidx.test.core.app.ApplicationProvider
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import com.iotlogic.blynk.data.local.IoTLogicDatabase
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
 import com.iotlogic.blynk.data.local.dao.*
 import com.iotlogic.blynk.data.local.entities.*
 import kotlinx.coroutines.flow.first
@@ -30,6 +32,7 @@ class DatabaseIntegrationTest {
     private lateinit var telemetryDao: TelemetryDao
     private lateinit var configurationDao: ConfigurationDao
     private lateinit var commandQueueDao: CommandQueueDao
+    private var lastSeq = 0L
 
     @Before
     fun setUp() {
@@ -49,6 +52,12 @@ class DatabaseIntegrationTest {
         database.close()
     }
 
+    // Telemetry is only written through the batch ingest path, which needs unique sequences
+    private suspend fun ingest(samples: List<TelemetryEntity>) {
+        val sequenced = samples.map { it.copy(seq = ++lastSeq) }
+        database.telemetryIngestDao().ingest(sequenced, lastSeq) { emptyList() }
+    }
+
     @Test
     fun testDeviceCrudOperations() = runBlocking {
         // Given
@@ -125,7 +134,7 @@ class DatabaseIntegrationTest {
         )
 
         // Test Insert
-        telemetryDao.insertTelemetry(telemetry)
+        ingest(listOf(telemetry))
         val insertedTelemetry = telemetryDao.getTelemetryById("tel1")
         assertNotNull(insertedTelemetry)
         assertEquals(25.5, insertedTelemetry.value)
@@ -145,7 +154,7 @@ class DatabaseIntegrationTest {
             telemetry.copy(id = "tel2", value = 26.0, timestamp = System.currentTimeMillis() + 1000),
             telemetry.copy(id = "tel3", value = 26.5, timestamp = System.currentTimeMillis() + 2000)
         )
-        telemetryDao.insertTelemetryBatch(batchTelemetry)
+        ingest(batchTelemetry)
 
         val allTelemetry = telemetryDao.getTelemetryForDevice("device1")
         assertEquals(3, allTelemetry.size)
@@ -163,6 +172,55 @@ class DatabaseIntegrationTest {
         assertEquals(1, remainingTelemetry.size) // Only tel3 should remain
     }
 
+    @Test
+    fun testDeviceResyncKeepsChannelsAndTelemetry() = runBlocking {
+        // Given
+        val device = DeviceEntity(
+            id = "device1",
+            name = "Test Device",
+            type = "sensor",
+            protocol = "BLE"
+        )
+        deviceDao.insertDevice(device)
+        val registry = SensorChannelRegistry(database.sensorChannelDao())
+        val channel = registry.resolve("device1", "temperature", "°C")
+        ingest(listOf(TelemetryEntity(id = "tel1", channelId = channel.id, value = 21.0, timestamp = 1_000L)))
+
+        // When a backend sync writes the device again
+        deviceDao.insertDevices(listOf(device.copy(name = "Synced Device")))
+        val resolved = registry.resolve("device1", "temperature", "°C")
+        ingest(listOf(TelemetryEntity(id = "tel2", channelId = resolved.id, value = 22.0, timestamp = 2_000L)))
+
+        // Then
+        assertEquals("Synced Device", deviceDao.getDeviceById("device1")!!.name)
+        assertNotNull(database.sensorChannelDao().getChannel(channel.id))
+        val telemetry = telemetryDao.getTelemetryByDeviceOnce("device1", 10)
+        assertEquals(setOf("tel1", "tel2"), telemetry.map { it.id }.toSet())
+    }
+
+    @Test
+    fun testDeleteDeviceHistoryDropsPendingUploads() = runBlocking {
+        // Given
+        deviceDao.insertDevice(DeviceEntity(id = "device1", name = "Device 1", type = "sensor", protocol = "BLE"))
+        deviceDao.insertDevice(DeviceEntity(id = "device2", name = "Device 2", type = "sensor", protocol = "BLE"))
+        val registry = SensorChannelRegistry(database.sensorChannelDao())
+        val first = registry.resolve("device1", "temperature", "°C")
+        val second = registry.resolve("device2", "temperature", "°C")
+        ingest(listOf(
+            TelemetryEntity(id = "tel1", channelId = first.id, value = 21.0, timestamp = 1_000L),
+            TelemetryEntity(id = "tel2", channelId = second.id, value = 22.0, timestamp = 1_000L)
+        ))
+        val outboxDao = database.telemetryOutboxDao()
+        assertEquals(2, outboxDao.getCountAfter(0))
+
+        // When
+        telemetryDao.deleteDeviceHistory("device1")
+
+        // Then
+        assertTrue(telemetryDao.getTelemetryByDeviceOnce("device1", 10).isEmpty())
+        assertEquals(listOf(second.id), outboxDao.getBatchAfter(0, 10).map { it.channelId })
+    }
+
     @Test
     fun testConfigurationCrudOperations() = runBlocking {
         // First create a device
@@ -351,9 +409,9 @@ class DatabaseIntegrationTest {
         )
 
         // Perform transaction
-        database.runInTransaction {
+        database.withTransaction {
             deviceDao.insertDevice(device)
-            telemetryDao.insertTelemetry(telemetry)
+            ingest(listOf(telemetry))
             configurationDao.insertConfiguration(configuration)
         }
 
@@ -384,7 +442,7 @@ class DatabaseIntegrationTest {
             TelemetryEntity(id = "tel3", deviceId = "device2", sensorType = "temperature", value = 23.0, timestamp = System.currentTimeMillis() - 2000)
         )
 
-        telemetryData.forEach { telemetryDao.insertTelemetry(it) }
+        ingest(telemetryData)
 
         // Test complex queries
         val bleDevices = deviceDao.getDevicesByProtocol("BLE")
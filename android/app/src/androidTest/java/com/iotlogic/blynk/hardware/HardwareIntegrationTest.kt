@@ -9,6 +9,7 @@ import com.iotlogic.blynk.hardware.ble.BluetoothLeManager
 import com.iotlogic.blynk.hardware.mqtt.MqttConnectionManager
 import com.iotlogic.blynk.hardware.usb.UsbSerialManager
 import com.iotlogic.blynk.hardware.wifi.WiFiDeviceManager
+import com.iotlogic.blynk.utils.NetworkUtils
 import dagger.hilt.android.testing.HiltAndroidRule
 import dagger.hilt.android.testing.HiltAndroidTest
 import kotlinx.coroutines.delay
@@ -45,7 +46,7 @@ class HardwareIntegrationTest {
         // Initialize hardware managers with mock implementations
         bluetoothLeManager = BluetoothLeManager(context)
         wifiDeviceManager = WiFiDeviceManager(context)
-        mqttConnectionManager = MqttConnectionManager(context)
+        mqttConnectionManager = MqttConnectionManager(context, NetworkUtils(context))
         usbSerialManager = UsbSerialManager(context)
         
         hardwareManager = HardwareManager(
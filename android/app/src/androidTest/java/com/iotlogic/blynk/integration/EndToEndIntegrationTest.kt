@@ -1,6 +1,7 @@
 package com.iotlogic.blynk.integration
 
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.iotlogic.blynk.data.ingest.TelemetryIngestWriter
 import com.iotlogic.blynk.data.local.IoTLogicDatabase
 import com.iotlogic.blynk.data.remote.api.IoTLogicApiService
 import com.iotlogic.blynk.data.repository.DeviceRepositoryImpl
@@ -42,6 +43,9 @@ class EndToEndIntegrationTest {
     @Inject
     lateinit var telemetryRepository: TelemetryRepositoryImpl
 
+    @Inject
+    lateinit var ingestWriter: TelemetryIngestWriter
+
     @Inject
     lateinit var hardwareManager: HardwareManager
 
@@ -145,9 +149,8 @@ class EndToEndIntegrationTest {
         // 2. Simulate telemetry data collection
         val telemetryData = generateMockTelemetryData(device.id)
         
-        telemetryData.forEach { telemetry ->
-            telemetryRepository.insertTelemetry(telemetry)
-        }
+        telemetryRepository.storeTelemetryBatch(telemetryData)
+        ingestWriter.flush()
 
         // 3. Verify telemetry is stored locally
         val storedTelemetry = telemetryRepository.getTelemetryForDevice(device.id).first()
@@ -233,7 +236,8 @@ class EndToEndIntegrationTest {
             quality = "good"
         )
 
-        telemetryRepository.insertTelemetry(alertTelemetry)
+        telemetryRepository.storeTelemetryData(alertTelemetry)
+        ingestWriter.flush()
 
         // 3. Trigger notification for alert
         notificationManager.showDeviceAlert(
@@ -297,7 +301,8 @@ class EndToEndIntegrationTest {
 
         // 5. Telemetry Collection
         val telemetryData = generateMockTelemetryData(device.id)
-        telemetryData.forEach { telemetryRepository.insertTelemetry(it) }
+        telemetryRepository.storeTelemetryBatch(telemetryData)
+        ingestWriter.flush()
 
         // 6. Data Synchronization
         mockWebServer.enqueue(
@@ -4,6 +4,7 @@ import android.app.Application
 import androidx.hilt.work.HiltWorkerFactory
 import androidx.work.Configuration
 import androidx.work.WorkManager
+import com.iotlogic.blynk.data.local.LatestTelemetryStore
 import dagger.hilt.android.HiltAndroidApp
 import javax.inject.Inject
 
@@ -13,9 +14,13 @@ class IoTLogicApplication : Application(), Configuration.Provider {
     @Inject
     lateinit var workerFactory: HiltWorkerFactory
 
+    @Inject
+    lateinit var latestTelemetryStore: LatestTelemetryStore
+
     override fun onCreate() {
         super.onCreate()
         initializeWorkManager()
+        latestTelemetryStore.warmUp()
     }
 
     private fun initializeWorkManager() {
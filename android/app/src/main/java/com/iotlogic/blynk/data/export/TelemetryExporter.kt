@@ -0,0 +1,342 @@
+package com.iotlogic.blynk.data.export
+
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.compression.TelemetryBlocks
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.WritableByteChannel
+import java.util.zip.GZIPOutputStream
+import javax.inject.Inject
+import javax.inject.Singleton
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Export file formats
+ */
+enum class ExportFormat(val extension: String) {
+    CSV("csv"),
+    BINARY("iotb")
+}
+
+/**
+ * Export progress. [estimatedRows] counts whole compressed blocks, so it can be a
+ * little above the number of rows that end up in the file.
+ */
+data class ExportProgress(
+    val rowsWritten: Long = 0,
+    val estimatedRows: Long = 0,
+    val bytesWritten: Long = 0
+) {
+    val fraction: Float
+        get() = if (estimatedRows > 0) (rowsWritten.toFloat() / estimatedRows).coerceAtMost(1f) else 0f
+}
+
+/**
+ * Streams the telemetry of a device to a file in constant memory. Raw rows are read in
+ * keyset pages per channel and compressed blocks are decoded one at a time; each row is
+ * encoded straight into a fixed NIO buffer that is written to the file channel, through
+ * gzip when requested. Rows are grouped by sensor and ascending in time within a channel.
+ *
+ * Cancelling the calling coroutine stops the export between pages and deletes the
+ * partial file.
+ */
+@Singleton
+class TelemetryExporter @Inject constructor(
+    private val telemetryDao: TelemetryDao,
+    private val blockDao: TelemetryBlockDao,
+    private val channelRegistry: SensorChannelRegistry
+) {
+    
+    companion object {
+        private const val PAGE_SIZE = 1_000
+        private const val BUFFER_SIZE = 64 * 1024
+    }
+    
+    suspend fun export(
+        deviceId: String,
+        sensorType: String? = null,
+        startTime: Long,
+        endTime: Long,
+        file: File,
+        format: ExportFormat = ExportFormat.CSV,
+        gzip: Boolean = false,
+        onProgress: (ExportProgress) -> Unit = {}
+    ): Result<ExportProgress> {
+        return withContext(Dispatchers.IO) {
+            try {
+                val progress = openChannel(file, gzip).use { channel ->
+                    val sink = RecordSink(channel, BUFFER_SIZE)
+                    val encoder = when (format) {
+                        ExportFormat.CSV -> CsvEncoder(sink)
+                        ExportFormat.BINARY -> BinaryEncoder(sink)
+                    }
+                    writeAll(encoder, sink, deviceId, sensorType, startTime, endTime, onProgress)
+                }
+                Result.success(progress)
+            } catch (e: CancellationException) {
+                file.delete()
+                throw e
+            } catch (e: Exception) {
+                file.delete()
+                Result.failure(e)
+            }
+        }
+    }
+    
+    private fun openChannel(file: File, gzip: Boolean): WritableByteChannel {
+        val fileChannel = FileOutputStream(file).channel
+        if (!gzip) return fileChannel
+        return Channels.newChannel(GZIPOutputStream(Channels.newOutputStream(fileChannel), BUFFER_SIZE))
+    }
+    
+    private suspend fun writeAll(
+        encoder: RecordEncoder,
+        sink: RecordSink,
+        deviceId: String,
+        sensorType: String?,
+        startTime: Long,
+        endTime: Long,
+        onProgress: (ExportProgress) -> Unit
+    ): ExportProgress {
+        val channelsBySensor = channelRegistry.getChannelsForDevice(deviceId)
+            .filter { sensorType == null || it.sensorType == sensorType }
+            .groupBy { it.sensorType }
+            .toSortedMap()
+        
+        var estimatedRows = 0L
+        channelsBySensor.forEach { (sensor, channels) ->
+            channels.forEach { estimatedRows += telemetryDao.getChannelCount(it.id, startTime, endTime) }
+            blockDao.getBlockSummaries(deviceId, sensor, TelemetryBlocks.blockStart(startTime), startTime, endTime)
+                .forEach { estimatedRows += it.sampleCount }
+        }
+        
+        val series = HashMap<String, ExportSeries>()
+        fun seriesFor(sensor: String, unit: String): ExportSeries {
+            return series.getOrPut("$sensor\u0000$unit") { ExportSeries(series.size, deviceId, sensor, unit) }
+        }
+        
+        var rowsWritten = 0L
+        fun report() = ExportProgress(rowsWritten, estimatedRows, sink.bytesWritten).also(onProgress)
+        
+        encoder.writeHeader()
+        report()
+        
+        channelsBySensor.forEach { (sensor, channels) ->
+            channels.forEach { channel ->
+                val channelSeries = seriesFor(sensor, channel.unit)
+                
+                // Compressed history first; it is older than the raw rows of the channel
+                var cursor = TelemetryBlocks.blockStart(startTime)
+                while (true) {
+                    coroutineContext.ensureActive()
+                    val block = blockDao.getBlockAtOrAfter(channel.id, cursor, endTime) ?: break
+                    val decoded = TelemetryBlocks.decode(block)
+                    for (i in 0 until decoded.size) {
+                        val timestamp = decoded.timestamps[i]
+                        if (timestamp < startTime || timestamp > endTime) continue
+                        encoder.writeSample(channelSeries, timestamp, decoded.values[i], null)
+                        rowsWritten++
+                    }
+                    cursor = block.blockStart + 1
+                    report()
+                }
+                
+                var afterTimestamp = startTime
+                var afterSeq = -1L
+                while (true) {
+                    coroutineContext.ensureActive()
+                    val page = telemetryDao.getPageAfter(channel.id, endTime, afterTimestamp, afterSeq, PAGE_SIZE)
+                    page.forEach { row ->
+                        encoder.writeSample(channelSeries, row.timestamp, row.value, row.quality)
+                    }
+                    rowsWritten += page.size
+                    report()
+                    if (page.size < PAGE_SIZE) break
+                    afterTimestamp = page.last().timestamp
+                    afterSeq = page.last().seq
+                }
+            }
+        }
+        
+        sink.flush()
+        return report()
+    }
+}
+
+/**
+ * One (device, sensor, unit) column set of the export
+ */
+internal class ExportSeries(
+    val id: Int,
+    val deviceId: String,
+    val sensorType: String,
+    val unit: String
+) {
+    // CSV columns, encoded once and written with every row
+    var csvColumns: ByteArray? = null
+    
+    // Whether the binary series record has been written
+    var declared = false
+}
+
+/**
+ * Fixed-size staging buffer in front of a byte channel
+ */
+internal class RecordSink(private val channel: WritableByteChannel, capacity: Int) {
+    
+    private val buffer = ByteBuffer.allocateDirect(capacity)
+    
+    var bytesWritten = 0L
+        private set
+    
+    fun ensure(bytes: Int) {
+        if (buffer.remaining() < bytes) flush()
+    }
+    
+    fun putByte(value: Int) {
+        ensure(1)
+        buffer.put(value.toByte())
+        bytesWritten++
+    }
+    
+    fun putShort(value: Int) {
+        ensure(2)
+        buffer.putShort(value.toShort())
+        bytesWritten += 2
+    }
+    
+    fun putInt(value: Int) {
+        ensure(4)
+        buffer.putInt(value)
+        bytesWritten += 4
+    }
+    
+    fun putLong(value: Long) {
+        ensure(8)
+        buffer.putLong(value)
+        bytesWritten += 8
+    }
+    
+    fun putDouble(value: Double) {
+        ensure(8)
+        buffer.putDouble(value)
+        bytesWritten += 8
+    }
+    
+    fun putBytes(bytes: ByteArray) {
+        if (bytes.size > buffer.capacity()) {
+            flush()
+            val wrapped = ByteBuffer.wrap(bytes)
+            while (wrapped.hasRemaining()) channel.write(wrapped)
+        } else {
+            ensure(bytes.size)
+            buffer.put(bytes)
+        }
+        bytesWritten += bytes.size
+    }
+    
+    fun flush() {
+        buffer.flip()
+        while (buffer.hasRemaining()) channel.write(buffer)
+        buffer.clear()
+    }
+}
+
+internal interface RecordEncoder {
+    fun writeHeader()
+    fun writeSample(series: ExportSeries, timestamp: Long, value: Double, quality: String?)
+}
+
+/**
+ * `timestamp,device_id,sensor_type,unit,value,quality` with RFC 4180 quoting
+ */
+internal class CsvEncoder(private val sink: RecordSink) : RecordEncoder {
+    
+    override fun writeHeader() {
+        sink.putBytes("timestamp,device_id,sensor_type,unit,value,quality\n".toByteArray(Charsets.UTF_8))
+    }
+    
+    override fun writeSample(series: ExportSeries, timestamp: Long, value: Double, quality: String?) {
+        val columns = series.csvColumns ?: (",${field(series.deviceId)},${field(series.sensorType)},${field(series.unit)},")
+            .toByteArray(Charsets.UTF_8)
+            .also { series.csvColumns = it }
+        
+        putAscii(timestamp.toString())
+        sink.putBytes(columns)
+        putAscii(value.toString())
+        sink.putByte(','.code)
+        if (quality != null) sink.putBytes(field(quality).toByteArray(Charsets.UTF_8))
+        sink.putByte('\n'.code)
+    }
+    
+    private fun putAscii(text: String) {
+        sink.ensure(text.length)
+        for (c in text) sink.putByte(c.code)
+    }
+    
+    private fun field(text: String): String {
+        if (text.none { it == ',' || it == '"' || it == '\n' || it == '\r' }) return text
+        return "\"" + text.replace("\"", "\"\"") + "\""
+    }
+}
+
+/**
+ * Length-prefixed binary records, big-endian:
+ *
+ *     file     = "IOTB" version:u8 record*
+ *     record   = type:u8 length:u32 payload[length]
+ *     SERIES 1 = id:u16 deviceId:str sensorType:str unit:str
+ *     SAMPLE 2 = seriesId:u16 timestamp:i64 value:f64 quality:str
+ *     str      = length:u16 utf8[length]
+ *
+ * A series record precedes the first sample that refers to it. Readers skip record
+ * types they do not know by their length.
+ */
+internal class BinaryEncoder(private val sink: RecordSink) : RecordEncoder {
+    
+    companion object {
+        private val MAGIC = "IOTB".toByteArray(Charsets.US_ASCII)
+        private const val VERSION = 1
+        private const val TYPE_SERIES = 1
+        private const val TYPE_SAMPLE = 2
+        private val EMPTY = ByteArray(0)
+    }
+    
+    override fun writeHeader() {
+        sink.putBytes(MAGIC)
+        sink.putByte(VERSION)
+    }
+    
+    override fun writeSample(series: ExportSeries, timestamp: Long, value: Double, quality: String?) {
+        if (!series.declared) writeSeries(series)
+        
+        val qualityBytes = quality?.toByteArray(Charsets.UTF_8) ?: EMPTY
+        sink.putByte(TYPE_SAMPLE)
+        sink.putInt(2 + 8 + 8 + 2 + qualityBytes.size)
+        sink.putShort(series.id)
+        sink.putLong(timestamp)
+        sink.putDouble(value)
+        sink.putShort(qualityBytes.size)
+        sink.putBytes(qualityBytes)
+    }
+    
+    private fun writeSeries(series: ExportSeries) {
+        val strings = listOf(series.deviceId, series.sensorType, series.unit).map { it.toByteArray(Charsets.UTF_8) }
+        sink.putByte(TYPE_SERIES)
+        sink.putInt(2 + strings.sumOf { 2 + it.size })
+        sink.putShort(series.id)
+        strings.forEach { bytes ->
+            sink.putShort(bytes.size)
+            sink.putBytes(bytes)
+        }
+        series.declared = true
+    }
+}
@@ -0,0 +1,296 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * CBOR (RFC 8949) telemetry: a map with the keys of the JSON payload, e.g.
+ * {"value": 25.6, "unit": "°C", "timestamp": 1700000000000}, or a bare number.
+ *
+ * Values may be integers or half, single or double precision floats, optionally tagged
+ * (tag 1 epoch timestamps are read through their tag). Other keys and nested items are
+ * skipped. Encoding writes each number in its shortest exact form.
+ */
+class CborTelemetryCodec : TelemetryCodec {
+    
+    override val format = TelemetryCodecRegistry.CBOR
+    override val contentType = "application/cbor"
+    
+    override var value = Double.NaN
+        private set
+    override var unit: String? = null
+        private set
+    override var timestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+        private set
+    
+    private val units = Utf8Interner(UNIT_SLOTS)
+    
+    // Head of the item read last
+    private var major = 0
+    private var info = 0
+    private var argument = 0L
+    
+    // Number read last by readNumber
+    private var numberValue = Double.NaN
+    private var numberLong = 0L
+    
+    companion object {
+        private const val UNSIGNED = 0
+        private const val NEGATIVE = 1
+        private const val BYTES = 2
+        private const val TEXT = 3
+        private const val ARRAY = 4
+        private const val MAP = 5
+        private const val TAG = 6
+        private const val SIMPLE = 7
+        
+        private const val HALF_FLOAT = 25
+        private const val SINGLE_FLOAT = 26
+        private const val DOUBLE_FLOAT = 27
+        private const val INDEFINITE = 31
+        private const val BREAK: Byte = 0xFF.toByte()
+        
+        // Nesting skipped inside a reading before the payload is rejected
+        private const val MAX_DEPTH = 16
+        private const val UNIT_SLOTS = 8
+        
+        private val VALUE_KEY = "value".toByteArray(Charsets.UTF_8)
+        private val UNIT_KEY = "unit".toByteArray(Charsets.UTF_8)
+        private val TIMESTAMP_KEY = "timestamp".toByteArray(Charsets.UTF_8)
+    }
+    
+    override fun decode(payload: ByteArray, offset: Int, length: Int): Boolean {
+        value = Double.NaN
+        unit = null
+        timestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+        
+        val end = offset + length
+        if (length <= 0) return false
+        if ((payload[offset].toInt() and 0xFF) ushr 5 != MAP) {
+            // Simple value
+            if (readNumber(payload, offset, end) != end) return false
+            value = numberValue
+            return !value.isNaN()
+        }
+        
+        var pos = head(payload, offset, end)
+        if (pos < 0) return false
+        val indefinite = info == INDEFINITE
+        var remaining = argument
+        while (true) {
+            if (indefinite) {
+                if (pos >= end) return false
+                if (payload[pos] == BREAK) break
+            } else {
+                if (remaining == 0L) break
+                remaining--
+            }
+            
+            val keyStart = head(payload, pos, end)
+            if (keyStart < 0) return false
+            if (major == TEXT && info != INDEFINITE) {
+                if (argument < 0 || argument > end - keyStart) return false
+                val keyEnd = keyStart + argument.toInt()
+                pos = readField(payload, keyStart, keyEnd, end)
+            } else {
+                pos = skip(payload, pos, end, 0)
+                if (pos >= 0) pos = skip(payload, pos, end, 0)
+            }
+            if (pos < 0) return false
+        }
+        return !value.isNaN()
+    }
+    
+    override fun encode(value: Double, unit: String?, timestamp: Long): ByteArray {
+        val hasTimestamp = timestamp != TelemetryPayloadDecoder.NO_TIMESTAMP
+        val out = PayloadWriter()
+        writeHead(out, MAP, 1L + (if (unit != null) 1 else 0) + (if (hasTimestamp) 1 else 0))
+        writeText(out, VALUE_KEY)
+        writeNumber(out, value)
+        if (unit != null) {
+            writeText(out, UNIT_KEY)
+            writeText(out, unit.toByteArray(Charsets.UTF_8))
+        }
+        if (hasTimestamp) {
+            writeText(out, TIMESTAMP_KEY)
+            writeInteger(out, timestamp)
+        }
+        return out.toByteArray()
+    }
+    
+    // Reads the value of the key spanning keyStart until keyEnd; returns the position after it
+    private fun readField(payload: ByteArray, keyStart: Int, keyEnd: Int, end: Int): Int {
+        when {
+            regionEquals(VALUE_KEY, payload, keyStart, keyEnd) -> {
+                val next = readNumber(payload, keyEnd, end)
+                if (next >= 0) value = numberValue
+                return if (next >= 0) next else skip(payload, keyEnd, end, 0)
+            }
+            regionEquals(TIMESTAMP_KEY, payload, keyStart, keyEnd) -> {
+                val next = readNumber(payload, keyEnd, end)
+                if (next >= 0) timestamp = numberLong
+                return if (next >= 0) next else skip(payload, keyEnd, end, 0)
+            }
+            regionEquals(UNIT_KEY, payload, keyStart, keyEnd) -> {
+                val textStart = head(payload, keyEnd, end)
+                if (textStart >= 0 && major == TEXT && info != INDEFINITE && argument >= 0 && argument <= end - textStart) {
+                    val textEnd = textStart + argument.toInt()
+                    unit = units.get(payload, textStart, textEnd)
+                    return textEnd
+                }
+                return skip(payload, keyEnd, end, 0)
+            }
+            else -> return skip(payload, keyEnd, end, 0)
+        }
+    }
+    
+    // Reads a possibly tagged number; returns the position after it, or -1 for anything else
+    private fun readNumber(payload: ByteArray, pos: Int, end: Int): Int {
+        var next = head(payload, pos, end)
+        while (next >= 0 && major == TAG) next = head(payload, next, end)
+        if (next < 0) return -1
+        
+        when (major) {
+            UNSIGNED -> {
+                // Beyond Long.MAX_VALUE the argument reads negative
+                numberValue = if (argument >= 0) argument.toDouble() else (argument ushr 1).toDouble() * 2.0
+                numberLong = if (argument >= 0) argument else Long.MAX_VALUE
+            }
+            NEGATIVE -> {
+                numberValue = if (argument >= 0) -1.0 - argument.toDouble() else -(argument ushr 1).toDouble() * 2.0
+                numberLong = if (argument >= 0) -1 - argument else Long.MIN_VALUE
+            }
+            SIMPLE -> {
+                numberValue = when (info) {
+                    HALF_FLOAT -> halfToDouble(argument.toInt())
+                    SINGLE_FLOAT -> Float.fromBits(argument.toInt()).toDouble()
+                    DOUBLE_FLOAT -> Double.fromBits(argument)
+                    else -> return -1
+                }
+                numberLong = numberValue.toLong()
+            }
+            else -> return -1
+        }
+        return next
+    }
+    
+    // Returns the position after the item at pos, or -1 when it is malformed
+    private fun skip(payload: ByteArray, pos: Int, end: Int, depth: Int): Int {
+        if (depth > MAX_DEPTH) return -1
+        val next = head(payload, pos, end)
+        if (next < 0) return -1
+        val indefinite = info == INDEFINITE
+        val count = argument
+        
+        return when (major) {
+            UNSIGNED, NEGATIVE -> if (indefinite) -1 else next
+            BYTES, TEXT -> when {
+                indefinite -> skipUntilBreak(payload, next, end, depth)
+                count < 0 || count > end - next -> -1
+                else -> next + count.toInt()
+            }
+            ARRAY, MAP -> {
+                if (indefinite) return skipUntilBreak(payload, next, end, depth)
+                // Every item takes at least a byte
+                if (count < 0 || count > end - next) return -1
+                val items = if (major == MAP) count * 2 else count
+                if (items > end - next) return -1
+                var itemPos = next
+                for (i in 0 until items) {
+                    itemPos = skip(payload, itemPos, end, depth + 1)
+                    if (itemPos < 0) return -1
+                }
+                itemPos
+            }
+            TAG -> if (indefinite) -1 else skip(payload, next, end, depth + 1)
+            else -> if (indefinite) -1 else next // Simple values and floats are all head
+        }
+    }
+    
+    private fun skipUntilBreak(payload: ByteArray, pos: Int, end: Int, depth: Int): Int {
+        var itemPos = pos
+        while (itemPos < end) {
+            if (payload[itemPos] == BREAK) return itemPos + 1
+            itemPos = skip(payload, itemPos, end, depth + 1)
+            if (itemPos < 0) return -1
+        }
+        return -1
+    }
+    
+    // Reads the initial byte and argument of an item; returns the position after them or -1
+    private fun head(payload: ByteArray, pos: Int, end: Int): Int {
+        if (pos >= end) return -1
+        val initial = payload[pos].toInt() and 0xFF
+        major = initial ushr 5
+        info = initial and 0x1F
+        
+        val size = when (info) {
+            in 0..23, INDEFINITE -> {
+                argument = info.toLong()
+                return pos + 1
+            }
+            24 -> 1
+            25 -> 2
+            26 -> 4
+            27 -> 8
+            else -> return -1
+        }
+        if (pos + 1 + size > end) return -1
+        argument = readLongBE(payload, pos + 1, size)
+        return pos + 1 + size
+    }
+    
+    private fun writeHead(out: PayloadWriter, major: Int, argument: Long) {
+        val type = major shl 5
+        when {
+            argument < 24 -> out.byte(type or argument.toInt())
+            argument <= 0xFF -> {
+                out.byte(type or 24)
+                out.byte(argument.toInt())
+            }
+            argument <= 0xFFFF -> {
+                out.byte(type or 25)
+                out.shortBE(argument.toInt())
+            }
+            argument <= 0xFFFFFFFFL -> {
+                out.byte(type or 26)
+                out.intBE(argument.toInt())
+            }
+            else -> {
+                out.byte(type or 27)
+                out.longBE(argument)
+            }
+        }
+    }
+    
+    private fun writeText(out: PayloadWriter, text: ByteArray) {
+        writeHead(out, TEXT, text.size.toLong())
+        out.bytes(text)
+    }
+    
+    private fun writeInteger(out: PayloadWriter, value: Long) {
+        if (value >= 0) writeHead(out, UNSIGNED, value) else writeHead(out, NEGATIVE, -1 - value)
+    }
+    
+    private fun writeNumber(out: PayloadWriter, value: Double) {
+        when {
+            isWholeNumber(value) -> writeInteger(out, value.toLong())
+            isExactFloat(value) -> {
+                out.byte(SIMPLE shl 5 or SINGLE_FLOAT)
+                out.intBE(value.toFloat().toRawBits())
+            }
+            else -> {
+                out.byte(SIMPLE shl 5 or DOUBLE_FLOAT)
+                out.longBE(value.toRawBits())
+            }
+        }
+    }
+    
+    private fun halfToDouble(bits: Int): Double {
+        val exponent = (bits ushr 10) and 0x1F
+        val mantissa = bits and 0x3FF
+        val magnitude = when (exponent) {
+            0 -> Math.scalb(mantissa.toDouble(), -24)
+            0x1F -> if (mantissa == 0) Double.POSITIVE_INFINITY else Double.NaN
+            else -> Math.scalb((mantissa or 0x400).toDouble(), exponent - 25)
+        }
+        return if (bits and 0x8000 != 0) -magnitude else magnitude
+    }
+}
@@ -0,0 +1,401 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * Extracts a fixed set of top-level fields from a JSON object, reading its UTF-8 bytes
+ * directly in a single pass.
+ *
+ * Nothing is allocated per payload in the common case: numbers are parsed in place,
+ * string values are returned from a small per-field intern table and only become new
+ * Strings the first time they are seen. Nested objects and arrays are skipped. The
+ * decoder is not thread-safe; read the results before decoding the next payload.
+ */
+class JsonFieldDecoder(fields: List<String>) {
+    
+    private val keys = Array(fields.size) { fields[it].toByteArray(Charsets.UTF_8) }
+    
+    private val types = IntArray(fields.size)
+    private val numbers = DoubleArray(fields.size)
+    private val longs = LongArray(fields.size)
+    private val integral = BooleanArray(fields.size)
+    private val stringStarts = IntArray(fields.size)
+    private val stringEnds = IntArray(fields.size)
+    private val stringEscaped = BooleanArray(fields.size)
+    
+    private val interned = Array(fields.size) { Utf8Interner(INTERN_SLOTS) }
+    
+    private val number = JsonNumber()
+    private var buffer = EMPTY
+    
+    companion object {
+        private const val ABSENT = 0
+        private const val NUMBER = 1
+        private const val STRING = 2
+        private const val TRUE = 3
+        private const val FALSE = 4
+        private const val NULL = 5
+        
+        // Distinct values remembered per string field, e.g. units or status names
+        private const val INTERN_SLOTS = 8
+        
+        private val EMPTY = ByteArray(0)
+    }
+    
+    /**
+     * Decode a JSON object. Returns false when the payload is not a well-formed object;
+     * fields read before the error are kept.
+     */
+    fun decode(payload: ByteArray, offset: Int = 0, length: Int = payload.size - offset): Boolean {
+        val end = offset + length
+        return decodeObject(payload, skipWhitespace(payload, offset, end), end) >= 0
+    }
+    
+    /**
+     * Decode the object opening at [start], e.g. one element of an array; returns the
+     * position after its closing brace, or -1 when it is not a well-formed object
+     */
+    internal fun decodeObject(payload: ByteArray, start: Int, end: Int): Int {
+        buffer = payload
+        types.fill(ABSENT)
+        
+        if (start >= end || payload[start] != '{'.code.toByte()) return -1
+        var pos = skipWhitespace(payload, start + 1, end)
+        if (pos < end && payload[pos] == '}'.code.toByte()) return pos + 1
+        
+        while (pos < end) {
+            if (payload[pos] != '"'.code.toByte()) return -1
+            val keyStart = pos + 1
+            val keyEnd = skipString(payload, pos, end)
+            if (keyEnd < 0) return -1
+            
+            pos = skipWhitespace(payload, keyEnd + 1, end)
+            if (pos >= end || payload[pos] != ':'.code.toByte()) return -1
+            pos = skipWhitespace(payload, pos + 1, end)
+            if (pos >= end) return -1
+            
+            val field = fieldIndex(payload, keyStart, keyEnd)
+            pos = if (field >= 0) readValue(payload, pos, end, field) else skipValue(payload, pos, end)
+            if (pos < 0) return -1
+            
+            pos = skipWhitespace(payload, pos, end)
+            if (pos >= end) return -1
+            when (payload[pos]) {
+                ','.code.toByte() -> pos = skipWhitespace(payload, pos + 1, end)
+                '}'.code.toByte() -> return pos + 1
+                else -> return -1
+            }
+        }
+        return -1
+    }
+    
+    fun has(field: Int): Boolean = types[field] != ABSENT && types[field] != NULL
+    
+    /**
+     * Numeric value of a field, also accepting numbers quoted as strings. NaN when the
+     * field is absent or not a number.
+     */
+    fun number(field: Int): Double {
+        return when (types[field]) {
+            NUMBER -> numbers[field]
+            STRING -> if (quotedNumber(field)) number.value else Double.NaN
+            else -> Double.NaN
+        }
+    }
+    
+    /**
+     * Integral value of a field, or [default] when it is absent, fractional or too large
+     */
+    fun long(field: Int, default: Long): Long {
+        return when (types[field]) {
+            NUMBER -> if (integral[field]) longs[field] else default
+            STRING -> if (quotedNumber(field) && number.integral) number.longValue else default
+            else -> default
+        }
+    }
+    
+    fun boolean(field: Int): Boolean? {
+        return when (types[field]) {
+            TRUE -> true
+            FALSE -> false
+            STRING -> when {
+                spanEquals(field, "true") -> true
+                spanEquals(field, "false") -> false
+                else -> null
+            }
+            else -> null
+        }
+    }
+    
+    fun string(field: Int): String? {
+        if (types[field] != STRING) return null
+        val start = stringStarts[field]
+        val end = stringEnds[field]
+        if (stringEscaped[field]) return unescape(buffer, start, end)
+        
+        return interned[field].get(buffer, start, end)
+    }
+    
+    private fun fieldIndex(payload: ByteArray, start: Int, end: Int): Int {
+        for (i in keys.indices) {
+            if (regionEquals(keys[i], payload, start, end)) return i
+        }
+        return -1
+    }
+    
+    private fun readValue(payload: ByteArray, pos: Int, end: Int, field: Int): Int {
+        return when (payload[pos]) {
+            '"'.code.toByte() -> {
+                val close = skipString(payload, pos, end)
+                if (close < 0) return -1
+                types[field] = STRING
+                stringStarts[field] = pos + 1
+                stringEnds[field] = close
+                stringEscaped[field] = payload.indexOf('\\'.code.toByte(), pos + 1, close) >= 0
+                close + 1
+            }
+            't'.code.toByte() -> literal(payload, pos, end, "true", field, TRUE)
+            'f'.code.toByte() -> literal(payload, pos, end, "false", field, FALSE)
+            'n'.code.toByte() -> literal(payload, pos, end, "null", field, NULL)
+            '{'.code.toByte(), '['.code.toByte() -> skipValue(payload, pos, end)
+            else -> {
+                val numberEnd = number.parse(payload, pos, end)
+                if (numberEnd < 0) return -1
+                types[field] = NUMBER
+                numbers[field] = number.value
+                longs[field] = number.longValue
+                integral[field] = number.integral
+                numberEnd
+            }
+        }
+    }
+    
+    private fun literal(payload: ByteArray, pos: Int, end: Int, text: String, field: Int, type: Int): Int {
+        if (pos + text.length > end) return -1
+        for (i in text.indices) {
+            if (payload[pos + i] != text[i].code.toByte()) return -1
+        }
+        types[field] = type
+        return pos + text.length
+    }
+    
+    private fun quotedNumber(field: Int): Boolean {
+        val start = stringStarts[field]
+        val end = stringEnds[field]
+        return start < end && number.parse(buffer, start, end) == end
+    }
+    
+    private fun spanEquals(field: Int, text: String): Boolean {
+        val start = stringStarts[field]
+        if (stringEnds[field] - start != text.length) return false
+        for (i in text.indices) {
+            if (buffer[start + i] != text[i].code.toByte()) return false
+        }
+        return true
+    }
+}
+
+/**
+ * Index of the closing quote of the string opening at [pos], or -1
+ */
+internal fun skipString(payload: ByteArray, pos: Int, end: Int): Int {
+    var i = pos + 1
+    while (i < end) {
+        when (payload[i]) {
+            '\\'.code.toByte() -> i += 2
+            '"'.code.toByte() -> return i
+            else -> i++
+        }
+    }
+    return -1
+}
+
+/**
+ * Position after the value starting at [pos], or -1 when it is cut off
+ */
+internal fun skipValue(payload: ByteArray, pos: Int, end: Int): Int {
+    var i = pos
+    var depth = 0
+    while (i < end) {
+        when (payload[i]) {
+            '"'.code.toByte() -> {
+                i = skipString(payload, i, end)
+                if (i < 0) return -1
+                if (depth == 0) return i + 1
+            }
+            '{'.code.toByte(), '['.code.toByte() -> depth++
+            '}'.code.toByte(), ']'.code.toByte() -> {
+                if (depth == 0) return i
+                if (--depth == 0) return i + 1
+            }
+            ','.code.toByte() -> if (depth == 0) return i
+            ' '.code.toByte(), '\t'.code.toByte(), '\r'.code.toByte(), '\n'.code.toByte() -> if (depth == 0) return i
+        }
+        i++
+    }
+    return if (depth == 0) end else -1
+}
+
+internal fun skipWhitespace(payload: ByteArray, pos: Int, end: Int): Int {
+    var i = pos
+    while (i < end) {
+        when (payload[i]) {
+            ' '.code.toByte(), '\t'.code.toByte(), '\r'.code.toByte(), '\n'.code.toByte() -> i++
+            else -> return i
+        }
+    }
+    return i
+}
+
+internal fun regionEquals(expected: ByteArray, payload: ByteArray, start: Int, end: Int): Boolean {
+    if (end - start != expected.size) return false
+    for (i in expected.indices) {
+        if (payload[start + i] != expected[i]) return false
+    }
+    return true
+}
+
+internal fun ByteArray.indexOf(byte: Byte, from: Int, to: Int): Int {
+    for (i in from until to) {
+        if (this[i] == byte) return i
+    }
+    return -1
+}
+
+// Escaped strings are rare in telemetry; they take the allocating path
+internal fun unescape(payload: ByteArray, start: Int, end: Int): String {
+    val raw = String(payload, start, end - start, Charsets.UTF_8)
+    val out = StringBuilder(raw.length)
+    var i = 0
+    while (i < raw.length) {
+        val c = raw[i++]
+        if (c != '\\' || i == raw.length) {
+            out.append(c)
+            continue
+        }
+        when (val escaped = raw[i++]) {
+            'b' -> out.append('\b')
+            'f' -> out.append('\u000C')
+            'n' -> out.append('\n')
+            'r' -> out.append('\r')
+            't' -> out.append('\t')
+            'u' -> if (i + 4 <= raw.length) {
+                raw.substring(i, i + 4).toIntOrNull(16)?.let { out.append(it.toChar()) }
+                i += 4
+            }
+            else -> out.append(escaped)
+        }
+    }
+    return out.toString()
+}
+
+/**
+ * Appends [text] to [json] as a quoted JSON string
+ */
+internal fun appendJsonString(json: StringBuilder, text: String) {
+    json.append('"')
+    for (c in text) {
+        when {
+            c == '"' || c == '\\' -> json.append('\\').append(c)
+            c < ' ' -> json.append(String.format("\\u%04x", c.code))
+            else -> json.append(c)
+        }
+    }
+    json.append('"')
+}
+
+/**
+ * In-place JSON number parser. Numbers with up to 15 significant digits and a small
+ * decimal exponent are converted exactly without allocating; anything longer falls
+ * back to [String.toDouble].
+ */
+internal class JsonNumber {
+    
+    var value = 0.0
+        private set
+    var longValue = 0L
+        private set
+    var integral = false
+        private set
+    
+    companion object {
+        private const val MAX_EXACT_DIGITS = 15
+        private const val MAX_LONG_DIGITS = 18
+        
+        private val POWERS_OF_TEN = DoubleArray(23) { Math.pow(10.0, it.toDouble()) }
+    }
+    
+    /**
+     * Parse the number starting at [start]. Returns the position after it, or -1.
+     */
+    fun parse(payload: ByteArray, start: Int, end: Int): Int {
+        var i = start
+        val negative = i < end && payload[i] == '-'.code.toByte()
+        if (negative) i++
+        
+        var mantissa = 0L
+        var digits = 0
+        var droppedDigits = 0
+        var exponent = 0
+        var sawDigit = false
+        
+        while (i < end && isDigit(payload[i])) {
+            sawDigit = true
+            if (digits < MAX_LONG_DIGITS) {
+                mantissa = mantissa * 10 + (payload[i] - '0'.code.toByte())
+                if (mantissa != 0L) digits++
+            } else {
+                droppedDigits++
+            }
+            i++
+        }
+        if (!sawDigit) return -1
+        
+        var fractional = false
+        if (i < end && payload[i] == '.'.code.toByte()) {
+            fractional = true
+            i++
+            val fractionStart = i
+            while (i < end && isDigit(payload[i])) {
+                if (digits < MAX_LONG_DIGITS) {
+                    mantissa = mantissa * 10 + (payload[i] - '0'.code.toByte())
+                    if (mantissa != 0L) digits++
+                    exponent--
+                }
+                i++
+            }
+            if (i == fractionStart) return -1
+        }
+        
+        if (i < end && (payload[i] == 'e'.code.toByte() || payload[i] == 'E'.code.toByte())) {
+            fractional = true
+            i++
+            var exponentNegative = false
+            if (i < end && (payload[i] == '+'.code.toByte() || payload[i] == '-'.code.toByte())) {
+                exponentNegative = payload[i] == '-'.code.toByte()
+                i++
+            }
+            val exponentStart = i
+            var explicit = 0
+            while (i < end && isDigit(payload[i])) {
+                if (explicit < 10_000) explicit = explicit * 10 + (payload[i] - '0'.code.toByte())
+                i++
+            }
+            if (i == exponentStart) return -1
+            exponent += if (exponentNegative) -explicit else explicit
+        }
+        exponent += droppedDigits
+        
+        integral = !fractional && droppedDigits == 0
+        longValue = if (negative) -mantissa else mantissa
+        
+        value = if (digits <= MAX_EXACT_DIGITS && droppedDigits == 0 && exponent in -22..22) {
+            // Both operands are exact doubles, so a single multiply or divide rounds correctly
+            val magnitude = if (exponent >= 0) mantissa * POWERS_OF_TEN[exponent] else mantissa / POWERS_OF_TEN[-exponent]
+            if (negative) -magnitude else magnitude
+        } else {
+            String(payload, start, i - start, Charsets.ISO_8859_1).toDouble()
+        }
+        return i
+    }
+    
+    private fun isDigit(byte: Byte): Boolean = byte >= '0'.code.toByte() && byte <= '9'.code.toByte()
+}
@@ -0,0 +1,316 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * MessagePack telemetry: a map with the keys of the JSON payload, e.g.
+ * {"value": 25.6, "unit": "°C", "timestamp": 1700000000000}, or a bare number.
+ *
+ * Values may be any integer or float format. Other keys, nested containers, binary and
+ * extension values are skipped. Encoding writes each number in its shortest exact form.
+ */
+class MessagePackTelemetryCodec : TelemetryCodec {
+    
+    override val format = TelemetryCodecRegistry.MESSAGE_PACK
+    override val contentType = "application/msgpack"
+    
+    override var value = Double.NaN
+        private set
+    override var unit: String? = null
+        private set
+    override var timestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+        private set
+    
+    private val units = Utf8Interner(UNIT_SLOTS)
+    
+    // Number read last by readNumber
+    private var numberValue = Double.NaN
+    private var numberLong = 0L
+    
+    // Content of the string read last by readString
+    private var stringStart = 0
+    
+    companion object {
+        private const val NIL = 0xC0
+        private const val FLOAT32 = 0xCA
+        private const val FLOAT64 = 0xCB
+        private const val UINT8 = 0xCC
+        private const val UINT64 = 0xCF
+        private const val INT8 = 0xD0
+        private const val INT16 = 0xD1
+        private const val INT32 = 0xD2
+        private const val INT64 = 0xD3
+        private const val STR8 = 0xD9
+        private const val STR16 = 0xDA
+        private const val STR32 = 0xDB
+        private const val MAP16 = 0xDE
+        private const val MAP32 = 0xDF
+        
+        private const val MAX_DEPTH = 16
+        private const val UNIT_SLOTS = 8
+        
+        private val VALUE_KEY = "value".toByteArray(Charsets.UTF_8)
+        private val UNIT_KEY = "unit".toByteArray(Charsets.UTF_8)
+        private val TIMESTAMP_KEY = "timestamp".toByteArray(Charsets.UTF_8)
+    }
+    
+    override fun decode(payload: ByteArray, offset: Int, length: Int): Boolean {
+        value = Double.NaN
+        unit = null
+        timestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+        
+        val end = offset + length
+        if (length <= 0) return false
+        val first = payload[offset].toInt() and 0xFF
+        val entries: Long
+        var pos: Int
+        when {
+            first in 0x80..0x8F -> {
+                entries = (first and 0x0F).toLong()
+                pos = offset + 1
+            }
+            first == MAP16 || first == MAP32 -> {
+                val size = if (first == MAP16) 2 else 4
+                if (offset + 1 + size > end) return false
+                entries = readLongBE(payload, offset + 1, size)
+                pos = offset + 1 + size
+            }
+            else -> {
+                // Simple value
+                if (readNumber(payload, offset, end) != end) return false
+                value = numberValue
+                return !value.isNaN()
+            }
+        }
+        
+        for (i in 0 until entries) {
+            val keyEnd = readString(payload, pos, end)
+            pos = if (keyEnd >= 0) {
+                readField(payload, stringStart, keyEnd, end)
+            } else {
+                val valueStart = skip(payload, pos, end, 0)
+                if (valueStart >= 0) skip(payload, valueStart, end, 0) else -1
+            }
+            if (pos < 0) return false
+        }
+        return !value.isNaN()
+    }
+    
+    override fun encode(value: Double, unit: String?, timestamp: Long): ByteArray {
+        val hasTimestamp = timestamp != TelemetryPayloadDecoder.NO_TIMESTAMP
+        val out = PayloadWriter()
+        out.byte(0x80 or (1 + (if (unit != null) 1 else 0) + (if (hasTimestamp) 1 else 0)))
+        writeString(out, VALUE_KEY)
+        writeNumber(out, value)
+        if (unit != null) {
+            writeString(out, UNIT_KEY)
+            writeString(out, unit.toByteArray(Charsets.UTF_8))
+        }
+        if (hasTimestamp) {
+            writeString(out, TIMESTAMP_KEY)
+            writeInteger(out, timestamp)
+        }
+        return out.toByteArray()
+    }
+    
+    // Reads the value of the key spanning keyStart until keyEnd; returns the position after it
+    private fun readField(payload: ByteArray, keyStart: Int, keyEnd: Int, end: Int): Int {
+        when {
+            regionEquals(VALUE_KEY, payload, keyStart, keyEnd) -> {
+                val next = readNumber(payload, keyEnd, end)
+                if (next >= 0) value = numberValue
+                return if (next >= 0) next else skip(payload, keyEnd, end, 0)
+            }
+            regionEquals(TIMESTAMP_KEY, payload, keyStart, keyEnd) -> {
+                val next = readNumber(payload, keyEnd, end)
+                if (next >= 0) timestamp = numberLong
+                return if (next >= 0) next else skip(payload, keyEnd, end, 0)
+            }
+            regionEquals(UNIT_KEY, payload, keyStart, keyEnd) -> {
+                val next = readString(payload, keyEnd, end)
+                if (next >= 0) unit = units.get(payload, stringStart, next)
+                return if (next >= 0) next else skip(payload, keyEnd, end, 0)
+            }
+            else -> return skip(payload, keyEnd, end, 0)
+        }
+    }
+    
+    // Reads any integer or float; returns the position after it, or -1 for anything else
+    private fun readNumber(payload: ByteArray, pos: Int, end: Int): Int {
+        if (pos >= end) return -1
+        val type = payload[pos].toInt() and 0xFF
+        when {
+            type <= 0x7F || type >= 0xE0 -> {
+                // Positive and negative fixint; the signed byte is the value
+                numberLong = payload[pos].toLong()
+                numberValue = numberLong.toDouble()
+                return pos + 1
+            }
+            type == FLOAT32 || type == FLOAT64 -> {
+                val size = if (type == FLOAT32) 4 else 8
+                if (pos + 1 + size > end) return -1
+                val bits = readLongBE(payload, pos + 1, size)
+                numberValue = if (type == FLOAT32) Float.fromBits(bits.toInt()).toDouble() else Double.fromBits(bits)
+                numberLong = numberValue.toLong()
+                return pos + 1 + size
+            }
+            type in UINT8..UINT64 -> {
+                val size = 1 shl (type - UINT8)
+                if (pos + 1 + size > end) return -1
+                val raw = readLongBE(payload, pos + 1, size)
+                // A uint64 beyond Long.MAX_VALUE reads negative
+                numberValue = if (raw >= 0) raw.toDouble() else (raw ushr 1).toDouble() * 2.0
+                numberLong = if (raw >= 0) raw else Long.MAX_VALUE
+                return pos + 1 + size
+            }
+            type in INT8..INT64 -> {
+                val size = 1 shl (type - INT8)
+                if (pos + 1 + size > end) return -1
+                val shift = 64 - 8 * size
+                numberLong = (readLongBE(payload, pos + 1, size) shl shift) shr shift
+                numberValue = numberLong.toDouble()
+                return pos + 1 + size
+            }
+            else -> return -1
+        }
+    }
+    
+    // Reads a string header; returns the end of its content, or -1 when pos holds no string
+    private fun readString(payload: ByteArray, pos: Int, end: Int): Int {
+        if (pos >= end) return -1
+        val type = payload[pos].toInt() and 0xFF
+        val length: Long
+        when (type) {
+            in 0xA0..0xBF -> {
+                length = (type and 0x1F).toLong()
+                stringStart = pos + 1
+            }
+            STR8, STR16, STR32 -> {
+                val size = 1 shl (type - STR8)
+                if (pos + 1 + size > end) return -1
+                length = readLongBE(payload, pos + 1, size)
+                stringStart = pos + 1 + size
+            }
+            else -> return -1
+        }
+        return if (length <= end - stringStart) stringStart + length.toInt() else -1
+    }
+    
+    // Returns the position after the value at pos, or -1 when it is malformed
+    private fun skip(payload: ByteArray, pos: Int, end: Int, depth: Int): Int {
+        if (pos >= end || depth > MAX_DEPTH) return -1
+        val type = payload[pos].toInt() and 0xFF
+        val next = when {
+            type <= 0x7F || type >= 0xE0 -> pos + 1
+            type <= 0x8F -> return skipItems(payload, pos + 1, end, (type and 0x0F) * 2L, depth)
+            type <= 0x9F -> return skipItems(payload, pos + 1, end, (type and 0x0F).toLong(), depth)
+            type <= 0xBF -> pos + 1 + (type and 0x1F)
+            type == NIL || type == 0xC2 || type == 0xC3 -> pos + 1
+            type in 0xC4..0xC6 -> sized(payload, pos, end, 1 shl (type - 0xC4), 0) // bin
+            type in 0xC7..0xC9 -> sized(payload, pos, end, 1 shl (type - 0xC7), 1) // ext
+            type == FLOAT32 -> pos + 5
+            type == FLOAT64 -> pos + 9
+            type in UINT8..INT64 -> pos + 1 + (1 shl ((type - UINT8) and 3))
+            type in 0xD4..0xD8 -> pos + 2 + (1 shl (type - 0xD4)) // fixext
+            type in STR8..STR32 -> sized(payload, pos, end, 1 shl (type - STR8), 0)
+            type == 0xDC || type == 0xDD || type == MAP16 || type == MAP32 -> {
+                val size = if (type == 0xDC || type == MAP16) 2 else 4
+                if (pos + 1 + size > end) return -1
+                val count = readLongBE(payload, pos + 1, size)
+                val items = if (type >= MAP16) count * 2 else count
+                return skipItems(payload, pos + 1 + size, end, items, depth)
+            }
+            else -> -1 // 0xC1 is never used
+        }
+        return if (next in 0..end) next else -1
+    }
+    
+    private fun skipItems(payload: ByteArray, pos: Int, end: Int, items: Long, depth: Int): Int {
+        // Every item takes at least a byte
+        if (items > end - pos) return -1
+        var itemPos = pos
+        for (i in 0 until items) {
+            itemPos = skip(payload, itemPos, end, depth + 1)
+            if (itemPos < 0) return -1
+        }
+        return itemPos
+    }
+    
+    // Position after a value with a lengthSize byte length and extra header bytes, or -1
+    private fun sized(payload: ByteArray, pos: Int, end: Int, lengthSize: Int, extra: Int): Int {
+        if (pos + 1 + lengthSize > end) return -1
+        val length = readLongBE(payload, pos + 1, lengthSize)
+        val start = pos + 1 + lengthSize + extra
+        return if (length <= end - start) start + length.toInt() else -1
+    }
+    
+    private fun writeString(out: PayloadWriter, text: ByteArray) {
+        val length = text.size
+        when {
+            length < 32 -> out.byte(0xA0 or length)
+            length <= 0xFF -> {
+                out.byte(STR8)
+                out.byte(length)
+            }
+            length <= 0xFFFF -> {
+                out.byte(STR16)
+                out.shortBE(length)
+            }
+            else -> {
+                out.byte(STR32)
+                out.intBE(length)
+            }
+        }
+        out.bytes(text)
+    }
+    
+    private fun writeInteger(out: PayloadWriter, value: Long) {
+        when {
+            value in -32L..127L -> out.byte(value.toInt())
+            value in 0L..0xFFL -> {
+                out.byte(UINT8)
+                out.byte(value.toInt())
+            }
+            value in 0L..0xFFFFL -> {
+                out.byte(UINT8 + 1)
+                out.shortBE(value.toInt())
+            }
+            value in 0L..0xFFFFFFFFL -> {
+                out.byte(UINT8 + 2)
+                out.intBE(value.toInt())
+            }
+            value > 0 -> {
+                out.byte(UINT64)
+                out.longBE(value)
+            }
+            value >= Byte.MIN_VALUE -> {
+                out.byte(INT8)
+                out.byte(value.toInt())
+            }
+            value >= Short.MIN_VALUE -> {
+                out.byte(INT16)
+                out.shortBE(value.toInt())
+            }
+            value >= Int.MIN_VALUE -> {
+                out.byte(INT32)
+                out.intBE(value.toInt())
+            }
+            else -> {
+                out.byte(INT64)
+                out.longBE(value)
+            }
+        }
+    }
+    
+    private fun writeNumber(out: PayloadWriter, value: Double) {
+        when {
+            isWholeNumber(value) -> writeInteger(out, value.toLong())
+            isExactFloat(value) -> {
+                out.byte(FLOAT32)
+                out.intBE(value.toFloat().toRawBits())
+            }
+            else -> {
+                out.byte(FLOAT64)
+                out.longBE(value.toRawBits())
+            }
+        }
+    }
+}
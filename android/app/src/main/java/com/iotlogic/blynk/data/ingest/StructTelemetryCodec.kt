@@ -0,0 +1,56 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * Fixed little-endian layout for devices that would rather not encode at all; it is how
+ * a packed C struct is laid out in memory on the usual microcontrollers:
+ *
+ *   offset 0   float64  value
+ *   offset 8   int64    timestamp in epoch milliseconds, 0 when the device has no clock
+ *   offset 16  unit as UTF-8 up to the end of the payload, optional
+ */
+class StructTelemetryCodec : TelemetryCodec {
+    
+    override val format = TelemetryCodecRegistry.STRUCT
+    override val contentType = "application/octet-stream"
+    
+    override var value = Double.NaN
+        private set
+    override var unit: String? = null
+        private set
+    override var timestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+        private set
+    
+    private val units = Utf8Interner(UNIT_SLOTS)
+    
+    companion object {
+        const val HEADER_SIZE = 16
+        
+        private const val TIMESTAMP_OFFSET = 8
+        private const val NO_CLOCK = 0L
+        private const val UNIT_SLOTS = 8
+    }
+    
+    override fun decode(payload: ByteArray, offset: Int, length: Int): Boolean {
+        unit = null
+        if (length < HEADER_SIZE) {
+            value = Double.NaN
+            timestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+            return false
+        }
+        
+        value = Double.fromBits(readLongLE(payload, offset))
+        val deviceTime = readLongLE(payload, offset + TIMESTAMP_OFFSET)
+        timestamp = if (deviceTime != NO_CLOCK) deviceTime else TelemetryPayloadDecoder.NO_TIMESTAMP
+        if (length > HEADER_SIZE) unit = units.get(payload, offset + HEADER_SIZE, offset + length)
+        return !value.isNaN()
+    }
+    
+    override fun encode(value: Double, unit: String?, timestamp: Long): ByteArray {
+        val unitBytes = unit?.toByteArray(Charsets.UTF_8)
+        val out = PayloadWriter(HEADER_SIZE + (unitBytes?.size ?: 0))
+        out.longLE(value.toRawBits())
+        out.longLE(if (timestamp != TelemetryPayloadDecoder.NO_TIMESTAMP) timestamp else NO_CLOCK)
+        unitBytes?.let { out.bytes(it) }
+        return out.toByteArray()
+    }
+}
@@ -0,0 +1,317 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * Several telemetry samples in one JSON payload, for devices/{token}/telemetry. Either rows:
+ *
+ *   [{"sensor": "temperature", "value": 25.6, "unit": "°C", "ts": 1700000000000}, ...]
+ *
+ * or columns, where a scalar instead of an array applies to every sample:
+ *
+ *   {"sensor": ["temperature", "humidity"], "value": [25.6, 48], "unit": ["°C", "%"], "ts": 1700000000000}
+ *
+ * [decode] reads the payload in one pass into reused arrays, read back by index until the
+ * next [decode]; "timestamp" is accepted for "ts". Rows without a sensor or a numeric value
+ * are left out. Decoding is not thread-safe; [encode] keeps no state.
+ */
+class TelemetryBatchCodec {
+    
+    var size = 0
+        private set
+    
+    private var sensors = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var values = DoubleArray(INITIAL_CAPACITY)
+    private var units = arrayOfNulls<String>(INITIAL_CAPACITY)
+    private var timestamps = LongArray(INITIAL_CAPACITY)
+    
+    private val row = JsonFieldDecoder(listOf(SENSOR, VALUE, UNIT, TS, TIMESTAMP))
+    private val number = JsonNumber()
+    private val sensorNames = Utf8Interner(SENSOR_SLOTS)
+    private val unitNames = Utf8Interner(UNIT_SLOTS)
+    
+    // Columnar payloads: samples read per column, or SHARED when the column was a scalar
+    private val columnSizes = IntArray(COLUMNS)
+    private var sharedSensor: String? = null
+    private var sharedUnit: String? = null
+    private var sharedTimestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+    
+    companion object {
+        private const val SENSOR = "sensor"
+        private const val VALUE = "value"
+        private const val UNIT = "unit"
+        private const val TS = "ts"
+        private const val TIMESTAMP = "timestamp"
+        
+        private const val SENSOR_FIELD = 0
+        private const val VALUE_FIELD = 1
+        private const val UNIT_FIELD = 2
+        private const val TS_FIELD = 3
+        private const val TIMESTAMP_FIELD = 4
+        
+        // Columns share the field numbering, with timestamp folded into ts
+        private const val COLUMNS = 4
+        private const val SHARED = -1
+        
+        private const val INITIAL_CAPACITY = 16
+        private const val SENSOR_SLOTS = 32
+        private const val UNIT_SLOTS = 8
+        
+        private val KEYS = listOf(SENSOR, VALUE, UNIT, TS, TIMESTAMP).map { it.toByteArray(Charsets.UTF_8) }
+        private val NULL_LITERAL = "null".toByteArray(Charsets.UTF_8)
+        
+        /**
+         * Row form payload for [samples]; NaN and infinite values have no JSON form and are left out
+         */
+        fun encode(samples: List<TelemetrySample>): ByteArray {
+            val json = StringBuilder(samples.size * 64)
+            json.append('[')
+            var first = true
+            for (sample in samples) {
+                if (!sample.value.isFinite()) continue
+                if (!first) json.append(',')
+                first = false
+                json.append("{\"sensor\":")
+                appendJsonString(json, sample.sensor)
+                json.append(",\"value\":").append(sample.value)
+                sample.unit?.let { unit ->
+                    json.append(",\"unit\":")
+                    appendJsonString(json, unit)
+                }
+                if (sample.timestamp != TelemetryPayloadDecoder.NO_TIMESTAMP) json.append(",\"ts\":").append(sample.timestamp)
+                json.append('}')
+            }
+            json.append(']')
+            return json.toString().toByteArray(Charsets.UTF_8)
+        }
+    }
+    
+    fun sensor(index: Int): String = sensors[index]!!
+    
+    fun value(index: Int): Double = values[index]
+    
+    fun unit(index: Int): String? = units[index]
+    
+    // Device supplied timestamp, or TelemetryPayloadDecoder.NO_TIMESTAMP
+    fun timestamp(index: Int): Long = timestamps[index]
+    
+    /**
+     * Returns false when the payload is not a well-formed batch; a batch whose samples were
+     * all left out decodes to [size] 0
+     */
+    fun decode(payload: ByteArray, offset: Int = 0, length: Int = payload.size - offset): Boolean {
+        size = 0
+        val end = offset + length
+        val start = skipWhitespace(payload, offset, end)
+        if (start >= end) return false
+        
+        val decoded = when (payload[start]) {
+            '['.code.toByte() -> decodeRows(payload, start, end)
+            '{'.code.toByte() -> decodeColumns(payload, start, end)
+            else -> false
+        }
+        // Rows read before the payload turned out malformed are not part of the result
+        if (!decoded) size = 0
+        return decoded
+    }
+    
+    private fun decodeRows(payload: ByteArray, start: Int, end: Int): Boolean {
+        var pos = skipWhitespace(payload, start + 1, end)
+        if (pos < end && payload[pos] == ']'.code.toByte()) return true
+        
+        while (pos < end) {
+            pos = row.decodeObject(payload, pos, end)
+            if (pos < 0) return false
+            addRow()
+            
+            pos = skipWhitespace(payload, pos, end)
+            if (pos >= end) return false
+            when (payload[pos]) {
+                ','.code.toByte() -> pos = skipWhitespace(payload, pos + 1, end)
+                ']'.code.toByte() -> return true
+                else -> return false
+            }
+        }
+        return false
+    }
+    
+    private fun addRow() {
+        val sensor = row.string(SENSOR_FIELD) ?: return
+        val value = row.number(VALUE_FIELD)
+        if (value.isNaN()) return
+        
+        ensureCapacity(size + 1)
+        sensors[size] = sensor
+        values[size] = value
+        units[size] = row.string(UNIT_FIELD)
+        timestamps[size] = row.long(TS_FIELD, row.long(TIMESTAMP_FIELD, TelemetryPayloadDecoder.NO_TIMESTAMP))
+        size++
+    }
+    
+    private fun decodeColumns(payload: ByteArray, start: Int, end: Int): Boolean {
+        columnSizes.fill(0)
+        sharedSensor = null
+        sharedUnit = null
+        sharedTimestamp = TelemetryPayloadDecoder.NO_TIMESTAMP
+        
+        var pos = skipWhitespace(payload, start + 1, end)
+        if (pos < end && payload[pos] == '}'.code.toByte()) return true
+        
+        while (pos < end) {
+            if (payload[pos] != '"'.code.toByte()) return false
+            val keyEnd = skipString(payload, pos, end)
+            if (keyEnd < 0) return false
+            val column = column(payload, pos + 1, keyEnd)
+            
+            pos = skipWhitespace(payload, keyEnd + 1, end)
+            if (pos >= end || payload[pos] != ':'.code.toByte()) return false
+            pos = skipWhitespace(payload, pos + 1, end)
+            if (pos >= end) return false
+            
+            pos = if (column >= 0) readColumn(payload, pos, end, column) else skipValue(payload, pos, end)
+            if (pos < 0) return false
+            
+            pos = skipWhitespace(payload, pos, end)
+            if (pos >= end) return false
+            when (payload[pos]) {
+                ','.code.toByte() -> pos = skipWhitespace(payload, pos + 1, end)
+                '}'.code.toByte() -> return completeColumns()
+                else -> return false
+            }
+        }
+        return false
+    }
+    
+    private fun column(payload: ByteArray, start: Int, end: Int): Int {
+        for (i in KEYS.indices) {
+            if (regionEquals(KEYS[i], payload, start, end)) return if (i == TIMESTAMP_FIELD) TS_FIELD else i
+        }
+        return -1
+    }
+    
+    // Reads an array, or a scalar shared by every sample; returns the position after it
+    private fun readColumn(payload: ByteArray, start: Int, end: Int, column: Int): Int {
+        if (payload[start] != '['.code.toByte()) {
+            columnSizes[column] = SHARED
+            return readElement(payload, start, end, column, SHARED)
+        }
+        
+        var pos = skipWhitespace(payload, start + 1, end)
+        var count = 0
+        if (pos < end && payload[pos] == ']'.code.toByte()) return pos + 1
+        
+        while (pos < end) {
+            ensureCapacity(count + 1)
+            pos = readElement(payload, pos, end, column, count++)
+            if (pos < 0) return -1
+            columnSizes[column] = count
+            
+            pos = skipWhitespace(payload, pos, end)
+            if (pos >= end) return -1
+            when (payload[pos]) {
+                ','.code.toByte() -> pos = skipWhitespace(payload, pos + 1, end)
+                ']'.code.toByte() -> return pos + 1
+                else -> return -1
+            }
+        }
+        return -1
+    }
+    
+    private fun readElement(payload: ByteArray, pos: Int, end: Int, column: Int, index: Int): Int {
+        if (pos >= end) return -1
+        return when (payload[pos]) {
+            'n'.code.toByte() -> {
+                if (pos + NULL_LITERAL.size > end || !regionEquals(NULL_LITERAL, payload, pos, pos + NULL_LITERAL.size)) return -1
+                store(column, index, null, Double.NaN, TelemetryPayloadDecoder.NO_TIMESTAMP)
+                pos + NULL_LITERAL.size
+            }
+            '"'.code.toByte() -> {
+                val close = skipString(payload, pos, end)
+                if (close < 0) return -1
+                if (column == VALUE_FIELD || column == TS_FIELD) {
+                    // Quoted numbers count as numbers, as they do in rows
+                    if (pos + 1 < close && number.parse(payload, pos + 1, close) == close) {
+                        val timestamp = if (number.integral) number.longValue else TelemetryPayloadDecoder.NO_TIMESTAMP
+                        store(column, index, null, number.value, timestamp)
+                    } else {
+                        store(column, index, null, Double.NaN, TelemetryPayloadDecoder.NO_TIMESTAMP)
+                    }
+                    return close + 1
+                }
+                val text = when {
+                    payload.indexOf('\\'.code.toByte(), pos + 1, close) >= 0 -> unescape(payload, pos + 1, close)
+                    column == SENSOR_FIELD -> sensorNames.get(payload, pos + 1, close)
+                    else -> unitNames.get(payload, pos + 1, close)
+                }
+                store(column, index, text, Double.NaN, TelemetryPayloadDecoder.NO_TIMESTAMP)
+                close + 1
+            }
+            else -> {
+                val numberEnd = number.parse(payload, pos, end)
+                if (numberEnd < 0) return -1
+                val timestamp = if (number.integral) number.longValue else TelemetryPayloadDecoder.NO_TIMESTAMP
+                store(column, index, null, number.value, timestamp)
+                numberEnd
+            }
+        }
+    }
+    
+    // Keeps what suits the column; text in the value column or a number in the sensor column reads as missing
+    private fun store(column: Int, index: Int, text: String?, value: Double, timestamp: Long) {
+        when (column) {
+            SENSOR_FIELD -> if (index == SHARED) sharedSensor = text else sensors[index] = text
+            VALUE_FIELD -> if (index != SHARED) values[index] = value
+            UNIT_FIELD -> if (index == SHARED) sharedUnit = text else units[index] = text
+            TS_FIELD -> if (index == SHARED) sharedTimestamp = timestamp else timestamps[index] = timestamp
+        }
+    }
+    
+    // Checks the column lengths agree, fills in shared and missing columns and drops incomplete samples
+    private fun completeColumns(): Boolean {
+        val count = columnSizes[VALUE_FIELD]
+        if (count == SHARED) return false
+        for (column in 0 until COLUMNS) {
+            val columnSize = columnSizes[column]
+            if (columnSize != SHARED && columnSize != count && !(columnSize == 0 && column != SENSOR_FIELD)) return false
+        }
+        
+        var kept = 0
+        for (i in 0 until count) {
+            val sensor = if (columnSizes[SENSOR_FIELD] == SHARED) sharedSensor else sensors[i]
+            if (sensor == null || values[i].isNaN()) continue
+            
+            sensors[kept] = sensor
+            values[kept] = values[i]
+            units[kept] = when (columnSizes[UNIT_FIELD]) {
+                SHARED -> sharedUnit
+                0 -> null
+                else -> units[i]
+            }
+            timestamps[kept] = when (columnSizes[TS_FIELD]) {
+                SHARED -> sharedTimestamp
+                0 -> TelemetryPayloadDecoder.NO_TIMESTAMP
+                else -> timestamps[i]
+            }
+            kept++
+        }
+        size = kept
+        return true
+    }
+    
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity <= values.size) return
+        val grown = maxOf(capacity, values.size * 2)
+        sensors = sensors.copyOf(grown)
+        values = values.copyOf(grown)
+        units = units.copyOf(grown)
+        timestamps = timestamps.copyOf(grown)
+    }
+}
+
+/**
+ * One reading in a batch
+ */
+data class TelemetrySample(
+    val sensor: String,
+    val value: Double,
+    val unit: String? = null,
+    val timestamp: Long = System.currentTimeMillis()
+)
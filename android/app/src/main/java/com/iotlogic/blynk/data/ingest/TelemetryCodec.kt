@@ -0,0 +1,133 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * A telemetry payload format: one reading with a numeric value, an optional unit and an
+ * optional device timestamp.
+ *
+ * [decode] fills [value], [unit] and [timestamp] straight from the payload bytes; they stay
+ * valid until the next [decode] and decoding is not thread-safe. [encode] keeps no state
+ * and may be called from any thread.
+ */
+interface TelemetryCodec {
+    
+    // Last topic level selecting this codec, e.g. devices/{token}/telemetry/{sensor}/cbor
+    val format: String
+    
+    // MIME type, for transports that carry one alongside the payload
+    val contentType: String
+    
+    val value: Double
+    val unit: String?
+    
+    // Device supplied timestamp, or TelemetryPayloadDecoder.NO_TIMESTAMP
+    val timestamp: Long
+    
+    /**
+     * Returns true when the payload carries a numeric value
+     */
+    fun decode(payload: ByteArray, offset: Int = 0, length: Int = payload.size - offset): Boolean
+    
+    fun encode(value: Double, unit: String? = null, timestamp: Long = System.currentTimeMillis()): ByteArray
+}
+
+/**
+ * The JSON codec; what devices send on topics without a format level
+ */
+class JsonTelemetryCodec(extraFields: List<String> = emptyList()) : TelemetryCodec {
+    
+    // Also exposes the extra fields of the last payload
+    val decoder = TelemetryPayloadDecoder(extraFields)
+    
+    override val format = TelemetryCodecRegistry.JSON
+    override val contentType = "application/json"
+    
+    override val value: Double get() = decoder.value
+    override val unit: String? get() = decoder.unit
+    override val timestamp: Long get() = decoder.timestamp
+    
+    override fun decode(payload: ByteArray, offset: Int, length: Int): Boolean =
+        decoder.decode(payload, offset, length)
+    
+    override fun encode(value: Double, unit: String?, timestamp: Long): ByteArray {
+        // JSON has no NaN or Infinity token, and the decoder would reject the payload
+        require(value.isFinite()) { "JSON telemetry needs a finite value, got $value" }
+        val json = StringBuilder(64)
+        json.append("{\"value\":").append(value)
+        if (unit != null) {
+            json.append(",\"unit\":")
+            appendJsonString(json, unit)
+        }
+        json.append(",\"timestamp\":").append(timestamp).append('}')
+        return json.toString().toByteArray(Charsets.UTF_8)
+    }
+}
+
+/**
+ * Growable output for the binary encoders
+ */
+internal class PayloadWriter(capacity: Int = 32) {
+    
+    private var buffer = ByteArray(capacity)
+    private var size = 0
+    
+    fun byte(value: Int) {
+        ensure(1)
+        buffer[size++] = value.toByte()
+    }
+    
+    fun shortBE(value: Int) {
+        byte(value ushr 8)
+        byte(value)
+    }
+    
+    fun intBE(value: Int) {
+        shortBE(value ushr 16)
+        shortBE(value)
+    }
+    
+    fun longBE(value: Long) {
+        intBE((value ushr 32).toInt())
+        intBE(value.toInt())
+    }
+    
+    fun longLE(value: Long) {
+        ensure(8)
+        for (i in 0 until 8) buffer[size++] = (value ushr (8 * i)).toByte()
+    }
+    
+    fun bytes(value: ByteArray) {
+        ensure(value.size)
+        value.copyInto(buffer, size)
+        size += value.size
+    }
+    
+    fun toByteArray(): ByteArray = buffer.copyOf(size)
+    
+    private fun ensure(extra: Int) {
+        if (size + extra > buffer.size) buffer = buffer.copyOf(maxOf(buffer.size * 2, size + extra))
+    }
+}
+
+/**
+ * Readings that are whole numbers within the exact range of a Double, and so can be
+ * written as integers
+ */
+internal fun isWholeNumber(value: Double): Boolean =
+    value == Math.rint(value) && Math.abs(value) <= MAX_EXACT_INTEGER
+
+internal fun isExactFloat(value: Double): Boolean =
+    value.toFloat().toDouble() == value || value.isNaN()
+
+internal fun readLongBE(payload: ByteArray, pos: Int, bytes: Int): Long {
+    var result = 0L
+    for (i in 0 until bytes) result = (result shl 8) or (payload[pos + i].toLong() and 0xFF)
+    return result
+}
+
+internal fun readLongLE(payload: ByteArray, pos: Int): Long {
+    var result = 0L
+    for (i in 7 downTo 0) result = (result shl 8) or (payload[pos + i].toLong() and 0xFF)
+    return result
+}
+
+private const val MAX_EXACT_INTEGER = 9_007_199_254_740_992.0 // 2^53
@@ -0,0 +1,57 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * Telemetry codecs by topic format level or content type.
+ *
+ * Telemetry on devices/{token}/telemetry/{sensor} is JSON; devices choose another format
+ * by adding it as a last level, e.g. devices/{token}/telemetry/{sensor}/cbor. Each codec
+ * is held once and decoding reuses its state, so a registry belongs to a single consumer.
+ */
+class TelemetryCodecRegistry(codecs: List<TelemetryCodec> = defaultCodecs()) {
+    
+    private val codecs = codecs.toMutableList()
+    
+    companion object {
+        const val JSON = "json"
+        const val CBOR = "cbor"
+        const val MESSAGE_PACK = "msgpack"
+        const val STRUCT = "struct"
+        
+        fun defaultCodecs(): List<TelemetryCodec> = listOf(
+            JsonTelemetryCodec(),
+            CborTelemetryCodec(),
+            MessagePackTelemetryCodec(),
+            StructTelemetryCodec()
+        )
+    }
+    
+    // The codec for topics without a format level
+    val json: TelemetryCodec
+        get() = forFormat(JSON) ?: throw IllegalStateException("No $JSON codec registered")
+    
+    /**
+     * Add a codec, replacing any registered for the same format
+     */
+    fun register(codec: TelemetryCodec) {
+        codecs.removeAll { it.format == codec.format }
+        codecs += codec
+    }
+    
+    /**
+     * Codec for a topic format level; compared in place so routing allocates nothing
+     */
+    fun forFormat(format: CharSequence): TelemetryCodec? {
+        for (i in codecs.indices) {
+            if (codecs[i].format.contentEquals(format)) return codecs[i]
+        }
+        return null
+    }
+    
+    /**
+     * Codec for a MIME type such as "application/cbor"; parameters are ignored
+     */
+    fun forContentType(contentType: String): TelemetryCodec? {
+        val mimeType = contentType.substringBefore(';').trim()
+        return codecs.firstOrNull { it.contentType.equals(mimeType, ignoreCase = true) }
+    }
+}
@@ -0,0 +1,275 @@
+package com.iotlogic.blynk.data.ingest
+
+import com.iotlogic.blynk.data.local.LatestTelemetryStore
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.dao.TelemetryIngestDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Coalesces incoming telemetry samples into batched inserts.
+ *
+ * Samples are buffered in memory and written through [TelemetryIngestDao.ingest]
+ * in a single transaction once the batch size limit is reached or the oldest buffered
+ * sample has waited for the configured delay, whichever comes first. The same
+ * transaction folds the batch into the minute/hour/day rollup tables.
+ *
+ * Every sample is stamped with a global, monotonically increasing ingest sequence
+ * before it is written; the high-water mark is persisted with each batch. Samples whose
+ * (channel, timestamp) is already stored are ignored and counted as duplicates.
+ * Committed batches advance the in-memory [LatestTelemetryStore].
+ */
+@Singleton
+class TelemetryIngestWriter internal constructor(
+    private val ingestDao: TelemetryIngestDao,
+    private val channelRegistry: SensorChannelRegistry,
+    private val latestStore: LatestTelemetryStore,
+    // Runs the delayed flushes
+    private val scope: CoroutineScope
+) {
+
+    @Inject
+    constructor(
+        ingestDao: TelemetryIngestDao,
+        channelRegistry: SensorChannelRegistry,
+        latestStore: LatestTelemetryStore
+    ) : this(ingestDao, channelRegistry, latestStore, CoroutineScope(Dispatchers.IO + SupervisorJob()))
+
+    // Guards the pending buffer and the scheduled flush job
+    private val bufferLock = Mutex()
+
+    // Keeps batches committed in the order they were drained
+    private val writeLock = Mutex()
+
+    private var buffer = ArrayList<TelemetryEntity>()
+    private var scheduledFlush: Job? = null
+
+    // Next ingest sequence number, loaded on first write. Guarded by writeLock.
+    private var nextSeq = -1L
+
+    @Volatile
+    private var maxBatchSize = DEFAULT_MAX_BATCH_SIZE
+
+    @Volatile
+    private var maxDelayMs = DEFAULT_MAX_DELAY_MS
+
+    private val _stats = MutableStateFlow(IngestStats())
+    val stats: StateFlow<IngestStats> = _stats.asStateFlow()
+
+    // Batches after commit, for live consumers. Slow collectors lose the oldest batches.
+    private val _committedBatches = MutableSharedFlow<List<TelemetryEntity>>(
+        extraBufferCapacity = COMMITTED_BATCH_BUFFER,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    val committedBatches: SharedFlow<List<TelemetryEntity>> = _committedBatches.asSharedFlow()
+
+    companion object {
+        const val DEFAULT_MAX_BATCH_SIZE = 500
+        const val DEFAULT_MAX_DELAY_MS = 250L
+        private const val COMMITTED_BATCH_BUFFER = 64
+    }
+
+    /**
+     * Configure batching limits
+     */
+    fun configure(maxBatchSize: Int = DEFAULT_MAX_BATCH_SIZE, maxDelayMs: Long = DEFAULT_MAX_DELAY_MS) {
+        require(maxBatchSize > 0) { "maxBatchSize must be positive" }
+        require(maxDelayMs >= 0) { "maxDelayMs must not be negative" }
+        this.maxBatchSize = maxBatchSize
+        this.maxDelayMs = maxDelayMs
+    }
+
+    /**
+     * Queue a single sample for the next batch
+     */
+    suspend fun enqueue(entity: TelemetryEntity) {
+        enqueueAll(listOf(entity))
+    }
+
+    /**
+     * Queue samples for the next batch. When the batch size limit is reached the
+     * caller writes the batch itself, which keeps producers from outrunning SQLite.
+     */
+    suspend fun enqueueAll(entities: List<TelemetryEntity>) {
+        if (entities.isEmpty()) return
+
+        val ready = bufferLock.withLock {
+            buffer.addAll(entities)
+            _stats.update { it.copy(queueDepth = buffer.size) }
+
+            if (buffer.size >= maxBatchSize) {
+                drainLocked()
+            } else {
+                scheduleFlushLocked()
+                null
+            }
+        }
+
+        ready?.let { write(it) }
+    }
+
+    /**
+     * Write everything currently buffered, e.g. when the ingest service stops
+     */
+    suspend fun flush(): Result<Int> {
+        val pending = bufferLock.withLock { drainLocked() }
+        return write(pending)
+    }
+
+    private fun scheduleFlushLocked() {
+        if (scheduledFlush?.isActive == true) return
+
+        scheduledFlush = scope.launch {
+            delay(maxDelayMs)
+            val pending = bufferLock.withLock {
+                // Detach first so draining does not cancel this job mid-write
+                scheduledFlush = null
+                drainLocked()
+            }
+            write(pending)
+        }
+    }
+
+    private fun drainLocked(): List<TelemetryEntity> {
+        scheduledFlush?.cancel()
+        scheduledFlush = null
+
+        val drained = buffer
+        buffer = ArrayList(maxBatchSize)
+        _stats.update { it.copy(queueDepth = 0) }
+        return drained
+    }
+
+    private suspend fun write(batch: List<TelemetryEntity>): Result<Int> {
+        if (batch.isEmpty()) return Result.success(0)
+
+        return writeLock.withLock {
+            val startNanos = System.nanoTime()
+            val outcome = try {
+                val sequenced = assignSequence(batch)
+                val channels = resolveChannels(sequenced)
+                try {
+                    val accepted = ingestDao.ingest(sequenced, sequenced.last().seq) { rows ->
+                        TelemetryRollupAggregator.aggregate(rows, channels)
+                    }
+                    publish(accepted, channels)
+                    Result.success(WriteOutcome(accepted.size, sequenced.size - accepted.size))
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    if (sequenced.size > 1) {
+                        // A single bad row (e.g. unknown device) must not take the whole batch down
+                        writeIndividually(sequenced, channels)
+                    } else {
+                        Result.failure(e)
+                    }
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Result.failure(e)
+            }
+
+            val written = outcome.getOrNull()?.written ?: 0
+            val duplicates = outcome.getOrNull()?.duplicates ?: 0
+            val latencyMs = (System.nanoTime() - startNanos) / 1_000_000
+            _stats.update {
+                it.copy(
+                    writtenRows = it.writtenRows + written,
+                    duplicateRows = it.duplicateRows + duplicates,
+                    failedRows = it.failedRows + (batch.size - written - duplicates),
+                    flushCount = it.flushCount + 1,
+                    lastBatchSize = batch.size,
+                    lastFlushLatencyMs = latencyMs,
+                    maxFlushLatencyMs = maxOf(it.maxFlushLatencyMs, latencyMs)
+                )
+            }
+            outcome.map { it.written }
+        }
+    }
+
+    private fun publish(accepted: List<TelemetryEntity>, channels: Map<Long, SensorChannelEntity>) {
+        if (accepted.isEmpty()) return
+        latestStore.offer(accepted, channels)
+        _committedBatches.tryEmit(accepted)
+    }
+
+    /**
+     * Stamp samples with consecutive sequence numbers. Numbers of failed writes are
+     * not reused, so the sequence is monotonic but may have gaps.
+     */
+    private suspend fun assignSequence(batch: List<TelemetryEntity>): List<TelemetryEntity> {
+        if (nextSeq < 0) {
+            nextSeq = (ingestDao.getSequence(TelemetryIngestDao.TELEMETRY_SEQUENCE) ?: 0L) + 1
+        }
+        return batch.map { it.copy(seq = nextSeq++) }
+    }
+
+    private suspend fun resolveChannels(batch: List<TelemetryEntity>): Map<Long, SensorChannelEntity> {
+        val channels = HashMap<Long, SensorChannelEntity>()
+        batch.forEach { sample ->
+            if (sample.channelId !in channels) {
+                channelRegistry.get(sample.channelId)?.let { channels[sample.channelId] = it }
+            }
+        }
+        return channels
+    }
+
+    private suspend fun writeIndividually(batch: List<TelemetryEntity>, channels: Map<Long, SensorChannelEntity>): Result<WriteOutcome> {
+        val written = ArrayList<TelemetryEntity>(batch.size)
+        var duplicates = 0
+        var lastError: Exception? = null
+
+        batch.forEach { sample ->
+            try {
+                val accepted = ingestDao.ingest(listOf(sample), sample.seq) { rows ->
+                    TelemetryRollupAggregator.aggregate(rows, channels)
+                }
+                if (accepted.isEmpty()) duplicates++ else written.addAll(accepted)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                // Rows that fail on their own are dropped rather than retried
+                lastError = e
+            }
+        }
+
+        publish(written, channels)
+
+        val error = lastError
+        return if (written.isEmpty() && duplicates == 0 && error != null) {
+            Result.failure(error)
+        } else {
+            Result.success(WriteOutcome(written.size, duplicates))
+        }
+    }
+
+    private class WriteOutcome(val written: Int, val duplicates: Int)
+}
+
+/**
+ * Ingest writer metrics
+ */
+data class IngestStats(
+    val queueDepth: Int = 0,
+    val writtenRows: Long = 0,
+    val duplicateRows: Long = 0, // Already stored samples, e.g. QoS 1 redeliveries, that were ignored
+    val failedRows: Long = 0,
+    val flushCount: Long = 0,
+    val lastBatchSize: Int = 0,
+    val lastFlushLatencyMs: Long = 0,
+    val maxFlushLatencyMs: Long = 0
+)
@@ -0,0 +1,72 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * Decodes MQTT telemetry payloads from their raw bytes.
+ *
+ * Accepts either a JSON object such as {"value": 25.6, "unit": "°C", "timestamp": 1234567890}
+ * or a bare number. Further numeric fields can be requested through [extraFields] and read
+ * with [field]. Results stay valid until the next [decode]; not thread-safe.
+ */
+class TelemetryPayloadDecoder(private val extraFields: List<String> = emptyList()) {
+    
+    private val json = JsonFieldDecoder(listOf(VALUE, UNIT, TIMESTAMP) + extraFields)
+    private val number = JsonNumber()
+    private var isJson = false
+    
+    var value = Double.NaN
+        private set
+    var unit: String? = null
+        private set
+    
+    // Device supplied timestamp, or NO_TIMESTAMP
+    var timestamp = NO_TIMESTAMP
+        private set
+    
+    companion object {
+        const val NO_TIMESTAMP = Long.MIN_VALUE
+        
+        private const val VALUE = "value"
+        private const val UNIT = "unit"
+        private const val TIMESTAMP = "timestamp"
+        
+        private const val VALUE_FIELD = 0
+        private const val UNIT_FIELD = 1
+        private const val TIMESTAMP_FIELD = 2
+        private const val FIRST_EXTRA_FIELD = 3
+    }
+    
+    /**
+     * Returns true when the payload carries a numeric value
+     */
+    fun decode(payload: ByteArray, offset: Int = 0, length: Int = payload.size - offset): Boolean {
+        value = Double.NaN
+        unit = null
+        timestamp = NO_TIMESTAMP
+        
+        val end = offset + length
+        val start = skipWhitespace(payload, offset, end)
+        isJson = start < end && payload[start] == '{'.code.toByte()
+        
+        if (isJson) {
+            if (!json.decode(payload, start, end - start)) return false
+            value = json.number(VALUE_FIELD)
+            unit = json.string(UNIT_FIELD)
+            timestamp = json.long(TIMESTAMP_FIELD, NO_TIMESTAMP)
+        } else {
+            // Simple value
+            val numberEnd = number.parse(payload, start, end)
+            if (numberEnd < 0 || skipWhitespace(payload, numberEnd, end) != end) return false
+            value = number.value
+        }
+        return !value.isNaN()
+    }
+    
+    /**
+     * Numeric value of one of [extraFields] in the last payload, NaN when it was missing
+     */
+    fun field(name: String): Double {
+        val index = extraFields.indexOf(name)
+        require(index >= 0) { "$name is not a decoded field" }
+        return if (isJson) json.number(FIRST_EXTRA_FIELD + index) else Double.NaN
+    }
+}
@@ -0,0 +1,76 @@
+package com.iotlogic.blynk.data.ingest
+
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryRollupEntity
+import com.iotlogic.blynk.domain.model.RollupResolution
+
+/**
+ * Folds a batch of samples into per-bucket rollup deltas for every [RollupResolution],
+ * so each ingest transaction touches one rollup row per bucket instead of one per sample.
+ */
+object TelemetryRollupAggregator {
+    
+    private data class BucketKey(
+        val deviceId: String,
+        val sensorType: String,
+        val resolution: RollupResolution,
+        val bucketStart: Long
+    )
+    
+    private class Accumulator(first: TelemetryEntity) {
+        var count = 0L
+        var sum = 0.0
+        var min = first.value
+        var max = first.value
+        var lastValue = first.value
+        var lastTimestamp = first.timestamp
+        
+        fun add(sample: TelemetryEntity) {
+            count++
+            sum += sample.value
+            if (sample.value < min) min = sample.value
+            if (sample.value > max) max = sample.value
+            if (sample.timestamp >= lastTimestamp) {
+                lastTimestamp = sample.timestamp
+                lastValue = sample.value
+            }
+        }
+    }
+    
+    /**
+     * Rollups are keyed by device and sensor type, so [channels] must contain the
+     * channel of every sample; samples on unknown channels are skipped.
+     */
+    fun aggregate(samples: List<TelemetryEntity>, channels: Map<Long, SensorChannelEntity>): List<TelemetryRollupEntity> {
+        val buckets = LinkedHashMap<BucketKey, Accumulator>()
+        
+        for (sample in samples) {
+            val channel = channels[sample.channelId] ?: continue
+            for (resolution in RollupResolution.values()) {
+                val key = BucketKey(
+                    deviceId = channel.deviceId,
+                    sensorType = channel.sensorType,
+                    resolution = resolution,
+                    bucketStart = resolution.bucketStart(sample.timestamp)
+                )
+                buckets.getOrPut(key) { Accumulator(sample) }.add(sample)
+            }
+        }
+        
+        return buckets.map { (key, acc) ->
+            TelemetryRollupEntity(
+                deviceId = key.deviceId,
+                sensorType = key.sensorType,
+                resolution = key.resolution.name,
+                bucketStart = key.bucketStart,
+                sampleCount = acc.count,
+                valueSum = acc.sum,
+                minValue = acc.min,
+                maxValue = acc.max,
+                lastValue = acc.lastValue,
+                lastTimestamp = acc.lastTimestamp
+            )
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.iotlogic.blynk.data.ingest
+
+/**
+ * Remembers the last few distinct strings decoded from UTF-8 bytes, so a payload
+ * repeating a known value such as a unit or status name costs a byte comparison
+ * instead of a new String. Slots are replaced round robin. Not thread-safe.
+ */
+internal class Utf8Interner(private val slots: Int) {
+    
+    private val bytes = arrayOfNulls<ByteArray>(slots)
+    private val strings = arrayOfNulls<String>(slots)
+    private var next = 0
+    
+    fun get(buffer: ByteArray, start: Int, end: Int): String {
+        for (slot in 0 until slots) {
+            val candidate = bytes[slot] ?: continue
+            if (regionEquals(candidate, buffer, start, end)) return strings[slot]!!
+        }
+        
+        val value = String(buffer, start, end - start, Charsets.UTF_8)
+        bytes[next] = buffer.copyOfRange(start, end)
+        strings[next] = value
+        next = (next + 1) % slots
+        return value
+    }
+}
@@ -0,0 +1,31 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.CounterDao
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * O(1) access to the materialized counters. A counter that was never written reads as
+ * zero. Observers re-read through [InvalidationCoalescer], since every telemetry batch
+ * touches the counters table.
+ */
+@Singleton
+class CounterStore @Inject constructor(
+    private val counterDao: CounterDao,
+    private val invalidations: InvalidationCoalescer
+) {
+    
+    companion object {
+        private const val COUNTERS_TABLE = "counters"
+    }
+    
+    suspend fun get(name: String): Long {
+        return counterDao.getCounter(name) ?: 0L
+    }
+    
+    fun observe(name: String): Flow<Long> {
+        return invalidations.observe(COUNTERS_TABLE) { get(name) }.distinctUntilChanged()
+    }
+}
@@ -0,0 +1,101 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.DeviceDao
+import com.iotlogic.blynk.data.local.entities.DeviceEntity
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Maps MQTT device tokens to device ids and back without a query per message.
+ *
+ * Resolved pairs are kept until a device is saved or deleted through the repository,
+ * which reports every change here. Tokens with no device are remembered for
+ * [NEGATIVE_TTL_MS] in a small LRU, so traffic on bogus topics costs one indexed
+ * lookup per token rather than one per message.
+ */
+@Singleton
+class DeviceTokenCache @Inject constructor(
+    private val deviceDao: DeviceDao
+) {
+    
+    private val idByToken = ConcurrentHashMap<String, String>()
+    private val tokenById = ConcurrentHashMap<String, String>()
+    
+    // Unknown token -> when it was found missing; access ordered for LRU eviction
+    private val unknownTokens = object : LinkedHashMap<String, Long>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Long>): Boolean =
+            size > NEGATIVE_CAPACITY
+    }
+    
+    // Bumped by every change so a lookup racing a write does not cache what it read
+    private val generation = AtomicLong()
+    
+    companion object {
+        const val NEGATIVE_CAPACITY = 256
+        const val NEGATIVE_TTL_MS = 60_000L
+    }
+    
+    /**
+     * Device id for an MQTT token, or null when no device has it
+     */
+    suspend fun resolveDeviceId(token: String): String? {
+        idByToken[token]?.let { return it }
+        if (isKnownUnknown(token)) return null
+        
+        val started = generation.get()
+        val deviceId = deviceDao.getDeviceIdByToken(token)
+        if (generation.get() == started) {
+            if (deviceId != null) {
+                cache(token, deviceId)
+            } else {
+                synchronized(unknownTokens) { unknownTokens[token] = System.currentTimeMillis() }
+            }
+        }
+        return deviceId
+    }
+    
+    /**
+     * MQTT token of a device, or null when the device does not exist
+     */
+    suspend fun resolveToken(deviceId: String): String? {
+        tokenById[deviceId]?.let { return it }
+        
+        val started = generation.get()
+        val token = deviceDao.getTokenByDeviceId(deviceId) ?: return null
+        if (generation.get() == started) cache(token, deviceId)
+        return token
+    }
+    
+    /**
+     * A device was inserted or replaced; its token may be new or changed
+     */
+    fun onDeviceSaved(device: DeviceEntity) {
+        generation.incrementAndGet()
+        tokenById.put(device.id, device.token)?.let { previous ->
+            if (previous != device.token) idByToken.remove(previous, device.id)
+        }
+        idByToken[device.token] = device.id
+        synchronized(unknownTokens) { unknownTokens.remove(device.token) }
+    }
+    
+    fun onDeviceDeleted(deviceId: String) {
+        generation.incrementAndGet()
+        tokenById.remove(deviceId)?.let { idByToken.remove(it, deviceId) }
+    }
+    
+    private fun cache(token: String, deviceId: String) {
+        idByToken[token] = deviceId
+        tokenById[deviceId] = token
+    }
+    
+    private fun isKnownUnknown(token: String): Boolean {
+        synchronized(unknownTokens) {
+            val missingSince = unknownTokens[token] ?: return false
+            if (System.currentTimeMillis() - missingSince < NEGATIVE_TTL_MS) return true
+            unknownTokens.remove(token)
+            return false
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.iotlogic.blynk.data.local
+
+import androidx.room.InvalidationTracker
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.update
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Observable queries whose table invalidations are merged over a short window.
+ *
+ * Room re-runs an observed query for every write to its tables. Hot tables such as
+ * devices are written on nearly every incoming message, so each open screen would
+ * re-query once per message. Here the first invalidation of a table opens a window and
+ * everything invalidating it until the window closes is answered with one re-query per
+ * observer. A table has one tracker observer however many queries watch it.
+ */
+@Singleton
+class InvalidationCoalescer internal constructor(
+    private val invalidationTracker: InvalidationTracker,
+    // Runs the window timers
+    private val scope: CoroutineScope
+) {
+    
+    @Inject
+    constructor(
+        invalidationTracker: InvalidationTracker
+    ) : this(invalidationTracker, CoroutineScope(Dispatchers.Default + SupervisorJob()))
+    
+    private val observedTables = ConcurrentHashMap<String, TableInvalidations>()
+    
+    @Volatile
+    private var windowMs = DEFAULT_WINDOW_MS
+    
+    private val _stats = MutableStateFlow(InvalidationStats())
+    val stats: StateFlow<InvalidationStats> = _stats.asStateFlow()
+    
+    companion object {
+        const val DEFAULT_WINDOW_MS = 200L
+    }
+    
+    /**
+     * Configure how long invalidations are collected before observers re-query
+     */
+    fun configure(windowMs: Long = DEFAULT_WINDOW_MS) {
+        require(windowMs >= 0) { "windowMs must not be negative" }
+        this.windowMs = windowMs
+    }
+    
+    /**
+     * Run [query] now and again after every coalesced invalidation of [tables]
+     */
+    fun <T> observe(vararg tables: String, query: suspend () -> T): Flow<T> {
+        require(tables.isNotEmpty()) { "At least one table must be observed" }
+        
+        return channelFlow {
+            val watched = tables.map { table -> observedTables.getOrPut(table) { TableInvalidations(table) } }
+            val refresh = Channel<Unit>(Channel.CONFLATED)
+            
+            // Register before the first query so no write falls between the two
+            watched.forEach { it.acquire() }
+            try {
+                watched.forEach { table ->
+                    launch(start = CoroutineStart.UNDISPATCHED) {
+                        table.refreshes.collect { refresh.trySend(Unit) }
+                    }
+                }
+                
+                send(runQuery(query))
+                for (signal in refresh) {
+                    send(runQuery(query))
+                }
+            } finally {
+                watched.forEach { it.release() }
+            }
+        }
+    }
+    
+    private suspend fun <T> runQuery(query: suspend () -> T): T {
+        val result = query()
+        _stats.update { it.copy(queriesRun = it.queriesRun + 1) }
+        return result
+    }
+    
+    /**
+     * Tracker observer of one table, shared by every query that watches it
+     */
+    private inner class TableInvalidations(table: String) : InvalidationTracker.Observer(arrayOf(table)) {
+        
+        val refreshes = MutableSharedFlow<Unit>(extraBufferCapacity = 1, onBufferOverflow = BufferOverflow.DROP_OLDEST)
+        
+        // Invalidations since the window opened; the first one opens it
+        private val pending = AtomicInteger()
+        
+        // Guarded by this
+        private var observers = 0
+        
+        override fun onInvalidated(tables: Set<String>) {
+            _stats.update { it.copy(invalidations = it.invalidations + 1) }
+            if (pending.getAndIncrement() > 0) return
+            
+            scope.launch {
+                delay(windowMs)
+                val merged = pending.getAndSet(0)
+                val listeners = refreshes.subscriptionCount.value
+                _stats.update {
+                    it.copy(
+                        refreshes = it.refreshes + 1,
+                        queriesSaved = it.queriesSaved + (merged - 1).toLong() * listeners
+                    )
+                }
+                refreshes.tryEmit(Unit)
+            }
+        }
+        
+        @Synchronized
+        fun acquire() {
+            if (observers++ == 0) invalidationTracker.addObserver(this)
+        }
+        
+        @Synchronized
+        fun release() {
+            if (--observers == 0) invalidationTracker.removeObserver(this)
+        }
+    }
+}
+
+/**
+ * Invalidation coalescer metrics
+ */
+data class InvalidationStats(
+    val invalidations: Long = 0, // Table invalidations reported by Room
+    val refreshes: Long = 0, // Windows that ended in a re-query
+    val queriesRun: Long = 0,
+    val queriesSaved: Long = 0 // Re-queries a plain Room Flow would have run on top
+)
@@ -5,23 +5,44 @@ import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
+import com.iotlogic.blynk.data.local.compression.TelemetryBlockCodec
 import com.iotlogic.blynk.data.local.dao.CommandQueueDao
 import com.iotlogic.blynk.data.local.dao.ConfigurationDao
+import com.iotlogic.blynk.data.local.dao.CounterDao
 import com.iotlogic.blynk.data.local.dao.DeviceDao
+import com.iotlogic.blynk.data.local.dao.SensorChannelDao
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
 import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.dao.TelemetryIngestDao
+import com.iotlogic.blynk.data.local.dao.TelemetryOutboxDao
+import com.iotlogic.blynk.data.local.dao.TelemetryRollupDao
 import com.iotlogic.blynk.data.local.entities.CommandQueueEntity
 import com.iotlogic.blynk.data.local.entities.ConfigurationEntity
+import com.iotlogic.blynk.data.local.entities.CounterEntity
 import com.iotlogic.blynk.data.local.entities.DeviceEntity
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.SequenceEntity
+import com.iotlogic.blynk.data.local.entities.SyncCursorEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryBlockEntity
 import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryOutboxEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryRollupEntity
 
 @Database(
     entities = [
         DeviceEntity::class,
         TelemetryEntity::class,
         ConfigurationEntity::class,
-        CommandQueueEntity::class
+        CommandQueueEntity::class,
+        TelemetryRollupEntity::class,
+        TelemetryBlockEntity::class,
+        SequenceEntity::class,
+        SensorChannelEntity::class,
+        TelemetryOutboxEntity::class,
+        SyncCursorEntity::class,
+        CounterEntity::class
     ],
-    version = 2,
+    version = 12,
     exportSchema = false
 )
 abstract class IoTLogicDatabase : RoomDatabase() {
@@ -30,6 +51,12 @@ abstract class IoTLogicDatabase : RoomDatabase() {
     abstract fun telemetryDao(): TelemetryDao
     abstract fun configurationDao(): ConfigurationDao
     abstract fun commandQueueDao(): CommandQueueDao
+    abstract fun telemetryRollupDao(): TelemetryRollupDao
+    abstract fun telemetryIngestDao(): TelemetryIngestDao
+    abstract fun telemetryBlockDao(): TelemetryBlockDao
+    abstract fun sensorChannelDao(): SensorChannelDao
+    abstract fun telemetryOutboxDao(): TelemetryOutboxDao
+    abstract fun counterDao(): CounterDao
     
     companion object {
         const val DATABASE_NAME = "iotlogic_database"
@@ -68,10 +95,660 @@ abstract class IoTLogicDatabase : RoomDatabase() {
             }
         }
         
+        // Migration from version 2 to 3 - Add telemetry rollups and backfill them from raw telemetry
+        val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `telemetry_rollups` (
+                        `deviceId` TEXT NOT NULL,
+                        `sensorType` TEXT NOT NULL,
+                        `resolution` TEXT NOT NULL,
+                        `bucketStart` INTEGER NOT NULL,
+                        `sampleCount` INTEGER NOT NULL,
+                        `valueSum` REAL NOT NULL,
+                        `minValue` REAL NOT NULL,
+                        `maxValue` REAL NOT NULL,
+                        `lastValue` REAL NOT NULL,
+                        `lastTimestamp` INTEGER NOT NULL,
+                        PRIMARY KEY(`deviceId`, `sensorType`, `resolution`, `bucketStart`),
+                        FOREIGN KEY(`deviceId`) REFERENCES `devices`(`id`) ON DELETE CASCADE
+                    )
+                """)
+                
+                // Temporary index so the last-value lookups below are not full scans
+                database.execSQL("CREATE INDEX IF NOT EXISTS `tmp_telemetry_rollup_backfill` ON `telemetry` (`deviceId`, `sensorType`, `timestamp`)")
+                
+                database.execSQL("""
+                    INSERT INTO `telemetry_rollups`
+                    SELECT g.deviceId, g.sensorType, 'MINUTE', g.minuteStart, g.sampleCount, g.valueSum, g.minValue, g.maxValue,
+                        (SELECT t.value FROM `telemetry` t 
+                         WHERE t.deviceId = g.deviceId AND t.sensorType = g.sensorType AND t.timestamp = g.lastTimestamp LIMIT 1),
+                        g.lastTimestamp
+                    FROM (
+                        SELECT deviceId, sensorType, (timestamp / 60000) * 60000 AS minuteStart,
+                            COUNT(*) AS sampleCount, SUM(value) AS valueSum, MIN(value) AS minValue, MAX(value) AS maxValue,
+                            MAX(timestamp) AS lastTimestamp
+                        FROM `telemetry`
+                        GROUP BY deviceId, sensorType, minuteStart
+                    ) g
+                """)
+                
+                database.execSQL("DROP INDEX IF EXISTS `tmp_telemetry_rollup_backfill`")
+                
+                // Hour and day rollups are derived from the minute rollups
+                listOf("HOUR" to 3_600_000L, "DAY" to 86_400_000L).forEach { (resolution, bucketMs) ->
+                    database.execSQL("""
+                        INSERT INTO `telemetry_rollups`
+                        SELECT g.deviceId, g.sensorType, '$resolution', g.groupStart, g.sampleCount, g.valueSum, g.minValue, g.maxValue,
+                            (SELECT r.lastValue FROM `telemetry_rollups` r 
+                             WHERE r.deviceId = g.deviceId AND r.sensorType = g.sensorType 
+                             AND r.resolution = 'MINUTE' AND r.bucketStart = (g.lastTimestamp / 60000) * 60000),
+                            g.lastTimestamp
+                        FROM (
+                            SELECT deviceId, sensorType, (bucketStart / $bucketMs) * $bucketMs AS groupStart,
+                                SUM(sampleCount) AS sampleCount, SUM(valueSum) AS valueSum, MIN(minValue) AS minValue, MAX(maxValue) AS maxValue,
+                                MAX(lastTimestamp) AS lastTimestamp
+                            FROM `telemetry_rollups`
+                            WHERE resolution = 'MINUTE'
+                            GROUP BY deviceId, sensorType, groupStart
+                        ) g
+                    """)
+                }
+            }
+        }
+        
+        // Migration from version 3 to 4 - Add compressed telemetry blocks
+        val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `telemetry_blocks` (
+                        `deviceId` TEXT NOT NULL,
+                        `sensorType` TEXT NOT NULL,
+                        `blockStart` INTEGER NOT NULL,
+                        `unit` TEXT,
+                        `sampleCount` INTEGER NOT NULL,
+                        `firstTimestamp` INTEGER NOT NULL,
+                        `lastTimestamp` INTEGER NOT NULL,
+                        `valueSum` REAL NOT NULL,
+                        `minValue` REAL NOT NULL,
+                        `maxValue` REAL NOT NULL,
+                        `lastValue` REAL NOT NULL,
+                        `data` BLOB NOT NULL,
+                        PRIMARY KEY(`deviceId`, `sensorType`, `blockStart`),
+                        FOREIGN KEY(`deviceId`) REFERENCES `devices`(`id`) ON DELETE CASCADE
+                    )
+                """)
+            }
+        }
+        
+        // Migration from version 4 to 5 - Cluster telemetry on (deviceId, sensorType, timestamp, seq)
+        val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `sequences` (
+                        `name` TEXT NOT NULL,
+                        `value` INTEGER NOT NULL,
+                        PRIMARY KEY(`name`)
+                    )
+                """)
+                
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `telemetry_new` (
+                        `id` TEXT NOT NULL,
+                        `deviceId` TEXT NOT NULL,
+                        `sensorType` TEXT NOT NULL,
+                        `value` REAL NOT NULL,
+                        `unit` TEXT,
+                        `timestamp` INTEGER NOT NULL,
+                        `seq` INTEGER NOT NULL,
+                        `quality` TEXT,
+                        `rawValue` TEXT,
+                        `metadata` TEXT,
+                        `isProcessed` INTEGER NOT NULL,
+                        `syncStatus` TEXT NOT NULL,
+                        `createdAt` INTEGER NOT NULL,
+                        PRIMARY KEY(`deviceId`, `sensorType`, `timestamp`, `seq`),
+                        FOREIGN KEY(`deviceId`) REFERENCES `devices`(`id`) ON DELETE CASCADE
+                    ) WITHOUT ROWID
+                """)
+                
+                // Existing rows get their rowid as ingest sequence; inserting in key order builds the tree sequentially
+                database.execSQL("""
+                    INSERT INTO `telemetry_new` (`id`, `deviceId`, `sensorType`, `value`, `unit`, `timestamp`, `seq`, 
+                        `quality`, `rawValue`, `metadata`, `isProcessed`, `syncStatus`, `createdAt`)
+                    SELECT `id`, `deviceId`, `sensorType`, `value`, `unit`, `timestamp`, rowid, 
+                        `quality`, `rawValue`, `metadata`, `isProcessed`, `syncStatus`, `createdAt`
+                    FROM `telemetry`
+                    ORDER BY `deviceId`, `sensorType`, `timestamp`, rowid
+                """)
+                database.execSQL("INSERT INTO `sequences` (`name`, `value`) SELECT 'telemetry', COALESCE(MAX(`seq`), 0) FROM `telemetry_new`")
+                
+                database.execSQL("DROP TABLE `telemetry`")
+                database.execSQL("ALTER TABLE `telemetry_new` RENAME TO `telemetry`")
+                createTelemetryIndices(database)
+            }
+        }
+        
+        // Migration from version 5 to 6 - Move device, sensor type and unit into the sensor_channels dictionary
+        val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `sensor_channels` (
+                        `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+                        `deviceId` TEXT NOT NULL,
+                        `sensorType` TEXT NOT NULL,
+                        `unit` TEXT NOT NULL,
+                        FOREIGN KEY(`deviceId`) REFERENCES `devices`(`id`) ON DELETE CASCADE
+                    )
+                """)
+                database.execSQL(
+                    "CREATE UNIQUE INDEX IF NOT EXISTS `index_sensor_channels_deviceId_sensorType_unit` " +
+                        "ON `sensor_channels` (`deviceId`, `sensorType`, `unit`)"
+                )
+                
+                // The old primary key starts with (deviceId, sensorType), so this is an ordered walk
+                database.execSQL("""
+                    INSERT INTO `sensor_channels` (`deviceId`, `sensorType`, `unit`)
+                    SELECT DISTINCT `deviceId`, `sensorType`, COALESCE(`unit`, '') FROM `telemetry`
+                """)
+                
+                createClusteredTelemetryTable(database, "telemetry_new", LEGACY_TELEMETRY_KEY)
+                database.execSQL("""
+                    INSERT INTO `telemetry_new` (`id`, `channelId`, `value`, `timestamp`, `seq`, 
+                        `quality`, `rawValue`, `metadata`, `isProcessed`, `syncStatus`, `createdAt`)
+                    SELECT t.`id`, c.`id`, t.`value`, t.`timestamp`, t.`seq`, 
+                        t.`quality`, t.`rawValue`, t.`metadata`, t.`isProcessed`, t.`syncStatus`, t.`createdAt`
+                    FROM `sensor_channels` c
+                    JOIN `telemetry` t ON t.`deviceId` = c.`deviceId` AND t.`sensorType` = c.`sensorType` 
+                        AND COALESCE(t.`unit`, '') = c.`unit`
+                    ORDER BY c.`id`, t.`timestamp`, t.`seq`
+                """)
+                
+                database.execSQL("DROP TABLE `telemetry`")
+                database.execSQL("ALTER TABLE `telemetry_new` RENAME TO `telemetry`")
+                createTelemetryIndices(database)
+            }
+        }
+        
+        // Migration from version 6 to 7 - Keep the sum of squared deviations of compressed blocks
+        val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                // Existing blocks keep NULL and are decoded when their variance is needed
+                database.execSQL("ALTER TABLE `telemetry_blocks` ADD COLUMN `valueM2` REAL")
+            }
+        }
+        
+        // Migration from version 7 to 8 - Track uploads with an append-only outbox and per-destination cursors
+        val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `telemetry_outbox` (
+                        `seq` INTEGER NOT NULL,
+                        `channelId` INTEGER NOT NULL,
+                        `value` REAL NOT NULL,
+                        `timestamp` INTEGER NOT NULL,
+                        `quality` TEXT,
+                        PRIMARY KEY(`seq`)
+                    )
+                """)
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `sync_cursors` (
+                        `destination` TEXT NOT NULL,
+                        `lastSeq` INTEGER NOT NULL,
+                        `updatedAt` INTEGER NOT NULL,
+                        PRIMARY KEY(`destination`)
+                    )
+                """)
+                
+                // Rows not yet uploaded are queued in ingest order; no cursor means upload from the start
+                database.execSQL("""
+                    INSERT INTO `telemetry_outbox` (`seq`, `channelId`, `value`, `timestamp`, `quality`)
+                    SELECT `seq`, `channelId`, `value`, `timestamp`, `quality` FROM `telemetry`
+                    WHERE `syncStatus` != 'SYNCED'
+                    ORDER BY `seq`
+                """)
+            }
+        }
+        
+        // Migration from version 8 to 9 - Key telemetry on (channelId, timestamp) and drop duplicate samples
+        val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                createClusteredTelemetryTable(database, "telemetry_new")
+                
+                // Every dropped copy, so the outbox, blocks and rollups can be corrected after the copy
+                database.execSQL("""
+                    CREATE TEMP TABLE `tmp_dropped_samples` (
+                        `deviceId` TEXT NOT NULL,
+                        `sensorType` TEXT NOT NULL,
+                        `timestamp` INTEGER NOT NULL,
+                        `value` REAL NOT NULL,
+                        `seq` INTEGER
+                    )
+                """)
+                
+                val channels = ArrayList<SensorChannelEntity>()
+                database.query("SELECT `id`, `deviceId`, `sensorType`, `unit` FROM `sensor_channels` ORDER BY `id`").use { cursor ->
+                    while (cursor.moveToNext()) {
+                        channels.add(SensorChannelEntity(cursor.getLong(0), cursor.getString(1), cursor.getString(2), cursor.getString(3)))
+                    }
+                }
+                channels.forEach { copyDeduplicatedChannel(database, it) }
+                
+                database.execSQL("DROP TABLE `telemetry`")
+                database.execSQL("ALTER TABLE `telemetry_new` RENAME TO `telemetry`")
+                createTelemetryIndices(database)
+                
+                dropDuplicateBlockSamples(database)
+                
+                // Rollups are kept longer than raw samples, so they are corrected by what was dropped rather than rebuilt
+                database.execSQL("CREATE INDEX `tmp_dropped_samples_key` ON `tmp_dropped_samples` (`deviceId`, `sensorType`, `timestamp`)")
+                listOf("MINUTE" to 60_000L, "HOUR" to 3_600_000L, "DAY" to 86_400_000L).forEach { (resolution, bucketMs) ->
+                    val dropped = """
+                        FROM `tmp_dropped_samples` d 
+                        WHERE d.deviceId = telemetry_rollups.deviceId AND d.sensorType = telemetry_rollups.sensorType 
+                        AND d.timestamp >= telemetry_rollups.bucketStart AND d.timestamp < telemetry_rollups.bucketStart + $bucketMs
+                    """
+                    database.execSQL("""
+                        UPDATE `telemetry_rollups` SET 
+                            sampleCount = sampleCount - (SELECT COUNT(*) $dropped),
+                            valueSum = valueSum - (SELECT TOTAL(d.value) $dropped)
+                        WHERE resolution = '$resolution' AND EXISTS (SELECT 1 $dropped)
+                    """)
+                }
+                database.execSQL("DROP TABLE `tmp_dropped_samples`")
+            }
+            
+            // Copies one channel in key order and in bounded chunks; the earliest ingested copy of a sample is kept
+            private fun copyDeduplicatedChannel(database: SupportSQLiteDatabase, channel: SensorChannelEntity) {
+                var afterTimestamp = Long.MIN_VALUE
+                var afterSeq = Long.MIN_VALUE
+                while (true) {
+                    val after = "`channelId` = ? AND (`timestamp` > ? OR (`timestamp` = ? AND `seq` > ?))"
+                    val last = database.query(
+                        "SELECT `timestamp`, `seq` FROM `telemetry` WHERE $after ORDER BY `timestamp`, `seq` LIMIT 1 OFFSET ${MIGRATION_CHUNK_ROWS - 1}",
+                        arrayOf<Any>(channel.id, afterTimestamp, afterTimestamp, afterSeq)
+                    ).use { cursor -> if (cursor.moveToFirst()) cursor.getLong(0) to cursor.getLong(1) else null }
+                    val (lastTimestamp, lastSeq) = last ?: (Long.MAX_VALUE to Long.MAX_VALUE)
+                    val chunk = "$after AND (`timestamp` < ? OR (`timestamp` = ? AND `seq` <= ?))"
+                    val chunkArgs = arrayOf<Any>(channel.id, afterTimestamp, afterTimestamp, afterSeq, lastTimestamp, lastTimestamp, lastSeq)
+                    
+                    database.execSQL(
+                        """
+                        INSERT OR IGNORE INTO `telemetry_new` (`id`, `channelId`, `value`, `timestamp`, `seq`, 
+                            `quality`, `rawValue`, `metadata`, `isProcessed`, `syncStatus`, `createdAt`)
+                        SELECT `id`, `channelId`, `value`, `timestamp`, `seq`, 
+                            `quality`, `rawValue`, `metadata`, `isProcessed`, `syncStatus`, `createdAt`
+                        FROM `telemetry` WHERE $chunk
+                        ORDER BY `timestamp`, `seq`
+                        """,
+                        chunkArgs
+                    )
+                    
+                    val droppedBefore = database.query("SELECT COALESCE(MAX(rowid), 0) FROM `tmp_dropped_samples`").use { cursor ->
+                        cursor.moveToFirst()
+                        cursor.getLong(0)
+                    }
+                    database.execSQL(
+                        """
+                        INSERT INTO `tmp_dropped_samples` (`deviceId`, `sensorType`, `timestamp`, `value`, `seq`)
+                        SELECT ?, ?, t.`timestamp`, t.`value`, t.`seq` FROM `telemetry` t
+                        WHERE $chunk AND NOT EXISTS (
+                            SELECT 1 FROM `telemetry_new` n 
+                            WHERE n.`channelId` = t.`channelId` AND n.`timestamp` = t.`timestamp` AND n.`seq` = t.`seq`
+                        )
+                        """,
+                        arrayOf<Any>(channel.deviceId, channel.sensorType, *chunkArgs)
+                    )
+                    // Dropped copies must not be uploaded
+                    database.execSQL(
+                        "DELETE FROM `telemetry_outbox` WHERE `seq` IN (SELECT `seq` FROM `tmp_dropped_samples` WHERE rowid > ?)",
+                        arrayOf<Any>(droppedBefore)
+                    )
+                    
+                    if (last == null) return
+                    afterTimestamp = lastTimestamp
+                    afterSeq = lastSeq
+                }
+            }
+            
+            // Blocks compacted before samples were keyed by timestamp can hold several copies of one
+            private fun dropDuplicateBlockSamples(database: SupportSQLiteDatabase) {
+                var afterRowId = 0L
+                while (true) {
+                    // The chunk is read in full before any of its blocks is rewritten
+                    val rowIds = ArrayList<Long>()
+                    val keys = ArrayList<Pair<String, String>>()
+                    val data = ArrayList<ByteArray>()
+                    database.query(
+                        "SELECT rowid, `deviceId`, `sensorType`, `data` FROM `telemetry_blocks` WHERE rowid > ? ORDER BY rowid LIMIT $MIGRATION_CHUNK_BLOCKS",
+                        arrayOf<Any>(afterRowId)
+                    ).use { cursor ->
+                        while (cursor.moveToNext()) {
+                            rowIds.add(cursor.getLong(0))
+                            keys.add(cursor.getString(1) to cursor.getString(2))
+                            data.add(cursor.getBlob(3))
+                        }
+                    }
+                    rowIds.indices.forEach { i ->
+                        dropDuplicateSamples(database, rowIds[i], keys[i].first, keys[i].second, data[i])
+                    }
+                    if (rowIds.size < MIGRATION_CHUNK_BLOCKS) return
+                    afterRowId = rowIds.last()
+                }
+            }
+            
+            private fun dropDuplicateSamples(database: SupportSQLiteDatabase, rowId: Long, deviceId: String, sensorType: String, data: ByteArray) {
+                val block = TelemetryBlockCodec.decode(data)
+                // Block timestamps are sorted, so copies are adjacent
+                val kept = (0 until block.size).filter { it == 0 || block.timestamps[it] != block.timestamps[it - 1] }
+                if (kept.size == block.size) return
+                
+                (0 until block.size).filter { it > 0 && block.timestamps[it] == block.timestamps[it - 1] }.forEach { i ->
+                    database.execSQL(
+                        "INSERT INTO `tmp_dropped_samples` (`deviceId`, `sensorType`, `timestamp`, `value`) VALUES (?, ?, ?, ?)",
+                        arrayOf<Any>(deviceId, sensorType, block.timestamps[i], block.values[i])
+                    )
+                }
+                
+                val timestamps = LongArray(kept.size) { block.timestamps[kept[it]] }
+                val values = DoubleArray(kept.size) { block.values[kept[it]] }
+                // valueM2 is left NULL, so the block is decoded when its variance is needed
+                database.execSQL(
+                    """
+                    UPDATE `telemetry_blocks` SET `sampleCount` = ?, `firstTimestamp` = ?, `lastTimestamp` = ?, `valueSum` = ?, 
+                        `valueM2` = NULL, `minValue` = ?, `maxValue` = ?, `lastValue` = ?, `data` = ?
+                    WHERE rowid = ?
+                    """,
+                    arrayOf<Any>(
+                        kept.size, timestamps.first(), timestamps.last(), values.sum(),
+                        values.min(), values.max(), values.last(), TelemetryBlockCodec.encode(timestamps, values), rowId
+                    )
+                )
+            }
+        }
+        
+        // Migration from version 9 to 10 - Materialized counters maintained by triggers
+        val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `counters` (
+                        `name` TEXT NOT NULL,
+                        `value` INTEGER NOT NULL,
+                        PRIMARY KEY(`name`)
+                    )
+                """)
+                
+                // The only full scans left; from here on every count is maintained incrementally
+                database.execSQL("INSERT INTO `counters` SELECT 'devices', COUNT(*) FROM `devices`")
+                database.execSQL("INSERT INTO `counters` SELECT 'devices.status.' || `status`, COUNT(*) FROM `devices` GROUP BY `status`")
+                database.execSQL("INSERT INTO `counters` SELECT 'devices.protocol.' || `protocol`, COUNT(*) FROM `devices` GROUP BY `protocol`")
+                database.execSQL("INSERT INTO `counters` SELECT 'commands.pending', COUNT(*) FROM `command_queue` WHERE `status` = 'PENDING'")
+                database.execSQL("""
+                    INSERT INTO `counters` 
+                    SELECT 'telemetry.device.' || `deviceId`, SUM(`sampleCount`) FROM (
+                        SELECT c.`deviceId` AS `deviceId`, COUNT(*) AS `sampleCount` 
+                        FROM `telemetry` t JOIN `sensor_channels` c ON c.`id` = t.`channelId` 
+                        GROUP BY c.`deviceId`
+                        UNION ALL
+                        SELECT `deviceId`, SUM(`sampleCount`) FROM `telemetry_blocks` GROUP BY `deviceId`
+                    ) GROUP BY `deviceId`
+                """)
+                
+                createCounterTriggers(database, LEGACY_BLOCK_KEY)
+            }
+        }
+        
+        // Migration from version 10 to 11 - Index device tokens for MQTT topic resolution
+        val MIGRATION_10_11 = object : Migration(10, 11) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("CREATE INDEX IF NOT EXISTS `index_devices_token` ON `devices` (`token`)")
+            }
+        }
+        
+        // Migration from version 11 to 12 - Key compressed blocks on their sensor channel
+        val MIGRATION_11_12 = object : Migration(11, 12) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `telemetry_blocks_new` (
+                        `channelId` INTEGER NOT NULL,
+                        `deviceId` TEXT NOT NULL,
+                        `sensorType` TEXT NOT NULL,
+                        `blockStart` INTEGER NOT NULL,
+                        `unit` TEXT,
+                        `sampleCount` INTEGER NOT NULL,
+                        `firstTimestamp` INTEGER NOT NULL,
+                        `lastTimestamp` INTEGER NOT NULL,
+                        `valueSum` REAL NOT NULL,
+                        `valueM2` REAL,
+                        `minValue` REAL NOT NULL,
+                        `maxValue` REAL NOT NULL,
+                        `lastValue` REAL NOT NULL,
+                        `data` BLOB NOT NULL,
+                        PRIMARY KEY(`channelId`, `blockStart`),
+                        FOREIGN KEY(`channelId`) REFERENCES `sensor_channels`(`id`) ON DELETE CASCADE
+                    )
+                """)
+                
+                // Every block needs a channel; sensors whose rows were all compacted may have none left
+                database.execSQL("""
+                    INSERT OR IGNORE INTO `sensor_channels` (`deviceId`, `sensorType`, `unit`)
+                    SELECT DISTINCT b.`deviceId`, b.`sensorType`, COALESCE(b.`unit`, '') FROM `telemetry_blocks` b
+                    WHERE NOT EXISTS (
+                        SELECT 1 FROM `sensor_channels` c WHERE c.`deviceId` = b.`deviceId` AND c.`sensorType` = b.`sensorType`
+                    )
+                """)
+                
+                // The old blocks mixed the channels of a sensor and kept one unit; they go to the channel
+                // of that unit, or to the sensor's first channel when no channel has it
+                val maxRowId = database.query("SELECT COALESCE(MAX(rowid), 0) FROM `telemetry_blocks`").use { cursor ->
+                    cursor.moveToFirst()
+                    cursor.getLong(0)
+                }
+                var afterRowId = 0L
+                while (afterRowId < maxRowId) {
+                    val lastRowId = minOf(afterRowId + MIGRATION_CHUNK_BLOCKS, maxRowId)
+                    database.execSQL(
+                        """
+                        INSERT INTO `telemetry_blocks_new` (`channelId`, `deviceId`, `sensorType`, `blockStart`, `unit`, 
+                            `sampleCount`, `firstTimestamp`, `lastTimestamp`, `valueSum`, `valueM2`, `minValue`, `maxValue`, `lastValue`, `data`)
+                        SELECT c.`id`, b.`deviceId`, b.`sensorType`, b.`blockStart`, NULLIF(c.`unit`, ''), 
+                            b.`sampleCount`, b.`firstTimestamp`, b.`lastTimestamp`, b.`valueSum`, b.`valueM2`, b.`minValue`, b.`maxValue`, b.`lastValue`, b.`data`
+                        FROM `telemetry_blocks` b
+                        JOIN `sensor_channels` c ON c.`id` = COALESCE(
+                            (SELECT `id` FROM `sensor_channels` 
+                             WHERE `deviceId` = b.`deviceId` AND `sensorType` = b.`sensorType` AND `unit` = COALESCE(b.`unit`, '')),
+                            (SELECT MIN(`id`) FROM `sensor_channels` WHERE `deviceId` = b.`deviceId` AND `sensorType` = b.`sensorType`)
+                        )
+                        WHERE b.rowid > ? AND b.rowid <= ?
+                        """,
+                        arrayOf<Any>(afterRowId, lastRowId)
+                    )
+                    afterRowId = lastRowId
+                }
+                
+                database.execSQL("DROP TABLE `telemetry_blocks`")
+                database.execSQL("ALTER TABLE `telemetry_blocks_new` RENAME TO `telemetry_blocks`")
+                database.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_telemetry_blocks_deviceId_sensorType_blockStart` " +
+                        "ON `telemetry_blocks` (`deviceId`, `sensorType`, `blockStart`)"
+                )
+                createCounterTriggers(database)
+            }
+        }
+        
+        // Rows, and compressed blocks, handled per statement by migrations that rewrite large tables
+        private const val MIGRATION_CHUNK_ROWS = 10_000
+        private const val MIGRATION_CHUNK_BLOCKS = 500
+        
+        // Telemetry key up to version 8, before samples were deduplicated
+        private const val LEGACY_TELEMETRY_KEY = "`channelId`, `timestamp`, `seq`"
+        
+        // Block key up to version 11, before blocks were kept per channel
+        private const val LEGACY_BLOCK_KEY = "`deviceId` = NEW.`deviceId` AND `sensorType` = NEW.`sensorType` AND `blockStart` = NEW.`blockStart`"
+        
+        /**
+         * Room cannot declare WITHOUT ROWID tables, so the telemetry table is created here
+         * with the same columns, keys and indices as [TelemetryEntity]
+         */
+        private fun createClusteredTelemetryTable(
+            database: SupportSQLiteDatabase,
+            tableName: String,
+            primaryKey: String = "`channelId`, `timestamp`"
+        ) {
+            database.execSQL("""
+                CREATE TABLE IF NOT EXISTS `$tableName` (
+                    `id` TEXT NOT NULL,
+                    `channelId` INTEGER NOT NULL,
+                    `value` REAL NOT NULL,
+                    `timestamp` INTEGER NOT NULL,
+                    `seq` INTEGER NOT NULL,
+                    `quality` TEXT,
+                    `rawValue` TEXT,
+                    `metadata` TEXT,
+                    `isProcessed` INTEGER NOT NULL,
+                    `syncStatus` TEXT NOT NULL,
+                    `createdAt` INTEGER NOT NULL,
+                    PRIMARY KEY($primaryKey),
+                    FOREIGN KEY(`channelId`) REFERENCES `sensor_channels`(`id`) ON DELETE CASCADE
+                ) WITHOUT ROWID
+            """)
+        }
+        
+        /**
+         * Keep the counters table in step with devices, commands, telemetry deletes and
+         * compressed blocks. Telemetry inserts are counted per batch by the ingest
+         * transaction instead of per row. REPLACE does not fire delete triggers, so the
+         * row it is about to replace is uncounted in a BEFORE INSERT trigger. Rebuilding
+         * one of these tables drops its triggers; call this again afterwards. [blockKey]
+         * finds the stored block an insert replaces.
+         */
+        private fun createCounterTriggers(
+            database: SupportSQLiteDatabase,
+            blockKey: String = "`channelId` = NEW.`channelId` AND `blockStart` = NEW.`blockStart`"
+        ) {
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_devices_replace` BEFORE INSERT ON `devices`
+                WHEN EXISTS (SELECT 1 FROM `devices` WHERE `id` = NEW.`id`)
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - 1 WHERE `name` IN (
+                        'devices',
+                        'devices.status.' || (SELECT `status` FROM `devices` WHERE `id` = NEW.`id`),
+                        'devices.protocol.' || (SELECT `protocol` FROM `devices` WHERE `id` = NEW.`id`)
+                    );
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_devices_insert` AFTER INSERT ON `devices`
+                BEGIN
+                    INSERT OR IGNORE INTO `counters` (`name`, `value`) VALUES 
+                        ('devices', 0), ('devices.status.' || NEW.`status`, 0), ('devices.protocol.' || NEW.`protocol`, 0);
+                    UPDATE `counters` SET `value` = `value` + 1 
+                    WHERE `name` IN ('devices', 'devices.status.' || NEW.`status`, 'devices.protocol.' || NEW.`protocol`);
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_devices_update` AFTER UPDATE OF `status`, `protocol` ON `devices`
+                WHEN OLD.`status` != NEW.`status` OR OLD.`protocol` != NEW.`protocol`
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - 1 
+                    WHERE `name` IN ('devices.status.' || OLD.`status`, 'devices.protocol.' || OLD.`protocol`);
+                    INSERT OR IGNORE INTO `counters` (`name`, `value`) VALUES 
+                        ('devices.status.' || NEW.`status`, 0), ('devices.protocol.' || NEW.`protocol`, 0);
+                    UPDATE `counters` SET `value` = `value` + 1 
+                    WHERE `name` IN ('devices.status.' || NEW.`status`, 'devices.protocol.' || NEW.`protocol`);
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_devices_delete` AFTER DELETE ON `devices`
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - 1 
+                    WHERE `name` IN ('devices', 'devices.status.' || OLD.`status`, 'devices.protocol.' || OLD.`protocol`);
+                    DELETE FROM `counters` WHERE `name` = 'telemetry.device.' || OLD.`id`;
+                END
+            """)
+            
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_commands_replace` BEFORE INSERT ON `command_queue`
+                WHEN EXISTS (SELECT 1 FROM `command_queue` WHERE `id` = NEW.`id` AND `status` = 'PENDING')
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - 1 WHERE `name` = 'commands.pending';
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_commands_insert` AFTER INSERT ON `command_queue`
+                WHEN NEW.`status` = 'PENDING'
+                BEGIN
+                    INSERT OR IGNORE INTO `counters` (`name`, `value`) VALUES ('commands.pending', 0);
+                    UPDATE `counters` SET `value` = `value` + 1 WHERE `name` = 'commands.pending';
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_commands_update` AFTER UPDATE OF `status` ON `command_queue`
+                WHEN (OLD.`status` = 'PENDING') != (NEW.`status` = 'PENDING')
+                BEGIN
+                    INSERT OR IGNORE INTO `counters` (`name`, `value`) VALUES ('commands.pending', 0);
+                    UPDATE `counters` SET `value` = `value` + (CASE WHEN NEW.`status` = 'PENDING' THEN 1 ELSE -1 END) 
+                    WHERE `name` = 'commands.pending';
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_commands_delete` AFTER DELETE ON `command_queue`
+                WHEN OLD.`status` = 'PENDING'
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - 1 WHERE `name` = 'commands.pending';
+                END
+            """)
+            
+            // Retention and compaction delete rows; compaction adds them back through the block triggers
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_telemetry_delete` AFTER DELETE ON `telemetry`
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - 1 
+                    WHERE `name` = 'telemetry.device.' || (SELECT `deviceId` FROM `sensor_channels` WHERE `id` = OLD.`channelId`);
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_blocks_replace` BEFORE INSERT ON `telemetry_blocks`
+                WHEN EXISTS (
+                    SELECT 1 FROM `telemetry_blocks` WHERE $blockKey
+                )
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - (
+                        SELECT `sampleCount` FROM `telemetry_blocks` WHERE $blockKey
+                    ) WHERE `name` = 'telemetry.device.' || NEW.`deviceId`;
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_blocks_insert` AFTER INSERT ON `telemetry_blocks`
+                BEGIN
+                    INSERT OR IGNORE INTO `counters` (`name`, `value`) VALUES ('telemetry.device.' || NEW.`deviceId`, 0);
+                    UPDATE `counters` SET `value` = `value` + NEW.`sampleCount` WHERE `name` = 'telemetry.device.' || NEW.`deviceId`;
+                END
+            """)
+            database.execSQL("""
+                CREATE TRIGGER IF NOT EXISTS `counters_blocks_delete` AFTER DELETE ON `telemetry_blocks`
+                BEGIN
+                    UPDATE `counters` SET `value` = `value` - OLD.`sampleCount` WHERE `name` = 'telemetry.device.' || OLD.`deviceId`;
+                END
+            """)
+        }
+        
+        private fun createTelemetryIndices(database: SupportSQLiteDatabase) {
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_telemetry_id` ON `telemetry` (`id`)")
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_telemetry_timestamp` ON `telemetry` (`timestamp`)")
+        }
+        
         // Prepopulate callback for default configurations
         val prepopulateCallback = object : RoomDatabase.Callback() {
             override fun onCreate(db: SupportSQLiteDatabase) {
                 super.onCreate(db)
+                
+                // Swap the rowid table Room just created for the clustered layout
+                db.execSQL("DROP TABLE IF EXISTS `telemetry`")
+                createClusteredTelemetryTable(db, "telemetry")
+                createTelemetryIndices(db)
+                createCounterTriggers(db)
+                
                 // You can prepopulate the database here if needed
                 // This is useful for default configurations or reference data
             }
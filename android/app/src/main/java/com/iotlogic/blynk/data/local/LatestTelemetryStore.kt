@@ -0,0 +1,150 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import com.iotlogic.blynk.data.repository.lastSample
+import com.iotlogic.blynk.data.repository.toDomain
+import com.iotlogic.blynk.domain.model.Telemetry
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Latest sample of every device sensor, held in memory so list rows and tiles never
+ * query SQLite for it. Warmed once from a grouped query, then advanced by the ingest
+ * writer after each committed batch. A value only ever moves forward in
+ * (timestamp, seq), so warm-up and ingest can race safely.
+ */
+@Singleton
+class LatestTelemetryStore @Inject constructor(
+    private val telemetryDao: TelemetryDao,
+    private val blockDao: TelemetryBlockDao,
+    private val channelRegistry: SensorChannelRegistry
+) {
+    
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    
+    // deviceId -> sensorType -> latest sample
+    private val latest = ConcurrentHashMap<String, ConcurrentHashMap<String, MutableStateFlow<Telemetry?>>>()
+    
+    private val loadLock = Mutex()
+    
+    @Volatile
+    private var loaded = false
+    
+    /**
+     * Load the latest values in the background, e.g. at application start
+     */
+    fun warmUp() {
+        if (loaded) return
+        scope.launch {
+            try {
+                ensureLoaded()
+            } catch (e: Exception) {
+                // Left unloaded, the next read retries
+            }
+        }
+    }
+    
+    /**
+     * Latest sample of one sensor. Emits null until a value is known.
+     */
+    fun observe(deviceId: String, sensorType: String): StateFlow<Telemetry?> {
+        warmUp()
+        return flowFor(deviceId, sensorType).asStateFlow()
+    }
+    
+    suspend fun getLatest(deviceId: String, sensorType: String): Telemetry? {
+        ensureLoaded()
+        return latest[deviceId]?.get(sensorType)?.value
+    }
+    
+    /**
+     * Newest sample across all sensors of a device
+     */
+    suspend fun getLatestForDevice(deviceId: String): Telemetry? {
+        ensureLoaded()
+        return latest[deviceId]?.values
+            ?.mapNotNull { it.value }
+            ?.maxWithOrNull(compareBy<Telemetry>({ it.timestamp }, { it.seq }))
+    }
+    
+    /**
+     * Advance with a committed ingest batch. Only the newest sample of each channel
+     * is mapped, so a batch costs one update per channel.
+     */
+    fun offer(batch: List<TelemetryEntity>, channels: Map<Long, SensorChannelEntity>) {
+        val newestByChannel = HashMap<Long, TelemetryEntity>()
+        batch.forEach { sample ->
+            val current = newestByChannel[sample.channelId]
+            if (current == null || sample.timestamp > current.timestamp ||
+                (sample.timestamp == current.timestamp && sample.seq > current.seq)
+            ) {
+                newestByChannel[sample.channelId] = sample
+            }
+        }
+        
+        newestByChannel.forEach { (channelId, sample) ->
+            channels[channelId]?.let { offer(sample.toDomain(it)) }
+        }
+    }
+    
+    fun offer(sample: Telemetry) {
+        flowFor(sample.deviceId, sample.sensorType).update { current ->
+            if (current == null || sample.isNewerThan(current)) sample else current
+        }
+    }
+    
+    /**
+     * Clear the values of a device whose telemetry was deleted
+     */
+    fun evictDevice(deviceId: String) {
+        latest[deviceId]?.values?.forEach { it.value = null }
+    }
+    
+    /**
+     * Clear values older than a retention cutoff
+     */
+    fun evictOlderThan(timestamp: Long) {
+        latest.values.forEach { sensors ->
+            sensors.values.forEach { flow ->
+                flow.update { current -> if (current != null && current.timestamp < timestamp) null else current }
+            }
+        }
+    }
+    
+    private fun flowFor(deviceId: String, sensorType: String): MutableStateFlow<Telemetry?> {
+        return latest.getOrPut(deviceId) { ConcurrentHashMap() }
+            .getOrPut(sensorType) { MutableStateFlow(null) }
+    }
+    
+    private suspend fun ensureLoaded() {
+        if (loaded) return
+        loadLock.withLock {
+            if (loaded) return
+            
+            // Sensors whose recent rows were compacted only have a block left
+            blockDao.getLatestBlockPerChannel().forEach { offer(it.lastSample()) }
+            telemetryDao.getLatestTelemetryPerChannel().forEach { entity ->
+                channelRegistry.get(entity.channelId)?.let { offer(entity.toDomain(it)) }
+            }
+            loaded = true
+        }
+    }
+    
+    private fun Telemetry.isNewerThan(other: Telemetry): Boolean {
+        return timestamp > other.timestamp || (timestamp == other.timestamp && seq > other.seq)
+    }
+}
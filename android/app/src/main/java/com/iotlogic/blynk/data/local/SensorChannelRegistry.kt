@@ -0,0 +1,88 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.SensorChannelDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * In-memory view of the sensor_channels dictionary. The catalog is small, so it is
+ * loaded once and lookups in either direction never touch the database afterwards.
+ */
+@Singleton
+class SensorChannelRegistry @Inject constructor(
+    private val channelDao: SensorChannelDao
+) {
+    
+    private data class ChannelKey(
+        val deviceId: String,
+        val sensorType: String,
+        val unit: String
+    )
+    
+    private val byKey = ConcurrentHashMap<ChannelKey, SensorChannelEntity>()
+    private val byId = ConcurrentHashMap<Long, SensorChannelEntity>()
+    
+    // Serializes catalog loading and channel creation
+    private val lock = Mutex()
+    
+    @Volatile
+    private var loaded = false
+    
+    /**
+     * Channel id for a device sensor, created on first use
+     */
+    suspend fun resolve(deviceId: String, sensorType: String, unit: String?): SensorChannelEntity {
+        ensureLoaded()
+        val key = ChannelKey(deviceId, sensorType, unit.orEmpty())
+        byKey[key]?.let { return it }
+        
+        return lock.withLock {
+            byKey[key] ?: channelDao.getOrCreateChannel(deviceId, sensorType, unit.orEmpty()).also { cache(it) }
+        }
+    }
+    
+    suspend fun get(channelId: Long): SensorChannelEntity? {
+        ensureLoaded()
+        byId[channelId]?.let { return it }
+        return channelDao.getChannel(channelId)?.also { cache(it) }
+    }
+    
+    suspend fun getChannelsForDevice(deviceId: String): List<SensorChannelEntity> {
+        ensureLoaded()
+        return byId.values.filter { it.deviceId == deviceId }.sortedBy { it.id }
+    }
+    
+    suspend fun getSensorTypesForDevice(deviceId: String): List<String> {
+        ensureLoaded()
+        return byId.values.filter { it.deviceId == deviceId }.map { it.sensorType }.distinct()
+    }
+    
+    /**
+     * Drop cached channels of a device whose rows were removed by cascade
+     */
+    fun evictDevice(deviceId: String) {
+        byId.values.filter { it.deviceId == deviceId }.forEach { channel ->
+            byId.remove(channel.id)
+            byKey.remove(ChannelKey(channel.deviceId, channel.sensorType, channel.unit))
+        }
+    }
+    
+    private suspend fun ensureLoaded() {
+        if (loaded) return
+        lock.withLock {
+            if (!loaded) {
+                channelDao.getAllChannels().forEach { cache(it) }
+                loaded = true
+            }
+        }
+    }
+    
+    private fun cache(channel: SensorChannelEntity) {
+        byKey[ChannelKey(channel.deviceId, channel.sensorType, channel.unit)] = channel
+        byId[channel.id] = channel
+    }
+}
@@ -0,0 +1,98 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.SensorChannelDao
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.dao.TelemetryOutboxDao
+import com.iotlogic.blynk.data.local.dao.TelemetryRollupDao
+import com.iotlogic.blynk.domain.model.RollupResolution
+import kotlinx.coroutines.yield
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Applies retention without one large DELETE. Rows are removed per channel, oldest
+ * first, in chunks that each form a contiguous primary key range and run in their own
+ * short transaction. Ingest gets the write lock between chunks, and because no single
+ * transaction is large the WAL is checkpointed back to its normal size as it goes.
+ */
+@Singleton
+class TelemetryRetention @Inject constructor(
+    private val channelDao: SensorChannelDao,
+    private val telemetryDao: TelemetryDao,
+    private val rollupDao: TelemetryRollupDao,
+    private val blockDao: TelemetryBlockDao,
+    private val outboxDao: TelemetryOutboxDao
+) {
+    
+    companion object {
+        const val DEFAULT_CHUNK_SIZE = 2_000
+    }
+    
+    /**
+     * Delete raw rows older than [cutoff]. With [syncedOnly] rows still waiting for
+     * upload are kept; otherwise their outbox copies go too, so a backlog that cannot be
+     * uploaded is bounded by the same retention. Returns the number of rows deleted.
+     */
+    suspend fun deleteTelemetryOlderThan(
+        cutoff: Long,
+        syncedOnly: Boolean = false,
+        chunkSize: Int = DEFAULT_CHUNK_SIZE
+    ): Result<Int> {
+        return try {
+            var deleted = 0
+            channelDao.getAllChannels().forEach { channel ->
+                while (true) {
+                    val chunk = if (syncedOnly) {
+                        telemetryDao.deleteSyncedOldTelemetryChunk(channel.id, cutoff, chunkSize)
+                    } else {
+                        telemetryDao.deleteOldTelemetryChunk(channel.id, cutoff, chunkSize)
+                    }
+                    deleted += chunk
+                    yield()
+                    if (chunk == 0) break
+                }
+            }
+            if (!syncedOnly) {
+                while (outboxDao.deleteOlderThanChunk(cutoff, chunkSize) > 0) yield()
+            }
+            Result.success(deleted)
+        } catch (e: Exception) {
+            Result.failure(e)
+        }
+    }
+    
+    /**
+     * Delete compressed blocks that ended before [cutoff], one device sensor at a time
+     */
+    suspend fun deleteBlocksOlderThan(cutoff: Long): Result<Int> {
+        return forEachSensor { deviceId, sensorType ->
+            blockDao.deleteOldBlocksForSensor(deviceId, sensorType, cutoff)
+        }
+    }
+    
+    /**
+     * Delete rollup buckets of [resolution] that started before [cutoff]
+     */
+    suspend fun deleteRollupsOlderThan(resolution: RollupResolution, cutoff: Long): Result<Int> {
+        return forEachSensor { deviceId, sensorType ->
+            rollupDao.deleteOldRollupsForSensor(deviceId, sensorType, resolution.name, cutoff)
+        }
+    }
+    
+    private suspend fun forEachSensor(delete: suspend (deviceId: String, sensorType: String) -> Int): Result<Int> {
+        return try {
+            var deleted = 0
+            channelDao.getAllChannels()
+                .map { it.deviceId to it.sensorType }
+                .distinct()
+                .forEach { (deviceId, sensorType) ->
+                    deleted += delete(deviceId, sensorType)
+                    yield()
+                }
+            Result.success(deleted)
+        } catch (e: Exception) {
+            Result.failure(e)
+        }
+    }
+}
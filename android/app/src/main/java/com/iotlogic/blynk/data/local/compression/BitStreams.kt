@@ -0,0 +1,66 @@
+package com.iotlogic.blynk.data.local.compression
+
+/**
+ * Append-only MSB-first bit buffer
+ */
+internal class BitWriter(initialCapacityBytes: Int = 64) {
+    
+    private var buffer = ByteArray(maxOf(initialCapacityBytes, 8))
+    private var bitPosition = 0
+    
+    fun writeBit(bit: Boolean) {
+        val byteIndex = bitPosition ushr 3
+        if (byteIndex == buffer.size) {
+            buffer = buffer.copyOf(buffer.size * 2)
+        }
+        if (bit) {
+            buffer[byteIndex] = (buffer[byteIndex].toInt() or (0x80 ushr (bitPosition and 7))).toByte()
+        }
+        bitPosition++
+    }
+    
+    /**
+     * Write the low [count] bits of [value], most significant first
+     */
+    fun writeBits(value: Long, count: Int) {
+        for (shift in count - 1 downTo 0) {
+            writeBit(((value ushr shift) and 1L) == 1L)
+        }
+    }
+    
+    fun toByteArray(): ByteArray = buffer.copyOf((bitPosition + 7) ushr 3)
+}
+
+/**
+ * Sequential reader for data produced by [BitWriter]
+ */
+internal class BitReader(private val data: ByteArray) {
+    
+    private var bitPosition = 0
+    
+    fun readBit(): Boolean {
+        val byteIndex = bitPosition ushr 3
+        if (byteIndex >= data.size) {
+            throw IllegalArgumentException("Unexpected end of compressed block")
+        }
+        val bit = (data[byteIndex].toInt() ushr (7 - (bitPosition and 7))) and 1
+        bitPosition++
+        return bit == 1
+    }
+    
+    fun readBits(count: Int): Long {
+        var value = 0L
+        repeat(count) {
+            value = (value shl 1) or (if (readBit()) 1L else 0L)
+        }
+        return value
+    }
+    
+    /**
+     * Read [count] bits as a two's complement signed value
+     */
+    fun readSignedBits(count: Int): Long {
+        val raw = readBits(count)
+        return (raw shl (64 - count)) shr (64 - count)
+    }
+}
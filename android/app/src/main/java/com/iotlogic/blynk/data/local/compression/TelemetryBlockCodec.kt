@@ -0,0 +1,146 @@
+package com.iotlogic.blynk.data.local.compression
+
+/**
+ * Compresses a time-ordered block of samples following the Gorilla time-series scheme:
+ * timestamps are stored as delta-of-delta with variable-width buckets and values as the
+ * XOR against the previous value, keeping only the meaningful bits.
+ *
+ * Regular sampling intervals cost one bit per timestamp and slowly changing values
+ * typically a handful of bits, compared to a full telemetry row.
+ */
+object TelemetryBlockCodec {
+    
+    private const val FORMAT_VERSION = 1L
+    
+    class DecodedBlock(
+        val timestamps: LongArray,
+        val values: DoubleArray
+    ) {
+        val size: Int
+            get() = timestamps.size
+    }
+    
+    fun encode(timestamps: LongArray, values: DoubleArray): ByteArray {
+        require(timestamps.size == values.size) { "timestamps and values must have the same length" }
+        
+        val writer = BitWriter(timestamps.size * 2 + 24)
+        writer.writeBits(FORMAT_VERSION, 8)
+        writer.writeBits(timestamps.size.toLong(), 32)
+        if (timestamps.isEmpty()) return writer.toByteArray()
+        
+        writer.writeBits(timestamps[0], 64)
+        writer.writeBits(values[0].toRawBits(), 64)
+        
+        var previousTimestamp = timestamps[0]
+        var previousDelta = 0L
+        var previousBits = values[0].toRawBits()
+        var previousLeading = -1
+        var previousTrailing = 0
+        
+        for (i in 1 until timestamps.size) {
+            val delta = timestamps[i] - previousTimestamp
+            writeDeltaOfDelta(writer, delta - previousDelta)
+            previousDelta = delta
+            previousTimestamp = timestamps[i]
+            
+            val bits = values[i].toRawBits()
+            val xor = bits xor previousBits
+            if (xor == 0L) {
+                writer.writeBit(false)
+            } else {
+                writer.writeBit(true)
+                // Leading zero count is stored in 5 bits
+                val leading = minOf(xor.countLeadingZeroBits(), 31)
+                val trailing = xor.countTrailingZeroBits()
+                
+                if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                    // Meaningful bits fit in the previous window
+                    writer.writeBit(false)
+                    writer.writeBits(xor ushr previousTrailing, 64 - previousLeading - previousTrailing)
+                } else {
+                    val significant = 64 - leading - trailing
+                    writer.writeBit(true)
+                    writer.writeBits(leading.toLong(), 5)
+                    writer.writeBits((significant - 1).toLong(), 6)
+                    writer.writeBits(xor ushr trailing, significant)
+                    previousLeading = leading
+                    previousTrailing = trailing
+                }
+            }
+            previousBits = bits
+        }
+        
+        return writer.toByteArray()
+    }
+    
+    fun decode(data: ByteArray): DecodedBlock {
+        val reader = BitReader(data)
+        val version = reader.readBits(8)
+        if (version != FORMAT_VERSION) {
+            throw IllegalArgumentException("Unsupported block format version $version")
+        }
+        
+        val count = reader.readBits(32).toInt()
+        val timestamps = LongArray(count)
+        val values = DoubleArray(count)
+        if (count == 0) return DecodedBlock(timestamps, values)
+        
+        timestamps[0] = reader.readBits(64)
+        var bits = reader.readBits(64)
+        values[0] = Double.fromBits(bits)
+        
+        var delta = 0L
+        var leading = 0
+        var trailing = 0
+        
+        for (i in 1 until count) {
+            delta += readDeltaOfDelta(reader)
+            timestamps[i] = timestamps[i - 1] + delta
+            
+            if (reader.readBit()) {
+                if (reader.readBit()) {
+                    leading = reader.readBits(5).toInt()
+                    val significant = reader.readBits(6).toInt() + 1
+                    trailing = 64 - leading - significant
+                }
+                val significant = 64 - leading - trailing
+                bits = bits xor (reader.readBits(significant) shl trailing)
+            }
+            values[i] = Double.fromBits(bits)
+        }
+        
+        return DecodedBlock(timestamps, values)
+    }
+    
+    private fun writeDeltaOfDelta(writer: BitWriter, deltaOfDelta: Long) {
+        when (deltaOfDelta) {
+            0L -> writer.writeBit(false)
+            in -64L..63L -> {
+                writer.writeBits(0b10, 2)
+                writer.writeBits(deltaOfDelta, 7)
+            }
+            in -256L..255L -> {
+                writer.writeBits(0b110, 3)
+                writer.writeBits(deltaOfDelta, 9)
+            }
+            in -2048L..2047L -> {
+                writer.writeBits(0b1110, 4)
+                writer.writeBits(deltaOfDelta, 12)
+            }
+            else -> {
+                writer.writeBits(0b1111, 4)
+                writer.writeBits(deltaOfDelta, 64)
+            }
+        }
+    }
+    
+    private fun readDeltaOfDelta(reader: BitReader): Long {
+        return when {
+            !reader.readBit() -> 0L
+            !reader.readBit() -> reader.readSignedBits(7)
+            !reader.readBit() -> reader.readSignedBits(9)
+            !reader.readBit() -> reader.readSignedBits(12)
+            else -> reader.readBits(64)
+        }
+    }
+}
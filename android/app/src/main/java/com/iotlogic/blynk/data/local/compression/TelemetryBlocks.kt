@@ -0,0 +1,77 @@
+package com.iotlogic.blynk.data.local.compression
+
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryBlockEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+
+/**
+ * Builds and reads [TelemetryBlockEntity] rows
+ */
+object TelemetryBlocks {
+    
+    const val BLOCK_DURATION_MS = 3_600_000L
+    
+    fun blockStart(timestamp: Long): Long = timestamp.floorDiv(BLOCK_DURATION_MS) * BLOCK_DURATION_MS
+    
+    /**
+     * Fold [rows] into [existing] (if any) and re-encode the block. All rows must
+     * belong to the given channel and block. Rows whose timestamp is already in
+     * [existing], e.g. redeliveries that arrived after compaction, are dropped.
+     */
+    fun merge(
+        channel: SensorChannelEntity,
+        blockStart: Long,
+        existing: TelemetryBlockEntity?,
+        rows: List<TelemetryEntity>
+    ): TelemetryBlockEntity {
+        val previous = existing?.let { TelemetryBlockCodec.decode(it.data) }
+        val fresh = previous?.let { block ->
+            // Compacted timestamps are sorted
+            rows.filter { block.timestamps.binarySearch(it.timestamp) < 0 }
+        } ?: rows
+        val size = (previous?.size ?: 0) + fresh.size
+        require(size > 0) { "Cannot build an empty block" }
+        
+        val timestamps = LongArray(size)
+        val values = DoubleArray(size)
+        var index = 0
+        previous?.let {
+            it.timestamps.copyInto(timestamps)
+            it.values.copyInto(values)
+            index = it.size
+        }
+        fresh.forEach { row ->
+            timestamps[index] = row.timestamp
+            values[index] = row.value
+            index++
+        }
+        
+        // Late rows can land behind already compacted ones
+        val order = (0 until size).sortedBy { timestamps[it] }
+        val sortedTimestamps = LongArray(size) { timestamps[order[it]] }
+        val sortedValues = DoubleArray(size) { values[order[it]] }
+        val valueSum = sortedValues.sum()
+        val mean = valueSum / size
+        
+        return TelemetryBlockEntity(
+            channelId = channel.id,
+            deviceId = channel.deviceId,
+            sensorType = channel.sensorType,
+            blockStart = blockStart,
+            unit = channel.unit.ifEmpty { null },
+            sampleCount = size,
+            firstTimestamp = sortedTimestamps.first(),
+            lastTimestamp = sortedTimestamps.last(),
+            valueSum = valueSum,
+            valueM2 = sortedValues.sumOf { (it - mean) * (it - mean) },
+            minValue = sortedValues.min(),
+            maxValue = sortedValues.max(),
+            lastValue = sortedValues.last(),
+            data = TelemetryBlockCodec.encode(sortedTimestamps, sortedValues)
+        )
+    }
+    
+    fun decode(block: TelemetryBlockEntity): TelemetryBlockCodec.DecodedBlock {
+        return TelemetryBlockCodec.decode(block.data)
+    }
+}
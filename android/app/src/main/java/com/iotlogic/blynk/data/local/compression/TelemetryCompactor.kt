@@ -0,0 +1,61 @@
+package com.iotlogic.blynk.data.local.compression
+
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import kotlinx.coroutines.yield
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Moves synced telemetry rows older than the hot window into compressed
+ * per-(channel, hour) blocks. Rows that are not yet synced stay hot so the
+ * upload path never has to read blocks. Each block is compacted in its own short
+ * transaction so ingest is not held up behind a long-running compaction.
+ */
+@Singleton
+class TelemetryCompactor @Inject constructor(
+    private val blockDao: TelemetryBlockDao
+) {
+    
+    companion object {
+        val DEFAULT_HOT_WINDOW_MS = TimeUnit.HOURS.toMillis(6)
+        const val DEFAULT_MAX_BLOCKS_PER_RUN = 500
+        private const val CANDIDATE_PAGE_SIZE = 50
+    }
+    
+    /**
+     * Compact whole blocks that ended before now - [hotWindowMs]. Returns the number
+     * of rows moved into blocks.
+     */
+    suspend fun compact(
+        hotWindowMs: Long = DEFAULT_HOT_WINDOW_MS,
+        maxBlocks: Int = DEFAULT_MAX_BLOCKS_PER_RUN,
+        now: Long = System.currentTimeMillis()
+    ): Result<Int> {
+        return try {
+            // Only whole blocks, so a block is not re-encoded every run while it fills up
+            val cutoff = TelemetryBlocks.blockStart(now - hotWindowMs)
+            var compactedRows = 0
+            var compactedBlocks = 0
+            
+            while (compactedBlocks < maxBlocks) {
+                val candidates = blockDao.getCompactionCandidates(
+                    cutoff = cutoff,
+                    blockDurationMs = TelemetryBlocks.BLOCK_DURATION_MS,
+                    limit = minOf(CANDIDATE_PAGE_SIZE, maxBlocks - compactedBlocks)
+                )
+                if (candidates.isEmpty()) break
+                
+                candidates.forEach { candidate ->
+                    compactedRows += blockDao.compactBlock(candidate.channelId, candidate.blockStart)
+                    compactedBlocks++
+                    yield()
+                }
+            }
+            
+            Result.success(compactedRows)
+        } catch (e: Exception) {
+            Result.failure(e)
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.iotlogic.blynk.data.local.dao
+
+import androidx.room.*
+
+/**
+ * Read side of the counters table; writes happen in triggers and [TelemetryIngestDao.ingest]
+ */
+@Dao
+interface CounterDao {
+    
+    @Query("SELECT value FROM counters WHERE name = :name")
+    suspend fun getCounter(name: String): Long?
+}
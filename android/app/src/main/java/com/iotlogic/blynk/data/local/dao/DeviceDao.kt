@@ -19,6 +19,13 @@ interface DeviceDao {
     @Query("SELECT * FROM devices WHERE token = :token")
     suspend fun getDeviceByToken(token: String): DeviceEntity?
     
+    // Served from index_devices_token; see DeviceTokenCache
+    @Query("SELECT id FROM devices WHERE token = :token LIMIT 1")
+    suspend fun getDeviceIdByToken(token: String): String?
+    
+    @Query("SELECT token FROM devices WHERE id = :deviceId")
+    suspend fun getTokenByDeviceId(deviceId: String): String?
+    
     @Query("SELECT * FROM devices WHERE userId = :userId ORDER BY name ASC")
     fun getDevicesByUser(userId: String): Flow<List<DeviceEntity>>
     
@@ -43,6 +50,19 @@ interface DeviceDao {
     @Query("SELECT * FROM devices WHERE latitude IS NOT NULL AND longitude IS NOT NULL")
     fun getDevicesWithLocation(): Flow<List<DeviceEntity>>
     
+    // One-shot variants, re-run by the repository through InvalidationCoalescer
+    @Query("SELECT * FROM devices ORDER BY name ASC")
+    suspend fun getAllDevicesOnce(): List<DeviceEntity>
+    
+    @Query("SELECT * FROM devices WHERE protocol = :protocol ORDER BY name ASC")
+    suspend fun getDevicesByProtocolOnce(protocol: String): List<DeviceEntity>
+    
+    @Query("SELECT * FROM devices WHERE isOnline = 1 ORDER BY lastSeen DESC")
+    suspend fun getOnlineDevicesOnce(): List<DeviceEntity>
+    
+    @Query("SELECT * FROM devices WHERE name LIKE '%' || :query || '%' OR type LIKE '%' || :query || '%' ORDER BY name ASC")
+    suspend fun searchDevicesOnce(query: String): List<DeviceEntity>
+    
     @Query("SELECT COUNT(*) FROM devices")
     suspend fun getDeviceCount(): Int
     
@@ -58,10 +78,11 @@ interface DeviceDao {
     @Query("SELECT DISTINCT type FROM devices")
     suspend fun getDeviceTypes(): List<String>
     
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    // Upserts: a REPLACE would delete the existing row and cascade away its sensor channels and telemetry
+    @Upsert
     suspend fun insertDevice(device: DeviceEntity)
     
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    @Upsert
     suspend fun insertDevices(devices: List<DeviceEntity>)
     
     @Update
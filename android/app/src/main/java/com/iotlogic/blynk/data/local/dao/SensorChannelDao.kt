@@ -0,0 +1,33 @@
+package com.iotlogic.blynk.data.local.dao
+
+import androidx.room.*
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+
+@Dao
+interface SensorChannelDao {
+    
+    @Query("SELECT * FROM sensor_channels")
+    suspend fun getAllChannels(): List<SensorChannelEntity>
+    
+    @Query("SELECT * FROM sensor_channels WHERE id = :channelId")
+    suspend fun getChannel(channelId: Long): SensorChannelEntity?
+    
+    @Query("SELECT * FROM sensor_channels WHERE deviceId = :deviceId AND sensorType = :sensorType AND unit = :unit")
+    suspend fun findChannel(deviceId: String, sensorType: String, unit: String): SensorChannelEntity?
+    
+    @Query("SELECT DISTINCT sensorType FROM sensor_channels WHERE deviceId = :deviceId")
+    suspend fun getSensorTypesForDevice(deviceId: String): List<String>
+    
+    @Query("SELECT DISTINCT sensorType FROM sensor_channels")
+    suspend fun getAllSensorTypes(): List<String>
+    
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertChannel(channel: SensorChannelEntity): Long
+    
+    @Transaction
+    suspend fun getOrCreateChannel(deviceId: String, sensorType: String, unit: String): SensorChannelEntity {
+        findChannel(deviceId, sensorType, unit)?.let { return it }
+        val id = insertChannel(SensorChannelEntity(deviceId = deviceId, sensorType = sensorType, unit = unit))
+        return SensorChannelEntity(id = id, deviceId = deviceId, sensorType = sensorType, unit = unit)
+    }
+}
@@ -0,0 +1,150 @@
+package com.iotlogic.blynk.data.local.dao
+
+import androidx.room.*
+import com.iotlogic.blynk.data.local.compression.TelemetryBlocks
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryBlockEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * Access to compressed telemetry blocks and the compaction of hot rows into them
+ */
+@Dao
+interface TelemetryBlockDao {
+    
+    @Query("""
+        SELECT * FROM telemetry_blocks 
+        WHERE deviceId = :deviceId AND blockStart >= :fromBlockStart AND blockStart <= :endTime AND lastTimestamp >= :startTime
+        ORDER BY blockStart DESC
+    """)
+    fun observeBlocksForDevice(deviceId: String, fromBlockStart: Long, startTime: Long, endTime: Long): Flow<List<TelemetryBlockEntity>>
+    
+    @Query("""
+        SELECT * FROM telemetry_blocks 
+        WHERE deviceId = :deviceId AND sensorType = :sensorType 
+        AND blockStart >= :fromBlockStart AND blockStart <= :endTime AND lastTimestamp >= :startTime
+        ORDER BY blockStart ASC
+    """)
+    suspend fun getBlocksForSensor(deviceId: String, sensorType: String, fromBlockStart: Long, startTime: Long, endTime: Long): List<TelemetryBlockEntity>
+    
+    // Summary columns only, the encoded samples are left on disk
+    @Query("""
+        SELECT channelId, blockStart, sampleCount, firstTimestamp, lastTimestamp, valueSum, valueM2, minValue, maxValue, lastValue 
+        FROM telemetry_blocks 
+        WHERE deviceId = :deviceId AND sensorType = :sensorType 
+        AND blockStart >= :fromBlockStart AND blockStart <= :endTime AND lastTimestamp >= :startTime
+        ORDER BY blockStart ASC
+    """)
+    suspend fun getBlockSummaries(deviceId: String, sensorType: String, fromBlockStart: Long, startTime: Long, endTime: Long): List<TelemetryBlockSummary>
+    
+    @Query("SELECT * FROM telemetry_blocks WHERE deviceId = :deviceId AND lastTimestamp > :timestamp")
+    suspend fun getBlocksForDeviceSince(deviceId: String, timestamp: Long): List<TelemetryBlockEntity>
+    
+    /**
+     * Newest block of every sensor channel
+     */
+    @Query("""
+        SELECT b.* FROM sensor_channels c 
+        JOIN telemetry_blocks b ON b.channelId = c.id 
+        AND b.blockStart = (SELECT MAX(blockStart) FROM telemetry_blocks WHERE channelId = c.id)
+    """)
+    suspend fun getLatestBlockPerChannel(): List<TelemetryBlockEntity>
+    
+    @Query("SELECT * FROM telemetry_blocks WHERE channelId = :channelId AND blockStart = :blockStart")
+    suspend fun getBlock(channelId: Long, blockStart: Long): TelemetryBlockEntity?
+    
+    @Query("""
+        SELECT * FROM telemetry_blocks 
+        WHERE channelId = :channelId AND blockStart <= :maxBlockStart AND blockStart >= :minBlockStart
+        ORDER BY blockStart DESC LIMIT 1
+    """)
+    suspend fun getBlockAtOrBefore(channelId: Long, maxBlockStart: Long, minBlockStart: Long): TelemetryBlockEntity?
+    
+    @Query("""
+        SELECT * FROM telemetry_blocks 
+        WHERE channelId = :channelId AND blockStart >= :minBlockStart AND blockStart <= :maxBlockStart
+        ORDER BY blockStart ASC LIMIT 1
+    """)
+    suspend fun getBlockAtOrAfter(channelId: Long, minBlockStart: Long, maxBlockStart: Long): TelemetryBlockEntity?
+    
+    @Query("SELECT COALESCE(SUM(sampleCount), 0) FROM telemetry_blocks WHERE deviceId = :deviceId")
+    suspend fun getSampleCountForDevice(deviceId: String): Int
+    
+    // Rows below the outbox head have been uploaded to every destination
+    @Query("""
+        SELECT DISTINCT channelId, (timestamp / :blockDurationMs) * :blockDurationMs AS blockStart
+        FROM telemetry 
+        WHERE timestamp < :cutoff 
+        AND seq < (SELECT COALESCE(MIN(seq), 9223372036854775807) FROM telemetry_outbox)
+        LIMIT :limit
+    """)
+    suspend fun getCompactionCandidates(cutoff: Long, blockDurationMs: Long, limit: Int): List<CompactionCandidate>
+    
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE channelId = :channelId 
+        AND seq < (SELECT COALESCE(MIN(seq), 9223372036854775807) FROM telemetry_outbox) 
+        AND timestamp >= :startTime AND timestamp < :endTime
+        ORDER BY timestamp ASC
+    """)
+    suspend fun getSyncedTelemetryInRange(channelId: Long, startTime: Long, endTime: Long): List<TelemetryEntity>
+    
+    @Query("""
+        DELETE FROM telemetry 
+        WHERE channelId = :channelId 
+        AND seq < (SELECT COALESCE(MIN(seq), 9223372036854775807) FROM telemetry_outbox) 
+        AND timestamp >= :startTime AND timestamp < :endTime
+    """)
+    suspend fun deleteSyncedTelemetryInRange(channelId: Long, startTime: Long, endTime: Long): Int
+    
+    @Query("SELECT * FROM sensor_channels WHERE id = :channelId")
+    suspend fun getChannel(channelId: Long): SensorChannelEntity?
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertBlock(block: TelemetryBlockEntity)
+    
+    @Query("DELETE FROM telemetry_blocks WHERE deviceId = :deviceId")
+    suspend fun deleteBlocksForDevice(deviceId: String)
+    
+    @Query("DELETE FROM telemetry_blocks WHERE lastTimestamp < :timestamp")
+    suspend fun deleteOldBlocks(timestamp: Long)
+    
+    @Query("DELETE FROM telemetry_blocks WHERE deviceId = :deviceId AND sensorType = :sensorType AND lastTimestamp < :timestamp")
+    suspend fun deleteOldBlocksForSensor(deviceId: String, sensorType: String, timestamp: Long): Int
+    
+    /**
+     * Move the synced rows of one channel block into its compressed form. Returns the
+     * number of rows compacted.
+     */
+    @Transaction
+    suspend fun compactBlock(channelId: Long, blockStart: Long): Int {
+        val channel = getChannel(channelId) ?: return 0
+        val blockEnd = blockStart + TelemetryBlocks.BLOCK_DURATION_MS
+        val rows = getSyncedTelemetryInRange(channelId, blockStart, blockEnd)
+        if (rows.isEmpty()) return 0
+        
+        val existing = getBlock(channelId, blockStart)
+        insertBlock(TelemetryBlocks.merge(channel, blockStart, existing, rows))
+        deleteSyncedTelemetryInRange(channelId, blockStart, blockEnd)
+        return rows.size
+    }
+}
+
+data class TelemetryBlockSummary(
+    val channelId: Long,
+    val blockStart: Long,
+    val sampleCount: Int,
+    val firstTimestamp: Long,
+    val lastTimestamp: Long,
+    val valueSum: Double,
+    val valueM2: Double?,
+    val minValue: Double,
+    val maxValue: Double,
+    val lastValue: Double
+)
+
+data class CompactionCandidate(
+    val channelId: Long,
+    val blockStart: Long
+)
@@ -4,75 +4,199 @@ import androidx.room.*
 import com.iotlogic.blynk.data.local.entities.TelemetryEntity
 import kotlinx.coroutines.flow.Flow
 
+/**
+ * Telemetry is clustered on (channelId, timestamp). Device and sensor filters are
+ * resolved to channel ids through the small sensor_channels table, so every channel is
+ * answered by a contiguous primary key range scan. Rows are only inserted by
+ * [TelemetryIngestDao.ingest], which also assigns the outbox, rollups and counters.
+ */
 @Dao
 interface TelemetryDao {
     
     @Query("SELECT * FROM telemetry ORDER BY timestamp DESC LIMIT :limit")
     fun getRecentTelemetry(limit: Int = 100): Flow<List<TelemetryEntity>>
     
-    @Query("SELECT * FROM telemetry WHERE deviceId = :deviceId ORDER BY timestamp DESC LIMIT :limit")
+    // Unary + keeps the planner on the timestamp index, which stops after :limit rows
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE +channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId) 
+        ORDER BY timestamp DESC LIMIT :limit
+    """)
     fun getTelemetryByDevice(deviceId: String, limit: Int = 100): Flow<List<TelemetryEntity>>
     
-    @Query("SELECT * FROM telemetry WHERE deviceId = :deviceId AND sensorType = :sensorType ORDER BY timestamp DESC LIMIT :limit")
+    @Query("SELECT * FROM telemetry ORDER BY timestamp DESC, seq DESC LIMIT :limit")
+    suspend fun getRecentTelemetryOnce(limit: Int): List<TelemetryEntity>
+    
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE +channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId) 
+        ORDER BY timestamp DESC, seq DESC LIMIT :limit
+    """)
+    suspend fun getTelemetryByDeviceOnce(deviceId: String, limit: Int): List<TelemetryEntity>
+    
+    // Advanced in the same transaction as the rows it covers
+    @Query("SELECT value FROM sequences WHERE name = :name")
+    suspend fun getSequence(name: String): Long?
+    
+    /**
+     * Newest rows together with the ingest sequence they are complete up to. Rows
+     * committed later carry a higher sequence, which is what tails append from.
+     */
+    @Transaction
+    suspend fun getRecentTelemetrySnapshot(limit: Int): TelemetrySnapshot {
+        return TelemetrySnapshot(getRecentTelemetryOnce(limit), getSequence(TelemetryIngestDao.TELEMETRY_SEQUENCE) ?: 0L)
+    }
+    
+    @Transaction
+    suspend fun getTelemetryByDeviceSnapshot(deviceId: String, limit: Int): TelemetrySnapshot {
+        return TelemetrySnapshot(getTelemetryByDeviceOnce(deviceId, limit), getSequence(TelemetryIngestDao.TELEMETRY_SEQUENCE) ?: 0L)
+    }
+    
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId AND sensorType = :sensorType)
+        ORDER BY timestamp DESC, seq DESC LIMIT :limit
+    """)
     fun getTelemetryByDeviceAndSensor(deviceId: String, sensorType: String, limit: Int = 100): Flow<List<TelemetryEntity>>
     
-    @Query("SELECT * FROM telemetry WHERE deviceId = :deviceId AND timestamp BETWEEN :startTime AND :endTime ORDER BY timestamp DESC")
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId)
+        AND timestamp BETWEEN :startTime AND :endTime 
+        ORDER BY timestamp DESC, seq DESC
+    """)
     fun getTelemetryByTimeRange(deviceId: String, startTime: Long, endTime: Long): Flow<List<TelemetryEntity>>
     
-    @Query("SELECT * FROM telemetry WHERE sensorType = :sensorType ORDER BY timestamp DESC LIMIT :limit")
+    /**
+     * Keyset page of one channel older than (beforeTimestamp, beforeSeq), newest first.
+     * Seeks straight into the clustered key, so every page costs the same however deep it is.
+     */
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE channelId = :channelId AND timestamp >= :startTime AND timestamp <= :beforeTimestamp 
+        AND (timestamp < :beforeTimestamp OR seq < :beforeSeq)
+        ORDER BY timestamp DESC, seq DESC LIMIT :limit
+    """)
+    suspend fun getPageBefore(channelId: Long, startTime: Long, beforeTimestamp: Long, beforeSeq: Long, limit: Int): List<TelemetryEntity>
+    
+    /**
+     * Keyset page of one channel newer than (afterTimestamp, afterSeq), oldest first
+     */
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE channelId = :channelId AND timestamp >= :afterTimestamp AND timestamp <= :endTime 
+        AND (timestamp > :afterTimestamp OR seq > :afterSeq)
+        ORDER BY timestamp ASC, seq ASC LIMIT :limit
+    """)
+    suspend fun getPageAfter(channelId: Long, endTime: Long, afterTimestamp: Long, afterSeq: Long, limit: Int): List<TelemetryEntity>
+    
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE +channelId IN (SELECT id FROM sensor_channels WHERE sensorType = :sensorType) 
+        ORDER BY timestamp DESC LIMIT :limit
+    """)
     fun getTelemetryBySensorType(sensorType: String, limit: Int = 100): Flow<List<TelemetryEntity>>
     
-    @Query("SELECT * FROM telemetry WHERE deviceId = :deviceId ORDER BY timestamp DESC LIMIT 1")
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE channelId IN (
+            SELECT id FROM sensor_channels 
+            WHERE deviceId = :deviceId AND sensorType = (
+                SELECT sensorType FROM telemetry_rollups 
+                WHERE deviceId = :deviceId AND resolution = 'DAY' 
+                ORDER BY lastTimestamp DESC LIMIT 1
+            )
+        )
+        ORDER BY timestamp DESC, seq DESC LIMIT 1
+    """)
     suspend fun getLatestTelemetryForDevice(deviceId: String): TelemetryEntity?
     
-    @Query("SELECT * FROM telemetry WHERE deviceId = :deviceId AND sensorType = :sensorType ORDER BY timestamp DESC LIMIT 1")
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId AND sensorType = :sensorType)
+        ORDER BY timestamp DESC, seq DESC LIMIT 1
+    """)
     suspend fun getLatestTelemetryForSensor(deviceId: String, sensorType: String): TelemetryEntity?
     
-    @Query("SELECT AVG(value) FROM telemetry WHERE deviceId = :deviceId AND sensorType = :sensorType AND timestamp BETWEEN :startTime AND :endTime")
+    /**
+     * Count, shifted power sums, extremes and the first and last sample of one channel
+     * in a single range scan. The first/last subqueries are primary key seeks.
+     */
+    @Query("""
+        SELECT COUNT(*) AS sampleCount,
+            COALESCE(SUM(value - :shift), 0.0) AS shiftedSum,
+            COALESCE(SUM((value - :shift) * (value - :shift)), 0.0) AS shiftedSumSquares,
+            MIN(value) AS minValue,
+            MAX(value) AS maxValue,
+            (SELECT timestamp FROM telemetry WHERE channelId = :channelId AND timestamp BETWEEN :startTime AND :endTime 
+                ORDER BY timestamp ASC, seq ASC LIMIT 1) AS firstTimestamp,
+            (SELECT value FROM telemetry WHERE channelId = :channelId AND timestamp BETWEEN :startTime AND :endTime 
+                ORDER BY timestamp ASC, seq ASC LIMIT 1) AS firstValue,
+            (SELECT timestamp FROM telemetry WHERE channelId = :channelId AND timestamp BETWEEN :startTime AND :endTime 
+                ORDER BY timestamp DESC, seq DESC LIMIT 1) AS lastTimestamp,
+            (SELECT value FROM telemetry WHERE channelId = :channelId AND timestamp BETWEEN :startTime AND :endTime 
+                ORDER BY timestamp DESC, seq DESC LIMIT 1) AS lastValue
+        FROM telemetry 
+        WHERE channelId = :channelId AND timestamp BETWEEN :startTime AND :endTime
+    """)
+    suspend fun getChannelStatistics(channelId: Long, startTime: Long, endTime: Long, shift: Double): ChannelStatisticsRow
+    
+    /**
+     * Newest row of every channel, one primary key seek per channel
+     */
+    @Query("""
+        SELECT * FROM telemetry 
+        WHERE id IN (
+            SELECT (SELECT id FROM telemetry WHERE channelId = c.id ORDER BY timestamp DESC, seq DESC LIMIT 1) 
+            FROM sensor_channels c
+        )
+    """)
+    suspend fun getLatestTelemetryPerChannel(): List<TelemetryEntity>
+    
+    @Query("""
+        SELECT AVG(value) FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId AND sensorType = :sensorType) AND timestamp BETWEEN :startTime AND :endTime
+    """)
     suspend fun getAverageTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double?
     
-    @Query("SELECT MIN(value) FROM telemetry WHERE deviceId = :deviceId AND sensorType = :sensorType AND timestamp BETWEEN :startTime AND :endTime")
+    @Query("""
+        SELECT MIN(value) FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId AND sensorType = :sensorType) AND timestamp BETWEEN :startTime AND :endTime
+    """)
     suspend fun getMinTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double?
     
-    @Query("SELECT MAX(value) FROM telemetry WHERE deviceId = :deviceId AND sensorType = :sensorType AND timestamp BETWEEN :startTime AND :endTime")
+    @Query("""
+        SELECT MAX(value) FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId AND sensorType = :sensorType) AND timestamp BETWEEN :startTime AND :endTime
+    """)
     suspend fun getMaxTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double?
     
-    @Query("SELECT COUNT(*) FROM telemetry WHERE deviceId = :deviceId")
-    suspend fun getTelemetryCountForDevice(deviceId: String): Int
-    
-    @Query("SELECT COUNT(*) FROM telemetry WHERE deviceId = :deviceId AND timestamp > :timestamp")
-    suspend fun getTelemetryCountSince(deviceId: String, timestamp: Long): Int
-    
-    @Query("SELECT DISTINCT sensorType FROM telemetry WHERE deviceId = :deviceId")
-    suspend fun getSensorTypesForDevice(deviceId: String): List<String>
+    @Query("""
+        SELECT COUNT(*) as sampleCount, SUM(value) as valueSum, MIN(value) as minValue, MAX(value) as maxValue
+        FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId AND sensorType = :sensorType) AND timestamp >= :startTime AND timestamp < :endTime
+    """)
+    suspend fun getRawAggregate(deviceId: String, sensorType: String, startTime: Long, endTime: Long): TelemetryAggregateRow
     
-    @Query("SELECT DISTINCT sensorType FROM telemetry")
-    suspend fun getAllSensorTypes(): List<String>
+    @Query("SELECT COUNT(*) FROM telemetry WHERE channelId = :channelId AND timestamp BETWEEN :startTime AND :endTime")
+    suspend fun getChannelCount(channelId: Long, startTime: Long, endTime: Long): Long
     
-    @Query("SELECT * FROM telemetry WHERE syncStatus = :status ORDER BY timestamp ASC")
-    suspend fun getTelemetryBySyncStatus(status: String): List<TelemetryEntity>
+    @Query("SELECT COUNT(*) FROM telemetry WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId)")
+    suspend fun getTelemetryCountForDevice(deviceId: String): Int
     
-    @Query("SELECT * FROM telemetry WHERE syncStatus = 'PENDING' ORDER BY timestamp ASC LIMIT :limit")
-    suspend fun getPendingSyncTelemetry(limit: Int = 50): List<TelemetryEntity>
+    @Query("""
+        SELECT COUNT(*) FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId)
+        AND timestamp > :timestamp
+    """)
+    suspend fun getTelemetryCountSince(deviceId: String, timestamp: Long): Int
     
     @Query("SELECT * FROM telemetry WHERE quality = :quality ORDER BY timestamp DESC LIMIT :limit")
     fun getTelemetryByQuality(quality: String, limit: Int = 100): Flow<List<TelemetryEntity>>
     
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
-    suspend fun insertTelemetry(telemetry: TelemetryEntity)
-    
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
-    suspend fun insertTelemetryBatch(telemetryList: List<TelemetryEntity>)
-    
     @Update
     suspend fun updateTelemetry(telemetry: TelemetryEntity)
     
-    @Query("UPDATE telemetry SET syncStatus = :status WHERE id = :telemetryId")
-    suspend fun updateSyncStatus(telemetryId: String, status: String)
-    
-    @Query("UPDATE telemetry SET syncStatus = :status WHERE id IN (:telemetryIds)")
-    suspend fun updateSyncStatusBatch(telemetryIds: List<String>, status: String)
-    
     @Query("UPDATE telemetry SET isProcessed = 1 WHERE id = :telemetryId")
     suspend fun markAsProcessed(telemetryId: String)
     
@@ -82,57 +206,103 @@ interface TelemetryDao {
     @Query("DELETE FROM telemetry WHERE id = :telemetryId")
     suspend fun deleteTelemetryById(telemetryId: String)
     
-    @Query("DELETE FROM telemetry WHERE deviceId = :deviceId")
+    @Query("DELETE FROM telemetry WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId)")
     suspend fun deleteTelemetryByDevice(deviceId: String)
     
+    @Query("DELETE FROM telemetry_outbox WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId)")
+    suspend fun deleteOutboxByDevice(deviceId: String)
+    
+    @Query("DELETE FROM telemetry_rollups WHERE deviceId = :deviceId")
+    suspend fun deleteRollupsByDevice(deviceId: String)
+    
+    @Query("DELETE FROM telemetry_blocks WHERE deviceId = :deviceId")
+    suspend fun deleteBlocksByDevice(deviceId: String)
+    
+    /**
+     * Remove every stored sample of a device: raw rows, their pending uploads, rollups
+     * and compressed blocks. The channels stay, so ingest can continue.
+     */
+    @Transaction
+    suspend fun deleteDeviceHistory(deviceId: String) {
+        deleteOutboxByDevice(deviceId)
+        deleteTelemetryByDevice(deviceId)
+        deleteRollupsByDevice(deviceId)
+        deleteBlocksByDevice(deviceId)
+    }
+    
     @Query("DELETE FROM telemetry WHERE timestamp < :timestamp")
     suspend fun deleteOldTelemetry(timestamp: Long)
     
-    @Query("DELETE FROM telemetry WHERE deviceId = :deviceId AND timestamp < :timestamp")
+    @Query("""
+        DELETE FROM telemetry 
+        WHERE channelId IN (SELECT id FROM sensor_channels WHERE deviceId = :deviceId)
+        AND timestamp < :timestamp
+    """)
     suspend fun deleteOldTelemetryForDevice(deviceId: String, timestamp: Long)
     
-    @Query("DELETE FROM telemetry WHERE syncStatus = 'SYNCED' AND timestamp < :timestamp")
+    // Rows below the outbox head have been uploaded to every destination
+    @Query("""
+        DELETE FROM telemetry 
+        WHERE timestamp < :timestamp 
+        AND seq < (SELECT COALESCE(MIN(seq), 9223372036854775807) FROM telemetry_outbox)
+    """)
     suspend fun deleteSyncedOldTelemetry(timestamp: Long)
     
-    @Query("DELETE FROM telemetry")
-    suspend fun deleteAllTelemetry()
-    
-    // Aggregation queries for analytics
+    /**
+     * Delete up to about [chunkSize] of the oldest rows of one channel before [cutoff].
+     * The rows form one contiguous primary key range, so the statement stays short.
+     */
     @Query("""
-        SELECT sensorType, AVG(value) as avgValue, MIN(value) as minValue, MAX(value) as maxValue, COUNT(*) as count
-        FROM telemetry 
-        WHERE deviceId = :deviceId AND timestamp BETWEEN :startTime AND :endTime 
-        GROUP BY sensorType
+        DELETE FROM telemetry 
+        WHERE channelId = :channelId AND timestamp <= (
+            SELECT MAX(timestamp) FROM (
+                SELECT timestamp FROM telemetry 
+                WHERE channelId = :channelId AND timestamp < :cutoff 
+                ORDER BY timestamp ASC LIMIT :chunkSize
+            )
+        )
     """)
-    suspend fun getTelemetryStatsByDevice(deviceId: String, startTime: Long, endTime: Long): List<TelemetryStats>
+    suspend fun deleteOldTelemetryChunk(channelId: Long, cutoff: Long, chunkSize: Int): Int
     
     @Query("""
-        SELECT 
-            strftime('%Y-%m-%d %H:00:00', datetime(timestamp/1000, 'unixepoch')) as hour,
-            AVG(value) as avgValue,
-            MIN(value) as minValue,
-            MAX(value) as maxValue,
-            COUNT(*) as count
-        FROM telemetry 
-        WHERE deviceId = :deviceId AND sensorType = :sensorType AND timestamp BETWEEN :startTime AND :endTime 
-        GROUP BY hour
-        ORDER BY hour
+        DELETE FROM telemetry 
+        WHERE channelId = :channelId AND seq < (SELECT COALESCE(MIN(seq), 9223372036854775807) FROM telemetry_outbox) 
+        AND timestamp <= (
+            SELECT MAX(timestamp) FROM (
+                SELECT timestamp FROM telemetry 
+                WHERE channelId = :channelId AND timestamp < :cutoff 
+                AND seq < (SELECT COALESCE(MIN(seq), 9223372036854775807) FROM telemetry_outbox) 
+                ORDER BY timestamp ASC LIMIT :chunkSize
+            )
+        )
     """)
-    suspend fun getHourlyTelemetryStats(deviceId: String, sensorType: String, startTime: Long, endTime: Long): List<HourlyTelemetryStats>
+    suspend fun deleteSyncedOldTelemetryChunk(channelId: Long, cutoff: Long, chunkSize: Int): Int
+    
+    @Query("DELETE FROM telemetry")
+    suspend fun deleteAllTelemetry()
 }
 
-data class TelemetryStats(
-    val sensorType: String,
-    val avgValue: Double,
-    val minValue: Double,
-    val maxValue: Double,
-    val count: Int
+data class TelemetryAggregateRow(
+    val sampleCount: Long,
+    val valueSum: Double?,
+    val minValue: Double?,
+    val maxValue: Double?
 )
 
-data class HourlyTelemetryStats(
-    val hour: String,
-    val avgValue: Double,
-    val minValue: Double,
-    val maxValue: Double,
-    val count: Int
-)
\ No newline at end of file
+data class ChannelStatisticsRow(
+    val sampleCount: Long,
+    val shiftedSum: Double,
+    val shiftedSumSquares: Double,
+    val minValue: Double?,
+    val maxValue: Double?,
+    val firstTimestamp: Long?,
+    val firstValue: Double?,
+    val lastTimestamp: Long?,
+    val lastValue: Double?
+)
+
+
+data class TelemetrySnapshot(
+    val rows: List<TelemetryEntity>,
+    val cursor: Long
+)
@@ -0,0 +1,115 @@
+package com.iotlogic.blynk.data.local.dao
+
+import androidx.room.*
+import com.iotlogic.blynk.data.local.entities.SequenceEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryOutboxEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryRollupEntity
+
+/**
+ * Write path for batched telemetry ingest. Everything a batch touches, including
+ * its upload outbox rows and device counters, is committed by [ingest] in a single transaction.
+ */
+@Dao
+interface TelemetryIngestDao {
+    
+    companion object {
+        const val TELEMETRY_SEQUENCE = "telemetry"
+    }
+    
+    @Query("SELECT value FROM sequences WHERE name = :name")
+    suspend fun getSequence(name: String): Long?
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun setSequence(sequence: SequenceEntity)
+    
+    // -1 marks an ignored sample; the table has no rowid, so other values carry no meaning
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    suspend fun insertSamples(samples: List<TelemetryEntity>): List<Long>
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertOutbox(entries: List<TelemetryOutboxEntity>)
+    
+    @Insert(onConflict = OnConflictStrategy.ABORT)
+    suspend fun insertRollup(rollup: TelemetryRollupEntity)
+    
+    @Query("""
+        UPDATE telemetry_rollups SET 
+            sampleCount = sampleCount + :sampleCount,
+            valueSum = valueSum + :valueSum,
+            minValue = MIN(minValue, :minValue),
+            maxValue = MAX(maxValue, :maxValue),
+            lastValue = CASE WHEN :lastTimestamp >= lastTimestamp THEN :lastValue ELSE lastValue END,
+            lastTimestamp = MAX(lastTimestamp, :lastTimestamp)
+        WHERE deviceId = :deviceId AND sensorType = :sensorType AND resolution = :resolution AND bucketStart = :bucketStart
+    """)
+    suspend fun mergeRollup(
+        deviceId: String,
+        sensorType: String,
+        resolution: String,
+        bucketStart: Long,
+        sampleCount: Long,
+        valueSum: Double,
+        minValue: Double,
+        maxValue: Double,
+        lastValue: Double,
+        lastTimestamp: Long
+    ): Int
+    
+    @Query("""
+        INSERT OR IGNORE INTO counters (name, value) 
+        SELECT 'telemetry.device.' || deviceId, 0 FROM sensor_channels WHERE id = :channelId
+    """)
+    suspend fun ensureDeviceTelemetryCounter(channelId: Long)
+    
+    @Query("""
+        UPDATE counters SET value = value + :count 
+        WHERE name = 'telemetry.device.' || (SELECT deviceId FROM sensor_channels WHERE id = :channelId)
+    """)
+    suspend fun addDeviceTelemetryCount(channelId: Long, count: Int)
+    
+    /**
+     * Insert [samples], skipping ones whose (channel, timestamp) is already stored, and
+     * fold the accepted ones into the outbox and into the rollups built by [rollupsFor].
+     * Returns the accepted samples.
+     */
+    @Transaction
+    suspend fun ingest(
+        samples: List<TelemetryEntity>,
+        lastSeq: Long,
+        rollupsFor: (List<TelemetryEntity>) -> List<TelemetryRollupEntity>
+    ): List<TelemetryEntity> {
+        val results = insertSamples(samples)
+        val accepted = samples.filterIndexed { index, _ -> results[index] != -1L }
+        setSequence(SequenceEntity(TELEMETRY_SEQUENCE, lastSeq))
+        if (accepted.isEmpty()) return accepted
+        
+        insertOutbox(accepted.map { TelemetryOutboxEntity.from(it) })
+        
+        // One counter update per channel and batch rather than a per-row trigger
+        accepted.groupingBy { it.channelId }.eachCount().forEach { (channelId, count) ->
+            ensureDeviceTelemetryCounter(channelId)
+            addDeviceTelemetryCount(channelId, count)
+        }
+        
+        // UPSERT needs SQLite 3.24 (API 30), so merge first and insert new buckets
+        rollupsFor(accepted).forEach { rollup ->
+            val merged = mergeRollup(
+                deviceId = rollup.deviceId,
+                sensorType = rollup.sensorType,
+                resolution = rollup.resolution,
+                bucketStart = rollup.bucketStart,
+                sampleCount = rollup.sampleCount,
+                valueSum = rollup.valueSum,
+                minValue = rollup.minValue,
+                maxValue = rollup.maxValue,
+                lastValue = rollup.lastValue,
+                lastTimestamp = rollup.lastTimestamp
+            )
+            if (merged == 0) {
+                insertRollup(rollup)
+            }
+        }
+        return accepted
+    }
+}
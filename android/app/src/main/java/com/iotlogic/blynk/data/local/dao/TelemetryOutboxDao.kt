@@ -0,0 +1,52 @@
+package com.iotlogic.blynk.data.local.dao
+
+import androidx.room.*
+import com.iotlogic.blynk.data.local.entities.SyncCursorEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryOutboxEntity
+
+/**
+ * Upload side of the telemetry outbox. Rows are appended by [TelemetryIngestDao.ingest];
+ * a destination reads forward from its cursor and acknowledges a batch by moving the
+ * cursor, never by rewriting telemetry rows.
+ */
+@Dao
+interface TelemetryOutboxDao {
+    
+    @Query("SELECT lastSeq FROM sync_cursors WHERE destination = :destination")
+    suspend fun getCursor(destination: String): Long?
+    
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun setCursor(cursor: SyncCursorEntity)
+    
+    @Query("SELECT * FROM telemetry_outbox WHERE seq > :afterSeq ORDER BY seq ASC LIMIT :limit")
+    suspend fun getBatchAfter(afterSeq: Long, limit: Int): List<TelemetryOutboxEntity>
+    
+    @Query("SELECT COUNT(*) FROM telemetry_outbox WHERE seq > :afterSeq")
+    suspend fun getCountAfter(afterSeq: Long): Int
+    
+    // Rows every destination has passed; a head range delete on the rowid
+    @Query("DELETE FROM telemetry_outbox WHERE seq <= (SELECT MIN(lastSeq) FROM sync_cursors WHERE destination NOT LIKE '%/%')")
+    suspend fun trimAcknowledged(): Int
+    
+    // Per-device cursors the destination cursor has caught up with
+    @Query("DELETE FROM sync_cursors WHERE destination LIKE :destination || '/%' AND lastSeq <= :lastSeq")
+    suspend fun deleteDeviceCursors(destination: String, lastSeq: Long)
+    
+    // Retention: samples past the raw cutoff are dropped whether or not they were uploaded
+    @Query("""
+        DELETE FROM telemetry_outbox WHERE seq IN (
+            SELECT seq FROM telemetry_outbox WHERE timestamp < :cutoff ORDER BY seq ASC LIMIT :limit
+        )
+    """)
+    suspend fun deleteOlderThanChunk(cutoff: Long, limit: Int): Int
+    
+    /**
+     * Mark everything up to [lastSeq] as uploaded to [destination]
+     */
+    @Transaction
+    suspend fun acknowledge(destination: String, lastSeq: Long) {
+        setCursor(SyncCursorEntity(destination, lastSeq))
+        deleteDeviceCursors(destination, lastSeq)
+        trimAcknowledged()
+    }
+}
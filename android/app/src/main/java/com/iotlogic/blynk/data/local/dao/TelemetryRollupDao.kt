@@ -0,0 +1,36 @@
+package com.iotlogic.blynk.data.local.dao
+
+import androidx.room.*
+import com.iotlogic.blynk.data.local.entities.TelemetryRollupEntity
+
+@Dao
+interface TelemetryRollupDao {
+    
+    @Query("""
+        SELECT * FROM telemetry_rollups 
+        WHERE deviceId = :deviceId AND sensorType = :sensorType AND resolution = :resolution 
+        AND bucketStart >= :startTime AND bucketStart < :endTime 
+        ORDER BY bucketStart ASC
+    """)
+    suspend fun getRollups(deviceId: String, sensorType: String, resolution: String, startTime: Long, endTime: Long): List<TelemetryRollupEntity>
+    
+    @Query("""
+        SELECT COALESCE(SUM(sampleCount), 0) as sampleCount, SUM(valueSum) as valueSum, MIN(minValue) as minValue, MAX(maxValue) as maxValue
+        FROM telemetry_rollups 
+        WHERE deviceId = :deviceId AND sensorType = :sensorType AND resolution = :resolution 
+        AND bucketStart >= :startTime AND bucketStart < :endTime
+    """)
+    suspend fun getRollupAggregate(deviceId: String, sensorType: String, resolution: String, startTime: Long, endTime: Long): TelemetryAggregateRow
+    
+    @Query("DELETE FROM telemetry_rollups WHERE deviceId = :deviceId")
+    suspend fun deleteRollupsForDevice(deviceId: String)
+    
+    @Query("DELETE FROM telemetry_rollups WHERE resolution = :resolution AND bucketStart < :timestamp")
+    suspend fun deleteOldRollups(resolution: String, timestamp: Long)
+    
+    @Query("""
+        DELETE FROM telemetry_rollups 
+        WHERE deviceId = :deviceId AND sensorType = :sensorType AND resolution = :resolution AND bucketStart < :timestamp
+    """)
+    suspend fun deleteOldRollupsForSensor(deviceId: String, sensorType: String, resolution: String, timestamp: Long): Int
+}
@@ -0,0 +1,27 @@
+package com.iotlogic.blynk.data.local.entities
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Materialized row counts, kept current by triggers and the ingest transaction so
+ * hot counts are a primary key lookup instead of a COUNT(*) scan. The names below are
+ * also spelled out in the triggers of [com.iotlogic.blynk.data.local.IoTLogicDatabase].
+ */
+@Entity(tableName = "counters")
+data class CounterEntity(
+    @PrimaryKey val name: String,
+    val value: Long
+) {
+    companion object {
+        const val DEVICES = "devices"
+        const val PENDING_COMMANDS = "commands.pending"
+        
+        fun devicesWithStatus(status: String) = "devices.status.$status"
+        
+        fun devicesWithProtocol(protocol: String) = "devices.protocol.$protocol"
+        
+        // Raw rows plus compressed samples of one device
+        fun deviceTelemetry(deviceId: String) = "telemetry.device.$deviceId"
+    }
+}
@@ -1,13 +1,17 @@
 package com.iotlogic.blynk.data.local.entities
 
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import androidx.room.TypeConverter
 import androidx.room.TypeConverters
 import com.google.gson.Gson
 import com.google.gson.reflect.TypeToken
 
-@Entity(tableName = "devices")
+@Entity(
+    tableName = "devices",
+    indices = [Index(value = ["token"])]
+)
 @TypeConverters(DeviceConverters::class)
 data class DeviceEntity(
     @PrimaryKey val id: String,
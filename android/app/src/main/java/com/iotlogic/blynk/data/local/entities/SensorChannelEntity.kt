@@ -0,0 +1,31 @@
+package com.iotlogic.blynk.data.local.entities
+
+import androidx.room.Entity
+import androidx.room.ForeignKey
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * Dictionary of device sensor channels. Telemetry rows reference a channel by its
+ * small integer id instead of repeating the device, sensor type and unit strings.
+ */
+@Entity(
+    tableName = "sensor_channels",
+    foreignKeys = [
+        ForeignKey(
+            entity = DeviceEntity::class,
+            parentColumns = ["id"],
+            childColumns = ["deviceId"],
+            onDelete = ForeignKey.CASCADE
+        )
+    ],
+    indices = [
+        Index(value = ["deviceId", "sensorType", "unit"], unique = true)
+    ]
+)
+data class SensorChannelEntity(
+    @PrimaryKey(autoGenerate = true) val id: Long = 0,
+    val deviceId: String,
+    val sensorType: String,
+    val unit: String = "" // Empty when the sensor reports no unit; part of the unique key
+)
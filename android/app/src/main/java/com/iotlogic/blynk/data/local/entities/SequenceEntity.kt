@@ -0,0 +1,13 @@
+package com.iotlogic.blynk.data.local.entities
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Named monotonic counters, e.g. the telemetry ingest sequence
+ */
+@Entity(tableName = "sequences")
+data class SequenceEntity(
+    @PrimaryKey val name: String,
+    val value: Long
+)
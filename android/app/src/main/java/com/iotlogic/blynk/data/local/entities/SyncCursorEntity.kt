@@ -0,0 +1,21 @@
+package com.iotlogic.blynk.data.local.entities
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Upload high-water mark of one sync destination: every outbox row with a sequence
+ * up to [lastSeq] has been accepted by it. Destinations named "{destination}/{deviceId}"
+ * record a device accepted from a batch that failed further on; they never hold back
+ * the outbox trim and are dropped once the destination's own cursor passes them.
+ */
+@Entity(tableName = "sync_cursors")
+data class SyncCursorEntity(
+    @PrimaryKey val destination: String,
+    val lastSeq: Long,
+    val updatedAt: Long = System.currentTimeMillis()
+) {
+    companion object {
+        fun deviceDestination(destination: String, deviceId: String) = "$destination/$deviceId"
+    }
+}
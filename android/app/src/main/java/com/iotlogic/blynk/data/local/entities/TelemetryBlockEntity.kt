@@ -0,0 +1,70 @@
+package com.iotlogic.blynk.data.local.entities
+
+import androidx.room.Entity
+import androidx.room.ForeignKey
+import androidx.room.Index
+
+/**
+ * Compressed cold storage for one sensor channel over one block of time. Samples are
+ * encoded with [com.iotlogic.blynk.data.local.compression.TelemetryBlockCodec]; the
+ * summary columns let range statistics skip decoding blocks that are fully covered.
+ * Device, sensor type and unit are copied from the channel for device and sensor scans.
+ */
+@Entity(
+    tableName = "telemetry_blocks",
+    primaryKeys = ["channelId", "blockStart"],
+    foreignKeys = [
+        ForeignKey(
+            entity = SensorChannelEntity::class,
+            parentColumns = ["id"],
+            childColumns = ["channelId"],
+            onDelete = ForeignKey.CASCADE
+        )
+    ],
+    indices = [
+        Index(value = ["deviceId", "sensorType", "blockStart"])
+    ]
+)
+data class TelemetryBlockEntity(
+    val channelId: Long,
+    val deviceId: String,
+    val sensorType: String,
+    val blockStart: Long, // Block start in epoch millis, aligned to the block duration (UTC)
+    val unit: String? = null,
+    val sampleCount: Int,
+    val firstTimestamp: Long,
+    val lastTimestamp: Long,
+    val valueSum: Double,
+    val valueM2: Double? = null, // Sum of squared deviations from the mean, null for blocks built before it existed
+    val minValue: Double,
+    val maxValue: Double,
+    val lastValue: Double,
+    val data: ByteArray
+) {
+    
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is TelemetryBlockEntity) return false
+        return channelId == other.channelId &&
+            deviceId == other.deviceId &&
+            sensorType == other.sensorType &&
+            blockStart == other.blockStart &&
+            unit == other.unit &&
+            sampleCount == other.sampleCount &&
+            firstTimestamp == other.firstTimestamp &&
+            lastTimestamp == other.lastTimestamp &&
+            valueSum == other.valueSum &&
+            valueM2 == other.valueM2 &&
+            minValue == other.minValue &&
+            maxValue == other.maxValue &&
+            lastValue == other.lastValue &&
+            data.contentEquals(other.data)
+    }
+    
+    override fun hashCode(): Int {
+        var result = channelId.hashCode()
+        result = 31 * result + blockStart.hashCode()
+        result = 31 * result + data.contentHashCode()
+        return result
+    }
+}
@@ -3,35 +3,41 @@ package com.iotlogic.blynk.data.local.entities
 import androidx.room.Entity
 import androidx.room.ForeignKey
 import androidx.room.Index
-import androidx.room.PrimaryKey
 
+/**
+ * Raw telemetry samples. The table is clustered on (channelId, timestamp) and created
+ * WITHOUT ROWID (see [com.iotlogic.blynk.data.local.IoTLogicDatabase]), so per-sensor
+ * range scans read contiguous pages. Device, sensor type and unit live in
+ * [SensorChannelEntity]. The key is the natural identity of a sample: a redelivered
+ * reading is ignored on insert instead of stored twice. [seq] is the global ingest
+ * sequence assigned by the ingest writer.
+ */
 @Entity(
     tableName = "telemetry",
+    primaryKeys = ["channelId", "timestamp"],
     foreignKeys = [
         ForeignKey(
-            entity = DeviceEntity::class,
+            entity = SensorChannelEntity::class,
             parentColumns = ["id"],
-            childColumns = ["deviceId"],
+            childColumns = ["channelId"],
             onDelete = ForeignKey.CASCADE
         )
     ],
     indices = [
-        Index(value = ["deviceId"]),
-        Index(value = ["timestamp"]),
-        Index(value = ["sensorType"])
+        Index(value = ["id"], unique = true),
+        Index(value = ["timestamp"])
     ]
 )
 data class TelemetryEntity(
-    @PrimaryKey val id: String,
-    val deviceId: String,
-    val sensorType: String, // temperature, humidity, motion, light, etc.
+    val id: String,
+    val channelId: Long,
     val value: Double,
-    val unit: String? = null,
     val timestamp: Long,
+    val seq: Long = 0,
     val quality: String? = null, // GOOD, QUESTIONABLE, BAD
     val rawValue: String? = null, // Original raw sensor reading
     val metadata: String? = null, // JSON string for additional metadata
     val isProcessed: Boolean = false,
-    val syncStatus: String = "PENDING", // PENDING, SYNCED, FAILED
+    val syncStatus: String = "PENDING", // Legacy; upload progress is tracked by the telemetry outbox
     val createdAt: Long = System.currentTimeMillis()
-)
\ No newline at end of file
+)
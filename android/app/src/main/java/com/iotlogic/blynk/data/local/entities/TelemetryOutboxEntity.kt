@@ -0,0 +1,29 @@
+package com.iotlogic.blynk.data.local.entities
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Append-only upload queue. Each committed sample gets one row keyed by its ingest
+ * sequence, which is an INTEGER PRIMARY KEY and therefore the rowid: rows are appended
+ * at the end of the table and read back by sequential range scans. Rows are removed
+ * from the head once every destination's [SyncCursorEntity] has passed them.
+ */
+@Entity(tableName = "telemetry_outbox")
+data class TelemetryOutboxEntity(
+    @PrimaryKey val seq: Long,
+    val channelId: Long,
+    val value: Double,
+    val timestamp: Long,
+    val quality: String? = null
+) {
+    companion object {
+        fun from(sample: TelemetryEntity) = TelemetryOutboxEntity(
+            seq = sample.seq,
+            channelId = sample.channelId,
+            value = sample.value,
+            timestamp = sample.timestamp,
+            quality = sample.quality
+        )
+    }
+}
@@ -0,0 +1,29 @@
+package com.iotlogic.blynk.data.local.entities
+
+import androidx.room.Entity
+import androidx.room.ForeignKey
+
+@Entity(
+    tableName = "telemetry_rollups",
+    primaryKeys = ["deviceId", "sensorType", "resolution", "bucketStart"],
+    foreignKeys = [
+        ForeignKey(
+            entity = DeviceEntity::class,
+            parentColumns = ["id"],
+            childColumns = ["deviceId"],
+            onDelete = ForeignKey.CASCADE
+        )
+    ]
+)
+data class TelemetryRollupEntity(
+    val deviceId: String,
+    val sensorType: String,
+    val resolution: String, // MINUTE, HOUR, DAY
+    val bucketStart: Long, // Bucket start in epoch millis, aligned to the resolution (UTC)
+    val sampleCount: Long,
+    val valueSum: Double,
+    val minValue: Double,
+    val maxValue: Double,
+    val lastValue: Double,
+    val lastTimestamp: Long
+)
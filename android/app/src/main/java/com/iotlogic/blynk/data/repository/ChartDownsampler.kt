@@ -0,0 +1,149 @@
+package com.iotlogic.blynk.data.repository
+
+import com.iotlogic.blynk.domain.model.ChartPoint
+import kotlin.math.abs
+
+/**
+ * Streaming MinMax-LTTB downsampling of one series into at most [maxPoints] points.
+ *
+ * Samples are folded into [maxPoints] equal time buckets over [startTime, endTime] that
+ * only keep their first, last, minimum and maximum point, so memory is bounded by the
+ * point budget however many samples pass through, and samples may arrive in any order
+ * (e.g. channel by channel, then block by block). [finish] runs Largest-Triangle-Three-
+ * Buckets over those candidates to pick the points that best preserve the visible shape.
+ */
+internal class ChartDownsampler(
+    private val startTime: Long,
+    private val endTime: Long,
+    private val maxPoints: Int
+) {
+    
+    private val bucketCount = maxPoints
+    private val span = endTime.toDouble() - startTime.toDouble() + 1.0
+    
+    private val counts = IntArray(bucketCount)
+    private val firstTimestamps = LongArray(bucketCount)
+    private val firstValues = DoubleArray(bucketCount)
+    private val lastTimestamps = LongArray(bucketCount)
+    private val lastValues = DoubleArray(bucketCount)
+    private val minTimestamps = LongArray(bucketCount)
+    private val minValues = DoubleArray(bucketCount)
+    private val maxTimestamps = LongArray(bucketCount)
+    private val maxValues = DoubleArray(bucketCount)
+    
+    init {
+        require(maxPoints >= 3) { "maxPoints must be at least 3" }
+    }
+    
+    fun add(timestamp: Long, value: Double) {
+        if (timestamp < startTime || timestamp > endTime || value.isNaN()) return
+        
+        val bucket = ((timestamp.toDouble() - startTime) / span * bucketCount).toInt().coerceIn(0, bucketCount - 1)
+        if (counts[bucket] == 0) {
+            firstTimestamps[bucket] = timestamp
+            firstValues[bucket] = value
+            lastTimestamps[bucket] = timestamp
+            lastValues[bucket] = value
+            minTimestamps[bucket] = timestamp
+            minValues[bucket] = value
+            maxTimestamps[bucket] = timestamp
+            maxValues[bucket] = value
+        } else {
+            if (timestamp < firstTimestamps[bucket]) {
+                firstTimestamps[bucket] = timestamp
+                firstValues[bucket] = value
+            }
+            if (timestamp >= lastTimestamps[bucket]) {
+                lastTimestamps[bucket] = timestamp
+                lastValues[bucket] = value
+            }
+            if (value < minValues[bucket]) {
+                minTimestamps[bucket] = timestamp
+                minValues[bucket] = value
+            }
+            if (value > maxValues[bucket]) {
+                maxTimestamps[bucket] = timestamp
+                maxValues[bucket] = value
+            }
+        }
+        counts[bucket]++
+    }
+    
+    /**
+     * The downsampled series in ascending time order
+     */
+    fun finish(): List<ChartPoint> {
+        val candidates = ArrayList<ChartPoint>()
+        for (bucket in 0 until bucketCount) {
+            if (counts[bucket] == 0) continue
+            
+            val points = sortedSetOf(
+                compareBy<ChartPoint>({ it.timestamp }, { it.value }),
+                ChartPoint(firstTimestamps[bucket], firstValues[bucket]),
+                ChartPoint(minTimestamps[bucket], minValues[bucket]),
+                ChartPoint(maxTimestamps[bucket], maxValues[bucket]),
+                ChartPoint(lastTimestamps[bucket], lastValues[bucket])
+            )
+            candidates.addAll(points)
+        }
+        return largestTriangleThreeBuckets(candidates, maxPoints)
+    }
+    
+    companion object {
+        
+        /**
+         * Largest-Triangle-Three-Buckets (Steinarsson, 2013). Keeps the first and last
+         * point and, from each of the [threshold] - 2 buckets in between, the point that
+         * forms the largest triangle with the previously kept point and the average of
+         * the next bucket. [points] must be in ascending time order.
+         */
+        fun largestTriangleThreeBuckets(points: List<ChartPoint>, threshold: Int): List<ChartPoint> {
+            if (threshold >= points.size || threshold < 3) return points
+            
+            val origin = points.first().timestamp
+            val sampled = ArrayList<ChartPoint>(threshold)
+            val bucketSize = (points.size - 2).toDouble() / (threshold - 2)
+            var selected = 0
+            sampled.add(points.first())
+            
+            for (i in 0 until threshold - 2) {
+                // Average of the next bucket, the third corner of the triangle
+                val nextStart = ((i + 1) * bucketSize).toInt() + 1
+                val nextEnd = minOf(((i + 2) * bucketSize).toInt() + 1, points.size)
+                var averageX = 0.0
+                var averageY = 0.0
+                for (j in nextStart until nextEnd) {
+                    averageX += (points[j].timestamp - origin).toDouble()
+                    averageY += points[j].value
+                }
+                averageX /= nextEnd - nextStart
+                averageY /= nextEnd - nextStart
+                
+                val selectedX = (points[selected].timestamp - origin).toDouble()
+                val selectedY = points[selected].value
+                
+                val rangeStart = (i * bucketSize).toInt() + 1
+                val rangeEnd = ((i + 1) * bucketSize).toInt() + 1
+                var maxArea = -1.0
+                var maxIndex = rangeStart
+                for (j in rangeStart until rangeEnd) {
+                    // Twice the triangle area; only the comparison matters
+                    val area = abs(
+                        (selectedX - averageX) * (points[j].value - selectedY) -
+                            (selectedX - (points[j].timestamp - origin).toDouble()) * (averageY - selectedY)
+                    )
+                    if (area > maxArea) {
+                        maxArea = area
+                        maxIndex = j
+                    }
+                }
+                
+                sampled.add(points[maxIndex])
+                selected = maxIndex
+            }
+            
+            sampled.add(points.last())
+            return sampled
+        }
+    }
+}
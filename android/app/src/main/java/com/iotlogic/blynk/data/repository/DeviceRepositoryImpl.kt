@@ -1,6 +1,12 @@
 package com.iotlogic.blynk.data.repository
 
+import com.iotlogic.blynk.data.local.CounterStore
+import com.iotlogic.blynk.data.local.DeviceTokenCache
+import com.iotlogic.blynk.data.local.InvalidationCoalescer
+import com.iotlogic.blynk.data.local.LatestTelemetryStore
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
 import com.iotlogic.blynk.data.local.dao.DeviceDao
+import com.iotlogic.blynk.data.local.entities.CounterEntity
 import com.iotlogic.blynk.data.local.entities.DeviceEntity
 import com.iotlogic.blynk.data.remote.ApiClient
 import com.iotlogic.blynk.data.remote.DeviceDto
@@ -13,36 +19,46 @@ import javax.inject.Singleton
 @Singleton
 class DeviceRepositoryImpl @Inject constructor(
     private val deviceDao: DeviceDao,
-    private val apiClient: ApiClient
+    private val apiClient: ApiClient,
+    private val channelRegistry: SensorChannelRegistry,
+    private val latestStore: LatestTelemetryStore,
+    private val invalidations: InvalidationCoalescer,
+    private val counters: CounterStore,
+    private val tokenCache: DeviceTokenCache
 ) : DeviceRepository {
     
+    companion object {
+        // Status, signal and battery updates hit this table on nearly every message
+        private const val DEVICES_TABLE = "devices"
+    }
+    
     override fun getDevices(): Flow<List<Device>> {
-        return deviceDao.getAllDevices().map { entities ->
-            entities.map { it.toDomain() }
+        return invalidations.observe(DEVICES_TABLE) {
+            deviceDao.getAllDevicesOnce().map { it.toDomain() }
         }
     }
     
     override fun getDeviceById(deviceId: String): Flow<Device?> {
-        return deviceDao.observeDeviceById(deviceId).map { entity ->
-            entity?.toDomain()
+        return invalidations.observe(DEVICES_TABLE) {
+            deviceDao.getDeviceById(deviceId)?.toDomain()
         }
     }
     
     override fun getDevicesByProtocol(protocol: String): Flow<List<Device>> {
-        return deviceDao.getDevicesByProtocol(protocol).map { entities ->
-            entities.map { it.toDomain() }
+        return invalidations.observe(DEVICES_TABLE) {
+            deviceDao.getDevicesByProtocolOnce(protocol).map { it.toDomain() }
         }
     }
     
     override fun getOnlineDevices(): Flow<List<Device>> {
-        return deviceDao.getOnlineDevices().map { entities ->
-            entities.map { it.toDomain() }
+        return invalidations.observe(DEVICES_TABLE) {
+            deviceDao.getOnlineDevicesOnce().map { it.toDomain() }
         }
     }
     
     override fun searchDevices(query: String): Flow<List<Device>> {
-        return deviceDao.searchDevices(query).map { entities ->
-            entities.map { it.toDomain() }
+        return invalidations.observe(DEVICES_TABLE) {
+            deviceDao.searchDevicesOnce(query).map { it.toDomain() }
         }
     }
     
@@ -51,6 +67,7 @@ class DeviceRepositoryImpl @Inject constructor(
             // Save to local database first
             val entity = device.toEntity()
             deviceDao.insertDevice(entity)
+            tokenCache.onDeviceSaved(entity)
             
             // Sync with backend if possible
             // Note: This would typically include authentication token
@@ -65,6 +82,7 @@ class DeviceRepositoryImpl @Inject constructor(
         return try {
             val entity = device.toEntity()
             deviceDao.updateDevice(entity)
+            tokenCache.onDeviceSaved(entity)
             Result.success(device)
         } catch (e: Exception) {
             Result.failure(e)
@@ -74,6 +92,10 @@ class DeviceRepositoryImpl @Inject constructor(
     override suspend fun deleteDevice(deviceId: String): Result<Unit> {
         return try {
             deviceDao.deleteDeviceById(deviceId)
+            // Sensor channels are removed by cascade
+            channelRegistry.evictDevice(deviceId)
+            latestStore.evictDevice(deviceId)
+            tokenCache.onDeviceDeleted(deviceId)
             Result.success(Unit)
         } catch (e: Exception) {
             Result.failure(e)
@@ -88,6 +110,7 @@ class DeviceRepositoryImpl @Inject constructor(
                 if (devicesResponse.success) {
                     val entities = devicesResponse.devices.map { it.toEntity() }
                     deviceDao.insertDevices(entities)
+                    entities.forEach { tokenCache.onDeviceSaved(it) }
                     Result.success(Unit)
                 } else {
                     Result.failure(Exception(devicesResponse.message))
@@ -129,11 +152,27 @@ class DeviceRepositoryImpl @Inject constructor(
     }
     
     override suspend fun getDeviceCount(): Int {
-        return deviceDao.getDeviceCount()
+        return counters.get(CounterEntity.DEVICES).toInt()
     }
     
     override suspend fun getDeviceCountByProtocol(protocol: String): Int {
-        return deviceDao.getDeviceCountByProtocol(protocol)
+        return counters.get(CounterEntity.devicesWithProtocol(protocol)).toInt()
+    }
+    
+    override suspend fun getDeviceCountByStatus(status: String): Int {
+        return counters.get(CounterEntity.devicesWithStatus(status)).toInt()
+    }
+    
+    override fun observeDeviceCount(): Flow<Int> {
+        return counters.observe(CounterEntity.DEVICES).map { it.toInt() }
+    }
+    
+    override fun observeDeviceCountByProtocol(protocol: String): Flow<Int> {
+        return counters.observe(CounterEntity.devicesWithProtocol(protocol)).map { it.toInt() }
+    }
+    
+    override fun observeDeviceCountByStatus(status: String): Flow<Int> {
+        return counters.observe(CounterEntity.devicesWithStatus(status)).map { it.toInt() }
     }
 }
 
@@ -0,0 +1,52 @@
+package com.iotlogic.blynk.data.repository
+
+import com.iotlogic.blynk.domain.model.RollupResolution
+
+/**
+ * Splits a time range into the coarsest rollup buckets that fit entirely inside it.
+ *
+ * The middle of the range is served from day buckets, the partial days on either side
+ * from hour buckets, then minute buckets, and only the partial minutes at the very edges
+ * are read from raw telemetry rows.
+ */
+internal object RollupPlanner {
+    
+    /**
+     * A half-open [start, end) slice of the range. A null [resolution] means raw rows.
+     */
+    data class Segment(
+        val resolution: RollupResolution?,
+        val start: Long,
+        val end: Long
+    )
+    
+    private val coarsestFirst = RollupResolution.values().sortedByDescending { it.durationMs }
+    
+    fun plan(start: Long, endExclusive: Long): List<Segment> {
+        val segments = mutableListOf<Segment>()
+        decompose(start, endExclusive, 0, segments)
+        return segments
+    }
+    
+    private fun decompose(start: Long, end: Long, level: Int, out: MutableList<Segment>) {
+        if (start >= end) return
+        
+        if (level == coarsestFirst.size) {
+            out += Segment(null, start, end)
+            return
+        }
+        
+        val resolution = coarsestFirst[level]
+        val size = resolution.durationMs
+        val alignedStart = -(-start).floorDiv(size) * size
+        val alignedEnd = end.floorDiv(size) * size
+        
+        if (alignedStart < alignedEnd) {
+            decompose(start, alignedStart, level + 1, out)
+            out += Segment(resolution, alignedStart, alignedEnd)
+            decompose(alignedEnd, end, level + 1, out)
+        } else {
+            decompose(start, end, level + 1, out)
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.iotlogic.blynk.data.repository
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import androidx.room.InvalidationTracker
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.compression.TelemetryBlockCodec.DecodedBlock
+import com.iotlogic.blynk.data.local.compression.TelemetryBlocks
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryBlockEntity
+import com.iotlogic.blynk.domain.model.Telemetry
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Keyset cursor into the telemetry history. Samples are ordered newest first by
+ * (timestamp, seq, source), where [source] is the channel id for raw rows and the
+ * negated channel id for compressed samples, so every sample has a distinct key.
+ */
+data class TelemetryPageKey(
+    val timestamp: Long,
+    val seq: Long,
+    val source: Long
+) : Comparable<TelemetryPageKey> {
+    
+    override fun compareTo(other: TelemetryPageKey): Int {
+        return when {
+            timestamp != other.timestamp -> timestamp.compareTo(other.timestamp)
+            seq != other.seq -> seq.compareTo(other.seq)
+            else -> source.compareTo(other.source)
+        }
+    }
+    
+    companion object {
+        fun newestAt(timestamp: Long) = TelemetryPageKey(timestamp, Long.MAX_VALUE, Long.MAX_VALUE)
+    }
+}
+
+/**
+ * Pages the history of one device, optionally one sensor, newest first. Each page seeks
+ * from the previous page's last key instead of skipping an OFFSET, so loading page 1000
+ * costs the same as loading page 1 and only the pages kept by the pager stay in memory.
+ *
+ * Raw rows are read per channel straight from the clustered primary key, compressed
+ * blocks are walked one block at a time, and both are merged into a single page.
+ */
+internal class TelemetryPagingSource(
+    private val telemetryDao: TelemetryDao,
+    private val blockDao: TelemetryBlockDao,
+    private val channelRegistry: SensorChannelRegistry,
+    private val invalidationTracker: InvalidationTracker,
+    private val deviceId: String,
+    private val sensorType: String?,
+    private val startTime: Long,
+    private val endTime: Long
+) : PagingSource<TelemetryPageKey, Telemetry>() {
+    
+    private class KeyedSample(val key: TelemetryPageKey, val telemetry: Telemetry)
+    
+    private val observer = object : InvalidationTracker.Observer(arrayOf("telemetry", "telemetry_blocks")) {
+        override fun onInvalidated(tables: Set<String>) {
+            invalidate()
+        }
+    }
+    
+    private val observerRegistered = AtomicBoolean(false)
+    
+    // Adjacent pages usually fall into the same hour, so recently decoded blocks are kept
+    private val decodedBlocks = object : LinkedHashMap<String, DecodedBlock>(MAX_DECODED_BLOCKS, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, DecodedBlock>?): Boolean {
+            return size > MAX_DECODED_BLOCKS
+        }
+    }
+    
+    companion object {
+        private const val MAX_DECODED_BLOCKS = 4
+    }
+    
+    override suspend fun load(params: LoadParams<TelemetryPageKey>): LoadResult<TelemetryPageKey, Telemetry> {
+        return withContext(Dispatchers.IO) {
+            try {
+                registerObserver()
+                val channels = channelRegistry.getChannelsForDevice(deviceId)
+                    .filter { sensorType == null || it.sensorType == sensorType }
+                val limit = params.loadSize
+                
+                when (params) {
+                    is LoadParams.Prepend -> {
+                        val page = loadNewer(channels, params.key, limit)
+                        LoadResult.Page(
+                            data = page.map { it.telemetry },
+                            prevKey = if (page.size < limit) null else page.first().key,
+                            nextKey = null
+                        )
+                    }
+                    is LoadParams.Append -> {
+                        val page = loadOlder(channels, params.key, limit, inclusive = false)
+                        LoadResult.Page(
+                            data = page.map { it.telemetry },
+                            prevKey = null,
+                            nextKey = if (page.size < limit) null else page.last().key
+                        )
+                    }
+                    is LoadParams.Refresh -> {
+                        // A refresh key comes from getRefreshKey and is included in the page
+                        val key = params.key
+                        val page = loadOlder(channels, key ?: TelemetryPageKey.newestAt(endTime), limit, inclusive = true)
+                        LoadResult.Page(
+                            data = page.map { it.telemetry },
+                            prevKey = if (key == null) null else page.firstOrNull()?.key ?: key,
+                            nextKey = if (page.size < limit) null else page.last().key
+                        )
+                    }
+                }
+            } catch (e: Exception) {
+                LoadResult.Error(e)
+            }
+        }
+    }
+    
+    override fun getRefreshKey(state: PagingState<TelemetryPageKey, Telemetry>): TelemetryPageKey? {
+        val anchorPosition = state.anchorPosition ?: return null
+        val anchor = state.closestItemToPosition(anchorPosition) ?: return null
+        // Restart at the anchor's timestamp so the visible rows stay in place
+        return TelemetryPageKey.newestAt(anchor.timestamp)
+    }
+    
+    private fun registerObserver() {
+        if (observerRegistered.compareAndSet(false, true)) {
+            invalidationTracker.addObserver(observer)
+            registerInvalidatedCallback { invalidationTracker.removeObserver(observer) }
+        }
+    }
+    
+    /**
+     * Up to [limit] samples below [key], newest first
+     */
+    private suspend fun loadOlder(
+        channels: List<SensorChannelEntity>,
+        key: TelemetryPageKey,
+        limit: Int,
+        inclusive: Boolean
+    ): List<KeyedSample> {
+        val samples = ArrayList<KeyedSample>()
+        
+        channels.forEach { channel ->
+            // The SQL bound is strict on seq; bump it when this channel sorts below the key's source
+            val includesKeySeq = if (inclusive) channel.id <= key.source else channel.id < key.source
+            val beforeSeq = if (includesKeySeq && key.seq != Long.MAX_VALUE) key.seq + 1 else key.seq
+            telemetryDao.getPageBefore(channel.id, startTime, key.timestamp, beforeSeq, limit).forEach { entity ->
+                samples.add(KeyedSample(TelemetryPageKey(entity.timestamp, entity.seq, channel.id), entity.toDomain(channel)))
+            }
+        }
+        
+        channels.forEach { channel ->
+            samples.addAll(loadOlderCold(channel.id, key, limit, inclusive))
+        }
+        
+        samples.sortByDescending { it.key }
+        return samples.take(limit)
+    }
+    
+    /**
+     * Up to [limit] samples above [key], newest first
+     */
+    private suspend fun loadNewer(channels: List<SensorChannelEntity>, key: TelemetryPageKey, limit: Int): List<KeyedSample> {
+        val samples = ArrayList<KeyedSample>()
+        
+        channels.forEach { channel ->
+            val afterSeq = if (channel.id > key.source) key.seq - 1 else key.seq
+            telemetryDao.getPageAfter(channel.id, endTime, key.timestamp, afterSeq, limit).forEach { entity ->
+                samples.add(KeyedSample(TelemetryPageKey(entity.timestamp, entity.seq, channel.id), entity.toDomain(channel)))
+            }
+        }
+        
+        channels.forEach { channel ->
+            samples.addAll(loadNewerCold(channel.id, key, limit))
+        }
+        
+        samples.sortBy { it.key }
+        return samples.take(limit).asReversed()
+    }
+    
+    private suspend fun loadOlderCold(
+        channelId: Long,
+        key: TelemetryPageKey,
+        limit: Int,
+        inclusive: Boolean
+    ): List<KeyedSample> {
+        val samples = ArrayList<KeyedSample>()
+        val source = -channelId
+        val minBlockStart = TelemetryBlocks.blockStart(startTime)
+        var cursor = TelemetryBlocks.blockStart(minOf(key.timestamp, endTime))
+        
+        while (samples.size < limit) {
+            val block = blockDao.getBlockAtOrBefore(channelId, cursor, minBlockStart) ?: break
+            val decoded = decode(block)
+            for (i in decoded.size - 1 downTo 0) {
+                val timestamp = decoded.timestamps[i]
+                if (timestamp < startTime || timestamp > endTime) continue
+                
+                val sampleKey = TelemetryPageKey(timestamp, coldSeq(i, decoded.size), source)
+                val comparison = sampleKey.compareTo(key)
+                if (comparison > 0 || (comparison == 0 && !inclusive)) continue
+                
+                samples.add(KeyedSample(sampleKey, block.coldSample(timestamp, decoded.values[i], sampleKey.seq)))
+                if (samples.size == limit) break
+            }
+            cursor = block.blockStart - 1
+        }
+        return samples
+    }
+    
+    private suspend fun loadNewerCold(channelId: Long, key: TelemetryPageKey, limit: Int): List<KeyedSample> {
+        val samples = ArrayList<KeyedSample>()
+        val source = -channelId
+        var cursor = TelemetryBlocks.blockStart(maxOf(key.timestamp, startTime))
+        
+        while (samples.size < limit) {
+            val block = blockDao.getBlockAtOrAfter(channelId, cursor, endTime) ?: break
+            val decoded = decode(block)
+            for (i in 0 until decoded.size) {
+                val timestamp = decoded.timestamps[i]
+                if (timestamp < startTime || timestamp > endTime) continue
+                
+                val sampleKey = TelemetryPageKey(timestamp, coldSeq(i, decoded.size), source)
+                if (sampleKey <= key) continue
+                
+                samples.add(KeyedSample(sampleKey, block.coldSample(timestamp, decoded.values[i], sampleKey.seq)))
+                if (samples.size == limit) break
+            }
+            cursor = block.blockStart + 1
+        }
+        return samples
+    }
+    
+    private fun decode(block: TelemetryBlockEntity): DecodedBlock {
+        val cacheKey = "${block.channelId}:${block.blockStart}:${block.sampleCount}"
+        return synchronized(decodedBlocks) {
+            decodedBlocks.getOrPut(cacheKey) { TelemetryBlocks.decode(block) }
+        }
+    }
+}
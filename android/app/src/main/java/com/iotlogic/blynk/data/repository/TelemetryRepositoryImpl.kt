@@ -1,22 +1,82 @@
 package com.iotlogic.blynk.data.repository
 
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.PagingData
+import androidx.room.InvalidationTracker
+import com.iotlogic.blynk.data.ingest.TelemetryIngestWriter
+import com.iotlogic.blynk.data.local.CounterStore
+import com.iotlogic.blynk.data.local.LatestTelemetryStore
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.TelemetryRetention
+import com.iotlogic.blynk.data.local.compression.TelemetryBlocks
+import com.iotlogic.blynk.data.local.dao.ChannelStatisticsRow
+import com.iotlogic.blynk.data.local.dao.TelemetryAggregateRow
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
 import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.dao.TelemetryRollupDao
+import com.iotlogic.blynk.data.local.dao.TelemetrySnapshot
+import com.iotlogic.blynk.data.local.entities.CounterEntity
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryBlockEntity
 import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryRollupEntity
 import com.iotlogic.blynk.data.remote.ApiClient
+import com.iotlogic.blynk.data.sync.TelemetryOutbox
 // Removed unused imports
+import com.iotlogic.blynk.domain.model.ChartPoint
+import com.iotlogic.blynk.domain.model.RollupResolution
 import com.iotlogic.blynk.domain.model.SyncStatus
 import com.iotlogic.blynk.domain.model.Telemetry
+import com.iotlogic.blynk.domain.model.TelemetryAggregate
+import com.iotlogic.blynk.domain.model.TelemetryRollup
+import com.iotlogic.blynk.domain.model.TelemetryStatistics
+import com.iotlogic.blynk.domain.model.TelemetryTail
+import com.iotlogic.blynk.domain.model.TimedValue
+import com.iotlogic.blynk.domain.model.WelfordAccumulator
 import com.iotlogic.blynk.domain.repository.TelemetryRepository
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.*
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
 import javax.inject.Singleton
 
 @Singleton
 class TelemetryRepositoryImpl @Inject constructor(
     private val telemetryDao: TelemetryDao,
-    private val apiClient: ApiClient
+    private val rollupDao: TelemetryRollupDao,
+    private val blockDao: TelemetryBlockDao,
+    private val apiClient: ApiClient,
+    private val ingestWriter: TelemetryIngestWriter,
+    private val channelRegistry: SensorChannelRegistry,
+    private val latestStore: LatestTelemetryStore,
+    private val retention: TelemetryRetention,
+    private val outbox: TelemetryOutbox,
+    private val counters: CounterStore,
+    private val invalidationTracker: InvalidationTracker
 ) : TelemetryRepository {
     
+    companion object {
+        // Pages kept in memory by the pager; older ones are dropped and reloaded by key
+        private const val MAX_CACHED_PAGES = 5
+        
+        private const val STATISTICS_RESEEDS_PER_WINDOW = 60
+        private const val MIN_STATISTICS_RESEED_MS = 30_000L
+        private const val MAX_STATISTICS_RESEED_MS = 15 * 60_000L
+        
+        // Rows held at once by the raw chart pass
+        private const val CHART_PAGE_SIZE = 2_000
+        
+        // Committed batches a tail holds before it falls back to a new snapshot; as many as the writer buffers
+        private const val TAIL_BUFFERED_BATCHES = 64
+    }
+    
     override fun getRecentTelemetry(limit: Int): Flow<List<Telemetry>> {
         return telemetryDao.getRecentTelemetry(limit).map { entities ->
             entities.map { it.toDomain() }
@@ -36,35 +96,358 @@ class TelemetryRepositoryImpl @Inject constructor(
     }
     
     override fun getTelemetryByTimeRange(deviceId: String, startTime: Long, endTime: Long): Flow<List<Telemetry>> {
-        return telemetryDao.getTelemetryByTimeRange(deviceId, startTime, endTime).map { entities ->
-            entities.map { it.toDomain() }
+        // Aged samples live in compressed blocks, recent ones in the telemetry table
+        return combine(
+            telemetryDao.getTelemetryByTimeRange(deviceId, startTime, endTime),
+            blockDao.observeBlocksForDevice(deviceId, TelemetryBlocks.blockStart(startTime), startTime, endTime)
+        ) { entities, blocks ->
+            val hot = entities.map { it.toDomain() }
+            val cold = blocks.flatMap { it.toDomain(startTime, endTime) }
+            (hot + cold).sortedByDescending { it.timestamp }
+        }
+    }
+    
+    override fun tailRecentTelemetry(limit: Int): Flow<TelemetryTail> {
+        return tail({ telemetryDao.getRecentTelemetrySnapshot(limit) }) { true }
+    }
+    
+    override fun tailTelemetryByDevice(deviceId: String, limit: Int): Flow<TelemetryTail> {
+        return tail({ telemetryDao.getTelemetryByDeviceSnapshot(deviceId, limit) }) { channel ->
+            channel?.deviceId == deviceId
+        }
+    }
+    
+    /**
+     * One snapshot query, then committed batches filtered by sequence. Unlike a Room
+     * Flow nothing is re-queried on insert. A tail that falls more than its buffer behind
+     * the writer drops the buffered batches and starts over from a fresh snapshot, rather
+     * than stalling ingest or leaving rows out of the consumer's window.
+     */
+    private fun tail(
+        snapshot: suspend () -> TelemetrySnapshot,
+        accept: (SensorChannelEntity?) -> Boolean
+    ): Flow<TelemetryTail> {
+        return channelFlow {
+            // Subscribe before the snapshot so no commit falls between the two
+            val committed = Channel<List<TelemetryEntity>>(TAIL_BUFFERED_BATCHES)
+            val overflowed = AtomicBoolean(false)
+            launch(start = CoroutineStart.UNDISPATCHED) {
+                ingestWriter.committedBatches.collect { batch ->
+                    if (committed.trySend(batch).isFailure) overflowed.set(true)
+                }
+            }
+            
+            suspend fun sendSnapshot(): Long {
+                val current = snapshot()
+                send(TelemetryTail.Snapshot(current.rows.map { it.toDomain() }, current.cursor))
+                return current.cursor
+            }
+            
+            var cursor = sendSnapshot()
+            for (batch in committed) {
+                if (overflowed.getAndSet(false)) {
+                    // Batches were lost; the new snapshot covers them and everything buffered
+                    while (committed.tryReceive().isSuccess) Unit
+                    cursor = sendSnapshot()
+                    continue
+                }
+                
+                val appended = ArrayList<Telemetry>()
+                var batchCursor = cursor
+                batch.forEach { sample ->
+                    if (sample.seq > cursor) {
+                        val channel = channelRegistry.get(sample.channelId)
+                        if (accept(channel)) appended.add(sample.toDomain(channel))
+                        batchCursor = maxOf(batchCursor, sample.seq)
+                    }
+                }
+                cursor = batchCursor
+                if (appended.isNotEmpty()) send(TelemetryTail.Appended(appended, cursor))
+            }
         }
     }
     
+    override fun getTelemetryHistory(
+        deviceId: String,
+        sensorType: String?,
+        startTime: Long,
+        endTime: Long,
+        pageSize: Int
+    ): Flow<PagingData<Telemetry>> {
+        return Pager(
+            config = PagingConfig(
+                pageSize = pageSize,
+                enablePlaceholders = false,
+                maxSize = pageSize * MAX_CACHED_PAGES
+            ),
+            pagingSourceFactory = {
+                TelemetryPagingSource(
+                    telemetryDao,
+                    blockDao,
+                    channelRegistry,
+                    invalidationTracker,
+                    deviceId,
+                    sensorType,
+                    startTime,
+                    endTime
+                )
+            }
+        ).flow
+    }
+    
     override suspend fun getLatestTelemetryForDevice(deviceId: String): Telemetry? {
-        return telemetryDao.getLatestTelemetryForDevice(deviceId)?.toDomain()
+        // Served from memory; the store covers raw rows and compressed blocks
+        return latestStore.getLatestForDevice(deviceId)
     }
     
     override suspend fun getLatestTelemetryForSensor(deviceId: String, sensorType: String): Telemetry? {
-        return telemetryDao.getLatestTelemetryForSensor(deviceId, sensorType)?.toDomain()
+        return latestStore.getLatest(deviceId, sensorType)
+    }
+    
+    override fun observeLatestTelemetry(deviceId: String, sensorType: String): StateFlow<Telemetry?> {
+        return latestStore.observe(deviceId, sensorType)
     }
     
     override suspend fun getAverageTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double? {
-        return telemetryDao.getAverageTelemetryValue(deviceId, sensorType, startTime, endTime)
+        return getTelemetryAggregate(deviceId, sensorType, startTime, endTime).average
     }
     
     override suspend fun getMinTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double? {
-        return telemetryDao.getMinTelemetryValue(deviceId, sensorType, startTime, endTime)
+        return getTelemetryAggregate(deviceId, sensorType, startTime, endTime).min
     }
     
     override suspend fun getMaxTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double? {
-        return telemetryDao.getMaxTelemetryValue(deviceId, sensorType, startTime, endTime)
+        return getTelemetryAggregate(deviceId, sensorType, startTime, endTime).max
+    }
+    
+    override suspend fun getTelemetryAggregate(deviceId: String, sensorType: String, startTime: Long, endTime: Long): TelemetryAggregate {
+        // Ranges are inclusive of endTime like the raw BETWEEN queries
+        return RollupPlanner.plan(startTime, endTime + 1).fold(TelemetryAggregate()) { aggregate, segment ->
+            if (segment.resolution == null) {
+                aggregate +
+                    telemetryDao.getRawAggregate(deviceId, sensorType, segment.start, segment.end).toDomain() +
+                    getColdAggregate(deviceId, sensorType, segment.start, segment.end)
+            } else {
+                aggregate + rollupDao.getRollupAggregate(deviceId, sensorType, segment.resolution.name, segment.start, segment.end).toDomain()
+            }
+        }
+    }
+    
+    /**
+     * Aggregate compressed samples in [startTime, endTime). Blocks fully inside the
+     * range are answered from their summary columns, only partial blocks are decoded.
+     */
+    private suspend fun getColdAggregate(deviceId: String, sensorType: String, startTime: Long, endTime: Long): TelemetryAggregate {
+        val blocks = blockDao.getBlocksForSensor(deviceId, sensorType, TelemetryBlocks.blockStart(startTime), startTime, endTime - 1)
+        return blocks.fold(TelemetryAggregate()) { aggregate, block ->
+            if (block.firstTimestamp >= startTime && block.lastTimestamp < endTime) {
+                aggregate + TelemetryAggregate(block.sampleCount.toLong(), block.valueSum, block.minValue, block.maxValue)
+            } else {
+                val decoded = TelemetryBlocks.decode(block)
+                var partial = TelemetryAggregate()
+                for (i in 0 until decoded.size) {
+                    if (decoded.timestamps[i] >= startTime && decoded.timestamps[i] < endTime) {
+                        val value = decoded.values[i]
+                        partial += TelemetryAggregate(1, value, value, value)
+                    }
+                }
+                aggregate + partial
+            }
+        }
+    }
+    
+    override suspend fun getTelemetryStatistics(
+        deviceId: String,
+        sensorType: String,
+        startTime: Long,
+        endTime: Long
+    ): TelemetryStatistics {
+        // Any nearby value works as the shift; the cached latest one costs nothing
+        val shift = latestStore.getLatest(deviceId, sensorType)?.value ?: 0.0
+        val hot = channelRegistry.getChannelsForDevice(deviceId)
+            .filter { it.sensorType == sensorType }
+            .fold(TelemetryStatistics()) { statistics, channel ->
+                statistics + telemetryDao.getChannelStatistics(channel.id, startTime, endTime, shift).toDomain(shift)
+            }
+        return hot + getColdStatistics(deviceId, sensorType, startTime, endTime)
+    }
+    
+    /**
+     * Statistics of compressed samples in [startTime, endTime]. Covered blocks are read
+     * from their summary columns; partial blocks, blocks without a stored M2 and the
+     * earliest block (for its first value) are decoded.
+     */
+    private suspend fun getColdStatistics(deviceId: String, sensorType: String, startTime: Long, endTime: Long): TelemetryStatistics {
+        val summaries = blockDao.getBlockSummaries(deviceId, sensorType, TelemetryBlocks.blockStart(startTime), startTime, endTime)
+        return summaries.foldIndexed(TelemetryStatistics()) { index, statistics, summary ->
+            val covered = summary.firstTimestamp >= startTime && summary.lastTimestamp <= endTime
+            val m2 = summary.valueM2
+            if (covered && m2 != null && index > 0) {
+                statistics + TelemetryStatistics(
+                    count = summary.sampleCount.toLong(),
+                    mean = summary.valueSum / summary.sampleCount,
+                    m2 = m2,
+                    min = summary.minValue,
+                    max = summary.maxValue,
+                    last = TimedValue(summary.lastTimestamp, summary.lastValue)
+                )
+            } else {
+                val block = blockDao.getBlock(summary.channelId, summary.blockStart) ?: return@foldIndexed statistics
+                val decoded = TelemetryBlocks.decode(block)
+                val accumulator = WelfordAccumulator()
+                for (i in 0 until decoded.size) {
+                    if (decoded.timestamps[i] in startTime..endTime) {
+                        accumulator.add(decoded.timestamps[i], decoded.values[i])
+                    }
+                }
+                statistics + accumulator.snapshot()
+            }
+        }
+    }
+    
+    override fun observeTelemetryStatistics(deviceId: String, sensorType: String, windowMs: Long): Flow<TelemetryStatistics> {
+        return channelFlow {
+            val accumulator = WelfordAccumulator()
+            val lock = Mutex()
+            
+            // New samples are folded in as they are committed instead of re-querying
+            launch(start = CoroutineStart.UNDISPATCHED) {
+                ingestWriter.committedBatches.collect { batch ->
+                    var changed = false
+                    lock.withLock {
+                        batch.forEach { sample ->
+                            val channel = channelRegistry.get(sample.channelId)
+                            if (channel?.deviceId == deviceId && channel.sensorType == sensorType) {
+                                accumulator.add(sample.timestamp, sample.value)
+                                changed = true
+                            }
+                        }
+                        if (changed) send(accumulator.snapshot())
+                    }
+                }
+            }
+            
+            // Welford cannot forget samples, so the window slides by re-seeding now and then
+            val reseedInterval = (windowMs / STATISTICS_RESEEDS_PER_WINDOW)
+                .coerceIn(MIN_STATISTICS_RESEED_MS, MAX_STATISTICS_RESEED_MS)
+            while (isActive) {
+                val endTime = System.currentTimeMillis()
+                val startTime = (endTime - windowMs).coerceAtLeast(0)
+                val statistics = getTelemetryStatistics(deviceId, sensorType, startTime, endTime)
+                lock.withLock {
+                    accumulator.reset(statistics)
+                    send(statistics)
+                }
+                delay(reseedInterval)
+            }
+        }.conflate()
+    }
+    
+    override suspend fun getChartSeries(
+        deviceId: String,
+        sensorType: String,
+        startTime: Long,
+        endTime: Long,
+        maxPoints: Int
+    ): List<ChartPoint> {
+        val downsampler = ChartDownsampler(startTime, endTime, maxPoints)
+        if (!addRollupCandidates(downsampler, deviceId, sensorType, startTime, endTime, maxPoints)) {
+            addRawSamples(downsampler, deviceId, sensorType, startTime, endTime)
+        }
+        return downsampler.finish()
+    }
+    
+    /**
+     * Feed rollup buckets to [downsampler] when at least one bucket fits in each point's
+     * time slot. Starts with the finest such resolution; retention trims finer rollups
+     * first, so each coarser one fills the older part of the range still uncovered.
+     * Returns false when the range is too short for rollups or none exist.
+     */
+    private suspend fun addRollupCandidates(
+        downsampler: ChartDownsampler,
+        deviceId: String,
+        sensorType: String,
+        startTime: Long,
+        endTime: Long,
+        maxPoints: Int
+    ): Boolean {
+        val slotMs = (endTime - startTime) / maxPoints
+        val resolutions = RollupResolution.values().sortedByDescending { it.durationMs }
+        val first = resolutions.indexOfFirst { it.durationMs <= slotMs }
+        if (first < 0) return false
+        
+        var found = false
+        var gapEnd = endTime.coerceAtMost(Long.MAX_VALUE - 1) + 1
+        for (resolution in resolutions.subList(0, first + 1).asReversed()) {
+            val rollups = rollupDao.getRollups(deviceId, sensorType, resolution.name, startTime, gapEnd)
+            if (rollups.isEmpty()) continue
+            
+            // Where in the bucket the extremes occurred is not stored, so they are placed mid-bucket
+            rollups.forEach { rollup ->
+                val middle = rollup.bucketStart + resolution.durationMs / 2
+                downsampler.add(middle, rollup.minValue)
+                downsampler.add(middle, rollup.maxValue)
+                downsampler.add(rollup.lastTimestamp, rollup.lastValue)
+            }
+            found = true
+            gapEnd = rollups.first().bucketStart
+            if (gapEnd <= startTime) break
+        }
+        return found
+    }
+    
+    /**
+     * Stream every raw and compressed sample of the range into [downsampler]. Raw rows
+     * are read in keyset pages per channel and blocks are decoded one at a time, so only
+     * one page or block is in memory at once.
+     */
+    private suspend fun addRawSamples(
+        downsampler: ChartDownsampler,
+        deviceId: String,
+        sensorType: String,
+        startTime: Long,
+        endTime: Long
+    ) {
+        channelRegistry.getChannelsForDevice(deviceId)
+            .filter { it.sensorType == sensorType }
+            .forEach { channel ->
+                var afterTimestamp = startTime
+                var afterSeq = -1L
+                while (true) {
+                    val page = telemetryDao.getPageAfter(channel.id, endTime, afterTimestamp, afterSeq, CHART_PAGE_SIZE)
+                    page.forEach { downsampler.add(it.timestamp, it.value) }
+                    if (page.size < CHART_PAGE_SIZE) break
+                    afterTimestamp = page.last().timestamp
+                    afterSeq = page.last().seq
+                }
+                
+                var cursor = TelemetryBlocks.blockStart(startTime)
+                while (true) {
+                    val block = blockDao.getBlockAtOrAfter(channel.id, cursor, endTime) ?: break
+                    val decoded = TelemetryBlocks.decode(block)
+                    for (i in 0 until decoded.size) {
+                        downsampler.add(decoded.timestamps[i], decoded.values[i])
+                    }
+                    cursor = block.blockStart + 1
+                }
+            }
+    }
+    
+    override suspend fun getTelemetryRollups(
+        deviceId: String,
+        sensorType: String,
+        resolution: RollupResolution,
+        startTime: Long,
+        endTime: Long
+    ): List<TelemetryRollup> {
+        return rollupDao.getRollups(deviceId, sensorType, resolution.name, startTime, endTime + 1)
+            .map { it.toDomain() }
     }
     
     override suspend fun storeTelemetryData(telemetry: Telemetry): Result<Unit> {
         return try {
-            val entity = telemetry.toEntity()
-            telemetryDao.insertTelemetry(entity)
+            // Buffered and committed with the next batch
+            ingestWriter.enqueue(telemetry.toEntity())
             Result.success(Unit)
         } catch (e: Exception) {
             Result.failure(e)
@@ -74,7 +457,7 @@ class TelemetryRepositoryImpl @Inject constructor(
     override suspend fun storeTelemetryBatch(telemetryList: List<Telemetry>): Result<Unit> {
         return try {
             val entities = telemetryList.map { it.toEntity() }
-            telemetryDao.insertTelemetryBatch(entities)
+            ingestWriter.enqueueAll(entities)
             Result.success(Unit)
         } catch (e: Exception) {
             Result.failure(e)
@@ -83,7 +466,9 @@ class TelemetryRepositoryImpl @Inject constructor(
     
     override suspend fun deleteTelemetryByDevice(deviceId: String): Result<Unit> {
         return try {
-            telemetryDao.deleteTelemetryByDevice(deviceId)
+            // Pending uploads go with the rows, so deleted readings are never sent
+            telemetryDao.deleteDeviceHistory(deviceId)
+            latestStore.evictDevice(deviceId)
             Result.success(Unit)
         } catch (e: Exception) {
             Result.failure(e)
@@ -92,7 +477,9 @@ class TelemetryRepositoryImpl @Inject constructor(
     
     override suspend fun deleteOldTelemetry(timestamp: Long): Result<Unit> {
         return try {
-            telemetryDao.deleteOldTelemetry(timestamp)
+            retention.deleteTelemetryOlderThan(timestamp).getOrThrow()
+            retention.deleteBlocksOlderThan(timestamp).getOrThrow()
+            latestStore.evictOlderThan(timestamp)
             Result.success(Unit)
         } catch (e: Exception) {
             Result.failure(e)
@@ -110,58 +497,66 @@ class TelemetryRepositoryImpl @Inject constructor(
     }
     
     override suspend fun uploadPendingTelemetry(token: String): Result<Unit> {
-        return try {
-            val pendingTelemetry = telemetryDao.getPendingSyncTelemetry()
-            
-            if (pendingTelemetry.isNotEmpty()) {
-                // Group by device for batch upload
-                val groupedByDevice = pendingTelemetry.groupBy { it.deviceId }
-                
-                for ((deviceId, telemetryGroup) in groupedByDevice) {
-                    // For now, we'll just mark as synced without actual upload
-                    // In real implementation, you'd get device token and upload
-                    val telemetryIds = telemetryGroup.map { it.id }
-                    telemetryDao.updateSyncStatusBatch(telemetryIds, "SYNCED")
-                }
-            }
-            
-            Result.success(Unit)
-        } catch (e: Exception) {
-            Result.failure(e)
-        }
-    }
-    
-    override suspend fun markTelemetryAsSynced(telemetryIds: List<String>): Result<Unit> {
-        return try {
-            telemetryDao.updateSyncStatusBatch(telemetryIds, "SYNCED")
-            Result.success(Unit)
-        } catch (e: Exception) {
-            Result.failure(e)
-        }
+        return outbox.drainByDevice(TelemetryOutbox.DESTINATION_API) { deviceToken, samples ->
+            apiClient.submitTelemetryBatch(token, deviceToken, samples).map { }
+        }.map { }
     }
     
     override suspend fun getSensorTypesForDevice(deviceId: String): List<String> {
-        return telemetryDao.getSensorTypesForDevice(deviceId)
+        // Compacted samples keep their channel, so the catalog covers hot and cold data
+        return channelRegistry.getSensorTypesForDevice(deviceId)
     }
     
     override suspend fun getTelemetryCountForDevice(deviceId: String): Int {
-        return telemetryDao.getTelemetryCountForDevice(deviceId)
+        // Raw rows and compressed samples, maintained by the ingest transaction and triggers
+        return counters.get(CounterEntity.deviceTelemetry(deviceId)).toInt()
+    }
+    
+    override fun observeTelemetryCountForDevice(deviceId: String): Flow<Int> {
+        return counters.observe(CounterEntity.deviceTelemetry(deviceId)).map { it.toInt() }
     }
     
     override suspend fun getTelemetryCountSince(deviceId: String, timestamp: Long): Int {
-        return telemetryDao.getTelemetryCountSince(deviceId, timestamp)
+        val coldCount = blockDao.getBlocksForDeviceSince(deviceId, timestamp).sumOf { block ->
+            if (block.firstTimestamp > timestamp) {
+                block.sampleCount
+            } else {
+                TelemetryBlocks.decode(block).timestamps.count { it > timestamp }
+            }
+        }
+        return telemetryDao.getTelemetryCountSince(deviceId, timestamp) + coldCount
+    }
+    
+    // Channel lookups are served from the in-memory registry
+    private suspend fun TelemetryEntity.toDomain(): Telemetry = toDomain(channelRegistry.get(channelId))
+    
+    private suspend fun Telemetry.toEntity(): TelemetryEntity {
+        return TelemetryEntity(
+            id = id,
+            channelId = channelRegistry.resolve(deviceId, sensorType, unit).id,
+            value = value,
+            timestamp = timestamp,
+            seq = seq,
+            quality = quality,
+            rawValue = rawValue,
+            metadata = serializeMetadata(metadata),
+            isProcessed = isProcessed,
+            syncStatus = syncStatus,
+            createdAt = createdAt
+        )
     }
 }
 
 // Extension functions for mapping
-private fun TelemetryEntity.toDomain(): Telemetry {
+internal fun TelemetryEntity.toDomain(channel: SensorChannelEntity?): Telemetry {
     return Telemetry(
         id = id,
-        deviceId = deviceId,
-        sensorType = sensorType,
+        deviceId = channel?.deviceId.orEmpty(),
+        sensorType = channel?.sensorType.orEmpty(),
         value = value,
-        unit = unit,
+        unit = channel?.unit?.ifEmpty { null },
         timestamp = timestamp,
+        seq = seq,
         quality = quality,
         rawValue = rawValue,
         metadata = parseMetadata(metadata),
@@ -171,20 +566,76 @@ private fun TelemetryEntity.toDomain(): Telemetry {
     )
 }
 
-private fun Telemetry.toEntity(): TelemetryEntity {
-    return TelemetryEntity(
-        id = id,
+private fun TelemetryBlockEntity.toDomain(startTime: Long, endTime: Long): List<Telemetry> {
+    val decoded = TelemetryBlocks.decode(this)
+    val samples = ArrayList<Telemetry>()
+    for (i in 0 until decoded.size) {
+        val timestamp = decoded.timestamps[i]
+        if (timestamp in startTime..endTime) {
+            samples.add(coldSample(timestamp, decoded.values[i], coldSeq(i, decoded.size)))
+        }
+    }
+    return samples
+}
+
+internal fun TelemetryBlockEntity.lastSample(): Telemetry = coldSample(lastTimestamp, lastValue, coldSeq(sampleCount - 1, sampleCount))
+
+/**
+ * Compressed samples lost their ingest sequence; their position in the block stands in
+ * for it. Negative, so it never collides with a real sequence number.
+ */
+internal fun coldSeq(index: Int, sampleCount: Int): Long = (index - sampleCount).toLong()
+
+// Compaction keeps only timestamp and value; compacted rows have always been synced
+internal fun TelemetryBlockEntity.coldSample(timestamp: Long, value: Double, seq: Long): Telemetry {
+    return Telemetry(
+        id = "$deviceId:$sensorType:$channelId:$timestamp",
         deviceId = deviceId,
         sensorType = sensorType,
         value = value,
         unit = unit,
         timestamp = timestamp,
-        quality = quality,
-        rawValue = rawValue,
-        metadata = serializeMetadata(metadata),
-        isProcessed = isProcessed,
-        syncStatus = syncStatus,
-        createdAt = createdAt
+        seq = seq,
+        isProcessed = true,
+        syncStatus = "SYNCED",
+        createdAt = timestamp
+    )
+}
+
+private fun ChannelStatisticsRow.toDomain(shift: Double): TelemetryStatistics {
+    return TelemetryStatistics.fromShiftedSums(
+        count = sampleCount,
+        shift = shift,
+        shiftedSum = shiftedSum,
+        shiftedSumSquares = shiftedSumSquares,
+        min = minValue,
+        max = maxValue,
+        first = if (firstTimestamp != null && firstValue != null) TimedValue(firstTimestamp, firstValue) else null,
+        last = if (lastTimestamp != null && lastValue != null) TimedValue(lastTimestamp, lastValue) else null
+    )
+}
+
+private fun TelemetryAggregateRow.toDomain(): TelemetryAggregate {
+    return TelemetryAggregate(
+        count = sampleCount,
+        sum = valueSum ?: 0.0,
+        min = minValue,
+        max = maxValue
+    )
+}
+
+private fun TelemetryRollupEntity.toDomain(): TelemetryRollup {
+    return TelemetryRollup(
+        deviceId = deviceId,
+        sensorType = sensorType,
+        resolution = RollupResolution.valueOf(resolution),
+        bucketStart = bucketStart,
+        count = sampleCount,
+        sum = valueSum,
+        min = minValue,
+        max = maxValue,
+        lastValue = lastValue,
+        lastTimestamp = lastTimestamp
     )
 }
 
@@ -2,15 +2,19 @@ package com.iotlogic.blynk.data.sync
 
 import android.content.Context
 import androidx.work.*
+import com.iotlogic.blynk.data.local.CounterStore
+import com.iotlogic.blynk.data.local.TelemetryRetention
+import com.iotlogic.blynk.data.local.compression.TelemetryCompactor
 import com.iotlogic.blynk.data.local.dao.CommandQueueDao
 import com.iotlogic.blynk.data.local.dao.DeviceDao
-import com.iotlogic.blynk.data.local.dao.TelemetryDao
 import com.iotlogic.blynk.data.local.entities.CommandQueueEntity
+import com.iotlogic.blynk.data.local.entities.CounterEntity
 import com.iotlogic.blynk.data.local.preferences.AuthPreferences
 import com.iotlogic.blynk.data.remote.ApiService
 import com.iotlogic.blynk.data.remote.UpdateDeviceRequest
 import com.iotlogic.blynk.data.remote.SubmitTelemetryBatchRequest
 import com.iotlogic.blynk.data.remote.TelemetryDataItem
+import com.iotlogic.blynk.domain.model.RollupResolution
 import com.iotlogic.blynk.domain.model.SyncStatus
 import com.iotlogic.blynk.hardware.HardwareManager
 import com.iotlogic.blynk.utils.NetworkUtils
@@ -26,7 +30,10 @@ class SyncManager @Inject constructor(
     @ApplicationContext private val context: Context,
     private val commandQueueDao: CommandQueueDao,
     private val deviceDao: DeviceDao,
-    private val telemetryDao: TelemetryDao,
+    private val telemetryOutbox: TelemetryOutbox,
+    private val telemetryCompactor: TelemetryCompactor,
+    private val telemetryRetention: TelemetryRetention,
+    private val counters: CounterStore,
     private val apiService: ApiService,
     private val hardwareManager: HardwareManager,
     private val networkUtils: NetworkUtils,
@@ -50,6 +57,10 @@ class SyncManager @Inject constructor(
     private var autoSyncEnabled = true
     private var syncIntervalMinutes = 15L
     
+    companion object {
+        private const val COMPRESSED_RETENTION_DAYS = 365L
+    }
+    
     init {
         // Monitor pending commands
         monitorPendingCommands()
@@ -90,9 +101,6 @@ class SyncManager @Inject constructor(
                     return@withContext configResult
                 }
                 
-                // 4. Clean up old data
-                cleanupOldData()
-                
                 _lastSyncTime.value = System.currentTimeMillis()
                 _syncStatus.value = SyncStatus.COMPLETED
                 
@@ -100,6 +108,9 @@ class SyncManager @Inject constructor(
             } catch (e: Exception) {
                 _syncStatus.value = SyncStatus.ERROR
                 Result.failure(e)
+            } finally {
+                // 4. Clean up old data, also when an upload failed so the outbox stays bounded
+                cleanupOldData()
             }
         }
     }
@@ -270,67 +281,24 @@ class SyncManager @Inject constructor(
     }
     
     /**
-     * Sync telemetry data with backend
+     * Upload telemetry queued in the outbox since the last acknowledged batch
      */
     private suspend fun syncTelemetryData(token: String): Result<Unit> {
-        return try {
-            val pendingTelemetry = telemetryDao.getPendingSyncTelemetry()
+        return telemetryOutbox.drainByDevice(TelemetryOutbox.DESTINATION_API) { deviceToken, samples ->
+            val response = apiService.submitTelemetryBatch(
+                token = "Bearer $token",
+                request = SubmitTelemetryBatchRequest(
+                    deviceToken = deviceToken,
+                    telemetryData = samples
+                )
+            )
             
-            if (pendingTelemetry.isNotEmpty()) {
-                val batches = pendingTelemetry.chunked(100) // Process in batches of 100
-                
-                batches.forEach { batch ->
-                    val telemetryData = batch.map { telemetry ->
-                        mapOf(
-                            "id" to telemetry.id,
-                            "deviceId" to telemetry.deviceId,
-                            "sensorType" to telemetry.sensorType,
-                            "value" to telemetry.value,
-                            "unit" to telemetry.unit,
-                            "timestamp" to telemetry.timestamp,
-                            "quality" to telemetry.quality,
-                            "metadata" to telemetry.metadata
-                        )
-                    }
-                    
-                    val response = apiService.submitTelemetryBatch(
-                        token = "Bearer $token",
-                        request = SubmitTelemetryBatchRequest(
-                            deviceToken = "", // This should be obtained from device
-                            telemetryData = telemetryData.map { data ->
-                                TelemetryDataItem(
-                                    sensorType = data["sensorType"] as? String ?: "",
-                                    value = (data["value"] as? Number)?.toDouble() ?: 0.0,
-                                    unit = data["unit"] as? String,
-                                    timestamp = (data["timestamp"] as? Number)?.toLong() ?: System.currentTimeMillis()
-                                )
-                            }
-                        )
-                    )
-                    
-                    if (response.isSuccessful) {
-                        // Mark as synced
-                        batch.forEach { telemetry ->
-                            telemetryDao.updateTelemetry(
-                                telemetry.copy(syncStatus = "SYNCED")
-                            )
-                        }
-                    } else {
-                        // Mark as failed
-                        batch.forEach { telemetry ->
-                            telemetryDao.updateTelemetry(
-                                telemetry.copy(syncStatus = "FAILED")
-                            )
-                        }
-                        return Result.failure(Exception("Telemetry sync failed: ${response.message()}"))
-                    }
-                }
+            if (response.isSuccessful) {
+                Result.success(Unit)
+            } else {
+                Result.failure(Exception("Telemetry sync failed: ${response.message()}"))
             }
-            
-            Result.success(Unit)
-        } catch (e: Exception) {
-            Result.failure(e)
-        }
+        }.map { }
     }
     
     /**
@@ -436,9 +404,10 @@ class SyncManager @Inject constructor(
     }
     
     /**
-     * Clean up old completed and cancelled commands
+     * Clean up old commands and apply telemetry retention; runs after every sync and on
+     * its own while nobody is signed in
      */
-    private suspend fun cleanupOldData() {
+    suspend fun cleanupOldData() {
         try {
             val cutoffTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(7) // 7 days old
             
@@ -448,29 +417,33 @@ class SyncManager @Inject constructor(
             // Clean up expired commands
             commandQueueDao.deleteExpiredCommands()
             
-            // Clean up old telemetry (keep only last 30 days)
+            // Move synced telemetry past the hot window into compressed blocks
+            telemetryCompactor.compact()
+            
+            // Clean up old uncompacted telemetry (keep only last 30 days), in short chunks so ingest keeps running
             val telemetryCutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30)
-            telemetryDao.deleteOldTelemetry(telemetryCutoff)
+            telemetryRetention.deleteTelemetryOlderThan(telemetryCutoff)
+            
+            // Minute rollups follow raw retention; hour and day rollups are kept for long-range charts
+            telemetryRetention.deleteRollupsOlderThan(RollupResolution.MINUTE, telemetryCutoff)
             
+            // Compressed history is kept much longer than raw rows
+            val blockCutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(COMPRESSED_RETENTION_DAYS)
+            telemetryRetention.deleteBlocksOlderThan(blockCutoff)
+        
         } catch (e: Exception) {
             // Log error but don't fail the sync
         }
     }
     
     /**
-     * Monitor pending commands count
+     * Follow the materialized pending command counter
      */
     private fun monitorPendingCommands() {
         scope.launch {
-            while (isActive) {
-                try {
-                    val count = commandQueueDao.getPendingCommandCount()
-                    _pendingCommandCount.value = count
-                    delay(5000) // Check every 5 seconds
-                } catch (e: Exception) {
-                    delay(10000) // Wait longer on error
-                }
-            }
+            counters.observe(CounterEntity.PENDING_COMMANDS)
+                .catch { /* Keep the last known count */ }
+                .collect { count -> _pendingCommandCount.value = count.toInt() }
         }
     }
     
@@ -505,8 +478,7 @@ class SyncManager @Inject constructor(
                 if (isAvailable && autoSyncEnabled) {
                     delay(2000) // Wait a bit for connection to stabilize
                     // Trigger sync if there are pending commands
-                    val pendingCount = commandQueueDao.getPendingCommandCount()
-                    if (pendingCount > 0) {
+                    if (counters.get(CounterEntity.PENDING_COMMANDS) > 0) {
                         val token = authPreferences.getAuthToken()
                         if (token != null) {
                             processPendingCommands(token)
@@ -522,7 +494,7 @@ class SyncManager @Inject constructor(
      */
     suspend fun getSyncStatistics(): SyncStatistics {
         return SyncStatistics(
-            pendingCommands = commandQueueDao.getPendingCommandCount(),
+            pendingCommands = counters.get(CounterEntity.PENDING_COMMANDS).toInt(),
             retryableCommands = commandQueueDao.getRetryableCommandCount(),
             lastSyncTime = _lastSyncTime.value,
             currentStatus = _syncStatus.value,
@@ -22,7 +22,8 @@ class SyncWorker @AssistedInject constructor(
             val token = authPreferences.getAuthToken()
             
             if (token == null) {
-                // No auth token available, skip sync
+                // No auth token available, skip sync but keep local data within retention
+                syncManager.cleanupOldData()
                 return Result.success()
             }
             
@@ -0,0 +1,127 @@
+package com.iotlogic.blynk.data.sync
+
+import com.iotlogic.blynk.data.local.DeviceTokenCache
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.dao.TelemetryOutboxDao
+import com.iotlogic.blynk.data.local.entities.SyncCursorEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryOutboxEntity
+import com.iotlogic.blynk.data.remote.TelemetryDataItem
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Reads the telemetry outbox forward from a destination's persisted cursor. Each batch
+ * is one range read on the outbox rowid, and a successful upload is acknowledged by a
+ * single cursor write, so telemetry rows are never rewritten to record sync progress.
+ * A failed upload leaves the cursor where it was and the batch is sent again next time.
+ */
+@Singleton
+class TelemetryOutbox @Inject constructor(
+    private val outboxDao: TelemetryOutboxDao,
+    private val channelRegistry: SensorChannelRegistry,
+    private val tokenCache: DeviceTokenCache
+) {
+    
+    // Two uploads to one destination would send the same range twice
+    private val uploadLock = Mutex()
+    
+    companion object {
+        const val DESTINATION_API = "api"
+        const val DEFAULT_BATCH_SIZE = 100
+    }
+    
+    /**
+     * Upload everything after the cursor of [destination] in batches of [batchSize].
+     * Stops at the first failed batch. Returns the number of samples acknowledged.
+     */
+    suspend fun drain(
+        destination: String,
+        batchSize: Int = DEFAULT_BATCH_SIZE,
+        upload: suspend (List<TelemetryOutboxEntity>) -> Result<Unit>
+    ): Result<Int> {
+        return uploadLock.withLock {
+            try {
+                var cursor = outboxDao.getCursor(destination) ?: 0L
+                var acknowledged = 0
+                
+                while (true) {
+                    val batch = outboxDao.getBatchAfter(cursor, batchSize)
+                    if (batch.isEmpty()) break
+                    
+                    val result = upload(batch)
+                    if (result.isFailure) {
+                        return@withLock Result.failure(
+                            result.exceptionOrNull() ?: Exception("Telemetry upload failed")
+                        )
+                    }
+                    
+                    cursor = batch.last().seq
+                    outboxDao.acknowledge(destination, cursor)
+                    acknowledged += batch.size
+                    
+                    if (batch.size < batchSize) break
+                }
+                
+                Result.success(acknowledged)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Result.failure(e)
+            }
+        }
+    }
+    
+    /**
+     * [drain] with every batch split per device and uploaded under that device's token.
+     * A device accepted before a later one in the same batch failed gets its own cursor,
+     * so the retried batch skips what it already took. Samples of deleted devices, or of
+     * devices without a token, cannot be uploaded and are skipped.
+     */
+    suspend fun drainByDevice(
+        destination: String,
+        batchSize: Int = DEFAULT_BATCH_SIZE,
+        upload: suspend (deviceToken: String, samples: List<TelemetryDataItem>) -> Result<Unit>
+    ): Result<Int> {
+        return drain(destination, batchSize) { batch ->
+            val byDevice = LinkedHashMap<String, MutableList<TelemetryDataItem>>()
+            val lastSeqByDevice = HashMap<String, Long>()
+            for (sample in batch) {
+                val channel = channelRegistry.get(sample.channelId) ?: continue
+                val accepted = lastSeqByDevice.getOrPut(channel.deviceId) {
+                    outboxDao.getCursor(SyncCursorEntity.deviceDestination(destination, channel.deviceId)) ?: 0L
+                }
+                if (sample.seq <= accepted) continue
+                
+                byDevice.getOrPut(channel.deviceId) { ArrayList() }.add(
+                    TelemetryDataItem(
+                        sensorType = channel.sensorType,
+                        value = sample.value,
+                        unit = channel.unit.ifEmpty { null },
+                        timestamp = sample.timestamp
+                    )
+                )
+            }
+            
+            val batchEnd = batch.last().seq
+            for ((deviceId, samples) in byDevice) {
+                val deviceToken = tokenCache.resolveToken(deviceId)
+                if (deviceToken.isNullOrEmpty()) continue
+                
+                val result = upload(deviceToken, samples)
+                if (result.isFailure) return@drain result
+                outboxDao.setCursor(SyncCursorEntity(SyncCursorEntity.deviceDestination(destination, deviceId), batchEnd))
+            }
+            Result.success(Unit)
+        }
+    }
+    
+    /**
+     * Number of samples still waiting for [destination]
+     */
+    suspend fun getPendingCount(destination: String): Int {
+        return outboxDao.getCountAfter(outboxDao.getCursor(destination) ?: 0L)
+    }
+}
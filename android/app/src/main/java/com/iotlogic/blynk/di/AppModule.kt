@@ -2,16 +2,25 @@ package com.iotlogic.blynk.di
 
 import android.content.Context
 import androidx.room.Room
+import com.iotlogic.blynk.data.ingest.TelemetryIngestWriter
+import com.iotlogic.blynk.data.local.CounterStore
 import com.iotlogic.blynk.data.local.IoTLogicDatabase
+import com.iotlogic.blynk.data.local.InvalidationCoalescer
+import com.iotlogic.blynk.data.local.LatestTelemetryStore
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.TelemetryRetention
 import com.iotlogic.blynk.data.local.dao.CommandQueueDao
 import com.iotlogic.blynk.data.local.dao.ConfigurationDao
 import com.iotlogic.blynk.data.local.dao.DeviceDao
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
 import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.dao.TelemetryRollupDao
 import com.iotlogic.blynk.data.remote.ApiClient
 import com.iotlogic.blynk.data.remote.ApiService
 import com.iotlogic.blynk.data.repository.DeviceRepositoryImpl
 import com.iotlogic.blynk.data.repository.TelemetryRepositoryImpl
 import com.iotlogic.blynk.data.repository.ConfigurationRepositoryImpl
+import com.iotlogic.blynk.data.sync.TelemetryOutbox
 import com.iotlogic.blynk.domain.repository.DeviceRepository
 import com.iotlogic.blynk.domain.repository.TelemetryRepository
 import com.iotlogic.blynk.domain.repository.ConfigurationRepository
@@ -20,6 +29,7 @@ import com.iotlogic.blynk.hardware.bluetooth.BluetoothLeManager
 import com.iotlogic.blynk.hardware.mqtt.MqttConnectionManager
 import com.iotlogic.blynk.hardware.usb.UsbSerialManager
 import com.iotlogic.blynk.hardware.wifi.WiFiDeviceManager
+import com.iotlogic.blynk.utils.NetworkUtils
 import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
@@ -63,9 +73,10 @@ object AppModule {
     @Provides
     @Singleton
     fun provideMqttConnectionManager(
-        @ApplicationContext context: Context
+        @ApplicationContext context: Context,
+        networkUtils: NetworkUtils
     ): MqttConnectionManager {
-        return MqttConnectionManager(context)
+        return MqttConnectionManager(context, networkUtils)
     }
     
     @Provides
@@ -141,17 +152,38 @@ object AppModule {
             IoTLogicDatabase::class.java,
             "iotlogic_database"
         )
-            .addMigrations(IoTLogicDatabase.MIGRATION_1_2)
+            .addMigrations(IoTLogicDatabase.MIGRATION_1_2, IoTLogicDatabase.MIGRATION_2_3, IoTLogicDatabase.MIGRATION_3_4, IoTLogicDatabase.MIGRATION_4_5, IoTLogicDatabase.MIGRATION_5_6, IoTLogicDatabase.MIGRATION_6_7, IoTLogicDatabase.MIGRATION_7_8, IoTLogicDatabase.MIGRATION_8_9, IoTLogicDatabase.MIGRATION_9_10, IoTLogicDatabase.MIGRATION_10_11, IoTLogicDatabase.MIGRATION_11_12)
             .addCallback(IoTLogicDatabase.prepopulateCallback)
             .build()
     }
     
+    @Provides
+    fun provideInvalidationTracker(database: IoTLogicDatabase) = database.invalidationTracker
+    
     @Provides
     fun provideDeviceDao(database: IoTLogicDatabase) = database.deviceDao()
     
     @Provides
     fun provideTelemetryDao(database: IoTLogicDatabase) = database.telemetryDao()
     
+    @Provides
+    fun provideTelemetryRollupDao(database: IoTLogicDatabase) = database.telemetryRollupDao()
+    
+    @Provides
+    fun provideTelemetryIngestDao(database: IoTLogicDatabase) = database.telemetryIngestDao()
+    
+    @Provides
+    fun provideTelemetryBlockDao(database: IoTLogicDatabase) = database.telemetryBlockDao()
+    
+    @Provides
+    fun provideSensorChannelDao(database: IoTLogicDatabase) = database.sensorChannelDao()
+    
+    @Provides
+    fun provideTelemetryOutboxDao(database: IoTLogicDatabase) = database.telemetryOutboxDao()
+    
+    @Provides
+    fun provideCounterDao(database: IoTLogicDatabase) = database.counterDao()
+    
     @Provides
     fun provideConfigurationDao(database: IoTLogicDatabase) = database.configurationDao()
     
@@ -162,18 +194,43 @@ object AppModule {
     @Singleton
     fun provideDeviceRepository(
         deviceDao: DeviceDao,
-        apiClient: ApiClient
+        apiClient: ApiClient,
+        channelRegistry: SensorChannelRegistry,
+        latestStore: LatestTelemetryStore,
+        invalidations: InvalidationCoalescer,
+        counters: CounterStore
     ): DeviceRepository {
-        return DeviceRepositoryImpl(deviceDao, apiClient)
+        return DeviceRepositoryImpl(deviceDao, apiClient, channelRegistry, latestStore, invalidations, counters)
     }
     
     @Provides
     @Singleton
     fun provideTelemetryRepository(
         telemetryDao: TelemetryDao,
-        apiClient: ApiClient
+        rollupDao: TelemetryRollupDao,
+        blockDao: TelemetryBlockDao,
+        apiClient: ApiClient,
+        ingestWriter: TelemetryIngestWriter,
+        channelRegistry: SensorChannelRegistry,
+        latestStore: LatestTelemetryStore,
+        retention: TelemetryRetention,
+        outbox: TelemetryOutbox,
+        counters: CounterStore,
+        database: IoTLogicDatabase
     ): TelemetryRepository {
-        return TelemetryRepositoryImpl(telemetryDao, apiClient)
+        return TelemetryRepositoryImpl(
+            telemetryDao,
+            rollupDao,
+            blockDao,
+            apiClient,
+            ingestWriter,
+            channelRegistry,
+            latestStore,
+            retention,
+            outbox,
+            counters,
+            database.invalidationTracker
+        )
     }
     
     @Provides
@@ -0,0 +1,9 @@
+package com.iotlogic.blynk.domain.model
+
+/**
+ * One point of a downsampled chart series
+ */
+data class ChartPoint(
+    val timestamp: Long,
+    val value: Double
+)
@@ -7,6 +7,7 @@ data class Telemetry(
     val value: Double,
     val unit: String? = null,
     val timestamp: Long,
+    val seq: Long = 0, // Global ingest sequence, assigned when the sample is stored
     val quality: String? = null, // GOOD, QUESTIONABLE, BAD
     val rawValue: String? = null, // Original raw sensor reading
     val metadata: Map<String, Any>? = null,
@@ -0,0 +1,58 @@
+package com.iotlogic.blynk.domain.model
+
+/**
+ * Pre-aggregated telemetry for one device sensor over a fixed time bucket
+ */
+data class TelemetryRollup(
+    val deviceId: String,
+    val sensorType: String,
+    val resolution: RollupResolution,
+    val bucketStart: Long,
+    val count: Long,
+    val sum: Double,
+    val min: Double,
+    val max: Double,
+    val lastValue: Double,
+    val lastTimestamp: Long
+) {
+    val average: Double
+        get() = if (count > 0) sum / count else 0.0
+    
+    val bucketEnd: Long
+        get() = bucketStart + resolution.durationMs
+}
+
+/**
+ * Count, sum and extremes of telemetry values over an arbitrary time range
+ */
+data class TelemetryAggregate(
+    val count: Long = 0,
+    val sum: Double = 0.0,
+    val min: Double? = null,
+    val max: Double? = null
+) {
+    val average: Double?
+        get() = if (count > 0) sum / count else null
+    
+    operator fun plus(other: TelemetryAggregate): TelemetryAggregate {
+        if (other.count == 0L) return this
+        if (count == 0L) return other
+        return TelemetryAggregate(
+            count = count + other.count,
+            sum = sum + other.sum,
+            min = listOfNotNull(min, other.min).minOrNull(),
+            max = listOfNotNull(max, other.max).maxOrNull()
+        )
+    }
+}
+
+/**
+ * Rollup bucket sizes, finest first
+ */
+enum class RollupResolution(val durationMs: Long) {
+    MINUTE(60_000L),
+    HOUR(3_600_000L),
+    DAY(86_400_000L);
+    
+    fun bucketStart(timestamp: Long): Long = timestamp.floorDiv(durationMs) * durationMs
+}
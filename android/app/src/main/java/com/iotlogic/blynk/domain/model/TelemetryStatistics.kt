@@ -0,0 +1,132 @@
+package com.iotlogic.blynk.domain.model
+
+import kotlin.math.sqrt
+
+/**
+ * Summary statistics of a range of samples. Partial results from separate sources
+ * (channels, raw rows, compressed blocks) are combined with [plus] using the parallel
+ * variance formula, so no source has to be read twice.
+ */
+data class TelemetryStatistics(
+    val count: Long = 0,
+    val mean: Double = 0.0,
+    val m2: Double = 0.0, // Sum of squared deviations from the mean
+    val min: Double? = null,
+    val max: Double? = null,
+    val first: TimedValue? = null,
+    val last: TimedValue? = null
+) {
+    val average: Double?
+        get() = if (count > 0) mean else null
+    
+    // Sample variance
+    val variance: Double?
+        get() = when {
+            count > 1 -> m2 / (count - 1)
+            count == 1L -> 0.0
+            else -> null
+        }
+    
+    val standardDeviation: Double?
+        get() = variance?.let { sqrt(it) }
+    
+    operator fun plus(other: TelemetryStatistics): TelemetryStatistics {
+        if (other.count == 0L) return this
+        if (count == 0L) return other
+        
+        val total = count + other.count
+        val delta = other.mean - mean
+        return TelemetryStatistics(
+            count = total,
+            mean = mean + delta * other.count / total,
+            m2 = m2 + other.m2 + delta * delta * count * other.count / total,
+            min = listOfNotNull(min, other.min).minOrNull(),
+            max = listOfNotNull(max, other.max).maxOrNull(),
+            first = listOfNotNull(first, other.first).minByOrNull { it.timestamp },
+            last = listOfNotNull(last, other.last).maxByOrNull { it.timestamp }
+        )
+    }
+    
+    companion object {
+        /**
+         * Build from power sums taken around [shift]: the count, Σ(x − shift) and
+         * Σ(x − shift)². A shift close to the data keeps the sums from cancelling.
+         */
+        fun fromShiftedSums(
+            count: Long,
+            shift: Double,
+            shiftedSum: Double,
+            shiftedSumSquares: Double,
+            min: Double?,
+            max: Double?,
+            first: TimedValue?,
+            last: TimedValue?
+        ): TelemetryStatistics {
+            if (count == 0L) return TelemetryStatistics()
+            val shiftedMean = shiftedSum / count
+            return TelemetryStatistics(
+                count = count,
+                mean = shift + shiftedMean,
+                m2 = (shiftedSumSquares - shiftedSum * shiftedMean).coerceAtLeast(0.0),
+                min = min,
+                max = max,
+                first = first,
+                last = last
+            )
+        }
+    }
+}
+
+data class TimedValue(
+    val timestamp: Long,
+    val value: Double
+)
+
+/**
+ * Streaming statistics using Welford's online algorithm. Each sample costs O(1) and
+ * nothing is retained, so it can follow a live sensor indefinitely. Not thread-safe.
+ */
+class WelfordAccumulator(initial: TelemetryStatistics = TelemetryStatistics()) {
+    
+    private var count = 0L
+    private var mean = 0.0
+    private var m2 = 0.0
+    private var min = Double.POSITIVE_INFINITY
+    private var max = Double.NEGATIVE_INFINITY
+    private var first: TimedValue? = null
+    private var last: TimedValue? = null
+    
+    init {
+        reset(initial)
+    }
+    
+    fun add(timestamp: Long, value: Double) {
+        count++
+        val delta = value - mean
+        mean += delta / count
+        m2 += delta * (value - mean)
+        
+        if (value < min) min = value
+        if (value > max) max = value
+        if (first.let { it == null || timestamp < it.timestamp }) first = TimedValue(timestamp, value)
+        if (last.let { it == null || timestamp >= it.timestamp }) last = TimedValue(timestamp, value)
+    }
+    
+    /**
+     * Continue from previously computed statistics
+     */
+    fun reset(statistics: TelemetryStatistics) {
+        count = statistics.count
+        mean = statistics.mean
+        m2 = statistics.m2
+        min = statistics.min ?: Double.POSITIVE_INFINITY
+        max = statistics.max ?: Double.NEGATIVE_INFINITY
+        first = statistics.first
+        last = statistics.last
+    }
+    
+    fun snapshot(): TelemetryStatistics {
+        if (count == 0L) return TelemetryStatistics()
+        return TelemetryStatistics(count, mean, m2, min, max, first, last)
+    }
+}
@@ -0,0 +1,75 @@
+package com.iotlogic.blynk.domain.model
+
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+
+/**
+ * Incremental observation of the newest telemetry: one [Snapshot] followed by the
+ * samples committed after it. [cursor] is the ingest sequence an update is complete up to.
+ */
+sealed class TelemetryTail {
+    abstract val samples: List<Telemetry>
+    abstract val cursor: Long
+    
+    // Newest samples first
+    data class Snapshot(
+        override val samples: List<Telemetry>,
+        override val cursor: Long
+    ) : TelemetryTail()
+    
+    // Samples with a sequence above the previous cursor, in commit order
+    data class Appended(
+        override val samples: List<Telemetry>,
+        override val cursor: Long
+    ) : TelemetryTail()
+}
+
+/**
+ * The newest [limit] samples of a tail, newest first. Appending costs O(limit) for the
+ * merge, independent of how much telemetry is stored. Not thread-safe.
+ */
+class TelemetryWindow(private val limit: Int) {
+    
+    private var samples: List<Telemetry> = emptyList()
+    
+    init {
+        require(limit > 0) { "limit must be positive" }
+    }
+    
+    fun apply(update: TelemetryTail): List<Telemetry> {
+        samples = when (update) {
+            is TelemetryTail.Snapshot -> update.samples.sortedWith(NEWEST_FIRST).take(limit)
+            is TelemetryTail.Appended -> merge(samples, update.samples.sortedWith(NEWEST_FIRST))
+        }
+        return samples
+    }
+    
+    // Late samples can sort anywhere, so both sides are merged rather than prepended
+    private fun merge(current: List<Telemetry>, appended: List<Telemetry>): List<Telemetry> {
+        if (appended.isEmpty()) return current
+        val merged = ArrayList<Telemetry>(minOf(limit, current.size + appended.size))
+        var i = 0
+        var j = 0
+        while (merged.size < limit && (i < current.size || j < appended.size)) {
+            merged += when {
+                i == current.size -> appended[j++]
+                j == appended.size -> current[i++]
+                NEWEST_FIRST.compare(appended[j], current[i]) <= 0 -> appended[j++]
+                else -> current[i++]
+            }
+        }
+        return merged
+    }
+    
+    private companion object {
+        val NEWEST_FIRST = compareByDescending<Telemetry> { it.timestamp }.thenByDescending { it.seq }
+    }
+}
+
+/**
+ * Fold a tail into a bounded window of the newest [limit] samples
+ */
+fun Flow<TelemetryTail>.window(limit: Int): Flow<List<Telemetry>> = flow {
+    val window = TelemetryWindow(limit)
+    collect { emit(window.apply(it)) }
+}
@@ -25,7 +25,11 @@ interface DeviceRepository {
     suspend fun updateDeviceOnlineStatus(deviceId: String, isOnline: Boolean): Result<Unit>
     suspend fun updateSignalStrength(deviceId: String, signalStrength: Int, quality: String): Result<Unit>
     
-    // Statistics
+    // Statistics, read from materialized counters
     suspend fun getDeviceCount(): Int
     suspend fun getDeviceCountByProtocol(protocol: String): Int
+    suspend fun getDeviceCountByStatus(status: String): Int
+    fun observeDeviceCount(): Flow<Int>
+    fun observeDeviceCountByProtocol(protocol: String): Flow<Int>
+    fun observeDeviceCountByStatus(status: String): Flow<Int>
 }
\ No newline at end of file
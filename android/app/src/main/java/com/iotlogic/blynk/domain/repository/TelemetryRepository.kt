@@ -1,7 +1,15 @@
 package com.iotlogic.blynk.domain.repository
 
+import androidx.paging.PagingData
+import com.iotlogic.blynk.domain.model.ChartPoint
+import com.iotlogic.blynk.domain.model.RollupResolution
 import com.iotlogic.blynk.domain.model.Telemetry
+import com.iotlogic.blynk.domain.model.TelemetryAggregate
+import com.iotlogic.blynk.domain.model.TelemetryRollup
+import com.iotlogic.blynk.domain.model.TelemetryStatistics
+import com.iotlogic.blynk.domain.model.TelemetryTail
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.StateFlow
 
 interface TelemetryRepository {
     
@@ -11,14 +19,33 @@ interface TelemetryRepository {
     fun getTelemetryByDeviceAndSensor(deviceId: String, sensorType: String, limit: Int = 100): Flow<List<Telemetry>>
     fun getTelemetryByTimeRange(deviceId: String, startTime: Long, endTime: Long): Flow<List<Telemetry>>
     
+    // Snapshot of the newest samples, then only samples committed after it
+    fun tailRecentTelemetry(limit: Int = 100): Flow<TelemetryTail>
+    fun tailTelemetryByDevice(deviceId: String, limit: Int = 100): Flow<TelemetryTail>
+    
+    // Paged history, newest first, with keyset cursors instead of offsets
+    fun getTelemetryHistory(
+        deviceId: String,
+        sensorType: String? = null,
+        startTime: Long = 0,
+        endTime: Long = Long.MAX_VALUE,
+        pageSize: Int = 50
+    ): Flow<PagingData<Telemetry>>
+    
     // Single item queries
     suspend fun getLatestTelemetryForDevice(deviceId: String): Telemetry?
     suspend fun getLatestTelemetryForSensor(deviceId: String, sensorType: String): Telemetry?
+    fun observeLatestTelemetry(deviceId: String, sensorType: String): StateFlow<Telemetry?>
     
     // Analytics queries
     suspend fun getAverageTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double?
     suspend fun getMinTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double?
     suspend fun getMaxTelemetryValue(deviceId: String, sensorType: String, startTime: Long, endTime: Long): Double?
+    suspend fun getTelemetryAggregate(deviceId: String, sensorType: String, startTime: Long, endTime: Long): TelemetryAggregate
+    suspend fun getTelemetryStatistics(deviceId: String, sensorType: String, startTime: Long, endTime: Long): TelemetryStatistics
+    fun observeTelemetryStatistics(deviceId: String, sensorType: String, windowMs: Long): Flow<TelemetryStatistics>
+    suspend fun getChartSeries(deviceId: String, sensorType: String, startTime: Long, endTime: Long, maxPoints: Int = 1000): List<ChartPoint>
+    suspend fun getTelemetryRollups(deviceId: String, sensorType: String, resolution: RollupResolution, startTime: Long, endTime: Long): List<TelemetryRollup>
     
     // CRUD operations
     suspend fun storeTelemetryData(telemetry: Telemetry): Result<Unit>
@@ -29,10 +56,10 @@ interface TelemetryRepository {
     // Sync operations
     suspend fun syncTelemetryData(token: String): Result<Unit>
     suspend fun uploadPendingTelemetry(token: String): Result<Unit>
-    suspend fun markTelemetryAsSynced(telemetryIds: List<String>): Result<Unit>
     
     // Metadata queries
     suspend fun getSensorTypesForDevice(deviceId: String): List<String>
     suspend fun getTelemetryCountForDevice(deviceId: String): Int
+    fun observeTelemetryCountForDevice(deviceId: String): Flow<Int>
     suspend fun getTelemetryCountSince(deviceId: String, timestamp: Long): Int
 }
\ No newline at end of file
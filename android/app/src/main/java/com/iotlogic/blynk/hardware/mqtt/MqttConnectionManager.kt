@@ -1,11 +1,17 @@
 package com.iotlogic.blynk.hardware.mqtt
 
 import android.content.Context
+import com.iotlogic.blynk.data.ingest.TelemetryBatchCodec
+import com.iotlogic.blynk.data.ingest.TelemetryCodecRegistry
+import com.iotlogic.blynk.data.ingest.TelemetrySample
+import com.iotlogic.blynk.utils.NetworkUtils
 import dagger.hilt.android.qualifiers.ApplicationContext
 import kotlinx.coroutines.*
 import kotlinx.coroutines.flow.*
 import org.eclipse.paho.client.mqttv3.*
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import java.io.File
+import java.util.UUID
 import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -16,14 +22,19 @@ import javax.inject.Singleton
 @OptIn(ExperimentalCoroutinesApi::class)
 @Singleton
 class MqttConnectionManager @Inject constructor(
-    @ApplicationContext private val context: Context // Required for dependency injection, may be used for future system services
+    @ApplicationContext private val context: Context, // Locates durable session storage
+    networkUtils: NetworkUtils
 ) {
     
     private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
     
     // MQTT clients management
     private val mqttClients = ConcurrentHashMap<String, MqttAsyncClient>()
-    private val subscriptions = ConcurrentHashMap<String, MutableSet<String>>()
+    private val connectOptions = ConcurrentHashMap<String, MqttConnectOptions>()
+    
+    // Topic filter -> QoS, re-subscribed after every reconnect
+    private val subscriptions = ConcurrentHashMap<String, MutableMap<String, Int>>()
+    private val publishers = ConcurrentHashMap<String, MqttPipelinedPublisher>()
     
     // State flows
     private val _connectionStates = MutableStateFlow<Map<String, MqttConnectionState>>(emptyMap())
@@ -32,10 +43,35 @@ class MqttConnectionManager @Inject constructor(
     private val _receivedMessages = MutableSharedFlow<MqttReceivedMessage>()
     val receivedMessages: SharedFlow<MqttReceivedMessage> = _receivedMessages.asSharedFlow()
     
+    // Bounded hand-off from the Paho callback threads to receivedMessages collectors
+    private val receivePipeline = MqttReceivePipeline(scope) { _receivedMessages.emit(it) }
+    val receiveStats: StateFlow<MqttReceiveStats> = receivePipeline.stats
+    
+    // Only encodes, which keeps no state, so it is shared by all callers
+    private val telemetryEncoders = TelemetryCodecRegistry()
+    
+    private val reconnectSupervisor = MqttReconnectSupervisor(scope) { reconnect(it) }
+    val reconnectStats: StateFlow<MqttReconnectStats> = reconnectSupervisor.stats
+    
+    companion object {
+        private const val PERSISTENCE_DIRECTORY = "mqtt"
+        private const val PREFS_NAME = "mqtt_prefs"
+        private const val CLIENT_ID_PREFIX = "IoTLogic_"
+    }
+    
     // Note: publishResults is used in deliveryComplete callback
     private val _publishResults = MutableSharedFlow<MqttPublishResult>()
     val publishResults: SharedFlow<MqttPublishResult> = _publishResults.asSharedFlow()
     
+    init {
+        // A network coming back is the likeliest moment for a lost broker to be reachable
+        scope.launch {
+            networkUtils.networkAvailability.collect { isAvailable ->
+                if (isAvailable) reconnectSupervisor.networkAvailable()
+            }
+        }
+    }
+    
     /**
      * Initialize MQTT manager
      */
@@ -63,17 +99,25 @@ class MqttConnectionManager @Inject constructor(
         cleanSession: Boolean = true,
         keepAliveInterval: Int = 60,
         connectionTimeout: Int = 30,
-        enableSsl: Boolean = false
+        enableSsl: Boolean = false,
+        durableSession: Boolean = false
     ): Result<Unit> {
         return withContext(Dispatchers.IO) {
             try {
-                val actualClientId = clientId ?: "IoTLogic_${System.currentTimeMillis()}"
-                val persistence = MemoryPersistence()
+                // A durable session survives restarts: the broker keeps it under a stable
+                // client id and in-flight QoS 1/2 messages are kept on disk
+                val actualClientId = clientId ?: if (durableSession) durableClientId(brokerId) else "$CLIENT_ID_PREFIX${System.currentTimeMillis()}"
+                val persistence = if (durableSession) {
+                    SegmentedFilePersistence(File(context.filesDir, PERSISTENCE_DIRECTORY))
+                } else {
+                    MemoryPersistence()
+                }
                 
                 val client = MqttAsyncClient(brokerUrl, actualClientId, persistence)
                 
                 val connOpts = MqttConnectOptions().apply {
-                    isCleanSession = cleanSession
+                    isCleanSession = cleanSession && !durableSession
+                    maxInflight = MqttPipelinedPublisher.DEFAULT_MAX_INFLIGHT
                     keepAliveInterval = keepAliveInterval
                     connectionTimeout = connectionTimeout
                     
@@ -90,23 +134,21 @@ class MqttConnectionManager @Inject constructor(
                 // Set callback for the client
                 client.setCallback(object : MqttCallback {
                     override fun connectionLost(cause: Throwable?) {
-                        scope.launch {
-                            updateConnectionState(brokerId, MqttConnectionState.DISCONNECTED)
-                        }
+                        // Marked before the supervisor starts so its CONNECTING is not overwritten
+                        updateConnectionState(brokerId, MqttConnectionState.RECONNECTING)
+                        reconnectSupervisor.connectionLost(brokerId)
                     }
                     
                     override fun messageArrived(topic: String, message: MqttMessage) {
-                        scope.launch {
-                            val receivedMessage = MqttReceivedMessage(
-                                brokerId = brokerId,
-                                topic = topic,
-                                payload = message.payload,
-                                qos = message.qos,
-                                retained = message.isRetained,
-                                timestamp = System.currentTimeMillis()
-                            )
-                            _receivedMessages.emit(receivedMessage)
-                        }
+                        val receivedMessage = MqttReceivedMessage(
+                            brokerId = brokerId,
+                            topic = topic,
+                            payload = message.payload,
+                            qos = message.qos,
+                            retained = message.isRetained,
+                            timestamp = System.currentTimeMillis()
+                        )
+                        receivePipeline.offer(receivedMessage)
                     }
                     
                     override fun deliveryComplete(token: IMqttDeliveryToken) {
@@ -130,7 +172,7 @@ class MqttConnectionManager @Inject constructor(
                         override fun onSuccess(asyncActionToken: IMqttToken) {
                             continuation.resume(true)
                         }
-
+                        
                         override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
                             continuation.resume(false)
                         }
@@ -139,7 +181,9 @@ class MqttConnectionManager @Inject constructor(
                 
                 if (connectResult) {
                     mqttClients[brokerId] = client
-                    subscriptions[brokerId] = mutableSetOf()
+                    connectOptions[brokerId] = connOpts
+                    subscriptions[brokerId] = ConcurrentHashMap()
+                    publishers[brokerId] = MqttPipelinedPublisher(client)
                     updateConnectionState(brokerId, MqttConnectionState.CONNECTED)
                     Result.success(Unit)
                 } else {
@@ -160,22 +204,27 @@ class MqttConnectionManager @Inject constructor(
     suspend fun disconnect(brokerId: String): Result<Unit> {
         return withContext(Dispatchers.IO) {
             try {
+                reconnectSupervisor.stop(brokerId)
                 val client = mqttClients[brokerId]
-                if (client != null && client.isConnected) {
-                    suspendCancellableCoroutine<Boolean> { continuation ->
-                        client.disconnect(null, object : IMqttActionListener {
-                            override fun onSuccess(asyncActionToken: IMqttToken) {
-                                continuation.resume(true)
-                            }
-
-                            override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
-                                continuation.resume(false)
-                            }
-                        })
+                if (client != null) {
+                    if (client.isConnected) {
+                        suspendCancellableCoroutine<Boolean> { continuation ->
+                            client.disconnect(null, object : IMqttActionListener {
+                                override fun onSuccess(asyncActionToken: IMqttToken) {
+                                    continuation.resume(true)
+                                }
+                                
+                                override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
+                                    continuation.resume(false)
+                                }
+                            })
+                        }
                     }
                     
                     mqttClients.remove(brokerId)
+                    connectOptions.remove(brokerId)
                     subscriptions.remove(brokerId)
+                    publishers.remove(brokerId)
                     updateConnectionState(brokerId, MqttConnectionState.DISCONNECTED)
                 }
                 Result.success(Unit)
@@ -210,7 +259,7 @@ class MqttConnectionManager @Inject constructor(
                         override fun onSuccess(asyncActionToken: IMqttToken) {
                             continuation.resume(true)
                         }
-
+                        
                         override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
                             continuation.resume(false)
                         }
@@ -218,7 +267,9 @@ class MqttConnectionManager @Inject constructor(
                 }
                 
                 if (subscribeResult) {
-                    subscriptions[brokerId]?.addAll(topics)
+                    subscriptions[brokerId]?.let { subscribed ->
+                        topics.forEachIndexed { i, topic -> subscribed[topic] = actualQos[i] }
+                    }
                     Result.success(Unit)
                 } else {
                     Result.failure(Exception("Failed to subscribe to topics"))
@@ -244,7 +295,7 @@ class MqttConnectionManager @Inject constructor(
                         override fun onSuccess(asyncActionToken: IMqttToken) {
                             continuation.resume(true)
                         }
-
+                        
                         override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
                             continuation.resume(false)
                         }
@@ -252,7 +303,7 @@ class MqttConnectionManager @Inject constructor(
                 }
                 
                 if (unsubscribeResult) {
-                    subscriptions[brokerId]?.removeAll(topics.toSet())
+                    subscriptions[brokerId]?.keys?.removeAll(topics.toSet())
                     Result.success(Unit)
                 } else {
                     Result.failure(Exception("Failed to unsubscribe from topics"))
@@ -266,7 +317,6 @@ class MqttConnectionManager @Inject constructor(
     /**
      * Publish message to MQTT topic
      */
-    @OptIn(ExperimentalCoroutinesApi::class)
     suspend fun publish(
         brokerId: String,
         topic: String,
@@ -276,30 +326,39 @@ class MqttConnectionManager @Inject constructor(
     ): Result<Unit> {
         return withContext(Dispatchers.IO) {
             try {
-                val client = mqttClients[brokerId]
+                val publisher = publishers[brokerId]
                     ?: return@withContext Result.failure(Exception("Not connected to broker"))
                 
-                val message = MqttMessage(payload).apply {
-                    this.qos = qos
-                    isRetained = retained
-                }
+                publisher.publish(MqttOutgoingMessage(topic, payload, qos, retained)).await()
+                Result.success(Unit)
+            } catch (e: Exception) {
+                Result.failure(e)
+            }
+        }
+    }
+    
+    /**
+     * Publish messages pipelined, with up to the publisher's window awaiting acknowledgement
+     */
+    suspend fun publishAll(brokerId: String, messages: List<MqttOutgoingMessage>): Result<Unit> {
+        return withContext(Dispatchers.IO) {
+            try {
+                val publisher = publishers[brokerId]
+                    ?: return@withContext Result.failure(Exception("Not connected to broker"))
                 
-                val publishResult = suspendCancellableCoroutine<Boolean> { continuation ->
-                    client.publish(topic, message, null, object : IMqttActionListener {
-                        override fun onSuccess(asyncActionToken: IMqttToken) {
-                            continuation.resume(true)
-                        }
-
-                        override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
-                            continuation.resume(false)
-                        }
-                    })
+                val failed = publisher.publishAll(messages).count { completion ->
+                    try {
+                        completion.await()
+                        false
+                    } catch (e: Exception) {
+                        true
+                    }
                 }
                 
-                if (publishResult) {
+                if (failed == 0) {
                     Result.success(Unit)
                 } else {
-                    Result.failure(Exception("Failed to publish message"))
+                    Result.failure(Exception("Failed to publish $failed of ${messages.size} messages"))
                 }
             } catch (e: Exception) {
                 Result.failure(e)
@@ -307,6 +366,22 @@ class MqttConnectionManager @Inject constructor(
         }
     }
     
+    /**
+     * Publish a stream of messages pipelined and report how many were acknowledged
+     */
+    suspend fun publishFrom(brokerId: String, messages: Flow<MqttOutgoingMessage>): Result<PublishSummary> {
+        return withContext(Dispatchers.IO) {
+            try {
+                val publisher = publishers[brokerId]
+                    ?: return@withContext Result.failure(Exception("Not connected to broker"))
+                
+                Result.success(publisher.publishFrom(messages))
+            } catch (e: Exception) {
+                Result.failure(e)
+            }
+        }
+    }
+    
     /**
      * Publish string message to MQTT topic
      */
@@ -321,25 +396,61 @@ class MqttConnectionManager @Inject constructor(
     }
     
     /**
-     * Send device telemetry data
+     * Send device telemetry data, as JSON or in another registered [format]
      */
     suspend fun sendTelemetry(
         brokerId: String,
         deviceToken: String,
         sensorType: String,
         value: Any,
-        unit: String? = null
+        unit: String? = null,
+        format: String = TelemetryCodecRegistry.JSON
     ): Result<Unit> {
         return withContext(Dispatchers.IO) {
             try {
-                val topic = "devices/$deviceToken/telemetry/$sensorType"
-                val payload = if (unit != null) {
-                    """{"value":$value,"unit":"$unit","timestamp":${System.currentTimeMillis()}}"""
+                val codec = telemetryEncoders.forFormat(format)
+                    ?: return@withContext Result.failure(IllegalArgumentException("Unknown telemetry format $format"))
+                
+                // JSON keeps the bare topic; other formats are named by a last topic level
+                val topic = if (format == TelemetryCodecRegistry.JSON) {
+                    "devices/$deviceToken/telemetry/$sensorType"
                 } else {
-                    """{"value":$value,"timestamp":${System.currentTimeMillis()}}"""
+                    "devices/$deviceToken/telemetry/$sensorType/$format"
                 }
                 
-                publishString(brokerId, topic, payload)
+                val payload = when {
+                    value is Number -> codec.encode(value.toDouble(), unit, System.currentTimeMillis())
+                    format == TelemetryCodecRegistry.JSON -> {
+                        // Non-numeric readings only have a JSON form
+                        val json = if (unit != null) {
+                            """{"value":$value,"unit":"$unit","timestamp":${System.currentTimeMillis()}}"""
+                        } else {
+                            """{"value":$value,"timestamp":${System.currentTimeMillis()}}"""
+                        }
+                        json.toByteArray()
+                    }
+                    else -> return@withContext Result.failure(IllegalArgumentException("$format telemetry needs a numeric value"))
+                }
+                
+                publish(brokerId, topic, payload)
+            } catch (e: Exception) {
+                Result.failure(e)
+            }
+        }
+    }
+    
+    /**
+     * Publish several readings as one JSON message on devices/{token}/telemetry
+     */
+    suspend fun sendTelemetryBatch(
+        brokerId: String,
+        deviceToken: String,
+        samples: List<TelemetrySample>
+    ): Result<Unit> {
+        if (samples.isEmpty()) return Result.success(Unit)
+        return withContext(Dispatchers.IO) {
+            try {
+                publish(brokerId, "devices/$deviceToken/telemetry", TelemetryBatchCodec.encode(samples))
             } catch (e: Exception) {
                 Result.failure(e)
             }
@@ -382,6 +493,20 @@ class MqttConnectionManager @Inject constructor(
         }
     }
     
+    /**
+     * Configure how bulk messages are handled while collectors fall behind
+     */
+    fun configureReceiveOverflow(policy: MqttOverflowPolicy) {
+        receivePipeline.configure(policy)
+    }
+    
+    /**
+     * Configure the backoff between attempts to reconnect a lost broker
+     */
+    fun configureReconnectBackoff(initialDelayMs: Long, maxDelayMs: Long) {
+        reconnectSupervisor.configure(initialDelayMs, maxDelayMs)
+    }
+    
     /**
      * Get connection status
      */
@@ -393,7 +518,7 @@ class MqttConnectionManager @Inject constructor(
      * Get subscribed topics for a broker
      */
     fun getSubscribedTopics(brokerId: String): Set<String> {
-        return subscriptions[brokerId]?.toSet() ?: emptySet()
+        return subscriptions[brokerId]?.keys?.toSet() ?: emptySet()
     }
     
     /**
@@ -407,15 +532,85 @@ class MqttConnectionManager @Inject constructor(
      * Shutdown MQTT manager
      */
     suspend fun shutdown() {
+        reconnectSupervisor.close()
+        
         // Disconnect all clients
         val brokerIds = mqttClients.keys.toList()
         brokerIds.forEach { brokerId ->
             disconnect(brokerId)
         }
         
+        receivePipeline.close()
         scope.cancel()
     }
     
+    // Generated once per broker and kept, so the broker recognises the session after a restart
+    private fun durableClientId(brokerId: String): String {
+        val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        val key = "client_id_$brokerId"
+        prefs.getString(key, null)?.let { return it }
+        
+        // 23 characters, the longest client id every MQTT 3.1 broker must accept
+        val clientId = CLIENT_ID_PREFIX + UUID.randomUUID().toString().replace("-", "").take(14)
+        prefs.edit().putString(key, clientId).apply()
+        return clientId
+    }
+    
+    // One attempt for the reconnect supervisor: same client and options, then every
+    // recorded subscription in a single SUBSCRIBE
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private suspend fun reconnect(brokerId: String): Boolean {
+        val client = mqttClients[brokerId] ?: return false
+        val options = connectOptions[brokerId] ?: return false
+        
+        updateConnectionState(brokerId, MqttConnectionState.CONNECTING)
+        val connected = suspendCancellableCoroutine<Boolean> { continuation ->
+            client.connect(options, null, object : IMqttActionListener {
+                override fun onSuccess(asyncActionToken: IMqttToken) {
+                    continuation.resume(true)
+                }
+                
+                override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
+                    continuation.resume(false)
+                }
+            })
+        }
+        
+        if (connected && restoreSubscriptions(brokerId, client)) {
+            updateConnectionState(brokerId, MqttConnectionState.CONNECTED)
+            return true
+        }
+        
+        if (connected) {
+            // Connected but deaf; drop it so the next attempt starts clean
+            try {
+                client.disconnect()
+            } catch (e: MqttException) {
+                // Already going down
+            }
+        }
+        updateConnectionState(brokerId, MqttConnectionState.RECONNECTING)
+        return false
+    }
+    
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private suspend fun restoreSubscriptions(brokerId: String, client: MqttAsyncClient): Boolean {
+        val subscribed = subscriptions[brokerId]?.toMap() ?: return true
+        if (subscribed.isEmpty()) return true
+        
+        return suspendCancellableCoroutine { continuation ->
+            client.subscribe(subscribed.keys.toTypedArray(), subscribed.values.toIntArray(), null, object : IMqttActionListener {
+                override fun onSuccess(asyncActionToken: IMqttToken) {
+                    continuation.resume(true)
+                }
+                
+                override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
+                    continuation.resume(false)
+                }
+            })
+        }
+    }
+    
     private fun updateConnectionState(brokerId: String, state: MqttConnectionState) {
         val currentStates = _connectionStates.value.toMutableMap()
         currentStates[brokerId] = state
@@ -469,5 +664,6 @@ enum class MqttConnectionState {
     DISCONNECTED,
     CONNECTING,
     CONNECTED,
+    RECONNECTING, // Lost; the reconnect supervisor is retrying
     FAILED
 }
\ No newline at end of file
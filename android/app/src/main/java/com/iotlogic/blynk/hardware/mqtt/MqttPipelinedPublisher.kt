@@ -0,0 +1,141 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.sync.Semaphore
+import org.eclipse.paho.client.mqttv3.IMqttActionListener
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient
+import org.eclipse.paho.client.mqttv3.IMqttToken
+import org.eclipse.paho.client.mqttv3.MqttMessage
+
+/**
+ * Publishes with up to [maxInflight] messages awaiting acknowledgement, instead of one
+ * round trip per message.
+ *
+ * [publish] only suspends while the window is full. Completion of each message is reported
+ * through the returned [Deferred], completed from Paho's callback thread by one shared
+ * listener, so no coroutine is started per message.
+ */
+class MqttPipelinedPublisher(
+    private val client: IMqttAsyncClient,
+    val maxInflight: Int = DEFAULT_MAX_INFLIGHT
+) {
+    
+    private val window: Semaphore
+    
+    companion object {
+        // Also raised in Paho's own in-flight limit, which defaults to 10
+        const val DEFAULT_MAX_INFLIGHT = 64
+    }
+    
+    init {
+        require(maxInflight > 0) { "maxInflight must be positive" }
+        window = Semaphore(maxInflight)
+    }
+    
+    private val completionListener = object : IMqttActionListener {
+        override fun onSuccess(asyncActionToken: IMqttToken) {
+            window.release()
+            completionOf(asyncActionToken).complete(Unit)
+        }
+        
+        override fun onFailure(asyncActionToken: IMqttToken, exception: Throwable) {
+            window.release()
+            completionOf(asyncActionToken).completeExceptionally(exception)
+        }
+    }
+    
+    /**
+     * Send [message] once the window has room; the result completes on acknowledgement
+     */
+    suspend fun publish(message: MqttOutgoingMessage): Deferred<Unit> {
+        window.acquire()
+        val completion = CompletableDeferred<Unit>()
+        try {
+            val mqttMessage = MqttMessage(message.payload).apply {
+                qos = message.qos
+                isRetained = message.retained
+            }
+            client.publish(message.topic, mqttMessage, completion, completionListener)
+        } catch (e: Exception) {
+            // Rejected before it was sent, e.g. not connected
+            window.release()
+            completion.completeExceptionally(e)
+        }
+        return completion
+    }
+    
+    /**
+     * Send all [messages] in order, keeping the window full
+     */
+    suspend fun publishAll(messages: List<MqttOutgoingMessage>): List<Deferred<Unit>> {
+        return messages.map { publish(it) }
+    }
+    
+    /**
+     * Publish everything [messages] emits and wait for the acknowledgements.
+     * Returns how many were acknowledged and how many failed.
+     */
+    suspend fun publishFrom(messages: Flow<MqttOutgoingMessage>): PublishSummary {
+        var acknowledged = 0
+        var failed = 0
+        val pending = ArrayDeque<Deferred<Unit>>()
+        
+        suspend fun settle(completion: Deferred<Unit>) {
+            try {
+                completion.await()
+                acknowledged++
+            } catch (e: Exception) {
+                failed++
+            }
+        }
+        
+        messages.collect { message ->
+            pending.addLast(publish(message))
+            // Completed results are settled as we go so pending stays within about one window
+            while (pending.isNotEmpty() && (pending.first().isCompleted || pending.size > maxInflight)) {
+                settle(pending.removeFirst())
+            }
+        }
+        while (pending.isNotEmpty()) settle(pending.removeFirst())
+        return PublishSummary(acknowledged, failed)
+    }
+    
+    @Suppress("UNCHECKED_CAST")
+    private fun completionOf(token: IMqttToken): CompletableDeferred<Unit> =
+        token.userContext as CompletableDeferred<Unit>
+}
+
+/**
+ * A message to publish
+ */
+data class MqttOutgoingMessage(
+    val topic: String,
+    val payload: ByteArray,
+    val qos: Int = 1,
+    val retained: Boolean = false
+) {
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (javaClass != other?.javaClass) return false
+        other as MqttOutgoingMessage
+        return topic == other.topic && payload.contentEquals(other.payload) && qos == other.qos && retained == other.retained
+    }
+    
+    override fun hashCode(): Int {
+        var result = topic.hashCode()
+        result = 31 * result + payload.contentHashCode()
+        result = 31 * result + qos
+        result = 31 * result + retained.hashCode()
+        return result
+    }
+}
+
+/**
+ * Outcome of a streamed publish
+ */
+data class PublishSummary(
+    val acknowledged: Int,
+    val failed: Int
+)
@@ -0,0 +1,216 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.trySendBlocking
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.selects.select
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Hands messages from the Paho callback threads to a single consumer coroutine through
+ * two bounded lanes.
+ *
+ * Topics matching [priorityFilters], such as device status and system alerts, go to the
+ * priority lane. It is always drained first and is never dropped; when it is full the
+ * callback thread blocks, which stops Paho reading from the socket. Everything else goes
+ * to the bulk lane, where [MqttOverflowPolicy] decides what happens when it is full.
+ * Messages are delivered one at a time in arrival order within each lane.
+ */
+class MqttReceivePipeline(
+    scope: CoroutineScope,
+    priorityFilters: List<String> = DEFAULT_PRIORITY_FILTERS,
+    bulkCapacity: Int = DEFAULT_BULK_CAPACITY,
+    priorityCapacity: Int = DEFAULT_PRIORITY_CAPACITY,
+    private val deliver: suspend (MqttReceivedMessage) -> Unit
+) {
+    
+    private val priorityLane = Channel<MqttReceivedMessage>(priorityCapacity)
+    private val bulkLane = Channel<MqttReceivedMessage>(bulkCapacity)
+    
+    private val priorityQueued = AtomicInteger()
+    private val bulkQueued = AtomicInteger()
+    
+    // Route resolution reuses state, so callback threads of different brokers take turns
+    private val priorityRouter = MqttTopicRouter<Unit>().apply {
+        priorityFilters.forEach { register(it, Unit) }
+    }
+    
+    @Volatile
+    private var overflowPolicy = MqttOverflowPolicy.DROP_OLDEST
+    
+    private val _stats = MutableStateFlow(MqttReceiveStats())
+    val stats: StateFlow<MqttReceiveStats> = _stats.asStateFlow()
+    
+    private val consumer: Job
+    
+    companion object {
+        const val DEFAULT_BULK_CAPACITY = 1_000
+        const val DEFAULT_PRIORITY_CAPACITY = 100
+        
+        val DEFAULT_PRIORITY_FILTERS = listOf("devices/+/status", "system/alerts/#", "system/status/#")
+    }
+    
+    init {
+        require(bulkCapacity > 0 && priorityCapacity > 0) { "Lane capacities must be positive" }
+        consumer = scope.launch { drain() }
+    }
+    
+    /**
+     * Configure what happens to bulk messages arriving while the bulk lane is full
+     */
+    fun configure(overflowPolicy: MqttOverflowPolicy = MqttOverflowPolicy.DROP_OLDEST) {
+        this.overflowPolicy = overflowPolicy
+    }
+    
+    /**
+     * Queue a message; called on the Paho callback thread
+     */
+    fun offer(message: MqttReceivedMessage) {
+        if (isPriority(message.topic)) {
+            offerPriority(message)
+        } else {
+            offerBulk(message)
+        }
+    }
+    
+    /**
+     * Stop delivering; messages still queued are discarded
+     */
+    fun close() {
+        // Cancel first so the consumer does not see the lanes close; closing releases blocked callbacks
+        consumer.cancel()
+        priorityLane.close()
+        bulkLane.close()
+    }
+    
+    private fun isPriority(topic: String): Boolean = synchronized(priorityRouter) {
+        !priorityRouter.route(topic).isEmpty()
+    }
+    
+    private fun offerPriority(message: MqttReceivedMessage) {
+        // Count first so the consumer never sees the counter below zero
+        priorityQueued.incrementAndGet()
+        if (priorityLane.trySend(message).isSuccess) {
+            recordQueued()
+            return
+        }
+        
+        _stats.update { it.copy(blockedOffers = it.blockedOffers + 1) }
+        if (priorityLane.trySendBlocking(message).isSuccess) {
+            recordQueued()
+        } else {
+            // Closed while waiting
+            priorityQueued.decrementAndGet()
+        }
+    }
+    
+    private fun offerBulk(message: MqttReceivedMessage) {
+        bulkQueued.incrementAndGet()
+        if (bulkLane.trySend(message).isSuccess) {
+            recordQueued()
+            return
+        }
+        
+        when (overflowPolicy) {
+            MqttOverflowPolicy.DROP_OLDEST -> {
+                while (!bulkLane.trySend(message).isSuccess) {
+                    if (bulkLane.isClosedForSend) {
+                        bulkQueued.decrementAndGet()
+                        return
+                    }
+                    if (bulkLane.tryReceive().isSuccess) {
+                        bulkQueued.decrementAndGet()
+                        recordDropped()
+                    }
+                }
+                recordQueued()
+            }
+            MqttOverflowPolicy.DROP_NEWEST -> {
+                bulkQueued.decrementAndGet()
+                recordDropped()
+            }
+            MqttOverflowPolicy.BLOCK -> {
+                _stats.update { it.copy(blockedOffers = it.blockedOffers + 1) }
+                if (bulkLane.trySendBlocking(message).isSuccess) {
+                    recordQueued()
+                } else {
+                    bulkQueued.decrementAndGet()
+                }
+            }
+        }
+    }
+    
+    private suspend fun drain() {
+        while (true) {
+            // select prefers its first clause, but check explicitly so a busy bulk lane never wins a tie
+            val urgent = priorityLane.tryReceive().getOrNull()
+            if (urgent != null) {
+                consume(urgent, priorityQueued)
+                continue
+            }
+            select<Unit> {
+                priorityLane.onReceive { consume(it, priorityQueued) }
+                bulkLane.onReceive { consume(it, bulkQueued) }
+            }
+        }
+    }
+    
+    private suspend fun consume(message: MqttReceivedMessage, queued: AtomicInteger) {
+        queued.decrementAndGet()
+        try {
+            deliver(message)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            // A failing consumer must not stop the pipeline
+        }
+        
+        val lagMs = System.currentTimeMillis() - message.timestamp
+        _stats.update {
+            it.copy(
+                priorityQueued = priorityQueued.get(),
+                bulkQueued = bulkQueued.get(),
+                delivered = it.delivered + 1,
+                lastLagMs = lagMs,
+                maxLagMs = maxOf(it.maxLagMs, lagMs)
+            )
+        }
+    }
+    
+    private fun recordQueued() {
+        _stats.update { it.copy(priorityQueued = priorityQueued.get(), bulkQueued = bulkQueued.get()) }
+    }
+    
+    private fun recordDropped() {
+        _stats.update { it.copy(bulkQueued = bulkQueued.get(), dropped = it.dropped + 1) }
+    }
+}
+
+/**
+ * What the bulk lane does with a message arriving while it is full
+ */
+enum class MqttOverflowPolicy {
+    DROP_OLDEST, // Keep the newest telemetry
+    DROP_NEWEST, // Keep what is queued and discard the arrival
+    BLOCK // Hold the callback thread until there is room, pushing back on the broker
+}
+
+/**
+ * Receive pipeline metrics
+ */
+data class MqttReceiveStats(
+    val priorityQueued: Int = 0,
+    val bulkQueued: Int = 0,
+    val delivered: Long = 0,
+    val dropped: Long = 0, // Bulk messages discarded by the overflow policy
+    val blockedOffers: Long = 0, // Times a callback thread had to wait for room
+    val lastLagMs: Long = 0, // Arrival to end of delivery
+    val maxLagMs: Long = 0
+)
@@ -0,0 +1,165 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.random.Random
+
+/**
+ * Brings lost broker connections back, retrying with exponential backoff and full jitter.
+ *
+ * Each lost broker gets one retry loop. Before attempt n it waits a random time between
+ * zero and min(maxDelay, initialDelay * 2^n), so clients dropped together by a broker
+ * restart do not come back in lockstep. [networkAvailable] cuts every pending wait short
+ * and starts the backoff over, since the outage was most likely the network that just
+ * returned. [reconnect] reports whether the broker took the connection.
+ */
+class MqttReconnectSupervisor(
+    private val scope: CoroutineScope,
+    private val random: Random = Random.Default,
+    private val clock: () -> Long = System::currentTimeMillis,
+    private val reconnect: suspend (brokerId: String) -> Boolean
+) {
+    
+    private val retries = ConcurrentHashMap<String, Retry>()
+    
+    @Volatile
+    private var initialDelayMs = DEFAULT_INITIAL_DELAY_MS
+    
+    @Volatile
+    private var maxDelayMs = DEFAULT_MAX_DELAY_MS
+    
+    private val _stats = MutableStateFlow(MqttReconnectStats())
+    val stats: StateFlow<MqttReconnectStats> = _stats.asStateFlow()
+    
+    companion object {
+        const val DEFAULT_INITIAL_DELAY_MS = 1_000L
+        const val DEFAULT_MAX_DELAY_MS = 60_000L
+    }
+    
+    /**
+     * Configure the backoff; the wait before attempt n is capped at [maxDelayMs]
+     */
+    fun configure(
+        initialDelayMs: Long = DEFAULT_INITIAL_DELAY_MS,
+        maxDelayMs: Long = DEFAULT_MAX_DELAY_MS
+    ) {
+        require(initialDelayMs > 0 && maxDelayMs >= initialDelayMs) { "Backoff must be positive and maxDelayMs at least initialDelayMs" }
+        this.initialDelayMs = initialDelayMs
+        this.maxDelayMs = maxDelayMs
+    }
+    
+    /**
+     * Start retrying [brokerId]; called from Paho's connectionLost
+     */
+    fun connectionLost(brokerId: String) {
+        val retry = Retry(lostAt = clock())
+        val existing = retries.putIfAbsent(brokerId, retry)
+        if (existing != null) {
+            // The connection an attempt just made dropped again
+            existing.lostDuringAttempt = true
+            return
+        }
+        
+        _stats.update { it.copy(reconnecting = retries.size) }
+        retry.job = scope.launch { retryUntilConnected(brokerId, retry) }
+    }
+    
+    /**
+     * Retry every lost broker now instead of when its backoff runs out
+     */
+    fun networkAvailable() {
+        retries.values.forEach { it.wake.trySend(Unit) }
+    }
+    
+    /**
+     * Stop retrying [brokerId], e.g. because it was disconnected on purpose
+     */
+    fun stop(brokerId: String) {
+        retries.remove(brokerId)?.let { retry ->
+            retry.job?.cancel()
+            _stats.update { it.copy(reconnecting = retries.size) }
+        }
+    }
+    
+    fun close() {
+        retries.keys.toList().forEach { stop(it) }
+    }
+    
+    private suspend fun retryUntilConnected(brokerId: String, retry: Retry) {
+        var attempt = 0
+        while (retries[brokerId] === retry) {
+            val woken = withTimeoutOrNull(backoffDelay(attempt)) { retry.wake.receive() } != null
+            if (retries[brokerId] !== retry) return
+            
+            retry.lostDuringAttempt = false
+            val connected = try {
+                reconnect(brokerId) && !retry.lostDuringAttempt
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                false
+            }
+            
+            if (connected) {
+                if (retries.remove(brokerId, retry)) recordReconnect(clock() - retry.lostAt)
+                return
+            }
+            
+            _stats.update { it.copy(failedAttempts = it.failedAttempts + 1) }
+            attempt = if (woken) 1 else attempt + 1
+        }
+    }
+    
+    // Full jitter: uniform in [0, min(max, initial * 2^attempt)]
+    private fun backoffDelay(attempt: Int): Long {
+        val ceiling = if (attempt >= 62 || initialDelayMs > maxDelayMs shr attempt) {
+            maxDelayMs
+        } else {
+            initialDelayMs shl attempt
+        }
+        return random.nextLong(ceiling + 1)
+    }
+    
+    private fun recordReconnect(downtimeMs: Long) {
+        _stats.update {
+            it.copy(
+                reconnects = it.reconnects + 1,
+                reconnecting = retries.size,
+                lastDowntimeMs = downtimeMs,
+                maxDowntimeMs = maxOf(it.maxDowntimeMs, downtimeMs),
+                totalDowntimeMs = it.totalDowntimeMs + downtimeMs
+            )
+        }
+    }
+    
+    private class Retry(val lostAt: Long) {
+        val wake = Channel<Unit>(Channel.CONFLATED)
+        
+        @Volatile
+        var job: Job? = null
+        
+        @Volatile
+        var lostDuringAttempt = false
+    }
+}
+
+/**
+ * Reconnect counters since the manager was created
+ */
+data class MqttReconnectStats(
+    val reconnects: Long = 0,
+    val failedAttempts: Long = 0,
+    val reconnecting: Int = 0, // Brokers currently being retried
+    val lastDowntimeMs: Long = 0, // Connection lost to connection restored
+    val maxDowntimeMs: Long = 0,
+    val totalDowntimeMs: Long = 0
+)
@@ -0,0 +1,302 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+/**
+ * Resolves MQTT topics to handlers registered for topic filters.
+ *
+ * Filters follow MQTT rules: `+` matches exactly one level and a trailing `#` matches the
+ * remaining levels, including none. Filters are stored in a trie of topic levels and a
+ * topic is resolved in one pass over its characters plus one hashed child lookup per level,
+ * without splitting it. The levels matched by wildcards are handed to handlers as
+ * [TopicVariables], which are views into the topic rather than copies.
+ *
+ * Register filters up front; [route] reuses its result objects and is not thread-safe, so
+ * each consumer of the message stream keeps its own router.
+ */
+class MqttTopicRouter<H : Any> {
+    
+    private val root = Node<H>()
+    
+    // Level boundaries of the topic being routed
+    private var levelStarts = IntArray(INITIAL_LEVELS)
+    private var levelEnds = IntArray(INITIAL_LEVELS)
+    private var levelHashes = IntArray(INITIAL_LEVELS)
+    private var levelCount = 0
+    private var topic = ""
+    
+    private val matches = TopicMatches<H>()
+    
+    companion object {
+        private const val INITIAL_LEVELS = 8
+    }
+    
+    /**
+     * Register [handler] for [filter]. The same handler may be registered for several filters.
+     */
+    fun register(filter: String, handler: H) {
+        val levels = filter.split('/')
+        val wildcardLevels = ArrayList<Int>()
+        var node = root
+        for ((level, segment) in levels.withIndex()) {
+            when (segment) {
+                "#" -> {
+                    require(level == levels.lastIndex) { "# must be the last level of $filter" }
+                    node.remainderRoutes += Route(filter, handler, wildcardLevels.toIntArray(), remainderLevel = level)
+                    return
+                }
+                "+" -> {
+                    wildcardLevels += level
+                    node = node.anyLevel ?: Node<H>().also { node.anyLevel = it }
+                }
+                else -> {
+                    require('+' !in segment && '#' !in segment) { "Wildcards must occupy a whole level of $filter" }
+                    node = node.childOrCreate(segment)
+                }
+            }
+        }
+        node.routes += Route(filter, handler, wildcardLevels.toIntArray(), remainderLevel = -1)
+    }
+    
+    /**
+     * Remove [handler] from [filter]; returns whether it was registered
+     */
+    fun unregister(filter: String, handler: H): Boolean {
+        var node = root
+        for (segment in filter.split('/')) {
+            when (segment) {
+                "#" -> return node.remainderRoutes.removeAll { it.filter == filter && it.handler == handler }
+                "+" -> node = node.anyLevel ?: return false
+                else -> node = node.child(segment, segment.hashCode(), 0, segment.length) ?: return false
+            }
+        }
+        return node.routes.removeAll { it.filter == filter && it.handler == handler }
+    }
+    
+    /**
+     * Handlers whose filters match [topic], valid until the next call
+     */
+    fun route(topic: String): TopicMatches<H> {
+        this.topic = topic
+        scanLevels(topic)
+        matches.reset(this)
+        
+        // Topics starting with $ are reserved and not matched by leading wildcards
+        val wildcardsAtRoot = !topic.startsWith('$')
+        match(root, 0, wildcardsAtRoot)
+        return matches
+    }
+    
+    private fun scanLevels(topic: String) {
+        levelCount = 0
+        var start = 0
+        var hash = 0
+        for (i in 0..topic.length) {
+            if (i == topic.length || topic[i] == '/') {
+                if (levelCount == levelStarts.size) growLevels()
+                levelStarts[levelCount] = start
+                levelEnds[levelCount] = i
+                levelHashes[levelCount] = hash
+                levelCount++
+                start = i + 1
+                hash = 0
+            } else {
+                // Same as String.hashCode() of the level
+                hash = 31 * hash + topic[i].code
+            }
+        }
+    }
+    
+    private fun match(node: Node<H>, level: Int, wildcards: Boolean) {
+        if (wildcards) {
+            for (route in node.remainderRoutes) matches.add(route)
+        }
+        if (level == levelCount) {
+            for (route in node.routes) matches.add(route)
+            return
+        }
+        
+        node.child(topic, levelHashes[level], levelStarts[level], levelEnds[level])?.let { match(it, level + 1, true) }
+        if (wildcards) {
+            node.anyLevel?.let { match(it, level + 1, true) }
+        }
+    }
+    
+    private fun growLevels() {
+        levelStarts = levelStarts.copyOf(levelStarts.size * 2)
+        levelEnds = levelEnds.copyOf(levelEnds.size * 2)
+        levelHashes = levelHashes.copyOf(levelHashes.size * 2)
+    }
+    
+    internal fun levelStart(level: Int): Int = levelStarts[level]
+    
+    internal fun levelEnd(level: Int): Int = levelEnds[level]
+    
+    internal fun levels(): Int = levelCount
+    
+    internal fun topicEnd(): Int = topic.length
+    
+    internal fun currentTopic(): String = topic
+    
+    /**
+     * A filter level with its literal children kept in an open addressing table keyed by
+     * the level's String hash, so a lookup needs no substring of the topic
+     */
+    private class Node<H : Any> {
+        private var segments = arrayOfNulls<String>(4)
+        private var children = arrayOfNulls<Node<H>>(4)
+        private var size = 0
+        
+        var anyLevel: Node<H>? = null
+        val routes = ArrayList<Route<H>>(1)
+        val remainderRoutes = ArrayList<Route<H>>(1)
+        
+        fun child(source: String, hash: Int, start: Int, end: Int): Node<H>? {
+            val mask = segments.size - 1
+            var i = hash and mask
+            while (true) {
+                val segment = segments[i] ?: return null
+                if (segment.hashCode() == hash && segment.length == end - start && source.regionMatches(start, segment, 0, segment.length)) {
+                    return children[i]
+                }
+                i = (i + 1) and mask
+            }
+        }
+        
+        fun childOrCreate(segment: String): Node<H> {
+            child(segment, segment.hashCode(), 0, segment.length)?.let { return it }
+            if ((size + 1) * 2 > segments.size) rehash()
+            return Node<H>().also { insert(segment, it) }
+        }
+        
+        private fun insert(segment: String, node: Node<H>) {
+            val mask = segments.size - 1
+            var i = segment.hashCode() and mask
+            while (segments[i] != null) i = (i + 1) and mask
+            segments[i] = segment
+            children[i] = node
+            size++
+        }
+        
+        private fun rehash() {
+            val oldSegments = segments
+            val oldChildren = children
+            segments = arrayOfNulls(oldSegments.size * 2)
+            children = arrayOfNulls(oldSegments.size * 2)
+            size = 0
+            for (i in oldSegments.indices) {
+                val segment = oldSegments[i] ?: continue
+                insert(segment, oldChildren[i]!!)
+            }
+        }
+    }
+}
+
+internal class Route<H : Any>(
+    val filter: String,
+    val handler: H,
+    val wildcardLevels: IntArray,
+    val remainderLevel: Int // Level where # starts, or -1
+)
+
+/**
+ * Routes matched by the last [MqttTopicRouter.route] call, in no particular order
+ */
+class TopicMatches<H : Any> internal constructor() {
+    
+    private val routes = ArrayList<Route<H>>()
+    private val variables = ArrayList<TopicVariables>()
+    private lateinit var router: MqttTopicRouter<H>
+    
+    val size: Int
+        get() = routes.size
+    
+    fun isEmpty(): Boolean = routes.isEmpty()
+    
+    fun handler(index: Int): H = routes[index].handler
+    
+    fun filter(index: Int): String = routes[index].filter
+    
+    /**
+     * Levels captured by the wildcards of match [index], in filter order; a trailing #
+     * contributes the rest of the topic as the last variable
+     */
+    fun variables(index: Int): TopicVariables {
+        val route = routes[index]
+        val captured = variables[index]
+        captured.reset(router.currentTopic(), route.wildcardLevels.size + if (route.remainderLevel >= 0) 1 else 0)
+        for ((n, level) in route.wildcardLevels.withIndex()) {
+            captured.set(n, router.levelStart(level), router.levelEnd(level))
+        }
+        if (route.remainderLevel >= 0) {
+            val start = if (route.remainderLevel < router.levels()) router.levelStart(route.remainderLevel) else router.topicEnd()
+            captured.set(route.wildcardLevels.size, start, router.topicEnd())
+        }
+        return captured
+    }
+    
+    internal fun reset(router: MqttTopicRouter<H>) {
+        this.router = router
+        routes.clear()
+    }
+    
+    internal fun add(route: Route<H>) {
+        if (variables.size == routes.size) variables += TopicVariables()
+        routes += route
+    }
+}
+
+/**
+ * Topic levels captured by wildcards, as views into the routed topic
+ */
+class TopicVariables internal constructor() {
+    
+    private var topic = ""
+    private var views = arrayOfNulls<TopicSegment>(0)
+    
+    var size = 0
+        private set
+    
+    operator fun get(index: Int): CharSequence {
+        if (index !in 0 until size) throw IndexOutOfBoundsException("Variable $index of $size")
+        return views[index]!!
+    }
+    
+    internal fun reset(topic: String, size: Int) {
+        this.topic = topic
+        this.size = size
+        if (views.size < size) {
+            val grown = arrayOfNulls<TopicSegment>(size)
+            for (i in grown.indices) grown[i] = views.getOrNull(i) ?: TopicSegment()
+            views = grown
+        }
+    }
+    
+    internal fun set(index: Int, start: Int, end: Int) {
+        views[index]!!.set(topic, start, end)
+    }
+}
+
+/**
+ * A reusable window onto part of a topic String
+ */
+internal class TopicSegment : CharSequence {
+    
+    private var source = ""
+    private var start = 0
+    private var end = 0
+    
+    override val length: Int
+        get() = end - start
+    
+    override fun get(index: Int): Char = source[start + index]
+    
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence =
+        source.subSequence(start + startIndex, start + endIndex)
+    
+    override fun toString(): String = source.substring(start, end)
+    
+    fun set(source: String, start: Int, end: Int) {
+        this.source = source
+        this.start = start
+        this.end = end
+    }
+}
@@ -0,0 +1,301 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence
+import org.eclipse.paho.client.mqttv3.MqttException
+import org.eclipse.paho.client.mqttv3.MqttPersistable
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.Collections
+import java.util.Enumeration
+import java.util.Locale
+import java.util.zip.CRC32
+
+/**
+ * Paho persistence that keeps in-flight QoS 1/2 state in append-only segment files.
+ *
+ * Every put or remove is one record appended to the active segment with a single write,
+ * so the cost of persisting a message is one buffered system call. The live entries are
+ * also kept in memory, which makes reads free and lets a restart rebuild state by replaying
+ * the segments in order. A record cut short by process death fails its checksum and is
+ * truncated on the next open. When the active segment reaches [segmentBytes] a new one is
+ * started, and once dead records outweigh live ones the segments are compacted into one.
+ *
+ * Writes reach the OS on return, which survives process death; set [syncWrites] to also
+ * survive power loss at the price of an fsync per record.
+ */
+class SegmentedFilePersistence(
+    private val baseDirectory: File,
+    private val segmentBytes: Long = DEFAULT_SEGMENT_BYTES,
+    private val syncWrites: Boolean = false
+) : MqttClientPersistence {
+    
+    private val entries = LinkedHashMap<String, Entry>()
+    
+    private var directory: File? = null
+    private var activeSegment: FileChannel? = null
+    private var activeIndex = 0L
+    private var activeSize = 0L
+    
+    // Bytes of records in all segments, live or superseded
+    private var totalBytes = 0L
+    private var liveBytes = 0L
+    
+    private var writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES)
+    private val crc = CRC32()
+    
+    companion object {
+        const val DEFAULT_SEGMENT_BYTES = 1L shl 20
+        private const val MIN_COMPACTION_BYTES = 64L shl 10
+        private const val INITIAL_BUFFER_BYTES = 4096
+        
+        private const val SEGMENT_SUFFIX = ".seg"
+        private const val PUT: Byte = 1
+        private const val REMOVE: Byte = 2
+        
+        // type, key length, header length, payload length, checksum
+        private const val RECORD_OVERHEAD = 1 + 4 + 4 + 4 + 4
+        
+        private val ABSENT = ByteArray(0)
+    }
+    
+    @Synchronized
+    override fun open(clientId: String, serverURI: String) {
+        try {
+            val dir = File(baseDirectory, sanitize("$clientId-$serverURI"))
+            if (!dir.isDirectory && !dir.mkdirs()) {
+                throw MqttPersistenceException(MqttException.REASON_CODE_CLIENT_EXCEPTION.toInt())
+            }
+            directory = dir
+            entries.clear()
+            totalBytes = 0
+            liveBytes = 0
+            
+            val segments = segmentFiles(dir)
+            segments.forEach { replay(it) }
+            activeIndex = (segments.lastOrNull()?.let { indexOf(it) } ?: 0L) + 1
+            startSegment()
+            if (shouldCompact()) compact()
+        } catch (e: IOException) {
+            throw persistenceFailure(e)
+        }
+    }
+    
+    @Synchronized
+    override fun close() {
+        try {
+            activeSegment?.close()
+        } catch (e: IOException) {
+            throw persistenceFailure(e)
+        } finally {
+            activeSegment = null
+            entries.clear()
+        }
+    }
+    
+    @Synchronized
+    override fun put(key: String, persistable: MqttPersistable) {
+        val header = persistable.headerBytes?.copyOfRange(persistable.headerOffset, persistable.headerOffset + persistable.headerLength)
+        val payload = persistable.payloadBytes?.copyOfRange(persistable.payloadOffset, persistable.payloadOffset + persistable.payloadLength)
+        val entry = Entry(header ?: ByteArray(0), payload)
+        
+        entry.recordBytes = append(PUT, key, entry.header, payload)
+        entries.put(key, entry)?.let { liveBytes -= it.recordBytes }
+        liveBytes += entry.recordBytes
+        afterAppend()
+    }
+    
+    @Synchronized
+    override fun get(key: String): MqttPersistable? = entries[key]
+    
+    @Synchronized
+    override fun remove(key: String) {
+        val removed = entries.remove(key) ?: return
+        liveBytes -= removed.recordBytes
+        append(REMOVE, key, null, null)
+        afterAppend()
+    }
+    
+    @Synchronized
+    override fun keys(): Enumeration<String> = Collections.enumeration(ArrayList(entries.keys))
+    
+    @Synchronized
+    override fun clear() {
+        val dir = directory ?: return
+        try {
+            activeSegment?.close()
+            segmentFiles(dir).forEach { it.delete() }
+            entries.clear()
+            totalBytes = 0
+            liveBytes = 0
+            startSegment()
+        } catch (e: IOException) {
+            throw persistenceFailure(e)
+        }
+    }
+    
+    @Synchronized
+    override fun containsKey(key: String): Boolean = entries.containsKey(key)
+    
+    /**
+     * Segment files currently on disk, for tests and diagnostics
+     */
+    @Synchronized
+    fun segmentCount(): Int = directory?.let { segmentFiles(it).size } ?: 0
+    
+    private fun append(type: Byte, key: String, header: ByteArray?, payload: ByteArray?): Long {
+        val channel = activeSegment ?: throw MqttPersistenceException(MqttException.REASON_CODE_CLIENT_EXCEPTION.toInt())
+        val keyBytes = key.toByteArray(Charsets.UTF_8)
+        val size = RECORD_OVERHEAD + keyBytes.size + (header?.size ?: 0) + (payload?.size ?: 0)
+        if (writeBuffer.capacity() < size) writeBuffer = ByteBuffer.allocate(Integer.highestOneBit(size) shl 1)
+        
+        val buffer = writeBuffer
+        buffer.clear()
+        buffer.put(type)
+        putBlock(buffer, keyBytes)
+        putBlock(buffer, header)
+        putBlock(buffer, payload)
+        crc.reset()
+        crc.update(buffer.array(), 0, buffer.position())
+        buffer.putInt(crc.value.toInt())
+        buffer.flip()
+        
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer)
+            if (syncWrites) channel.force(false)
+        } catch (e: IOException) {
+            throw persistenceFailure(e)
+        }
+        
+        activeSize += size
+        totalBytes += size
+        return size.toLong()
+    }
+    
+    // Called once the index reflects the appended record, so compaction sees it
+    private fun afterAppend() {
+        if (activeSize < segmentBytes) return
+        try {
+            if (shouldCompact()) compact() else rollSegment()
+        } catch (e: IOException) {
+            throw persistenceFailure(e)
+        }
+    }
+    
+    private fun putBlock(buffer: ByteBuffer, bytes: ByteArray?) {
+        // -1 distinguishes a missing payload from an empty one
+        buffer.putInt(bytes?.size ?: -1)
+        bytes?.let { buffer.put(it) }
+    }
+    
+    private fun replay(segment: File) {
+        RandomAccessFile(segment, "rw").use { file ->
+            val data = ByteArray(file.length().toInt())
+            file.readFully(data)
+            val buffer = ByteBuffer.wrap(data)
+            
+            var valid = 0
+            while (buffer.remaining() >= RECORD_OVERHEAD) {
+                val start = buffer.position()
+                val type = buffer.get()
+                val key = readBlock(buffer) ?: break
+                val header = readBlock(buffer) ?: break
+                val payload = readBlock(buffer) ?: break
+                if (buffer.remaining() < 4) break
+                crc.reset()
+                crc.update(data, start, buffer.position() - start)
+                if (buffer.getInt() != crc.value.toInt()) break
+                
+                val recordBytes = (buffer.position() - start).toLong()
+                val keyString = String(key, Charsets.UTF_8)
+                entries.remove(keyString)?.let { liveBytes -= it.recordBytes }
+                if (type == PUT) {
+                    val entry = Entry(header.takeUnless { it === ABSENT } ?: ByteArray(0), payload.takeUnless { it === ABSENT })
+                    entry.recordBytes = recordBytes
+                    entries[keyString] = entry
+                    liveBytes += recordBytes
+                }
+                totalBytes += recordBytes
+                valid = buffer.position()
+            }
+            
+            // Drop a torn record left by a crash mid-write
+            if (valid < data.size) file.setLength(valid.toLong())
+        }
+    }
+    
+    // ABSENT for a block written as missing, null when the record is cut off
+    private fun readBlock(buffer: ByteBuffer): ByteArray? {
+        if (buffer.remaining() < 4) return null
+        val length = buffer.getInt()
+        if (length == -1) return ABSENT
+        if (length < 0 || length > buffer.remaining()) return null
+        return ByteArray(length).also { buffer.get(it) }
+    }
+    
+    private fun shouldCompact(): Boolean {
+        val deadBytes = totalBytes - liveBytes
+        return deadBytes >= MIN_COMPACTION_BYTES && deadBytes > liveBytes
+    }
+    
+    // Rewrite the live entries into a fresh segment, then delete everything older
+    private fun compact() {
+        val dir = directory ?: return
+        val stale = segmentFiles(dir)
+        activeSegment?.close()
+        activeIndex++
+        startSegment()
+        
+        totalBytes = 0
+        liveBytes = 0
+        for ((key, entry) in entries) {
+            entry.recordBytes = append(PUT, key, entry.header, entry.payload)
+            liveBytes += entry.recordBytes
+        }
+        // The copy must be durable before the only other copy is deleted
+        activeSegment?.force(true)
+        stale.forEach { it.delete() }
+    }
+    
+    private fun rollSegment() {
+        activeSegment?.force(false)
+        activeSegment?.close()
+        activeIndex++
+        startSegment()
+    }
+    
+    private fun startSegment() {
+        val dir = directory ?: return
+        val file = File(dir, "%016d%s".format(Locale.ROOT, activeIndex, SEGMENT_SUFFIX))
+        activeSegment = RandomAccessFile(file, "rw").channel.also { it.position(it.size()) }
+        activeSize = file.length()
+    }
+    
+    private fun segmentFiles(dir: File): List<File> {
+        return (dir.listFiles { file -> file.name.endsWith(SEGMENT_SUFFIX) } ?: emptyArray()).sortedBy { indexOf(it) }
+    }
+    
+    private fun indexOf(segment: File): Long = segment.name.removeSuffix(SEGMENT_SUFFIX).toLongOrNull() ?: 0L
+    
+    private fun sanitize(name: String): String = name.map { if (it.isLetterOrDigit() || it == '-' || it == '_') it else '_' }.joinToString("")
+    
+    private fun persistenceFailure(cause: Throwable): MqttPersistenceException =
+        MqttPersistenceException(cause)
+    
+    /**
+     * A persisted message; header and payload are private copies
+     */
+    private class Entry(val header: ByteArray, val payload: ByteArray?) : MqttPersistable {
+        var recordBytes = 0L
+        
+        override fun getHeaderBytes(): ByteArray = header
+        override fun getHeaderLength(): Int = header.size
+        override fun getHeaderOffset(): Int = 0
+        override fun getPayloadBytes(): ByteArray? = payload
+        override fun getPayloadLength(): Int = payload?.size ?: 0
+        override fun getPayloadOffset(): Int = 0
+    }
+}
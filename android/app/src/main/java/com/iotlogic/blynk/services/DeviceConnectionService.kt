@@ -10,6 +10,7 @@ import com.iotlogic.blynk.R
 import com.iotlogic.blynk.domain.repository.DeviceRepository
 import com.iotlogic.blynk.domain.repository.TelemetryRepository
 import com.iotlogic.blynk.hardware.HardwareManager
+import com.iotlogic.blynk.hardware.mqtt.MqttTopicRouter
 import com.iotlogic.blynk.ui.main.MainActivity
 import dagger.hilt.android.AndroidEntryPoint
 import kotlinx.coroutines.*
@@ -467,10 +468,11 @@ class MqttDeviceConnection(
     override suspend fun start() {
         isActive = true
         
-        // Monitor MQTT messages
+        // Monitor MQTT messages on this device's topics
+        val router = MqttTopicRouter<Unit>().apply { register("devices/$deviceId/#", Unit) }
         connectionScope.launch {
             hardwareManager.getMqttManager().receivedMessages.collect { message ->
-                if (message.topic.contains(deviceId)) {
+                if (!router.route(message.topic).isEmpty()) {
                     updateLastSeen()
                     // Process MQTT message
                 }
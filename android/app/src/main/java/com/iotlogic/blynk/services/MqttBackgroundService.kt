@@ -7,15 +7,28 @@ import android.os.Build
 import android.os.IBinder
 import androidx.core.app.NotificationCompat
 import com.iotlogic.blynk.R
+import com.iotlogic.blynk.data.local.DeviceTokenCache
+import com.iotlogic.blynk.data.ingest.IngestStats
+import com.iotlogic.blynk.data.ingest.JsonFieldDecoder
+import com.iotlogic.blynk.data.ingest.TelemetryBatchCodec
+import com.iotlogic.blynk.data.ingest.TelemetryIngestWriter
+import com.iotlogic.blynk.data.ingest.TelemetryCodec
+import com.iotlogic.blynk.data.ingest.TelemetryCodecRegistry
+import com.iotlogic.blynk.data.ingest.TelemetryPayloadDecoder
+import com.iotlogic.blynk.data.ingest.TelemetrySample
 import com.iotlogic.blynk.domain.model.Telemetry
 import com.iotlogic.blynk.domain.repository.DeviceRepository
 import com.iotlogic.blynk.domain.repository.TelemetryRepository
 import com.iotlogic.blynk.hardware.mqtt.MqttConnectionManager
+import com.iotlogic.blynk.hardware.mqtt.MqttConnectionState
+import com.iotlogic.blynk.hardware.mqtt.MqttTopicRouter
 import com.iotlogic.blynk.ui.main.MainActivity
 import dagger.hilt.android.AndroidEntryPoint
 import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.collect
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 
 @AndroidEntryPoint
@@ -30,13 +43,34 @@ class MqttBackgroundService : Service() {
     @Inject
     lateinit var telemetryRepository: TelemetryRepository
     
+    @Inject
+    lateinit var telemetryIngestWriter: TelemetryIngestWriter
+    
+    @Inject
+    lateinit var deviceTokenCache: DeviceTokenCache
+    
     private val binder = MqttServiceBinder()
     private val serviceScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
     
     // Service state
     private var isRunning = false
     private var notificationId = 1002
-    private var connectedBrokers = mutableSetOf<String>()
+    
+    // Brokers this service connected, whatever their live state; all are disconnected on stop
+    private val startedBrokers = ConcurrentHashMap.newKeySet<String>()
+    
+    // Reused for every message; only touched from processMqttMessages
+    private val telemetryCodecs = TelemetryCodecRegistry()
+    private val batchCodec = TelemetryBatchCodec()
+    private val statusDecoder = JsonFieldDecoder(listOf("status", "online", "battery"))
+    private val router = MqttTopicRouter<MessageRoute>().apply {
+        register("devices/+/telemetry", MessageRoute.BATCH_TELEMETRY)
+        register("devices/+/telemetry/+", MessageRoute.TELEMETRY)
+        register("devices/+/telemetry/+/+", MessageRoute.ENCODED_TELEMETRY)
+        register("devices/+/status", MessageRoute.DEVICE_STATUS)
+        register("system/alerts/#", MessageRoute.SYSTEM_ALERT)
+        register("system/status/#", MessageRoute.SYSTEM_STATUS)
+    }
     
     companion object {
         const val ACTION_START_SERVICE = "START_MQTT_SERVICE"
@@ -51,6 +85,7 @@ class MqttBackgroundService : Service() {
         const val EXTRA_CLIENT_ID = "client_id"
         const val EXTRA_USERNAME = "username"
         const val EXTRA_PASSWORD = "password"
+        const val EXTRA_DURABLE_SESSION = "durable_session"
         const val EXTRA_TOPICS = "topics"
         const val EXTRA_TOPIC = "topic"
         const val EXTRA_MESSAGE = "message"
@@ -63,6 +98,11 @@ class MqttBackgroundService : Service() {
         // Default MQTT configuration
         const val DEFAULT_BROKER_URL = "tcp://broker.hivemq.com:1883"
         const val DEFAULT_CLIENT_ID_PREFIX = "IoTLogic_"
+        
+        // Status payload fields, in statusDecoder order
+        private const val STATUS_FIELD = 0
+        private const val ONLINE_FIELD = 1
+        private const val BATTERY_FIELD = 2
     }
     
     inner class MqttServiceBinder : Binder() {
@@ -85,7 +125,8 @@ class MqttBackgroundService : Service() {
                 val clientId = intent.getStringExtra(EXTRA_CLIENT_ID)
                 val username = intent.getStringExtra(EXTRA_USERNAME)
                 val password = intent.getStringExtra(EXTRA_PASSWORD)
-                connectToBroker(brokerId, brokerUrl, clientId, username, password)
+                val durableSession = intent.getBooleanExtra(EXTRA_DURABLE_SESSION, false)
+                connectToBroker(brokerId, brokerUrl, clientId, username, password, durableSession)
             }
             ACTION_DISCONNECT_BROKER -> {
                 val brokerId = intent.getStringExtra(EXTRA_BROKER_ID) ?: "default"
@@ -158,11 +199,14 @@ class MqttBackgroundService : Service() {
         isRunning = false
         
         serviceScope.launch {
-            // Disconnect from all brokers
-            connectedBrokers.toList().forEach { brokerId ->
+            // Disconnect from all brokers, including ones still reconnecting
+            startedBrokers.toList().forEach { brokerId ->
                 mqttConnectionManager.disconnect(brokerId)
             }
-            connectedBrokers.clear()
+            startedBrokers.clear()
+            
+            // Commit telemetry still buffered by the ingest writer
+            telemetryIngestWriter.flush()
             
             serviceScope.cancel()
             stopForeground(true)
@@ -184,29 +228,31 @@ class MqttBackgroundService : Service() {
         brokerUrl: String,
         clientId: String? = null,
         username: String? = null,
-        password: String? = null
+        password: String? = null,
+        durableSession: Boolean = false
     ) {
         serviceScope.launch {
-            val actualClientId = clientId ?: "${DEFAULT_CLIENT_ID_PREFIX}${System.currentTimeMillis()}"
+            // Durable sessions need the stable client id the manager keeps per broker
+            val actualClientId = clientId ?: if (durableSession) null else "${DEFAULT_CLIENT_ID_PREFIX}${System.currentTimeMillis()}"
             
+            startedBrokers.add(brokerId)
             val result = mqttConnectionManager.connect(
                 brokerId = brokerId,
                 brokerUrl = brokerUrl,
                 clientId = actualClientId,
                 username = username,
                 password = password,
-                cleanSession = true,
+                cleanSession = !durableSession,
                 keepAliveInterval = 60,
-                connectionTimeout = 30
+                connectionTimeout = 30,
+                durableSession = durableSession
             )
             
             if (result.isSuccess) {
-                connectedBrokers.add(brokerId)
-                
                 // Subscribe to device topics
                 subscribeToDeviceTopics(brokerId)
                 
-                updateNotification("Connected to ${connectedBrokers.size} MQTT broker(s)")
+                updateNotification("Connected to ${connectedBrokers().size} MQTT broker(s)")
             } else {
                 updateNotification("Failed to connect to MQTT broker: $brokerId")
             }
@@ -216,15 +262,17 @@ class MqttBackgroundService : Service() {
     private fun disconnectFromBroker(brokerId: String) {
         serviceScope.launch {
             mqttConnectionManager.disconnect(brokerId)
-            connectedBrokers.remove(brokerId)
-            updateNotification("Connected to ${connectedBrokers.size} MQTT broker(s)")
+            startedBrokers.remove(brokerId)
+            updateNotification("Connected to ${connectedBrokers().size} MQTT broker(s)")
         }
     }
     
     private suspend fun subscribeToDeviceTopics(brokerId: String) {
         // Subscribe to general device topics
         val deviceTopics = listOf(
+            "devices/+/telemetry",
             "devices/+/telemetry/+",
+            "devices/+/telemetry/+/+",
             "devices/+/status",
             "devices/+/commands/+",
             "system/alerts/+",
@@ -255,31 +303,32 @@ class MqttBackgroundService : Service() {
     }
     
     private suspend fun monitorMqttConnections() {
-        mqttConnectionManager.connectionStates.collect { connectionStates ->
-            val activeConnections = connectionStates.filter { (_, state) ->
-                state.name == "CONNECTED"
-            }.keys
-            
-            connectedBrokers.retainAll(activeConnections)
-            updateNotification("Connected to ${connectedBrokers.size} MQTT broker(s)")
+        // Brokers brought back by the reconnect supervisor count as connected again
+        mqttConnectionManager.connectionStates.collect {
+            updateNotification("Connected to ${connectedBrokers().size} MQTT broker(s)")
         }
     }
     
+    private fun connectedBrokers(): Set<String> {
+        val states = mqttConnectionManager.connectionStates.value
+        return startedBrokers.filterTo(HashSet()) { states[it] == MqttConnectionState.CONNECTED }
+    }
+    
     private suspend fun processMqttMessages() {
         mqttConnectionManager.receivedMessages.collect { message ->
             try {
-                when {
-                    message.topic.startsWith("devices/") && message.topic.contains("/telemetry/") -> {
-                        handleTelemetryMessage(message.topic, message.payloadString)
-                    }
-                    message.topic.startsWith("devices/") && message.topic.endsWith("/status") -> {
-                        handleDeviceStatusMessage(message.topic, message.payloadString)
-                    }
-                    message.topic.startsWith("system/alerts/") -> {
-                        handleSystemAlert(message.topic, message.payloadString)
-                    }
-                    message.topic.startsWith("system/status") -> {
-                        handleSystemStatus(message.payloadString)
+                val matches = router.route(message.topic)
+                for (i in 0 until matches.size) {
+                    val variables = matches.variables(i)
+                    when (matches.handler(i)) {
+                        MessageRoute.BATCH_TELEMETRY -> handleTelemetryBatch(variables[0], message.payload)
+                        MessageRoute.TELEMETRY -> handleTelemetryMessage(variables[0], variables[1], message.payload, telemetryCodecs.json)
+                        MessageRoute.ENCODED_TELEMETRY -> telemetryCodecs.forFormat(variables[2])?.let { codec ->
+                            handleTelemetryMessage(variables[0], variables[1], message.payload, codec)
+                        }
+                        MessageRoute.DEVICE_STATUS -> handleDeviceStatusMessage(variables[0], message.payload)
+                        MessageRoute.SYSTEM_ALERT -> handleSystemAlert(message.topic, message.payloadString)
+                        MessageRoute.SYSTEM_STATUS -> handleSystemStatus(message.payloadString)
                     }
                 }
             } catch (e: Exception) {
@@ -288,55 +337,72 @@ class MqttBackgroundService : Service() {
         }
     }
     
-    private suspend fun handleTelemetryMessage(topic: String, payload: String) {
+    // Topic: devices/{token}/telemetry/{sensorType}[/{format}]
+    private suspend fun handleTelemetryMessage(token: CharSequence, sensorType: CharSequence, payload: ByteArray, codec: TelemetryCodec) {
         try {
-            // Parse topic: devices/{token}/telemetry/{sensorType}
-            val parts = topic.split("/")
-            if (parts.size >= 4) {
-                val deviceToken = parts[1]
-                val sensorType = parts[3]
+            // Parse payload straight from the received bytes
+            if (codec.decode(payload)) {
+                // Topics carry the device token; unknown tokens are dropped
+                val deviceId = deviceTokenCache.resolveDeviceId(token.toString()) ?: return
+                val timestamp = codec.timestamp
+                val telemetry = Telemetry(
+                    id = UUID.randomUUID().toString(),
+                    deviceId = deviceId,
+                    sensorType = sensorType.toString(),
+                    value = codec.value,
+                    unit = codec.unit,
+                    timestamp = if (timestamp != TelemetryPayloadDecoder.NO_TIMESTAMP) timestamp else System.currentTimeMillis()
+                )
                 
-                // Parse payload (simplified JSON parsing)
-                val telemetryData = parseTelemetryPayload(payload)
+                telemetryRepository.storeTelemetryData(telemetry)
                 
-                if (telemetryData != null) {
-                    val telemetry = Telemetry(
-                        id = UUID.randomUUID().toString(),
-                        deviceId = deviceToken, // Would need to map token to device ID
-                        sensorType = sensorType,
-                        value = telemetryData.value,
-                        unit = telemetryData.unit,
-                        timestamp = telemetryData.timestamp ?: System.currentTimeMillis(),
-                        rawValue = payload
-                    )
-                    
-                    telemetryRepository.storeTelemetryData(telemetry)
-                    
-                    // Update device last seen
-                    deviceRepository.updateDeviceOnlineStatus(deviceToken, true)
-                }
+                // Update device last seen
+                deviceRepository.updateDeviceOnlineStatus(deviceId, true)
             }
         } catch (e: Exception) {
             // Log parsing error
         }
     }
     
-    private suspend fun handleDeviceStatusMessage(topic: String, payload: String) {
+    // Topic: devices/{token}/telemetry, several readings stored with one insert
+    private suspend fun handleTelemetryBatch(token: CharSequence, payload: ByteArray) {
         try {
-            // Parse topic: devices/{token}/status
-            val parts = topic.split("/")
-            if (parts.size >= 3) {
-                val deviceToken = parts[1]
-                
-                // Parse status payload
-                val status = parseStatusPayload(payload)
-                
-                deviceRepository.updateDeviceStatus(deviceToken, status.status)
-                deviceRepository.updateDeviceOnlineStatus(deviceToken, status.isOnline)
-                
-                status.batteryLevel?.let { battery ->
-                    deviceRepository.updateSignalStrength(deviceToken, 0, "")
-                }
+            if (!batchCodec.decode(payload) || batchCodec.size == 0) return
+            val deviceId = deviceTokenCache.resolveDeviceId(token.toString()) ?: return
+            
+            val receivedAt = System.currentTimeMillis()
+            val telemetryList = List(batchCodec.size) { i ->
+                val timestamp = batchCodec.timestamp(i)
+                Telemetry(
+                    id = UUID.randomUUID().toString(),
+                    deviceId = deviceId,
+                    sensorType = batchCodec.sensor(i),
+                    value = batchCodec.value(i),
+                    unit = batchCodec.unit(i),
+                    timestamp = if (timestamp != TelemetryPayloadDecoder.NO_TIMESTAMP) timestamp else receivedAt
+                )
+            }
+            
+            telemetryRepository.storeTelemetryBatch(telemetryList)
+            deviceRepository.updateDeviceOnlineStatus(deviceId, true)
+        } catch (e: Exception) {
+            // Log parsing error
+        }
+    }
+    
+    // Topic: devices/{token}/status
+    private suspend fun handleDeviceStatusMessage(token: CharSequence, payload: ByteArray) {
+        try {
+            val deviceId = deviceTokenCache.resolveDeviceId(token.toString()) ?: return
+            
+            // Parse status payload
+            val status = parseStatusPayload(payload)
+            
+            deviceRepository.updateDeviceStatus(deviceId, status.status)
+            deviceRepository.updateDeviceOnlineStatus(deviceId, status.isOnline)
+            
+            status.batteryLevel?.let { battery ->
+                deviceRepository.updateSignalStrength(deviceId, 0, "")
             }
         } catch (e: Exception) {
             // Log parsing error
@@ -352,59 +418,23 @@ class MqttBackgroundService : Service() {
         // Handle system status updates
     }
     
-    private fun parseTelemetryPayload(payload: String): TelemetryData? {
-        return try {
-            // Simplified JSON parsing - would use Gson in real implementation
-            when {
-                payload.startsWith("{") -> {
-                    // JSON format: {"value": 25.6, "unit": "°C", "timestamp": 1234567890}
-                    val value = extractJsonValue(payload, "value")?.toDoubleOrNull()
-                    val unit = extractJsonString(payload, "unit")
-                    val timestamp = extractJsonValue(payload, "timestamp")?.toLongOrNull()
-                    
-                    if (value != null) {
-                        TelemetryData(value, unit, timestamp)
-                    } else null
-                }
-                else -> {
-                    // Simple value
-                    val value = payload.toDoubleOrNull()
-                    if (value != null) {
-                        TelemetryData(value, null, null)
-                    } else null
-                }
-            }
-        } catch (e: Exception) {
-            null
-        }
-    }
-    
-    private fun parseStatusPayload(payload: String): DeviceStatus {
+    private fun parseStatusPayload(payload: ByteArray): DeviceStatus {
         return try {
-            if (payload.startsWith("{")) {
-                val status = extractJsonString(payload, "status") ?: "UNKNOWN"
-                val isOnline = extractJsonValue(payload, "online")?.toBooleanStrictOrNull() ?: false
-                val batteryLevel = extractJsonValue(payload, "battery")?.toIntOrNull()
+            if (payload.isNotEmpty() && payload[0] == '{'.code.toByte()) {
+                if (!statusDecoder.decode(payload)) return DeviceStatus("UNKNOWN", false, null)
+                val status = statusDecoder.string(STATUS_FIELD) ?: "UNKNOWN"
+                val isOnline = statusDecoder.boolean(ONLINE_FIELD) ?: false
+                val battery = statusDecoder.long(BATTERY_FIELD, Long.MIN_VALUE)
                 
-                DeviceStatus(status, isOnline, batteryLevel)
+                DeviceStatus(status, isOnline, if (battery != Long.MIN_VALUE) battery.toInt() else null)
             } else {
-                DeviceStatus(payload, true, null)
+                DeviceStatus(String(payload), true, null)
             }
         } catch (e: Exception) {
             DeviceStatus("UNKNOWN", false, null)
         }
     }
     
-    private fun extractJsonValue(json: String, key: String): String? {
-        val pattern = "\"$key\"\\s*:\\s*([^,}]+)".toRegex()
-        return pattern.find(json)?.groupValues?.get(1)?.trim()?.removeSurrounding("\"")
-    }
-    
-    private fun extractJsonString(json: String, key: String): String? {
-        val pattern = "\"$key\"\\s*:\\s*\"([^\"]+)\"".toRegex()
-        return pattern.find(json)?.groupValues?.get(1)
-    }
-    
     private fun createServiceNotification(): Notification {
         val intent = Intent(this, MainActivity::class.java)
         val pendingIntent = PendingIntent.getActivity(
@@ -436,9 +466,11 @@ class MqttBackgroundService : Service() {
     }
     
     // Public interface
-    fun getConnectedBrokers(): Set<String> = connectedBrokers.toSet()
+    fun getConnectedBrokers(): Set<String> = connectedBrokers()
+    
+    fun isConnectedToBroker(brokerId: String): Boolean = brokerId in connectedBrokers()
     
-    fun isConnectedToBroker(brokerId: String): Boolean = connectedBrokers.contains(brokerId)
+    fun getIngestStats(): StateFlow<IngestStats> = telemetryIngestWriter.stats
     
     fun publishToDevice(deviceToken: String, command: String, parameters: Map<String, Any> = emptyMap()) {
         val topic = "devices/$deviceToken/commands/$command"
@@ -452,25 +484,36 @@ class MqttBackgroundService : Service() {
         publishMessage("default", topic, payload)
     }
     
-    fun sendTelemetryForDevice(deviceToken: String, sensorType: String, value: Double, unit: String? = null) {
-        val topic = "devices/$deviceToken/telemetry/$sensorType"
-        val payload = if (unit != null) {
-            """{"value":$value,"unit":"$unit","timestamp":${System.currentTimeMillis()}}"""
-        } else {
-            """{"value":$value,"timestamp":${System.currentTimeMillis()}}"""
+    fun sendTelemetryForDevice(
+        deviceToken: String,
+        sensorType: String,
+        value: Double,
+        unit: String? = null,
+        format: String = TelemetryCodecRegistry.JSON
+    ) {
+        serviceScope.launch {
+            mqttConnectionManager.sendTelemetry("default", deviceToken, sensorType, value, unit, format)
+        }
+    }
+    
+    fun sendTelemetryBatchForDevice(deviceToken: String, samples: List<TelemetrySample>) {
+        serviceScope.launch {
+            mqttConnectionManager.sendTelemetryBatch("default", deviceToken, samples)
         }
-        
-        publishMessage("default", topic, payload)
     }
 }
 
-// Data classes for parsing
-data class TelemetryData(
-    val value: Double,
-    val unit: String?,
-    val timestamp: Long?
-)
+// Topic filters handled by the service
+private enum class MessageRoute {
+    BATCH_TELEMETRY,
+    TELEMETRY,
+    ENCODED_TELEMETRY,
+    DEVICE_STATUS,
+    SYSTEM_ALERT,
+    SYSTEM_STATUS
+}
 
+// Data classes for parsing
 data class DeviceStatus(
     val status: String,
     val isOnline: Boolean,
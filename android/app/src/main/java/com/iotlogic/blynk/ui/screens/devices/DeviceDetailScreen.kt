@@ -17,6 +17,9 @@ import androidx.compose.ui.tooling.preview.Preview
 import androidx.compose.ui.unit.dp
 import androidx.hilt.navigation.compose.hiltViewModel
 import androidx.lifecycle.compose.collectAsStateWithLifecycle
+import androidx.paging.LoadState
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.itemKey
 import com.iotlogic.blynk.domain.model.Device
 import com.iotlogic.blynk.domain.model.Telemetry
 import com.iotlogic.blynk.ui.components.ErrorMessage
@@ -41,11 +44,11 @@ fun DeviceDetailScreen(
     val isConnected by deviceViewModel.isDeviceConnected(deviceId).collectAsStateWithLifecycle(false)
     
     val telemetryUiState by telemetryViewModel.uiState.collectAsStateWithLifecycle()
-    val telemetryData by telemetryViewModel.getDeviceTelemetry(deviceId).collectAsStateWithLifecycle(emptyList())
+    val telemetryItems = telemetryViewModel.telemetryHistory.collectAsLazyPagingItems()
     
     LaunchedEffect(deviceId) {
         deviceViewModel.selectDevice(deviceId)
-        telemetryViewModel.loadTelemetryForDevice(deviceId)
+        telemetryViewModel.selectDevice(deviceId)
     }
     
     Column(modifier = Modifier.fillMaxSize()) {
@@ -112,7 +115,8 @@ fun DeviceDetailScreen(
                     isRefreshing = deviceUiState.isLoading || telemetryUiState.isLoading,
                     onRefresh = {
                         deviceViewModel.refreshDevices()
-                        telemetryViewModel.refreshTelemetry(deviceId)
+                        telemetryViewModel.refresh()
+                        telemetryItems.refresh()
                     }
                 ) {
                     LazyColumn(
@@ -147,15 +151,31 @@ fun DeviceDetailScreen(
                             }
                         }
                         
-                        // Telemetry Card
+                        // Telemetry history, loaded page by page while scrolling
                         item {
                             TelemetryCard(
-                                telemetryData = telemetryData,
-                                isLoading = telemetryUiState.isLoading,
-                                error = telemetryUiState.error,
-                                onRefresh = { telemetryViewModel.refreshTelemetry(deviceId) }
+                                isEmpty = telemetryItems.itemCount == 0,
+                                isLoading = telemetryItems.loadState.refresh is LoadState.Loading,
+                                error = telemetryUiState.error
+                                    ?: (telemetryItems.loadState.refresh as? LoadState.Error)?.error?.message,
+                                onRefresh = { telemetryItems.refresh() }
                             )
                         }
+                        
+                        items(
+                            count = telemetryItems.itemCount,
+                            key = telemetryItems.itemKey { "${it.deviceId}:${it.sensorType}:${it.timestamp}:${it.seq}" }
+                        ) { index ->
+                            telemetryItems[index]?.let { telemetry ->
+                                TelemetryRow(telemetry = telemetry)
+                            }
+                        }
+                        
+                        if (telemetryItems.loadState.append is LoadState.Loading) {
+                            item {
+                                LoadingIndicator(message = "Loading older telemetry...")
+                            }
+                        }
                     }
                 }
             }
@@ -408,7 +428,7 @@ private fun GenericControls(onSendCommand: (String, Any?) -> Unit) {
 
 @Composable
 private fun TelemetryCard(
-    telemetryData: List<Telemetry>,
+    isEmpty: Boolean,
     isLoading: Boolean,
     error: String?,
     onRefresh: () -> Unit,
@@ -427,7 +447,7 @@ private fun TelemetryCard(
                 verticalAlignment = Alignment.CenterVertically
             ) {
                 Text(
-                    text = "Recent Telemetry",
+                    text = "Telemetry History",
                     style = MaterialTheme.typography.titleLarge,
                     fontWeight = FontWeight.Bold
                 )
@@ -440,35 +460,28 @@ private fun TelemetryCard(
                 }
             }
             
-            Spacer(modifier = Modifier.height(16.dp))
-            
             when {
                 isLoading -> {
+                    Spacer(modifier = Modifier.height(16.dp))
                     LoadingIndicator(message = "Loading telemetry...")
                 }
                 
                 error != null -> {
+                    Spacer(modifier = Modifier.height(16.dp))
                     ErrorMessage(
                         message = error,
                         onRetry = onRefresh
                     )
                 }
                 
-                telemetryData.isEmpty() -> {
+                isEmpty -> {
+                    Spacer(modifier = Modifier.height(16.dp))
                     Text(
                         text = "No telemetry data available",
                         style = MaterialTheme.typography.bodyMedium,
                         color = MaterialTheme.colorScheme.onSurfaceVariant
                     )
                 }
-                
-                else -> {
-                    Column(verticalArrangement = Arrangement.spacedBy(8.dp)) {
-                        telemetryData.take(5).forEach { telemetry ->
-                            TelemetryRow(telemetry = telemetry)
-                        }
-                    }
-                }
             }
         }
     }
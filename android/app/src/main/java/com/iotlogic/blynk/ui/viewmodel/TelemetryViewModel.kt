@@ -2,12 +2,23 @@ package com.iotlogic.blynk.ui.viewmodel
 
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingData
+import androidx.paging.cachedIn
+import com.iotlogic.blynk.data.export.ExportFormat
+import com.iotlogic.blynk.data.export.ExportProgress
+import com.iotlogic.blynk.data.export.TelemetryExporter
+import com.iotlogic.blynk.domain.model.ChartPoint
 import com.iotlogic.blynk.domain.model.Telemetry
+import com.iotlogic.blynk.domain.model.TelemetryStatistics
+import com.iotlogic.blynk.domain.model.window
 import com.iotlogic.blynk.domain.repository.TelemetryRepository
 import com.iotlogic.blynk.hardware.HardwareManager
 import dagger.hilt.android.lifecycle.HiltViewModel
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancelAndJoin
 import kotlinx.coroutines.flow.*
 import kotlinx.coroutines.launch
+import java.io.File
 import java.util.*
 import java.util.concurrent.TimeUnit
 import javax.inject.Inject
@@ -15,6 +26,7 @@ import javax.inject.Inject
 @HiltViewModel
 class TelemetryViewModel @Inject constructor(
     private val telemetryRepository: TelemetryRepository,
+    private val telemetryExporter: TelemetryExporter,
     private val hardwareManager: HardwareManager
 ) : ViewModel() {
     
@@ -22,8 +34,20 @@ class TelemetryViewModel @Inject constructor(
     private val _uiState = MutableStateFlow(TelemetryUiState())
     val uiState: StateFlow<TelemetryUiState> = _uiState.asStateFlow()
     
-    // Recent telemetry data
-    val recentTelemetry: StateFlow<List<Telemetry>> = telemetryRepository.getRecentTelemetry(100)
+    // Progress of the running export, null when idle
+    private val _exportProgress = MutableStateFlow<ExportProgress?>(null)
+    val exportProgress: StateFlow<ExportProgress?> = _exportProgress.asStateFlow()
+    
+    private var exportJob: Job? = null
+    
+    companion object {
+        private const val RECENT_TELEMETRY_LIMIT = 100
+        private const val DEVICE_TELEMETRY_LIMIT = 200
+    }
+    
+    // Recent telemetry, kept as a local window over appended samples
+    val recentTelemetry: StateFlow<List<Telemetry>> = telemetryRepository.tailRecentTelemetry(RECENT_TELEMETRY_LIMIT)
+        .window(RECENT_TELEMETRY_LIMIT)
         .stateIn(
             scope = viewModelScope,
             started = SharingStarted.WhileSubscribed(5000),
@@ -34,53 +58,25 @@ class TelemetryViewModel @Inject constructor(
     private val _selectedDeviceId = MutableStateFlow<String?>(null)
     val selectedDeviceId: StateFlow<String?> = _selectedDeviceId.asStateFlow()
     
-    val deviceTelemetry: StateFlow<List<Telemetry>> = _selectedDeviceId
-        .filterNotNull()
-        .flatMapLatest { deviceId ->
-            telemetryRepository.getTelemetryByDevice(deviceId, 200)
-        }
-        .stateIn(
-            scope = viewModelScope,
-            started = SharingStarted.WhileSubscribed(5000),
-            initialValue = emptyList()
-        )
-    
     // Sensor type filter
     private val _selectedSensorType = MutableStateFlow<String?>(null)
     val selectedSensorType: StateFlow<String?> = _selectedSensorType.asStateFlow()
     
-    // Filtered telemetry by sensor type
-    val filteredTelemetry: StateFlow<List<Telemetry>> = combine(
-        deviceTelemetry,
-        _selectedSensorType
-    ) { telemetryList, sensorType ->
-        if (sensorType == null) {
-            telemetryList
-        } else {
-            telemetryList.filter { it.sensorType == sensorType }
-        }
-    }.stateIn(
-        scope = viewModelScope,
-        started = SharingStarted.WhileSubscribed(5000),
-        initialValue = emptyList()
-    )
-    
     // Time range filter
-    private val _timeRange = MutableStateFlow(TimeRange.LAST_HOUR)
+    private val _timeRange = MutableStateFlow(TimeRange.ALL_TIME)
     val timeRange: StateFlow<TimeRange> = _timeRange.asStateFlow()
     
-    // Time-filtered telemetry
-    val timeFilteredTelemetry: StateFlow<List<Telemetry>> = combine(
-        filteredTelemetry,
+    // Paged history of the selected device, filtered by sensor type and time range
+    val telemetryHistory: Flow<PagingData<Telemetry>> = combine(
+        _selectedDeviceId.filterNotNull(),
+        _selectedSensorType,
         _timeRange
-    ) { telemetryList, range ->
-        val cutoffTime = System.currentTimeMillis() - range.durationMs
-        telemetryList.filter { it.timestamp >= cutoffTime }
-    }.stateIn(
-        scope = viewModelScope,
-        started = SharingStarted.WhileSubscribed(5000),
-        initialValue = emptyList()
-    )
+    ) { deviceId, sensorType, range ->
+        Triple(deviceId, sensorType, range)
+    }.flatMapLatest { (deviceId, sensorType, range) ->
+        val startTime = (System.currentTimeMillis() - range.durationMs).coerceAtLeast(0)
+        telemetryRepository.getTelemetryHistory(deviceId, sensorType, startTime)
+    }.cachedIn(viewModelScope)
     
     init {
         observeRealtimeData()
@@ -134,26 +130,26 @@ class TelemetryViewModel @Inject constructor(
     }
     
     /**
-     * Get telemetry statistics for a device and sensor
+     * Newest samples of a device, updated with each committed batch instead of re-querying
+     */
+    fun observeDeviceTelemetry(deviceId: String, limit: Int = DEVICE_TELEMETRY_LIMIT): Flow<List<Telemetry>> {
+        return telemetryRepository.tailTelemetryByDevice(deviceId, limit).window(limit)
+    }
+    
+    /**
+     * Live statistics of a device sensor over a sliding time range
      */
     fun getTelemetryStatistics(deviceId: String, sensorType: String, timeRange: TimeRange): Flow<TelemetryStatistics> {
-        return flow {
-            val endTime = System.currentTimeMillis()
-            val startTime = endTime - timeRange.durationMs
-            
-            val avg = telemetryRepository.getAverageTelemetryValue(deviceId, sensorType, startTime, endTime)
-            val min = telemetryRepository.getMinTelemetryValue(deviceId, sensorType, startTime, endTime)
-            val max = telemetryRepository.getMaxTelemetryValue(deviceId, sensorType, startTime, endTime)
-            val count = telemetryRepository.getTelemetryCountSince(deviceId, startTime)
-            
-            emit(TelemetryStatistics(
-                average = avg ?: 0.0,
-                minimum = min ?: 0.0,
-                maximum = max ?: 0.0,
-                count = count,
-                timeRange = timeRange
-            ))
-        }
+        return telemetryRepository.observeTelemetryStatistics(deviceId, sensorType, timeRange.durationMs)
+    }
+    
+    /**
+     * Chart series of a device sensor, downsampled to about one point per pixel
+     */
+    suspend fun getChartSeries(deviceId: String, sensorType: String, timeRange: TimeRange, maxPoints: Int = 1000): List<ChartPoint> {
+        val endTime = System.currentTimeMillis()
+        val startTime = (endTime - timeRange.durationMs).coerceAtLeast(0)
+        return telemetryRepository.getChartSeries(deviceId, sensorType, startTime, endTime, maxPoints)
     }
     
     /**
@@ -163,6 +159,13 @@ class TelemetryViewModel @Inject constructor(
         return telemetryRepository.getLatestTelemetryForDevice(deviceId)
     }
     
+    /**
+     * Latest value of a device sensor, updated as samples are ingested
+     */
+    fun observeLatestTelemetry(deviceId: String, sensorType: String): StateFlow<Telemetry?> {
+        return telemetryRepository.observeLatestTelemetry(deviceId, sensorType)
+    }
+    
     /**
      * Store new telemetry data
      */
@@ -212,10 +215,53 @@ class TelemetryViewModel @Inject constructor(
     }
     
     /**
-     * Export telemetry data
+     * Export telemetry data to [file], streamed so any range fits in constant memory
      */
-    fun exportTelemetryData(deviceId: String, startTime: Long, endTime: Long): Flow<List<Telemetry>> {
-        return telemetryRepository.getTelemetryByTimeRange(deviceId, startTime, endTime)
+    fun exportTelemetryData(
+        deviceId: String,
+        startTime: Long,
+        endTime: Long,
+        file: File,
+        format: ExportFormat = ExportFormat.CSV,
+        gzip: Boolean = false
+    ) {
+        val previous = exportJob
+        exportJob = viewModelScope.launch {
+            // The previous export deletes its partial file when cancelled; let it finish first
+            previous?.cancelAndJoin()
+            _exportProgress.value = ExportProgress()
+            
+            val result = telemetryExporter.export(
+                deviceId = deviceId,
+                startTime = startTime,
+                endTime = endTime,
+                file = file,
+                format = format,
+                gzip = gzip
+            ) { progress ->
+                _exportProgress.value = progress
+            }
+            
+            _exportProgress.value = null
+            if (result.isSuccess) {
+                _uiState.value = _uiState.value.copy(
+                    message = "Exported ${result.getOrNull()?.rowsWritten ?: 0} telemetry rows"
+                )
+            } else {
+                _uiState.value = _uiState.value.copy(
+                    error = result.exceptionOrNull()?.message
+                )
+            }
+        }
+    }
+    
+    /**
+     * Cancel the running export and delete its partial file
+     */
+    fun cancelExport() {
+        exportJob?.cancel()
+        exportJob = null
+        _exportProgress.value = null
     }
     
     /**
@@ -244,15 +290,8 @@ class TelemetryViewModel @Inject constructor(
      * Observe real-time data from hardware managers
      */
     private fun observeRealtimeData() {
-        // Observe MQTT messages for telemetry
-        viewModelScope.launch {
-            hardwareManager.getMqttManager().receivedMessages.collect { message ->
-                if (message.topic.contains("/telemetry/")) {
-                    parseMqttTelemetryMessage(message.topic, message.payloadString)
-                }
-            }
-        }
-        
+        // MQTT telemetry is persisted by MqttBackgroundService; storing it here as well
+        // would write every sample twice with different receive timestamps.
         // Observe USB serial data
         viewModelScope.launch {
             hardwareManager.getUsbManager().receivedData.collect { dataPacket ->
@@ -261,35 +300,6 @@ class TelemetryViewModel @Inject constructor(
         }
     }
     
-    /**
-     * Parse MQTT telemetry message
-     */
-    private fun parseMqttTelemetryMessage(topic: String, payload: String) {
-        try {
-            // Parse topic: devices/{token}/telemetry/{sensorType}
-            val parts = topic.split("/")
-            if (parts.size >= 4 && parts[0] == "devices" && parts[2] == "telemetry") {
-                val deviceToken = parts[1]
-                val sensorType = parts[3]
-                
-                // Parse payload (simplified JSON parsing)
-                val value = parseValueFromPayload(payload)
-                if (value != null) {
-                    val telemetry = Telemetry(
-                        id = UUID.randomUUID().toString(),
-                        deviceId = deviceToken, // Would need to map token to device ID
-                        sensorType = sensorType,
-                        value = value,
-                        timestamp = System.currentTimeMillis()
-                    )
-                    storeTelemetryData(telemetry)
-                }
-            }
-        } catch (e: Exception) {
-            _uiState.value = _uiState.value.copy(error = "Failed to parse MQTT telemetry: ${e.message}")
-        }
-    }
-    
     /**
      * Parse USB serial telemetry data
      */
@@ -319,24 +329,6 @@ class TelemetryViewModel @Inject constructor(
         }
     }
     
-    /**
-     * Parse value from JSON payload
-     */
-    private fun parseValueFromPayload(payload: String): Double? {
-        return try {
-            // Simplified JSON parsing - would use Gson in real implementation
-            if (payload.contains("\"value\":")) {
-                val valueStart = payload.indexOf("\"value\":") + 8
-                val valueEnd = payload.indexOf(",", valueStart).takeIf { it != -1 } ?: payload.indexOf("}", valueStart)
-                payload.substring(valueStart, valueEnd).trim().toDoubleOrNull()
-            } else {
-                payload.toDoubleOrNull()
-            }
-        } catch (e: Exception) {
-            null
-        }
-    }
-    
     /**
      * Clear error message
      */
@@ -380,16 +372,6 @@ enum class TimeRange(val displayName: String, val durationMs: Long) {
     LAST_6_HOURS("Last 6 Hours", TimeUnit.HOURS.toMillis(6)),
     LAST_24_HOURS("Last 24 Hours", TimeUnit.HOURS.toMillis(24)),
     LAST_7_DAYS("Last 7 Days", TimeUnit.DAYS.toMillis(7)),
-    LAST_30_DAYS("Last 30 Days", TimeUnit.DAYS.toMillis(30))
-}
-
-/**
- * Telemetry statistics
- */
-data class TelemetryStatistics(
-    val average: Double,
-    val minimum: Double,
-    val maximum: Double,
-    val count: Int,
-    val timeRange: TimeRange
-)
\ No newline at end of file
+    LAST_30_DAYS("Last 30 Days", TimeUnit.DAYS.toMillis(30)),
+    ALL_TIME("All Time", Long.MAX_VALUE)
+}
\ No newline at end of file
@@ -0,0 +1,139 @@
+package com.iotlogic.blynk.data.export
+
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.io.DataInputStream
+import java.io.File
+import java.util.zip.GZIPInputStream
+
+class TelemetryExporterTest {
+    
+    @MockK
+    private lateinit var telemetryDao: TelemetryDao
+    
+    @MockK
+    private lateinit var blockDao: TelemetryBlockDao
+    
+    @MockK
+    private lateinit var channelRegistry: SensorChannelRegistry
+    
+    private lateinit var exporter: TelemetryExporter
+    private lateinit var file: File
+    
+    private val temperature = SensorChannelEntity(1L, "device1", "temperature", "°C")
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        coEvery { channelRegistry.getChannelsForDevice("device1") } returns listOf(temperature)
+        coEvery { telemetryDao.getChannelCount(1L, any(), any()) } returns 2L
+        coEvery { blockDao.getBlockSummaries(any(), any(), any(), any(), any()) } returns emptyList()
+        coEvery { blockDao.getBlockAtOrAfter(any(), any(), any()) } returns null
+        coEvery { telemetryDao.getPageAfter(1L, any(), 0L, -1L, any()) } returns listOf(
+            row(1_000L, 1L, 21.5, null),
+            row(2_000L, 2L, 22.0, "GOOD, checked")
+        )
+        
+        exporter = TelemetryExporter(telemetryDao, blockDao, channelRegistry)
+        file = File.createTempFile("telemetry", ".export")
+    }
+    
+    @After
+    fun teardown() {
+        file.delete()
+        unmockkAll()
+    }
+    
+    @Test
+    fun `csv export writes a header and one quoted line per row`() = runTest {
+        // Given
+        val reported = mutableListOf<ExportProgress>()
+        
+        // When
+        val result = exporter.export("device1", startTime = 0L, endTime = 10_000L, file = file) { reported.add(it) }
+        
+        // Then
+        assertEquals(2L, result.getOrNull()?.rowsWritten)
+        assertEquals(
+            listOf(
+                "timestamp,device_id,sensor_type,unit,value,quality",
+                "1000,device1,temperature,°C,21.5,",
+                "2000,device1,temperature,°C,22.0,\"GOOD, checked\""
+            ),
+            file.readLines()
+        )
+        assertEquals(1f, reported.last().fraction, 0f)
+        assertEquals(file.length(), reported.last().bytesWritten)
+    }
+    
+    @Test
+    fun `binary export is length prefixed and gzip compressed`() = runTest {
+        // When
+        exporter.export("device1", startTime = 0L, endTime = 10_000L, file = file, format = ExportFormat.BINARY, gzip = true)
+        
+        // Then
+        DataInputStream(GZIPInputStream(file.inputStream())).use { input ->
+            assertEquals("IOTB", String(ByteArray(4).also { input.readFully(it) }, Charsets.US_ASCII))
+            assertEquals(1, input.readUnsignedByte())
+            
+            // Series record
+            assertEquals(1, input.readUnsignedByte())
+            input.skipBytes(input.readInt())
+            
+            // First sample
+            assertEquals(2, input.readUnsignedByte())
+            assertEquals(20, input.readInt())
+            assertEquals(0, input.readUnsignedShort())
+            assertEquals(1_000L, input.readLong())
+            assertEquals(21.5, input.readDouble(), 0.0)
+            assertEquals(0, input.readUnsignedShort())
+        }
+    }
+    
+    @Test
+    fun `cancelled export deletes the partial file`() = runTest {
+        // Given
+        coEvery { telemetryDao.getPageAfter(1L, any(), 0L, -1L, any()) } returns List(1_000) { row(it.toLong(), it.toLong(), 1.0, null) }
+        
+        // When
+        var cancelled = false
+        try {
+            coroutineScope {
+                launch {
+                    exporter.export("device1", startTime = 0L, endTime = 10_000L, file = file) {
+                        if (it.rowsWritten > 0) this@coroutineScope.cancel()
+                    }
+                }
+            }
+        } catch (e: CancellationException) {
+            cancelled = true
+        }
+        
+        // Then
+        assertTrue(cancelled)
+        assertFalse(file.exists())
+    }
+    
+    private fun row(timestamp: Long, seq: Long, value: Double, quality: String?) = TelemetryEntity(
+        id = "t$seq",
+        channelId = 1L,
+        value = value,
+        timestamp = timestamp,
+        seq = seq,
+        quality = quality
+    )
+}
@@ -0,0 +1,96 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class CborTelemetryCodecTest {
+    
+    private val codec = CborTelemetryCodec()
+    
+    @Test
+    fun `map payload yields value and unit`() {
+        // Given {"unit": "%", "value": 48}
+        val payload = hex("a2 64 756e6974 61 25 65 76616c7565 18 30")
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(48.0, codec.value, 0.0)
+        assertEquals("%", codec.unit)
+        assertEquals(TelemetryPayloadDecoder.NO_TIMESTAMP, codec.timestamp)
+    }
+    
+    @Test
+    fun `bare half precision floats are read as the value`() {
+        // Given
+        val positive = hex("f9 3e00")
+        val negative = hex("f9 c400")
+        
+        // When / Then
+        assertTrue(codec.decode(positive))
+        assertEquals(1.5, codec.value, 0.0)
+        assertTrue(codec.decode(negative))
+        assertEquals(-4.0, codec.value, 0.0)
+    }
+    
+    @Test
+    fun `indefinite maps skip nested items and read tagged timestamps`() {
+        // Given {_ "meta": [1, {"x": true}], "timestamp": 1(1700000000), "value": -500}
+        val payload = hex("bf 64 6d657461 82 01 a1 61 78 f5 69 74696d657374616d70 c1 1a 6553f100 65 76616c7565 39 01f3 ff")
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(-500.0, codec.value, 0.0)
+        assertEquals(1_700_000_000L, codec.timestamp)
+        assertNull(codec.unit)
+    }
+    
+    @Test
+    fun `truncated payloads are rejected`() {
+        // Given {"value": cut short
+        val payload = hex("a1 65 76616c75")
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertFalse(decoded)
+        assertTrue(codec.value.isNaN())
+    }
+    
+    @Test
+    fun `encoded readings decode to the same reading in fewer bytes`() {
+        // Given
+        val json = """{"value":25.6,"unit":"°C","timestamp":1700000000000}""".toByteArray()
+        
+        // When
+        val encoded = codec.encode(25.6, "°C", 1_700_000_000_000L)
+        val decoded = codec.decode(encoded)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(25.6, codec.value, 0.0)
+        assertEquals("°C", codec.unit)
+        assertEquals(1_700_000_000_000L, codec.timestamp)
+        assertTrue(encoded.size < json.size)
+    }
+    
+    @Test
+    fun `whole numbers are encoded as integers`() {
+        // When
+        val encoded = codec.encode(21.0, null, TelemetryPayloadDecoder.NO_TIMESTAMP)
+        
+        // Then
+        assertArrayEquals(hex("a1 65 76616c7565 15"), encoded)
+    }
+    
+    private fun hex(text: String): ByteArray {
+        val digits = text.replace(" ", "")
+        return ByteArray(digits.length / 2) { digits.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+    }
+}
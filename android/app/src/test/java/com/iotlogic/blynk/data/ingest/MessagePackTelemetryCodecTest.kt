@@ -0,0 +1,85 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class MessagePackTelemetryCodecTest {
+    
+    private val codec = MessagePackTelemetryCodec()
+    
+    @Test
+    fun `map payload yields value and unit`() {
+        // Given {"unit": "%", "value": 48}
+        val payload = hex("82 a4 756e6974 a1 25 a5 76616c7565 30")
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(48.0, codec.value, 0.0)
+        assertEquals("%", codec.unit)
+        assertEquals(TelemetryPayloadDecoder.NO_TIMESTAMP, codec.timestamp)
+    }
+    
+    @Test
+    fun `bare numbers are read as the value`() {
+        // Given
+        val float64 = hex("cb 3ff8000000000000")
+        val int8 = hex("d0 9c")
+        
+        // When / Then
+        assertTrue(codec.decode(float64))
+        assertEquals(1.5, codec.value, 0.0)
+        assertTrue(codec.decode(int8))
+        assertEquals(-100.0, codec.value, 0.0)
+    }
+    
+    @Test
+    fun `nested containers and binary values are skipped`() {
+        // Given {"meta": [bin(0001), {"x": true}], "timestamp": uint64 1700000000000, "value": float32 25.6}
+        val payload = hex("83 a4 6d657461 92 c4 02 0001 81 a1 78 c3 a9 74696d657374616d70 cf 0000018bcfe56800 a5 76616c7565 ca 41cccccd")
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(25.6f.toDouble(), codec.value, 0.0)
+        assertEquals(1_700_000_000_000L, codec.timestamp)
+    }
+    
+    @Test
+    fun `truncated payloads are rejected`() {
+        // Given {"value": float64 cut short
+        val payload = hex("81 a5 76616c7565 cb 3ff8")
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertFalse(decoded)
+    }
+    
+    @Test
+    fun `encoded readings decode to the same reading`() {
+        // Given
+        val readings = listOf(25.6, -3.0, 1_000_000.0, -70_000.0, 0.1, Double.MAX_VALUE)
+        
+        for (reading in readings) {
+            // When
+            val decoded = codec.decode(codec.encode(reading, "dBm", 1_700_000_000_000L))
+            
+            // Then
+            assertTrue(decoded)
+            assertEquals(reading, codec.value, 0.0)
+            assertEquals("dBm", codec.unit)
+            assertEquals(1_700_000_000_000L, codec.timestamp)
+        }
+    }
+    
+    private fun hex(text: String): ByteArray {
+        val digits = text.replace(" ", "")
+        return ByteArray(digits.length / 2) { digits.substring(it * 2, it * 2 + 2).toInt(16).toByte() }
+    }
+}
@@ -0,0 +1,54 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+class StructTelemetryCodecTest {
+    
+    private val codec = StructTelemetryCodec()
+    
+    @Test
+    fun `packed little endian struct is decoded`() {
+        // Given the bytes of struct { double value; int64_t timestamp; char unit[]; }
+        val payload = ByteBuffer.allocate(StructTelemetryCodec.HEADER_SIZE + 3)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .putDouble(1013.25)
+            .putLong(1_700_000_000_123L)
+            .put("hPa".toByteArray())
+            .array()
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(1013.25, codec.value, 0.0)
+        assertEquals(1_700_000_000_123L, codec.timestamp)
+        assertEquals("hPa", codec.unit)
+    }
+    
+    @Test
+    fun `devices without a clock send a zero timestamp`() {
+        // When
+        val encoded = codec.encode(1.0, null, TelemetryPayloadDecoder.NO_TIMESTAMP)
+        val decoded = codec.decode(encoded)
+        
+        // Then
+        assertEquals(StructTelemetryCodec.HEADER_SIZE, encoded.size)
+        assertTrue(decoded)
+        assertEquals(TelemetryPayloadDecoder.NO_TIMESTAMP, codec.timestamp)
+        assertNull(codec.unit)
+    }
+    
+    @Test
+    fun `payloads shorter than the header are rejected`() {
+        // When
+        val decoded = codec.decode(ByteArray(StructTelemetryCodec.HEADER_SIZE - 1))
+        
+        // Then
+        assertFalse(decoded)
+        assertTrue(codec.value.isNaN())
+    }
+}
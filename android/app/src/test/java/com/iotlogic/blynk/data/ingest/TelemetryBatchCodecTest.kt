@@ -0,0 +1,140 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class TelemetryBatchCodecTest {
+    
+    private val codec = TelemetryBatchCodec()
+    
+    @Test
+    fun `array of samples is decoded`() {
+        // Given
+        val payload = """
+            [{"sensor":"temperature","value":25.6,"unit":"°C","ts":1700000000000},
+             {"sensor":"humidity","value":48,"timestamp":1700000000500}]
+        """.trimIndent().toByteArray()
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(2, codec.size)
+        assertEquals("temperature", codec.sensor(0))
+        assertEquals(25.6, codec.value(0), 0.0)
+        assertEquals("°C", codec.unit(0))
+        assertEquals(1_700_000_000_000L, codec.timestamp(0))
+        assertEquals("humidity", codec.sensor(1))
+        assertEquals(48.0, codec.value(1), 0.0)
+        assertNull(codec.unit(1))
+        assertEquals(1_700_000_000_500L, codec.timestamp(1))
+    }
+    
+    @Test
+    fun `columns are decoded and scalars apply to every sample`() {
+        // Given
+        val payload = """
+            {"sensor":["temperature","humidity","pressure"],"value":[25.6,48,1013.25],"unit":["°C","%","hPa"],"ts":1700000000000}
+        """.trimIndent().toByteArray()
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(3, codec.size)
+        assertEquals("pressure", codec.sensor(2))
+        assertEquals(1013.25, codec.value(2), 0.0)
+        assertEquals("%", codec.unit(1))
+        for (i in 0 until codec.size) assertEquals(1_700_000_000_000L, codec.timestamp(i))
+    }
+    
+    @Test
+    fun `columns of different lengths are rejected`() {
+        // When
+        val decoded = codec.decode("""{"sensor":["a","b"],"value":[1,2,3]}""".toByteArray())
+        
+        // Then
+        assertFalse(decoded)
+        assertEquals(0, codec.size)
+    }
+    
+    @Test
+    fun `samples without a sensor or a numeric value are left out`() {
+        // Given
+        val payload = """[{"value":1},{"sensor":"a","value":"n/a"},{"sensor":"b","value":null},{"sensor":"c","value":"3.5"}]""".toByteArray()
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(1, codec.size)
+        assertEquals("c", codec.sensor(0))
+        assertEquals(3.5, codec.value(0), 0.0)
+        assertEquals(TelemetryPayloadDecoder.NO_TIMESTAMP, codec.timestamp(0))
+    }
+    
+    @Test
+    fun `truncated batch is rejected`() {
+        // When
+        val decoded = codec.decode("""[{"sensor":"a","value":1},{"sensor":"b",""".toByteArray())
+        
+        // Then
+        assertFalse(decoded)
+        assertEquals(0, codec.size)
+    }
+    
+    @Test
+    fun `quoted numbers read the same in columns as in rows`() {
+        // Given
+        val payload = """{"sensor":["a","b"],"value":["3.5","n/a"],"ts":"1700000000000"}""".toByteArray()
+        
+        // When
+        val decoded = codec.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(1, codec.size)
+        assertEquals("a", codec.sensor(0))
+        assertEquals(3.5, codec.value(0), 0.0)
+        assertEquals(1_700_000_000_000L, codec.timestamp(0))
+    }
+    
+    @Test
+    fun `encoded batch decodes to the same samples`() {
+        // Given
+        val samples = (0 until 40).map { i ->
+            TelemetrySample("sensor \"$i\"", i * 0.5, if (i % 2 == 0) "V" else null, 1_700_000_000_000L + i)
+        }
+        
+        // When
+        val decoded = codec.decode(TelemetryBatchCodec.encode(samples))
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(samples.size, codec.size)
+        samples.forEachIndexed { i, sample ->
+            assertEquals(sample, TelemetrySample(codec.sensor(i), codec.value(i), codec.unit(i), codec.timestamp(i)))
+        }
+    }
+    
+    @Test
+    fun `samples that JSON cannot carry are left out of the encoding`() {
+        // Given
+        val samples = listOf(
+            TelemetrySample("a", Double.NaN),
+            TelemetrySample("b", 1.5, timestamp = 1_700_000_000_000L),
+            TelemetrySample("c", Double.POSITIVE_INFINITY)
+        )
+        
+        // When
+        val decoded = codec.decode(TelemetryBatchCodec.encode(samples))
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(1, codec.size)
+        assertEquals(samples[1], TelemetrySample(codec.sensor(0), codec.value(0), codec.unit(0), codec.timestamp(0)))
+    }
+}
@@ -0,0 +1,77 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Payload size and decode time of each telemetry codec against JSON, over the same
+ * readings. Skipped unless the BENCHMARK environment variable is set, e.g.
+ * BENCHMARK=1 ./gradlew testDebugUnitTest --tests '*TelemetryCodecBenchmark'
+ */
+class TelemetryCodecBenchmark {
+    
+    private data class Reading(val value: Double, val unit: String?, val timestamp: Long)
+    
+    private val readings = listOf(
+        Reading(25.6, "°C", 1_700_000_000_000L),
+        Reading(48.25, "%", 1_700_000_000_123L),
+        Reading(-71.0, "dBm", 1_700_000_000_456L),
+        Reading(1013.25, null, TelemetryPayloadDecoder.NO_TIMESTAMP)
+    )
+    
+    @Before
+    fun setup() {
+        assumeTrue(System.getenv("BENCHMARK") != null)
+    }
+    
+    @Test
+    fun `binary codecs against json`() {
+        // Given
+        val codecs = TelemetryCodecRegistry.defaultCodecs()
+        val sizes = mutableMapOf<String, Double>()
+        
+        for (codec in codecs) {
+            val payloads = readings.map { codec.encode(it.value, it.unit, it.timestamp) }
+            
+            // When
+            val decodeNs = measure { i ->
+                val payload = payloads[i % payloads.size]
+                if (codec.decode(payload)) codec.value else 0.0
+            }
+            sizes[codec.format] = payloads.sumOf { it.size }.toDouble() / payloads.size
+            println("%-8s %5.1f bytes/reading, %6.1f ns/decode".format(codec.format, sizes[codec.format], decodeNs))
+            
+            // Then
+            for (i in readings.indices) {
+                assertTrue(codec.decode(payloads[i]))
+                assertEquals(readings[i].value, codec.value, 0.0)
+            }
+        }
+        
+        val json = sizes.getValue(TelemetryCodecRegistry.JSON)
+        sizes.filterKeys { it != TelemetryCodecRegistry.JSON }.values.forEach { assertTrue(it < json) }
+    }
+    
+    // Nanoseconds per call in the fastest measured round, after warming up the JIT
+    private inline fun measure(operation: (Int) -> Double): Double {
+        var sink = 0.0
+        repeat(WARMUP_OPS) { sink += operation(it) }
+        
+        var best = Double.MAX_VALUE
+        repeat(ROUNDS) {
+            val start = System.nanoTime()
+            for (i in 0 until MEASURED_OPS) sink += operation(i)
+            best = minOf(best, (System.nanoTime() - start).toDouble() / MEASURED_OPS)
+        }
+        assertFalse(sink.isNaN())
+        return best
+    }
+    
+    private companion object {
+        const val WARMUP_OPS = 200_000
+        const val MEASURED_OPS = 500_000
+        const val ROUNDS = 5
+    }
+}
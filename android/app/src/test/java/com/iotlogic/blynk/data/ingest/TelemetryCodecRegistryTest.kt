@@ -0,0 +1,76 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class TelemetryCodecRegistryTest {
+    
+    private val registry = TelemetryCodecRegistry()
+    
+    @Test
+    fun `codecs are found by topic level and content type`() {
+        // When
+        val byLevel = registry.forFormat(StringBuilder("msgpack"))
+        val byContentType = registry.forContentType("Application/CBOR; charset=binary")
+        
+        // Then
+        assertTrue(byLevel is MessagePackTelemetryCodec)
+        assertTrue(byContentType is CborTelemetryCodec)
+        assertNull(registry.forFormat("protobuf"))
+        assertEquals(TelemetryCodecRegistry.JSON, registry.json.format)
+    }
+    
+    @Test
+    fun `registering a format replaces its codec`() {
+        // Given
+        val replacement = CborTelemetryCodec()
+        
+        // When
+        registry.register(replacement)
+        
+        // Then
+        assertSame(replacement, registry.forFormat(TelemetryCodecRegistry.CBOR))
+    }
+    
+    @Test
+    fun `every default codec round trips a reading`() {
+        for (format in listOf(TelemetryCodecRegistry.JSON, TelemetryCodecRegistry.CBOR, TelemetryCodecRegistry.MESSAGE_PACK, TelemetryCodecRegistry.STRUCT)) {
+            // Given
+            val codec = registry.forFormat(format)!!
+            
+            // When
+            val decoded = codec.decode(codec.encode(-12.75, "°C", 1_700_000_000_000L))
+            
+            // Then
+            assertTrue(format, decoded)
+            assertEquals(format, -12.75, codec.value, 0.0)
+            assertEquals(format, "°C", codec.unit)
+            assertEquals(format, 1_700_000_000_000L, codec.timestamp)
+        }
+    }
+    
+    @Test
+    fun `json codec escapes quotes and backslashes in the unit`() {
+        // Given
+        val codec = registry.json
+        val unit = "in\"Hg \\ raw"
+        
+        // When
+        val decoded = codec.decode(codec.encode(29.92, unit, 1_700_000_000_000L))
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(29.92, codec.value, 0.0)
+        assertEquals(unit, codec.unit)
+    }
+    
+    @Test
+    fun `json codec rejects non-finite values`() {
+        for (value in listOf(Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY)) {
+            // When / Then
+            assertThrows(IllegalArgumentException::class.java) {
+                registry.json.encode(value, "°C", 1_700_000_000_000L)
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.iotlogic.blynk.data.ingest
+
+import com.iotlogic.blynk.data.local.LatestTelemetryStore
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.dao.TelemetryIngestDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryRollupEntity
+import com.iotlogic.blynk.domain.model.RollupResolution
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class TelemetryIngestWriterTest {
+
+    @MockK
+    private lateinit var ingestDao: TelemetryIngestDao
+
+    @MockK
+    private lateinit var channelRegistry: SensorChannelRegistry
+
+    @MockK(relaxed = true)
+    private lateinit var latestStore: LatestTelemetryStore
+
+    private lateinit var writer: TelemetryIngestWriter
+
+    private val writtenBatches = mutableListOf<List<TelemetryEntity>>()
+
+    @Before
+    fun setUp() {
+        MockKAnnotations.init(this)
+        coEvery { ingestDao.getSequence(any()) } returns null
+        coEvery { channelRegistry.get(7L) } returns SensorChannelEntity(7L, "device1", "temperature", "°C")
+        coEvery { ingestDao.ingest(capture(writtenBatches), any(), any()) } answers { firstArg() }
+
+        writer = TelemetryIngestWriter(ingestDao, channelRegistry, latestStore)
+    }
+
+    @After
+    fun tearDown() {
+        unmockkAll()
+    }
+
+    @Test
+    fun `enqueue writes one batch when size limit is reached`() = runBlocking {
+        // Given
+        writer.configure(maxBatchSize = 3, maxDelayMs = 60_000)
+
+        // When
+        repeat(3) { writer.enqueue(sample(it)) }
+
+        // Then
+        assertEquals(1, writtenBatches.size)
+        assertEquals(3, writtenBatches[0].size)
+        assertEquals(0, writer.stats.value.queueDepth)
+        assertEquals(3L, writer.stats.value.writtenRows)
+        assertEquals(1L, writer.stats.value.flushCount)
+    }
+
+    @Test
+    fun `enqueue writes buffered samples after the delay`() = runTest {
+        // Given a writer whose flush timer runs on virtual time
+        writer = TelemetryIngestWriter(ingestDao, channelRegistry, latestStore, backgroundScope)
+        writer.configure(maxBatchSize = 100, maxDelayMs = 20)
+
+        // When
+        writer.enqueue(sample(1))
+        writer.enqueue(sample(2))
+        advanceTimeBy(19)
+        runCurrent()
+        assertEquals(2, writer.stats.value.queueDepth)
+        assertTrue(writtenBatches.isEmpty())
+        advanceTimeBy(2)
+        runCurrent()
+
+        // Then
+        assertEquals(1, writtenBatches.size)
+        assertEquals(listOf("t1", "t2"), writtenBatches[0].map { it.id })
+        assertEquals(0, writer.stats.value.queueDepth)
+    }
+
+    @Test
+    fun `flush writes pending samples immediately`() = runBlocking {
+        // Given
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+        writer.enqueueAll(listOf(sample(1), sample(2)))
+
+        // When
+        val result = writer.flush()
+
+        // Then
+        assertEquals(2, result.getOrNull())
+        assertEquals(1, writtenBatches.size)
+        assertTrue(writer.flush().getOrNull() == 0)
+    }
+
+    @Test
+    fun `failed batch is counted and not retried`() = runBlocking {
+        // Given
+        coEvery { ingestDao.ingest(any(), any(), any()) } throws IllegalStateException("constraint")
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+        writer.enqueue(sample(1))
+
+        // When
+        val result = writer.flush()
+
+        // Then
+        assertTrue(result.isFailure)
+        assertEquals(1L, writer.stats.value.failedRows)
+        assertEquals(0L, writer.stats.value.writtenRows)
+        coVerify(exactly = 1) { ingestDao.ingest(any(), any(), any()) }
+    }
+
+    @Test
+    fun `cancelled write is neither retried per row nor counted as failed`() = runBlocking {
+        // Given
+        coEvery { ingestDao.ingest(any(), any(), any()) } throws CancellationException("stopped")
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+        writer.enqueueAll(listOf(sample(1), sample(2)))
+
+        // When
+        val thrown = try {
+            writer.flush()
+            null
+        } catch (e: CancellationException) {
+            e
+        }
+
+        // Then
+        assertNotNull(thrown)
+        assertEquals(0L, writer.stats.value.failedRows)
+        coVerify(exactly = 1) { ingestDao.ingest(any(), any(), any()) }
+    }
+
+    @Test
+    fun `batch is written together with its rollups`() = runBlocking {
+        // Given
+        val rollupsFor = slot<(List<TelemetryEntity>) -> List<TelemetryRollupEntity>>()
+        coEvery { ingestDao.ingest(capture(writtenBatches), any(), capture(rollupsFor)) } answers { firstArg() }
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+        writer.enqueueAll(listOf(sample(1), sample(2), sample(3)))
+
+        // When
+        writer.flush()
+        val rollups = rollupsFor.captured(writtenBatches.single())
+
+        // Then
+        val minute = rollups.single { it.resolution == RollupResolution.MINUTE.name }
+        assertEquals("device1", minute.deviceId)
+        assertEquals("temperature", minute.sensorType)
+        assertEquals(3L, minute.sampleCount)
+        assertEquals(66.0, minute.valueSum, 0.0001)
+        assertEquals(21.0, minute.minValue, 0.0)
+        assertEquals(23.0, minute.maxValue, 0.0)
+        assertEquals(23.0, minute.lastValue, 0.0)
+        assertEquals(3, rollups.size)
+    }
+
+    @Test
+    fun `samples are stamped with a sequence continuing from the persisted value`() = runBlocking {
+        // Given
+        coEvery { ingestDao.getSequence(TelemetryIngestDao.TELEMETRY_SEQUENCE) } returns 41L
+        val lastSeq = slot<Long>()
+        coEvery { ingestDao.ingest(capture(writtenBatches), capture(lastSeq), any()) } answers { firstArg() }
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+
+        // When
+        writer.enqueueAll(listOf(sample(1), sample(2)))
+        writer.flush()
+        writer.enqueue(sample(3))
+        writer.flush()
+
+        // Then
+        assertEquals(listOf(42L, 43L), writtenBatches[0].map { it.seq })
+        assertEquals(listOf(44L), writtenBatches[1].map { it.seq })
+        assertEquals(44L, lastSeq.captured)
+        coVerify(exactly = 1) { ingestDao.getSequence(any()) }
+    }
+
+    @Test
+    fun `committed batch advances the latest value store`() = runBlocking {
+        // Given
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+        writer.enqueueAll(listOf(sample(1), sample(2)))
+
+        // When
+        writer.flush()
+
+        // Then
+        verify(exactly = 1) { latestStore.offer(match<List<TelemetryEntity>> { it.size == 2 }, any()) }
+    }
+
+    @Test
+    fun `already stored samples are counted as duplicates and not published`() = runBlocking {
+        // Given
+        coEvery { ingestDao.ingest(any(), any(), any()) } answers {
+            firstArg<List<TelemetryEntity>>().filter { it.id != "t2" }
+        }
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+        writer.enqueueAll(listOf(sample(1), sample(2), sample(3)))
+
+        // When
+        val result = writer.flush()
+
+        // Then
+        assertEquals(2, result.getOrNull())
+        assertEquals(2L, writer.stats.value.writtenRows)
+        assertEquals(1L, writer.stats.value.duplicateRows)
+        assertEquals(0L, writer.stats.value.failedRows)
+        verify(exactly = 1) { latestStore.offer(match<List<TelemetryEntity>> { it.map { s -> s.id } == listOf("t1", "t3") }, any()) }
+    }
+
+    @Test
+    fun `batch of duplicates only leaves the latest value store untouched`() = runBlocking {
+        // Given
+        coEvery { ingestDao.ingest(any(), any(), any()) } returns emptyList()
+        writer.configure(maxBatchSize = 100, maxDelayMs = 60_000)
+        writer.enqueueAll(listOf(sample(1), sample(2)))
+
+        // When
+        writer.flush()
+
+        // Then
+        assertEquals(2L, writer.stats.value.duplicateRows)
+        verify(exactly = 0) { latestStore.offer(any(), any()) }
+    }
+
+    private fun sample(index: Int) = TelemetryEntity(
+        id = "t$index",
+        channelId = 7L,
+        value = 20.0 + index,
+        timestamp = 1_000L * index
+    )
+}
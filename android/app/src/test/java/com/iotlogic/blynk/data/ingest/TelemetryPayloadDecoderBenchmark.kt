@@ -0,0 +1,99 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Microbenchmark of the byte decoder against the Regex based parser it replaced.
+ * Skipped unless the BENCHMARK environment variable is set, e.g.
+ * BENCHMARK=1 ./gradlew testDebugUnitTest --tests '*TelemetryPayloadDecoderBenchmark'
+ */
+class TelemetryPayloadDecoderBenchmark {
+    
+    private val payloads = listOf(
+        """{"value": 25.6, "unit": "°C", "timestamp": 1234567890}""",
+        """{"timestamp":1700000000123,"unit":"%","value":48.25}""",
+        """{"value":-3.5,"unit":"dBm","timestamp":1700000000456,"meta":{"fw":"1.2.0"}}""",
+        "1013.25"
+    )
+    
+    private val payloadBytes = payloads.map { it.toByteArray() }
+    
+    @Before
+    fun setup() {
+        assumeTrue(System.getenv("BENCHMARK") != null)
+    }
+    
+    @Test
+    fun `byte decoder against regex parser`() {
+        // Given
+        val decoder = TelemetryPayloadDecoder()
+        
+        // When
+        val regexNs = measure { i -> RegexTelemetryParser.parse(payloads[i % payloads.size])?.value ?: 0.0 }
+        val decoderNs = measure { i ->
+            val payload = payloadBytes[i % payloadBytes.size]
+            if (decoder.decode(payload)) decoder.value else 0.0
+        }
+        println("Regex parser: %.1f ns/op, byte decoder: %.1f ns/op".format(regexNs, decoderNs))
+        
+        // Then
+        for (i in payloads.indices) {
+            val expected = RegexTelemetryParser.parse(payloads[i])
+            assertTrue(decoder.decode(payloadBytes[i]))
+            assertEquals(expected?.value ?: Double.NaN, decoder.value, 0.0)
+            assertEquals(expected?.unit, decoder.unit)
+            assertEquals(expected?.timestamp ?: TelemetryPayloadDecoder.NO_TIMESTAMP, decoder.timestamp)
+        }
+    }
+    
+    // Nanoseconds per call in the fastest measured round, after warming up the JIT
+    private inline fun measure(operation: (Int) -> Double): Double {
+        var sink = 0.0
+        repeat(WARMUP_OPS) { sink += operation(it) }
+        
+        var best = Double.MAX_VALUE
+        repeat(ROUNDS) {
+            val start = System.nanoTime()
+            for (i in 0 until MEASURED_OPS) sink += operation(i)
+            best = minOf(best, (System.nanoTime() - start).toDouble() / MEASURED_OPS)
+        }
+        assertFalse(sink.isNaN())
+        return best
+    }
+    
+    /**
+     * The parser MqttBackgroundService used before the byte decoder, kept as the baseline
+     */
+    private object RegexTelemetryParser {
+        
+        data class Parsed(val value: Double, val unit: String?, val timestamp: Long?)
+        
+        fun parse(payload: String): Parsed? {
+            return if (payload.startsWith("{")) {
+                val value = extractJsonValue(payload, "value")?.toDoubleOrNull() ?: return null
+                Parsed(value, extractJsonString(payload, "unit"), extractJsonValue(payload, "timestamp")?.toLongOrNull())
+            } else {
+                payload.toDoubleOrNull()?.let { Parsed(it, null, null) }
+            }
+        }
+        
+        private fun extractJsonValue(json: String, key: String): String? {
+            val pattern = "\"$key\"\\s*:\\s*([^,}]+)".toRegex()
+            return pattern.find(json)?.groupValues?.get(1)?.trim()?.removeSurrounding("\"")
+        }
+        
+        private fun extractJsonString(json: String, key: String): String? {
+            val pattern = "\"$key\"\\s*:\\s*\"([^\"]+)\"".toRegex()
+            return pattern.find(json)?.groupValues?.get(1)
+        }
+    }
+    
+    private companion object {
+        const val WARMUP_OPS = 200_000
+        const val MEASURED_OPS = 500_000
+        const val ROUNDS = 5
+    }
+}
@@ -0,0 +1,125 @@
+package com.iotlogic.blynk.data.ingest
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class TelemetryPayloadDecoderTest {
+    
+    private val decoder = TelemetryPayloadDecoder(extraFields = listOf("humidity", "rssi"))
+    
+    @Test
+    fun `json payload yields value unit and timestamp`() {
+        // Given
+        val payload = """{"value": 25.6, "unit": "°C", "timestamp": 1234567890}""".toByteArray()
+        
+        // When
+        val decoded = decoder.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(25.6, decoder.value, 0.0)
+        assertEquals("°C", decoder.unit)
+        assertEquals(1234567890L, decoder.timestamp)
+    }
+    
+    @Test
+    fun `bare number is read as the value`() {
+        // Given
+        val payload = " -12.5e1\n".toByteArray()
+        
+        // When
+        val decoded = decoder.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(-125.0, decoder.value, 0.0)
+        assertNull(decoder.unit)
+        assertEquals(TelemetryPayloadDecoder.NO_TIMESTAMP, decoder.timestamp)
+    }
+    
+    @Test
+    fun `extra numeric fields are exposed and nested values skipped`() {
+        // Given
+        val payload = """{"meta":{"tags":["a","}"],"x":{"y":1}},"humidity":"48.5","value":1,"rssi":-71}""".toByteArray()
+        
+        // When
+        val decoded = decoder.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals(1.0, decoder.value, 0.0)
+        assertEquals(48.5, decoder.field("humidity"), 0.0)
+        assertEquals(-71.0, decoder.field("rssi"), 0.0)
+    }
+    
+    @Test
+    fun `doubles match the standard parser`() {
+        // Given
+        val inputs = listOf("0.1", "3.14159", "1e22", "1.7976931348623157e308", "4.9e-324", "123456789012345678901", "0.000001234")
+        
+        for (input in inputs) {
+            // When
+            val decoded = decoder.decode("""{"value":$input}""".toByteArray())
+            
+            // Then
+            assertTrue(input, decoded)
+            assertEquals(input, input.toDouble(), decoder.value, 0.0)
+        }
+    }
+    
+    @Test
+    fun `fractional timestamp is ignored`() {
+        // Given
+        val payload = """{"value":1,"timestamp":1234.5}""".toByteArray()
+        
+        // When
+        decoder.decode(payload)
+        
+        // Then
+        assertEquals(TelemetryPayloadDecoder.NO_TIMESTAMP, decoder.timestamp)
+    }
+    
+    @Test
+    fun `payload without a value is rejected`() {
+        // Given
+        val missing = """{"unit":"%"}""".toByteArray()
+        val truncated = """{"value":12""".toByteArray()
+        val text = "on".toByteArray()
+        
+        // When / Then
+        assertFalse(decoder.decode(missing))
+        assertFalse(decoder.decode(truncated))
+        assertFalse(decoder.decode(text))
+    }
+    
+    @Test
+    fun `repeated units are returned from the intern table`() {
+        // Given
+        val first = """{"value":1,"unit":"hPa"}""".toByteArray()
+        val second = """{"unit":"hPa","value":2}""".toByteArray()
+        
+        // When
+        decoder.decode(first)
+        val firstUnit = decoder.unit
+        decoder.decode(second)
+        
+        // Then
+        assertSame(firstUnit, decoder.unit)
+    }
+    
+    @Test
+    fun `field decoder reads booleans and escaped strings`() {
+        // Given
+        val fields = JsonFieldDecoder(listOf("status", "online", "battery"))
+        val payload = """{"status":"idle \"eco\"","online":true,"battery":87}""".toByteArray()
+        
+        // When
+        val decoded = fields.decode(payload)
+        
+        // Then
+        assertTrue(decoded)
+        assertEquals("idle \"eco\"", fields.string(0))
+        assertEquals(true, fields.boolean(1))
+        assertEquals(87L, fields.long(2, -1))
+    }
+}
@@ -0,0 +1,71 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.CounterDao
+import com.iotlogic.blynk.data.local.entities.CounterEntity
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class CounterStoreTest {
+    
+    @MockK
+    private lateinit var counterDao: CounterDao
+    
+    @MockK
+    private lateinit var invalidations: InvalidationCoalescer
+    
+    private lateinit var counters: CounterStore
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        counters = CounterStore(counterDao, invalidations)
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    @Test
+    fun `counter that was never written reads as zero`() = runTest {
+        // Given
+        coEvery { counterDao.getCounter(CounterEntity.PENDING_COMMANDS) } returns null
+        
+        // When
+        val count = counters.get(CounterEntity.PENDING_COMMANDS)
+        
+        // Then
+        assertEquals(0L, count)
+    }
+    
+    @Test
+    fun `observe re-reads on invalidation and skips unchanged values`() = runTest {
+        // Given
+        coEvery { counterDao.getCounter(CounterEntity.DEVICES) } returnsMany listOf(2L, 2L, 3L)
+        every { invalidations.observe<Long>("counters", query = any()) } answers {
+            val query = secondArg<suspend () -> Long>()
+            flow { repeat(3) { emit(query()) } }
+        }
+        
+        // When
+        val values = counters.observe(CounterEntity.DEVICES).toList()
+        
+        // Then
+        assertEquals(listOf(2L, 3L), values)
+        coVerify(exactly = 3) { counterDao.getCounter(CounterEntity.DEVICES) }
+    }
+    
+    @Test
+    fun `device counters are named per status, protocol and device`() {
+        assertEquals("devices.status.CONNECTED", CounterEntity.devicesWithStatus("CONNECTED"))
+        assertEquals("devices.protocol.BLE", CounterEntity.devicesWithProtocol("BLE"))
+        assertEquals("telemetry.device.device1", CounterEntity.deviceTelemetry("device1"))
+    }
+}
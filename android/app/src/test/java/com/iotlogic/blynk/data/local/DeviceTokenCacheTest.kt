@@ -0,0 +1,124 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.DeviceDao
+import com.iotlogic.blynk.data.local.entities.DeviceEntity
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class DeviceTokenCacheTest {
+    
+    @MockK
+    private lateinit var deviceDao: DeviceDao
+    
+    private lateinit var cache: DeviceTokenCache
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        cache = DeviceTokenCache(deviceDao)
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    @Test
+    fun `resolved tokens are served from memory in both directions`() = runTest {
+        // Given
+        coEvery { deviceDao.getDeviceIdByToken("token-1") } returns "device-1"
+        
+        // When
+        val first = cache.resolveDeviceId("token-1")
+        val second = cache.resolveDeviceId("token-1")
+        val token = cache.resolveToken("device-1")
+        
+        // Then
+        assertEquals("device-1", first)
+        assertEquals("device-1", second)
+        assertEquals("token-1", token)
+        coVerify(exactly = 1) { deviceDao.getDeviceIdByToken("token-1") }
+        coVerify(exactly = 0) { deviceDao.getTokenByDeviceId(any()) }
+    }
+    
+    @Test
+    fun `unknown tokens are not looked up again`() = runTest {
+        // Given
+        coEvery { deviceDao.getDeviceIdByToken("bogus") } returns null
+        
+        // When
+        val results = List(5) { cache.resolveDeviceId("bogus") }
+        
+        // Then
+        assertTrue(results.all { it == null })
+        coVerify(exactly = 1) { deviceDao.getDeviceIdByToken("bogus") }
+    }
+    
+    @Test
+    fun `saving a device clears its negative entry`() = runTest {
+        // Given
+        coEvery { deviceDao.getDeviceIdByToken("token-1") } returns null
+        cache.resolveDeviceId("token-1")
+        
+        // When
+        cache.onDeviceSaved(device("device-1", "token-1"))
+        val deviceId = cache.resolveDeviceId("token-1")
+        
+        // Then
+        assertEquals("device-1", deviceId)
+        coVerify(exactly = 1) { deviceDao.getDeviceIdByToken("token-1") }
+    }
+    
+    @Test
+    fun `changed and deleted devices stop resolving by their old token`() = runTest {
+        // Given
+        coEvery { deviceDao.getDeviceIdByToken(any()) } returns null
+        cache.onDeviceSaved(device("device-1", "old"))
+        cache.onDeviceSaved(device("device-2", "other"))
+        
+        // When
+        cache.onDeviceSaved(device("device-1", "new"))
+        cache.onDeviceDeleted("device-2")
+        
+        // Then
+        assertNull(cache.resolveDeviceId("old"))
+        assertEquals("device-1", cache.resolveDeviceId("new"))
+        assertNull(cache.resolveDeviceId("other"))
+        coVerify(exactly = 1) { deviceDao.getDeviceIdByToken("old") }
+        coVerify(exactly = 1) { deviceDao.getDeviceIdByToken("other") }
+    }
+    
+    @Test
+    fun `lookups racing a write do not cache what they read`() = runTest {
+        // Given
+        coEvery { deviceDao.getDeviceIdByToken("token-1") } coAnswers {
+            // The device is added while the query runs
+            cache.onDeviceSaved(device("device-1", "token-1"))
+            null
+        }
+        
+        // When
+        val raced = cache.resolveDeviceId("token-1")
+        val after = cache.resolveDeviceId("token-1")
+        
+        // Then
+        assertNull(raced)
+        assertEquals("device-1", after)
+    }
+    
+    private fun device(id: String, token: String) = DeviceEntity(
+        id = id,
+        name = "Device $id",
+        type = "sensor",
+        protocol = "MQTT",
+        status = "CONNECTED",
+        token = token,
+        userId = "user-1",
+        lastSeen = 0L
+    )
+}
@@ -0,0 +1,89 @@
+package com.iotlogic.blynk.data.local
+
+import androidx.room.InvalidationTracker
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicInteger
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class InvalidationCoalescerTest {
+    
+    @MockK(relaxUnitFun = true)
+    private lateinit var invalidationTracker: InvalidationTracker
+    
+    private val observers = mutableListOf<InvalidationTracker.Observer>()
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        every { invalidationTracker.addObserver(capture(observers)) } just Runs
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    // Window timers run on the test scheduler
+    private fun TestScope.coalescer() = InvalidationCoalescer(invalidationTracker, backgroundScope).apply {
+        configure(windowMs = 50)
+    }
+    
+    @Test
+    fun `invalidations within the window cause a single re-query`() = runTest {
+        // Given
+        val coalescer = coalescer()
+        val queries = AtomicInteger()
+        val results = mutableListOf<Int>()
+        backgroundScope.launch {
+            coalescer.observe("devices") { queries.incrementAndGet() }.collect { results += it }
+        }
+        runCurrent()
+        assertEquals(listOf(1), results)
+        
+        // When
+        repeat(5) { observers.single().onInvalidated(setOf("devices")) }
+        advanceTimeBy(49)
+        runCurrent()
+        assertEquals(listOf(1), results)
+        advanceTimeBy(1)
+        runCurrent()
+        advanceTimeBy(150)
+        runCurrent()
+        
+        // Then
+        assertEquals(listOf(1, 2), results)
+        assertEquals(2, queries.get())
+        assertEquals(5L, coalescer.stats.value.invalidations)
+        assertEquals(1L, coalescer.stats.value.refreshes)
+        assertEquals(4L, coalescer.stats.value.queriesSaved)
+    }
+    
+    @Test
+    fun `queries on the same table share one tracker observer`() = runTest {
+        // Given
+        val coalescer = coalescer()
+        val first = backgroundScope.launch { coalescer.observe("devices") { 1 }.collect() }
+        val second = backgroundScope.launch { coalescer.observe("devices") { 2 }.collect() }
+        runCurrent()
+        
+        // When
+        first.cancelAndJoin()
+        verify(exactly = 0) { invalidationTracker.removeObserver(any()) }
+        second.cancelAndJoin()
+        
+        // Then
+        verify(exactly = 1) { invalidationTracker.addObserver(any()) }
+        verify(exactly = 1) { invalidationTracker.removeObserver(observers.single()) }
+    }
+}
@@ -0,0 +1,130 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryBlockEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class LatestTelemetryStoreTest {
+    
+    @MockK
+    private lateinit var telemetryDao: TelemetryDao
+    
+    @MockK
+    private lateinit var blockDao: TelemetryBlockDao
+    
+    @MockK
+    private lateinit var channelRegistry: SensorChannelRegistry
+    
+    private lateinit var store: LatestTelemetryStore
+    
+    private val temperature = SensorChannelEntity(1L, "device1", "temperature", "°C")
+    private val humidity = SensorChannelEntity(2L, "device1", "humidity", "%")
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        coEvery { channelRegistry.get(1L) } returns temperature
+        coEvery { channelRegistry.get(2L) } returns humidity
+        coEvery { telemetryDao.getLatestTelemetryPerChannel() } returns listOf(row(1L, 2_000L, 20L, 21.5))
+        coEvery { blockDao.getLatestBlockPerChannel() } returns listOf(block("humidity", 1_000L, 40.0))
+        
+        store = LatestTelemetryStore(telemetryDao, blockDao, channelRegistry)
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    @Test
+    fun `warm-up loads raw rows and compressed blocks with one query each`() = runTest {
+        // When
+        val latestTemperature = store.getLatest("device1", "temperature")
+        val latestHumidity = store.getLatest("device1", "humidity")
+        val latestForDevice = store.getLatestForDevice("device1")
+        
+        // Then
+        assertEquals(21.5, latestTemperature!!.value, 0.0)
+        assertEquals("°C", latestTemperature.unit)
+        assertEquals(40.0, latestHumidity!!.value, 0.0)
+        assertEquals("temperature", latestForDevice!!.sensorType)
+        coVerify(exactly = 1) { telemetryDao.getLatestTelemetryPerChannel() }
+        coVerify(exactly = 1) { blockDao.getLatestBlockPerChannel() }
+    }
+    
+    @Test
+    fun `offer keeps the newest sample of each channel`() = runTest {
+        // Given
+        store.getLatest("device1", "temperature")
+        val observed = store.observe("device1", "temperature")
+        
+        // When
+        store.offer(
+            listOf(row(1L, 3_000L, 31L, 23.0), row(1L, 3_000L, 30L, 22.0), row(1L, 1_500L, 32L, 19.0)),
+            mapOf(1L to temperature)
+        )
+        
+        // Then
+        assertEquals(23.0, observed.value!!.value, 0.0)
+        assertEquals(31L, observed.value!!.seq)
+    }
+    
+    @Test
+    fun `older samples never replace a newer value`() = runTest {
+        // Given
+        store.getLatest("device1", "temperature")
+        
+        // When
+        store.offer(listOf(row(1L, 1_000L, 5L, 10.0)), mapOf(1L to temperature))
+        
+        // Then
+        assertEquals(21.5, store.getLatest("device1", "temperature")!!.value, 0.0)
+    }
+    
+    @Test
+    fun `evictDevice clears observed values`() = runTest {
+        // Given
+        val observed = store.observe("device1", "temperature")
+        store.getLatest("device1", "temperature")
+        
+        // When
+        store.evictDevice("device1")
+        
+        // Then
+        assertNull(observed.value)
+        assertNull(store.getLatestForDevice("device1"))
+    }
+    
+    private fun row(channelId: Long, timestamp: Long, seq: Long, value: Double) = TelemetryEntity(
+        id = "t$seq",
+        channelId = channelId,
+        value = value,
+        timestamp = timestamp,
+        seq = seq
+    )
+    
+    private fun block(sensorType: String, lastTimestamp: Long, lastValue: Double) = TelemetryBlockEntity(
+        channelId = 2L,
+        deviceId = "device1",
+        sensorType = sensorType,
+        blockStart = 0L,
+        unit = "%",
+        sampleCount = 1,
+        firstTimestamp = lastTimestamp,
+        lastTimestamp = lastTimestamp,
+        valueSum = lastValue,
+        minValue = lastValue,
+        maxValue = lastValue,
+        lastValue = lastValue,
+        data = ByteArray(0)
+    )
+}
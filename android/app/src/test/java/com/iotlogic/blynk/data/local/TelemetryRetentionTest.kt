@@ -0,0 +1,127 @@
+package com.iotlogic.blynk.data.local
+
+import com.iotlogic.blynk.data.local.dao.SensorChannelDao
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.dao.TelemetryOutboxDao
+import com.iotlogic.blynk.data.local.dao.TelemetryRollupDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.domain.model.RollupResolution
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class TelemetryRetentionTest {
+    
+    @MockK
+    private lateinit var channelDao: SensorChannelDao
+    
+    @MockK
+    private lateinit var telemetryDao: TelemetryDao
+    
+    @MockK
+    private lateinit var rollupDao: TelemetryRollupDao
+    
+    @MockK
+    private lateinit var blockDao: TelemetryBlockDao
+    
+    @MockK
+    private lateinit var outboxDao: TelemetryOutboxDao
+    
+    private lateinit var retention: TelemetryRetention
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        coEvery { channelDao.getAllChannels() } returns listOf(
+            SensorChannelEntity(1L, "device1", "temperature", "°C"),
+            SensorChannelEntity(2L, "device1", "temperature", "°F"),
+            SensorChannelEntity(3L, "device2", "humidity", "%")
+        )
+        coEvery { outboxDao.deleteOlderThanChunk(any(), any()) } returns 0
+        
+        retention = TelemetryRetention(channelDao, telemetryDao, rollupDao, blockDao, outboxDao)
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    @Test
+    fun `old telemetry is deleted in chunks until each channel is drained`() = runTest {
+        // Given
+        coEvery { telemetryDao.deleteOldTelemetryChunk(1L, 1_000L, 100) } returnsMany listOf(100, 100, 20, 0)
+        coEvery { telemetryDao.deleteOldTelemetryChunk(2L, 1_000L, 100) } returns 0
+        coEvery { telemetryDao.deleteOldTelemetryChunk(3L, 1_000L, 100) } returnsMany listOf(5, 0)
+        
+        // When
+        val result = retention.deleteTelemetryOlderThan(1_000L, chunkSize = 100)
+        
+        // Then
+        assertEquals(225, result.getOrNull())
+        coVerify(exactly = 4) { telemetryDao.deleteOldTelemetryChunk(1L, any(), any()) }
+        coVerify(exactly = 0) { telemetryDao.deleteOldTelemetry(any()) }
+    }
+    
+    @Test
+    fun `synced only retention keeps pending rows`() = runTest {
+        // Given
+        coEvery { telemetryDao.deleteSyncedOldTelemetryChunk(any(), any(), any()) } returns 0
+        
+        // When
+        retention.deleteTelemetryOlderThan(1_000L, syncedOnly = true)
+        
+        // Then
+        coVerify(exactly = 3) { telemetryDao.deleteSyncedOldTelemetryChunk(any(), 1_000L, any()) }
+        coVerify(exactly = 0) { telemetryDao.deleteOldTelemetryChunk(any(), any(), any()) }
+        coVerify(exactly = 0) { outboxDao.deleteOlderThanChunk(any(), any()) }
+    }
+    
+    @Test
+    fun `raw retention also drops outbox rows that were never uploaded`() = runTest {
+        // Given
+        coEvery { telemetryDao.deleteOldTelemetryChunk(any(), any(), any()) } returns 0
+        coEvery { outboxDao.deleteOlderThanChunk(1_000L, 100) } returnsMany listOf(100, 40, 0)
+        
+        // When
+        val result = retention.deleteTelemetryOlderThan(1_000L, chunkSize = 100)
+        
+        // Then
+        assertTrue(result.isSuccess)
+        coVerify(exactly = 3) { outboxDao.deleteOlderThanChunk(1_000L, 100) }
+    }
+    
+    @Test
+    fun `blocks and rollups are deleted once per device sensor`() = runTest {
+        // Given
+        coEvery { blockDao.deleteOldBlocksForSensor(any(), any(), any()) } returns 2
+        coEvery { rollupDao.deleteOldRollupsForSensor(any(), any(), any(), any()) } returns 3
+        
+        // When
+        val blocks = retention.deleteBlocksOlderThan(1_000L)
+        val rollups = retention.deleteRollupsOlderThan(RollupResolution.MINUTE, 1_000L)
+        
+        // Then
+        assertEquals(4, blocks.getOrNull())
+        assertEquals(6, rollups.getOrNull())
+        coVerify(exactly = 1) { blockDao.deleteOldBlocksForSensor("device1", "temperature", 1_000L) }
+        coVerify(exactly = 1) { rollupDao.deleteOldRollupsForSensor("device2", "humidity", "MINUTE", 1_000L) }
+    }
+    
+    @Test
+    fun `failures are returned as results`() = runTest {
+        // Given
+        coEvery { telemetryDao.deleteOldTelemetryChunk(any(), any(), any()) } throws IllegalStateException("locked")
+        
+        // When
+        val result = retention.deleteTelemetryOlderThan(1_000L)
+        
+        // Then
+        assertTrue(result.isFailure)
+    }
+}
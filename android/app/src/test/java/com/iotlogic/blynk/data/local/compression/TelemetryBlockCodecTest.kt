@@ -0,0 +1,97 @@
+package com.iotlogic.blynk.data.local.compression
+
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import org.junit.Assert.*
+import org.junit.Test
+
+class TelemetryBlockCodecTest {
+
+    @Test
+    fun `regular samples round trip exactly`() {
+        // Given
+        val timestamps = LongArray(3600) { 1_700_000_000_000L + it * 1_000L }
+        val values = DoubleArray(3600) { 21.5 + (it % 10) * 0.1 }
+
+        // When
+        val decoded = TelemetryBlockCodec.decode(TelemetryBlockCodec.encode(timestamps, values))
+
+        // Then
+        assertArrayEquals(timestamps, decoded.timestamps)
+        assertArrayEquals(values, decoded.values, 0.0)
+    }
+
+    @Test
+    fun `irregular timestamps and special values round trip exactly`() {
+        // Given
+        val timestamps = longArrayOf(0L, 5L, 5L, 70L, 400L, 3_000L, 10_000_000_000L, 10_000_000_001L)
+        val values = doubleArrayOf(0.0, -0.0, 1e-300, Double.MAX_VALUE, Double.NaN, -42.25, Double.NEGATIVE_INFINITY, 42.25)
+
+        // When
+        val decoded = TelemetryBlockCodec.decode(TelemetryBlockCodec.encode(timestamps, values))
+
+        // Then
+        assertArrayEquals(timestamps, decoded.timestamps)
+        values.indices.forEach { i ->
+            assertEquals(values[i].toRawBits(), decoded.values[i].toRawBits())
+        }
+    }
+
+    @Test
+    fun `regular samples compress well below row size`() {
+        // Given
+        val timestamps = LongArray(3600) { it * 1_000L }
+        val values = DoubleArray(3600) { 20.0 }
+
+        // When
+        val encoded = TelemetryBlockCodec.encode(timestamps, values)
+
+        // Then - two bits per constant sample plus the header
+        assertTrue(encoded.size < 1_000)
+    }
+
+    @Test
+    fun `merge folds late rows into an existing block in timestamp order`() {
+        // Given
+        val existing = TelemetryBlocks.merge(channel, 0L, null, listOf(row(1_000L, 1.0), row(3_000L, 3.0)))
+
+        // When
+        val merged = TelemetryBlocks.merge(channel, 0L, existing, listOf(row(2_000L, 2.0)))
+
+        // Then
+        val decoded = TelemetryBlocks.decode(merged)
+        assertArrayEquals(longArrayOf(1_000L, 2_000L, 3_000L), decoded.timestamps)
+        assertEquals(3, merged.sampleCount)
+        assertEquals(6.0, merged.valueSum, 0.0)
+        assertEquals(1.0, merged.minValue, 0.0)
+        assertEquals(3.0, merged.maxValue, 0.0)
+        assertEquals(3.0, merged.lastValue, 0.0)
+        assertEquals(channel.id, merged.channelId)
+        assertEquals("°C", merged.unit)
+    }
+
+    @Test
+    fun `channels that differ only in unit build separate blocks`() {
+        // Given
+        val unitless = SensorChannelEntity(id = 2L, deviceId = "device1", sensorType = "temperature", unit = "")
+
+        // When
+        val celsiusBlock = TelemetryBlocks.merge(channel, 0L, null, listOf(row(1_000L, 21.0)))
+        val unitlessBlock = TelemetryBlocks.merge(unitless, 0L, null, listOf(row(1_000L, 70.0)))
+
+        // Then
+        assertEquals(1L, celsiusBlock.channelId)
+        assertEquals("°C", celsiusBlock.unit)
+        assertEquals(2L, unitlessBlock.channelId)
+        assertNull(unitlessBlock.unit)
+    }
+
+    private val channel = SensorChannelEntity(id = 1L, deviceId = "device1", sensorType = "temperature", unit = "°C")
+
+    private fun row(timestamp: Long, value: Double) = TelemetryEntity(
+        id = "t$timestamp",
+        channelId = channel.id,
+        value = value,
+        timestamp = timestamp
+    )
+}
@@ -0,0 +1,90 @@
+package com.iotlogic.blynk.data.repository
+
+import com.iotlogic.blynk.domain.model.ChartPoint
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.math.sin
+
+class ChartDownsamplerTest {
+    
+    @Test
+    fun `short series is returned unchanged`() {
+        // Given
+        val downsampler = ChartDownsampler(0L, 999L, 100)
+        listOf(10L to 1.0, 5L to 2.0, 900L to 3.0).forEach { (t, v) -> downsampler.add(t, v) }
+        
+        // When
+        val points = downsampler.finish()
+        
+        // Then
+        assertEquals(listOf(ChartPoint(5L, 2.0), ChartPoint(10L, 1.0), ChartPoint(900L, 3.0)), points)
+    }
+    
+    @Test
+    fun `long series is reduced to the point budget in time order`() {
+        // Given
+        val downsampler = ChartDownsampler(0L, 99_999L, 200)
+        for (t in 0L until 100_000L) {
+            downsampler.add(t, sin(t / 500.0))
+        }
+        
+        // When
+        val points = downsampler.finish()
+        
+        // Then
+        assertEquals(200, points.size)
+        assertEquals(0L, points.first().timestamp)
+        assertEquals(points.sortedBy { it.timestamp }, points)
+    }
+    
+    @Test
+    fun `isolated spikes survive downsampling`() {
+        // Given
+        val downsampler = ChartDownsampler(0L, 9_999L, 50)
+        for (t in 0L until 10_000L) {
+            val value = when (t) {
+                3_333L -> 100.0
+                7_777L -> -100.0
+                else -> 0.0
+            }
+            downsampler.add(t, value)
+        }
+        
+        // When
+        val points = downsampler.finish()
+        
+        // Then
+        assertTrue(points.size <= 50)
+        assertTrue(ChartPoint(3_333L, 100.0) in points)
+        assertTrue(ChartPoint(7_777L, -100.0) in points)
+    }
+    
+    @Test
+    fun `samples outside the range are ignored`() {
+        // Given
+        val downsampler = ChartDownsampler(1_000L, 2_000L, 10)
+        downsampler.add(999L, 5.0)
+        downsampler.add(1_500L, 6.0)
+        downsampler.add(2_001L, 7.0)
+        
+        // When
+        val points = downsampler.finish()
+        
+        // Then
+        assertEquals(listOf(ChartPoint(1_500L, 6.0)), points)
+    }
+    
+    @Test
+    fun `lttb keeps first and last points`() {
+        // Given
+        val series = (0 until 1_000).map { ChartPoint(it.toLong(), (it % 7).toDouble()) }
+        
+        // When
+        val sampled = ChartDownsampler.largestTriangleThreeBuckets(series, 25)
+        
+        // Then
+        assertEquals(25, sampled.size)
+        assertEquals(series.first(), sampled.first())
+        assertEquals(series.last(), sampled.last())
+    }
+}
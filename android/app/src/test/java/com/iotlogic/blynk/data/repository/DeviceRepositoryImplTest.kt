@@ -1,5 +1,10 @@
 package com.iotlogic.blynk.data.repository
 
+import com.iotlogic.blynk.data.local.CounterStore
+import com.iotlogic.blynk.data.local.DeviceTokenCache
+import com.iotlogic.blynk.data.local.InvalidationCoalescer
+import com.iotlogic.blynk.data.local.LatestTelemetryStore
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
 import com.iotlogic.blynk.data.local.dao.DeviceDao
 import com.iotlogic.blynk.data.local.entities.DeviceEntity
 import com.iotlogic.blynk.data.remote.ApiClient
@@ -21,12 +26,27 @@ class DeviceRepositoryImplTest {
     @MockK
     private lateinit var apiClient: ApiClient
     
+    @MockK(relaxed = true)
+    private lateinit var channelRegistry: SensorChannelRegistry
+    
+    @MockK(relaxed = true)
+    private lateinit var latestStore: LatestTelemetryStore
+    
+    @MockK(relaxed = true)
+    private lateinit var invalidations: InvalidationCoalescer
+    
+    @MockK
+    private lateinit var counters: CounterStore
+    
+    @MockK(relaxed = true)
+    private lateinit var tokenCache: DeviceTokenCache
+    
     private lateinit var deviceRepository: DeviceRepositoryImpl
     
     @Before
     fun setup() {
         MockKAnnotations.init(this)
-        deviceRepository = DeviceRepositoryImpl(deviceDao, apiClient)
+        deviceRepository = DeviceRepositoryImpl(deviceDao, apiClient, channelRegistry, latestStore, invalidations, counters, tokenCache)
     }
     
     @After
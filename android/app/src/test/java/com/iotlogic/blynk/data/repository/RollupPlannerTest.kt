@@ -0,0 +1,74 @@
+package com.iotlogic.blynk.data.repository
+
+import com.iotlogic.blynk.domain.model.RollupResolution
+import org.junit.Assert.*
+import org.junit.Test
+
+class RollupPlannerTest {
+
+    private val minute = RollupResolution.MINUTE.durationMs
+    private val hour = RollupResolution.HOUR.durationMs
+    private val day = RollupResolution.DAY.durationMs
+
+    @Test
+    fun `range inside one minute is read from raw rows`() {
+        // When
+        val segments = RollupPlanner.plan(1_000, 5_000)
+
+        // Then
+        assertEquals(listOf(RollupPlanner.Segment(null, 1_000, 5_000)), segments)
+    }
+
+    @Test
+    fun `aligned day range uses a single day segment`() {
+        // When
+        val segments = RollupPlanner.plan(2 * day, 5 * day)
+
+        // Then
+        assertEquals(listOf(RollupPlanner.Segment(RollupResolution.DAY, 2 * day, 5 * day)), segments)
+    }
+
+    @Test
+    fun `unaligned range uses coarsest buckets in the middle and raw rows at the edges`() {
+        // Given
+        val start = day - hour - minute - 500
+        val end = 3 * day + hour + minute + 500
+
+        // When
+        val segments = RollupPlanner.plan(start, end)
+
+        // Then
+        assertEquals(
+            listOf(
+                RollupPlanner.Segment(null, start, day - hour - minute),
+                RollupPlanner.Segment(RollupResolution.MINUTE, day - hour - minute, day - hour),
+                RollupPlanner.Segment(RollupResolution.HOUR, day - hour, day),
+                RollupPlanner.Segment(RollupResolution.DAY, day, 3 * day),
+                RollupPlanner.Segment(RollupResolution.HOUR, 3 * day, 3 * day + hour),
+                RollupPlanner.Segment(RollupResolution.MINUTE, 3 * day + hour, 3 * day + hour + minute),
+                RollupPlanner.Segment(null, 3 * day + hour + minute, end)
+            ),
+            segments
+        )
+    }
+
+    @Test
+    fun `segments cover the range without gaps or overlap`() {
+        // Given
+        val start = 123_456_789L
+        val end = start + 9 * day + 7 * hour + 13 * minute + 42_000
+
+        // When
+        val segments = RollupPlanner.plan(start, end)
+
+        // Then
+        assertEquals(start, segments.first().start)
+        assertEquals(end, segments.last().end)
+        segments.zipWithNext().forEach { (a, b) -> assertEquals(a.end, b.start) }
+    }
+
+    @Test
+    fun `empty range yields no segments`() {
+        assertTrue(RollupPlanner.plan(10_000, 10_000).isEmpty())
+    }
+}
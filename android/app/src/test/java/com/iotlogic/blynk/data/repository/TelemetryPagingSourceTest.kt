@@ -0,0 +1,124 @@
+package com.iotlogic.blynk.data.repository
+
+import androidx.paging.PagingSource
+import androidx.room.InvalidationTracker
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.dao.TelemetryBlockDao
+import com.iotlogic.blynk.data.local.dao.TelemetryDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryEntity
+import com.iotlogic.blynk.domain.model.Telemetry
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class TelemetryPagingSourceTest {
+    
+    @MockK
+    private lateinit var telemetryDao: TelemetryDao
+    
+    @MockK
+    private lateinit var blockDao: TelemetryBlockDao
+    
+    @MockK
+    private lateinit var channelRegistry: SensorChannelRegistry
+    
+    @MockK(relaxed = true)
+    private lateinit var invalidationTracker: InvalidationTracker
+    
+    private lateinit var pagingSource: TelemetryPagingSource
+    
+    private val temperature = SensorChannelEntity(1L, "device1", "temperature", "°C")
+    private val humidity = SensorChannelEntity(2L, "device1", "humidity", "%")
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        coEvery { channelRegistry.getChannelsForDevice("device1") } returns listOf(temperature, humidity)
+        coEvery { blockDao.getBlockAtOrBefore(any(), any(), any()) } returns null
+        
+        pagingSource = TelemetryPagingSource(
+            telemetryDao,
+            blockDao,
+            channelRegistry,
+            invalidationTracker,
+            "device1",
+            null,
+            0L,
+            Long.MAX_VALUE
+        )
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    @Test
+    fun `refresh merges channels newest first and continues from the last key`() = runTest {
+        // Given
+        coEvery { telemetryDao.getPageBefore(1L, 0L, Long.MAX_VALUE, Long.MAX_VALUE, 3) } returns
+            listOf(row(1L, 300L, 30L), row(1L, 100L, 10L))
+        coEvery { telemetryDao.getPageBefore(2L, 0L, Long.MAX_VALUE, Long.MAX_VALUE, 3) } returns
+            listOf(row(2L, 200L, 20L), row(2L, 50L, 5L))
+        
+        // When
+        val result = pagingSource.load(PagingSource.LoadParams.Refresh(null, 3, false))
+        
+        // Then
+        val page = result as PagingSource.LoadResult.Page<TelemetryPageKey, Telemetry>
+        assertEquals(listOf(300L, 200L, 100L), page.data.map { it.timestamp })
+        assertEquals(listOf("temperature", "humidity", "temperature"), page.data.map { it.sensorType })
+        assertNull(page.prevKey)
+        assertEquals(TelemetryPageKey(100L, 10L, 1L), page.nextKey)
+        verify(exactly = 1) { invalidationTracker.addObserver(any()) }
+    }
+    
+    @Test
+    fun `append seeks strictly past the key in every channel`() = runTest {
+        // Given
+        coEvery { telemetryDao.getPageBefore(any(), any(), any(), any(), any()) } returns emptyList()
+        val key = TelemetryPageKey(100L, 10L, 1L)
+        
+        // When
+        val result = pagingSource.load(PagingSource.LoadParams.Append(key, 3, false))
+        
+        // Then
+        val page = result as PagingSource.LoadResult.Page<TelemetryPageKey, Telemetry>
+        assertTrue(page.data.isEmpty())
+        assertNull(page.nextKey)
+        // No channel sorts below the key's source, so (100, 10) itself is excluded everywhere
+        coVerify { telemetryDao.getPageBefore(1L, 0L, 100L, 10L, 3) }
+        coVerify { telemetryDao.getPageBefore(2L, 0L, 100L, 10L, 3) }
+    }
+    
+    @Test
+    fun `prepend returns newer samples in descending order`() = runTest {
+        // Given
+        coEvery { blockDao.getBlockAtOrAfter(any(), any(), any()) } returns null
+        coEvery { telemetryDao.getPageAfter(1L, Long.MAX_VALUE, 100L, 10L, 2) } returns
+            listOf(row(1L, 150L, 15L), row(1L, 400L, 40L))
+        coEvery { telemetryDao.getPageAfter(2L, Long.MAX_VALUE, 100L, 9L, 2) } returns
+            listOf(row(2L, 120L, 12L))
+        
+        // When
+        val result = pagingSource.load(PagingSource.LoadParams.Prepend(TelemetryPageKey(100L, 10L, 1L), 2, false))
+        
+        // Then
+        val page = result as PagingSource.LoadResult.Page<TelemetryPageKey, Telemetry>
+        assertEquals(listOf(150L, 120L), page.data.map { it.timestamp })
+        assertEquals(TelemetryPageKey(150L, 15L, 1L), page.prevKey)
+    }
+    
+    private fun row(channelId: Long, timestamp: Long, seq: Long) = TelemetryEntity(
+        id = "t$channelId-$seq",
+        channelId = channelId,
+        value = 20.0,
+        timestamp = timestamp,
+        seq = seq
+    )
+}
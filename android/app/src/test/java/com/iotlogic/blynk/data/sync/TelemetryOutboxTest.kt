@@ -0,0 +1,154 @@
+package com.iotlogic.blynk.data.sync
+
+import com.iotlogic.blynk.data.local.DeviceTokenCache
+import com.iotlogic.blynk.data.local.SensorChannelRegistry
+import com.iotlogic.blynk.data.local.dao.TelemetryOutboxDao
+import com.iotlogic.blynk.data.local.entities.SensorChannelEntity
+import com.iotlogic.blynk.data.local.entities.SyncCursorEntity
+import com.iotlogic.blynk.data.local.entities.TelemetryOutboxEntity
+import io.mockk.*
+import io.mockk.impl.annotations.MockK
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class TelemetryOutboxTest {
+    
+    @MockK
+    private lateinit var outboxDao: TelemetryOutboxDao
+    
+    @MockK
+    private lateinit var channelRegistry: SensorChannelRegistry
+    
+    @MockK
+    private lateinit var tokenCache: DeviceTokenCache
+    
+    private lateinit var outbox: TelemetryOutbox
+    
+    @Before
+    fun setup() {
+        MockKAnnotations.init(this)
+        coEvery { outboxDao.acknowledge(any(), any()) } just Runs
+        coEvery { outboxDao.setCursor(any()) } just Runs
+        coEvery { outboxDao.getCursor(match { it.startsWith("api/") }) } returns null
+        coEvery { channelRegistry.get(1L) } returns SensorChannelEntity(1L, "device1", "temperature", "°C")
+        coEvery { channelRegistry.get(2L) } returns SensorChannelEntity(2L, "device2", "humidity", "")
+        coEvery { channelRegistry.get(3L) } returns null
+        coEvery { tokenCache.resolveToken("device1") } returns "token1"
+        coEvery { tokenCache.resolveToken("device2") } returns "token2"
+        
+        outbox = TelemetryOutbox(outboxDao, channelRegistry, tokenCache)
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    @Test
+    fun `drain reads forward from the cursor and acknowledges each batch once`() = runTest {
+        // Given
+        coEvery { outboxDao.getCursor("api") } returns 10L
+        coEvery { outboxDao.getBatchAfter(10L, 2) } returns listOf(entry(11L), entry(12L))
+        coEvery { outboxDao.getBatchAfter(12L, 2) } returns listOf(entry(14L))
+        val uploaded = mutableListOf<List<Long>>()
+        
+        // When
+        val result = outbox.drain("api", batchSize = 2) { batch ->
+            uploaded.add(batch.map { it.seq })
+            Result.success(Unit)
+        }
+        
+        // Then
+        assertEquals(3, result.getOrNull())
+        assertEquals(listOf(listOf(11L, 12L), listOf(14L)), uploaded)
+        coVerifyOrder {
+            outboxDao.acknowledge("api", 12L)
+            outboxDao.acknowledge("api", 14L)
+        }
+    }
+    
+    @Test
+    fun `failed upload leaves the cursor in place`() = runTest {
+        // Given
+        coEvery { outboxDao.getCursor("api") } returns null
+        coEvery { outboxDao.getBatchAfter(0L, any()) } returns listOf(entry(1L), entry(2L))
+        
+        // When
+        val result = outbox.drain("api") { Result.failure(Exception("503")) }
+        
+        // Then
+        assertTrue(result.isFailure)
+        assertEquals("503", result.exceptionOrNull()?.message)
+        coVerify(exactly = 0) { outboxDao.acknowledge(any(), any()) }
+    }
+    
+    @Test
+    fun `drain by device uploads each device under its own token`() = runTest {
+        // Given
+        coEvery { outboxDao.getCursor("api") } returns 0L
+        coEvery { outboxDao.getBatchAfter(0L, any()) } returns listOf(entry(1L, 1L), entry(2L, 2L), entry(3L, 1L), entry(4L, 3L))
+        val uploaded = mutableMapOf<String, List<Long>>()
+        
+        // When
+        val result = outbox.drainByDevice("api") { deviceToken, samples ->
+            uploaded[deviceToken] = samples.map { it.timestamp / 1_000L }
+            Result.success(Unit)
+        }
+        
+        // Then the sample of a deleted channel is skipped and nothing goes out without a token
+        assertTrue(result.isSuccess)
+        assertEquals(mapOf("token1" to listOf(1L, 3L), "token2" to listOf(2L)), uploaded)
+        coVerify { outboxDao.acknowledge("api", 4L) }
+    }
+    
+    @Test
+    fun `devices accepted before a failure are not sent again on retry`() = runTest {
+        // Given device2 fails after device1 was accepted
+        coEvery { outboxDao.getCursor("api") } returns 0L
+        coEvery { outboxDao.getBatchAfter(0L, any()) } returns listOf(entry(1L, 1L), entry(2L, 2L))
+        val deviceCursors = mutableListOf<SyncCursorEntity>()
+        coEvery { outboxDao.setCursor(capture(deviceCursors)) } just Runs
+        val failed = outbox.drainByDevice("api") { deviceToken, _ ->
+            if (deviceToken == "token2") Result.failure(Exception("503")) else Result.success(Unit)
+        }
+        coEvery { outboxDao.getCursor("api/device1") } returns deviceCursors.single().lastSeq
+        val retried = mutableListOf<String>()
+        
+        // When
+        val result = outbox.drainByDevice("api") { deviceToken, _ ->
+            retried.add(deviceToken)
+            Result.success(Unit)
+        }
+        
+        // Then
+        assertTrue(failed.isFailure)
+        assertEquals("api/device1", deviceCursors.first().destination)
+        assertEquals(2L, deviceCursors.first().lastSeq)
+        assertTrue(result.isSuccess)
+        assertEquals(listOf("token2"), retried)
+        coVerify(exactly = 1) { outboxDao.acknowledge("api", 2L) }
+    }
+    
+    @Test
+    fun `pending count starts at the destination cursor`() = runTest {
+        // Given
+        coEvery { outboxDao.getCursor("api") } returns 40L
+        coEvery { outboxDao.getCountAfter(40L) } returns 7
+        
+        // When
+        val pending = outbox.getPendingCount("api")
+        
+        // Then
+        assertEquals(7, pending)
+    }
+    
+    private fun entry(seq: Long, channelId: Long = 1L) = TelemetryOutboxEntity(
+        seq = seq,
+        channelId = channelId,
+        value = 20.0,
+        timestamp = seq * 1_000L
+    )
+}
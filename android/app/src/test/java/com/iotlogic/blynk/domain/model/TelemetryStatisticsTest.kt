@@ -0,0 +1,82 @@
+package com.iotlogic.blynk.domain.model
+
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.random.Random
+
+class TelemetryStatisticsTest {
+    
+    private val values = List(1_000) { 1_000_000.0 + Random(it).nextDouble() * 10 }
+    
+    @Test
+    fun `welford accumulator matches the two-pass variance`() {
+        // Given
+        val accumulator = WelfordAccumulator()
+        
+        // When
+        values.forEachIndexed { index, value -> accumulator.add(index.toLong(), value) }
+        val statistics = accumulator.snapshot()
+        
+        // Then
+        val mean = values.average()
+        val variance = values.sumOf { (it - mean) * (it - mean) } / (values.size - 1)
+        assertEquals(values.size.toLong(), statistics.count)
+        assertEquals(mean, statistics.average!!, 1e-6)
+        assertEquals(variance, statistics.variance!!, 1e-6)
+        assertEquals(values.min(), statistics.min!!, 0.0)
+        assertEquals(values.max(), statistics.max!!, 0.0)
+        assertEquals(TimedValue(0L, values.first()), statistics.first)
+        assertEquals(TimedValue(999L, values.last()), statistics.last)
+    }
+    
+    @Test
+    fun `combined partial statistics equal statistics of the whole range`() {
+        // Given
+        val whole = WelfordAccumulator()
+        val left = WelfordAccumulator()
+        val right = WelfordAccumulator()
+        values.forEachIndexed { index, value ->
+            whole.add(index.toLong(), value)
+            if (index < 300) left.add(index.toLong(), value) else right.add(index.toLong(), value)
+        }
+        
+        // When
+        val combined = right.snapshot() + left.snapshot()
+        
+        // Then
+        val expected = whole.snapshot()
+        assertEquals(expected.count, combined.count)
+        assertEquals(expected.mean, combined.mean, 1e-6)
+        assertEquals(expected.m2, combined.m2, 1e-3)
+        assertEquals(expected.first, combined.first)
+        assertEquals(expected.last, combined.last)
+    }
+    
+    @Test
+    fun `shifted sums keep precision for large offsets`() {
+        // Given
+        val shift = values.first()
+        val shiftedSum = values.sumOf { it - shift }
+        val shiftedSumSquares = values.sumOf { (it - shift) * (it - shift) }
+        
+        // When
+        val statistics = TelemetryStatistics.fromShiftedSums(
+            values.size.toLong(), shift, shiftedSum, shiftedSumSquares, values.min(), values.max(), null, null
+        )
+        
+        // Then
+        val mean = values.average()
+        val variance = values.sumOf { (it - mean) * (it - mean) } / (values.size - 1)
+        assertEquals(variance, statistics.variance!!, 1e-6)
+    }
+    
+    @Test
+    fun `empty statistics have no average or variance`() {
+        val statistics = WelfordAccumulator().snapshot()
+        
+        assertEquals(0L, statistics.count)
+        assertNull(statistics.average)
+        assertNull(statistics.variance)
+        assertEquals(statistics, statistics + TelemetryStatistics())
+    }
+}
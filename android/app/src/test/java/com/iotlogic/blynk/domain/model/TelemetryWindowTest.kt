@@ -0,0 +1,72 @@
+package com.iotlogic.blynk.domain.model
+
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+
+class TelemetryWindowTest {
+    
+    @Test
+    fun `snapshot is trimmed to the newest samples`() {
+        // Given
+        val window = TelemetryWindow(limit = 2)
+        
+        // When
+        val samples = window.apply(TelemetryTail.Snapshot(listOf(sample(3), sample(1), sample(2)), cursor = 3))
+        
+        // Then
+        assertEquals(listOf(3L, 2L), samples.map { it.seq })
+    }
+    
+    @Test
+    fun `appended samples push the oldest ones out`() {
+        // Given
+        val window = TelemetryWindow(limit = 3)
+        window.apply(TelemetryTail.Snapshot(listOf(sample(3), sample(2), sample(1)), cursor = 3))
+        
+        // When
+        val samples = window.apply(TelemetryTail.Appended(listOf(sample(4), sample(5)), cursor = 5))
+        
+        // Then
+        assertEquals(listOf(5L, 4L, 3L), samples.map { it.seq })
+    }
+    
+    @Test
+    fun `late samples are merged by timestamp`() {
+        // Given
+        val window = TelemetryWindow(limit = 3)
+        window.apply(TelemetryTail.Snapshot(listOf(sample(30), sample(10)), cursor = 30))
+        
+        // When
+        val samples = window.apply(TelemetryTail.Appended(listOf(sample(31, timestamp = 20_000L)), cursor = 31))
+        
+        // Then
+        assertEquals(listOf(30_000L, 20_000L, 10_000L), samples.map { it.timestamp })
+    }
+    
+    @Test
+    fun `window operator folds a tail into lists`() = runTest {
+        // Given
+        val tail = flowOf(
+            TelemetryTail.Snapshot(listOf(sample(1)), cursor = 1),
+            TelemetryTail.Appended(listOf(sample(2)), cursor = 2)
+        )
+        
+        // When
+        val windows = tail.window(limit = 10).toList()
+        
+        // Then
+        assertEquals(listOf(listOf(1L), listOf(2L, 1L)), windows.map { list -> list.map { it.seq } })
+    }
+    
+    private fun sample(seq: Long, timestamp: Long = seq * 1_000L) = Telemetry(
+        id = "t$seq",
+        deviceId = "device1",
+        sensorType = "temperature",
+        value = seq.toDouble(),
+        timestamp = timestamp,
+        seq = seq
+    )
+}
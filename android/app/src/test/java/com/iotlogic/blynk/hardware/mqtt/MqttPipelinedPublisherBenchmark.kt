@@ -0,0 +1,73 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import io.mockk.every
+import io.mockk.mockk
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.eclipse.paho.client.mqttv3.IMqttActionListener
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient
+import org.eclipse.paho.client.mqttv3.IMqttToken
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Messages per second at several window sizes against a simulated broker that acknowledges
+ * each publish after a fixed round trip. Skipped unless the BENCHMARK environment variable
+ * is set, e.g. BENCHMARK=1 ./gradlew testDebugUnitTest --tests '*MqttPipelinedPublisherBenchmark'
+ */
+class MqttPipelinedPublisherBenchmark {
+    
+    private val broker = Executors.newScheduledThreadPool(2)
+    private val client = mockk<IMqttAsyncClient>()
+    
+    @Before
+    fun setup() {
+        assumeTrue(System.getenv("BENCHMARK") != null)
+        
+        every { client.publish(any<String>(), any<MqttMessage>(), any(), any<IMqttActionListener>()) } answers {
+            val context = thirdArg<Any?>()
+            val listener = arg<IMqttActionListener>(3)
+            val token = mockk<IMqttToken> { every { userContext } returns context }
+            broker.schedule({ listener.onSuccess(token) }, ROUND_TRIP_MS, TimeUnit.MILLISECONDS)
+            mockk(relaxed = true)
+        }
+    }
+    
+    @After
+    fun teardown() {
+        broker.shutdownNow()
+    }
+    
+    @Test
+    fun `throughput grows with the window`() = runBlocking {
+        // Given
+        val messages = List(MESSAGES) { MqttOutgoingMessage("devices/d1/telemetry/t", "{\"value\":$it}".toByteArray()) }
+        val rates = mutableListOf<Double>()
+        
+        for (window in WINDOWS) {
+            val publisher = MqttPipelinedPublisher(client, maxInflight = window)
+            
+            // When
+            val start = System.nanoTime()
+            publisher.publishAll(messages).awaitAll()
+            val seconds = (System.nanoTime() - start) / 1e9
+            rates += MESSAGES / seconds
+            println("maxInflight=%3d: %8.0f msg/s".format(window, MESSAGES / seconds))
+        }
+        
+        // Then
+        assertTrue(rates.last() > rates.first())
+    }
+    
+    private companion object {
+        const val ROUND_TRIP_MS = 5L
+        const val MESSAGES = 2_000
+        val WINDOWS = listOf(1, 8, 32, 64)
+    }
+}
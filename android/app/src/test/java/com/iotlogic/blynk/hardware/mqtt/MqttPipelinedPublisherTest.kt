@@ -0,0 +1,120 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import io.mockk.*
+import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.test.runTest
+import org.eclipse.paho.client.mqttv3.IMqttActionListener
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient
+import org.eclipse.paho.client.mqttv3.IMqttToken
+import org.eclipse.paho.client.mqttv3.MqttException
+import org.eclipse.paho.client.mqttv3.MqttMessage
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class MqttPipelinedPublisherTest {
+    
+    private val client = mockk<IMqttAsyncClient>()
+    
+    // Publishes waiting for their acknowledgement, oldest first
+    private val inflight = ArrayDeque<Pair<Any?, IMqttActionListener>>()
+    private val topics = mutableListOf<String>()
+    
+    @Before
+    fun setup() {
+        every { client.publish(any<String>(), any<MqttMessage>(), any(), any<IMqttActionListener>()) } answers {
+            topics += firstArg<String>()
+            inflight.addLast(thirdArg<Any?>() to arg<IMqttActionListener>(3))
+            mockk(relaxed = true)
+        }
+    }
+    
+    @After
+    fun teardown() {
+        unmockkAll()
+    }
+    
+    @Test
+    fun `publishing suspends only once the window is full`() = runTest {
+        // Given
+        val publisher = MqttPipelinedPublisher(client, maxInflight = 2)
+        
+        // When
+        val first = publisher.publish(message("a"))
+        val second = publisher.publish(message("b"))
+        val third = async { publisher.publish(message("c")) }
+        runCurrent()
+        
+        // Then
+        assertEquals(listOf("a", "b"), topics)
+        assertFalse(third.isCompleted)
+        
+        acknowledgeOldest()
+        runCurrent()
+        assertEquals(listOf("a", "b", "c"), topics)
+        assertTrue(first.isCompleted)
+        assertFalse(second.isCompleted)
+    }
+    
+    @Test
+    fun `failed publishes complete exceptionally and free their slot`() = runTest {
+        // Given
+        val publisher = MqttPipelinedPublisher(client, maxInflight = 1)
+        
+        // When
+        val failed = publisher.publish(message("a"))
+        val (context, listener) = inflight.removeFirst()
+        listener.onFailure(token(context), MqttException(MqttException.REASON_CODE_CONNECTION_LOST.toInt()))
+        val next = publisher.publish(message("b"))
+        
+        // Then
+        assertTrue(failed.isCompleted)
+        assertTrue(failed.getCompletionExceptionOrNull() is MqttException)
+        assertFalse(next.isCompleted)
+        assertEquals(listOf("a", "b"), topics)
+    }
+    
+    @Test
+    fun `rejected publishes do not leak window slots`() = runTest {
+        // Given
+        every { client.publish(any<String>(), any<MqttMessage>(), any(), any<IMqttActionListener>()) } throws
+            MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED.toInt())
+        val publisher = MqttPipelinedPublisher(client, maxInflight = 1)
+        
+        // When
+        val results = publisher.publishAll(listOf(message("a"), message("b"), message("c")))
+        
+        // Then
+        assertTrue(results.all { it.isCompleted && it.getCompletionExceptionOrNull() != null })
+    }
+    
+    @Test
+    fun `flow sink waits for every acknowledgement`() = runTest {
+        // Given
+        val publisher = MqttPipelinedPublisher(client, maxInflight = 4)
+        val acknowledger = launch {
+            while (isActive) {
+                if (inflight.isNotEmpty()) acknowledgeOldest() else yield()
+            }
+        }
+        
+        // When
+        val summary = publisher.publishFrom((1..10).map { message("t$it") }.asFlow())
+        acknowledger.cancel()
+        
+        // Then
+        assertEquals(PublishSummary(acknowledged = 10, failed = 0), summary)
+        assertEquals(10, topics.size)
+    }
+    
+    private fun acknowledgeOldest() {
+        val (context, listener) = inflight.removeFirst()
+        listener.onSuccess(token(context))
+    }
+    
+    private fun token(context: Any?): IMqttToken = mockk { every { userContext } returns context }
+    
+    private fun message(topic: String) = MqttOutgoingMessage(topic, "1".toByteArray())
+}
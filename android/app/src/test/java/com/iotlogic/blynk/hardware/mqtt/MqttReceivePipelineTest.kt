@@ -0,0 +1,117 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.first
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.Collections
+
+class MqttReceivePipelineTest {
+    
+    private val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+    
+    // Holds the consumer inside its first delivery until released
+    private val gate = Channel<Unit>()
+    private val delivered = Collections.synchronizedList(mutableListOf<String>())
+    
+    @After
+    fun teardown() {
+        scope.cancel()
+    }
+    
+    @Test
+    fun `bulk overflow drops the oldest telemetry by default`() = runBlocking {
+        // Given
+        val pipeline = blockedPipeline(bulkCapacity = 2)
+        
+        // When
+        (1..4).forEach { pipeline.offer(message("devices/d1/telemetry/t$it")) }
+        gate.close()
+        pipeline.stats.first { it.delivered == 3L }
+        
+        // Then
+        assertEquals(listOf("devices/d1/telemetry/t0", "devices/d1/telemetry/t3", "devices/d1/telemetry/t4"), delivered)
+        assertEquals(2L, pipeline.stats.value.dropped)
+    }
+    
+    @Test
+    fun `drop newest policy keeps what is queued`() = runBlocking {
+        // Given
+        val pipeline = blockedPipeline(bulkCapacity = 2)
+        pipeline.configure(MqttOverflowPolicy.DROP_NEWEST)
+        
+        // When
+        (1..4).forEach { pipeline.offer(message("devices/d1/telemetry/t$it")) }
+        gate.close()
+        pipeline.stats.first { it.delivered == 3L }
+        
+        // Then
+        assertEquals(listOf("devices/d1/telemetry/t0", "devices/d1/telemetry/t1", "devices/d1/telemetry/t2"), delivered)
+        assertEquals(2L, pipeline.stats.value.dropped)
+    }
+    
+    @Test
+    fun `status messages overtake queued telemetry and are never dropped`() = runBlocking {
+        // Given
+        val pipeline = blockedPipeline(bulkCapacity = 1)
+        
+        // When
+        pipeline.offer(message("devices/d1/telemetry/t1"))
+        pipeline.offer(message("devices/d1/telemetry/t2"))
+        pipeline.offer(message("devices/d1/status"))
+        pipeline.offer(message("system/alerts/overheat"))
+        assertEquals(2, pipeline.stats.value.priorityQueued)
+        assertEquals(1, pipeline.stats.value.bulkQueued)
+        gate.close()
+        pipeline.stats.first { it.delivered == 4L }
+        
+        // Then
+        assertEquals(
+            listOf("devices/d1/telemetry/t0", "devices/d1/status", "system/alerts/overheat", "devices/d1/telemetry/t2"),
+            delivered
+        )
+        assertEquals(1L, pipeline.stats.value.dropped)
+    }
+    
+    @Test
+    fun `block policy holds the caller until the consumer catches up`() = runBlocking {
+        // Given
+        val pipeline = blockedPipeline(bulkCapacity = 1)
+        pipeline.configure(MqttOverflowPolicy.BLOCK)
+        pipeline.offer(message("devices/d1/telemetry/t1"))
+        
+        // When
+        val producer = launch(Dispatchers.IO) { pipeline.offer(message("devices/d1/telemetry/t2")) }
+        delay(100)
+        assertTrue(producer.isActive)
+        gate.close()
+        producer.join()
+        pipeline.stats.first { it.delivered == 3L }
+        
+        // Then
+        assertEquals(0L, pipeline.stats.value.dropped)
+        assertEquals(1L, pipeline.stats.value.blockedOffers)
+    }
+    
+    // A pipeline whose consumer is stuck delivering t0, so later offers queue up
+    private suspend fun blockedPipeline(bulkCapacity: Int): MqttReceivePipeline {
+        val pipeline = MqttReceivePipeline(scope, bulkCapacity = bulkCapacity) { message ->
+            delivered += message.topic
+            if (message.topic.endsWith("/t0")) gate.receiveCatching()
+        }
+        pipeline.offer(message("devices/d1/telemetry/t0"))
+        while (delivered.isEmpty()) delay(5)
+        return pipeline
+    }
+    
+    private fun message(topic: String) = MqttReceivedMessage(
+        brokerId = "default",
+        topic = topic,
+        payload = ByteArray(0),
+        qos = 1,
+        retained = false,
+        timestamp = System.currentTimeMillis()
+    )
+}
@@ -0,0 +1,121 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.*
+import org.junit.Test
+import kotlin.random.Random
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class MqttReconnectSupervisorTest {
+    
+    // Attempt times in virtual milliseconds
+    private val attempts = mutableListOf<Long>()
+    
+    @Test
+    fun `retries until the broker takes the connection`() = runTest {
+        // Given
+        val supervisor = supervisor(succeedOnAttempt = 3)
+        
+        // When
+        supervisor.connectionLost("broker")
+        advanceUntilIdle()
+        
+        // Then
+        assertEquals(3, attempts.size)
+        val stats = supervisor.stats.value
+        assertEquals(1L, stats.reconnects)
+        assertEquals(2L, stats.failedAttempts)
+        assertEquals(0, stats.reconnecting)
+        assertEquals(attempts.last(), stats.lastDowntimeMs)
+    }
+    
+    @Test
+    fun `waits stay within the doubling ceiling and its cap`() = runTest {
+        // Given
+        val supervisor = supervisor(succeedOnAttempt = 8)
+        supervisor.configure(initialDelayMs = 100, maxDelayMs = 1_000)
+        
+        // When
+        supervisor.connectionLost("broker")
+        advanceUntilIdle()
+        
+        // Then
+        val waits = attempts.zipWithNext { a, b -> b - a }
+        val ceilings = listOf(200L, 400L, 800L, 1_000L, 1_000L, 1_000L, 1_000L)
+        assertTrue(attempts.first() <= 100)
+        waits.zip(ceilings).forEach { (wait, ceiling) -> assertTrue("$wait > $ceiling", wait <= ceiling) }
+    }
+    
+    @Test
+    fun `network coming back retries at once`() = runTest {
+        // Given
+        val supervisor = supervisor(succeedOnAttempt = 1, random = longestWait)
+        supervisor.configure(initialDelayMs = 60_000, maxDelayMs = 60_000)
+        supervisor.connectionLost("broker")
+        runCurrent()
+        
+        // When
+        advanceTimeBy(10)
+        supervisor.networkAvailable()
+        runCurrent()
+        
+        // Then
+        assertEquals(listOf(10L), attempts)
+        assertEquals(1L, supervisor.stats.value.reconnects)
+    }
+    
+    @Test
+    fun `a stopped broker is not retried`() = runTest {
+        // Given
+        val supervisor = supervisor(succeedOnAttempt = Int.MAX_VALUE)
+        supervisor.connectionLost("broker")
+        advanceTimeBy(5_000)
+        val made = attempts.size
+        
+        // When
+        supervisor.stop("broker")
+        advanceTimeBy(600_000)
+        
+        // Then
+        assertEquals(made, attempts.size)
+        assertEquals(0, supervisor.stats.value.reconnecting)
+    }
+    
+    @Test
+    fun `losing the connection during an attempt keeps retrying`() = runTest {
+        // Given
+        lateinit var supervisor: MqttReconnectSupervisor
+        supervisor = MqttReconnectSupervisor(backgroundScope, Random(1), { testScheduler.currentTime }) {
+            attempts += testScheduler.currentTime
+            // The first connection drops before the attempt returns
+            if (attempts.size == 1) supervisor.connectionLost("broker")
+            true
+        }
+        
+        // When
+        supervisor.connectionLost("broker")
+        advanceUntilIdle()
+        
+        // Then
+        assertEquals(2, attempts.size)
+        assertEquals(1L, supervisor.stats.value.reconnects)
+        assertEquals(1L, supervisor.stats.value.failedAttempts)
+    }
+    
+    // Always waits out the whole backoff
+    private val longestWait = object : Random() {
+        override fun nextBits(bitCount: Int): Int = 0
+        override fun nextLong(until: Long): Long = until - 1
+    }
+    
+    private fun TestScope.supervisor(succeedOnAttempt: Int, random: Random = Random(42)) =
+        MqttReconnectSupervisor(backgroundScope, random, { testScheduler.currentTime }) {
+            attempts += testScheduler.currentTime
+            attempts.size >= succeedOnAttempt
+        }
+}
@@ -0,0 +1,99 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class MqttTopicRouterTest {
+    
+    private val router = MqttTopicRouter<String>().apply {
+        register("devices/+/telemetry/+", "telemetry")
+        register("devices/+/status", "status")
+        register("devices/abc/#", "device")
+        register("system/alerts/#", "alerts")
+    }
+    
+    @Test
+    fun `single level wildcards capture topic levels as variables`() {
+        // Given
+        val topic = "devices/token1/telemetry/temperature"
+        
+        // When
+        val matches = router.route(topic)
+        
+        // Then
+        assertEquals(1, matches.size)
+        assertEquals("telemetry", matches.handler(0))
+        val variables = matches.variables(0)
+        assertEquals(2, variables.size)
+        assertEquals("token1", variables[0].toString())
+        assertEquals("temperature", variables[1].toString())
+    }
+    
+    @Test
+    fun `multi level wildcard matches the parent level and captures the rest`() {
+        // When
+        val captured = captures(router.route("devices/abc/telemetry/humidity"))
+        val parent = captures(router.route("devices/abc"))
+        
+        // Then
+        assertEquals(mapOf("telemetry" to listOf("abc", "humidity"), "device" to listOf("telemetry/humidity")), captured)
+        assertEquals(mapOf("device" to listOf("")), parent)
+    }
+    
+    @Test
+    fun `topics matching no filter resolve to nothing`() {
+        // When / Then
+        assertTrue(router.route("devices/token1/telemetry").isEmpty())
+        assertTrue(router.route("devices/token1/telemetry/temperature/extra").isEmpty())
+        assertTrue(router.route("system/status").isEmpty())
+    }
+    
+    @Test
+    fun `reserved topics are not matched by leading wildcards`() {
+        // Given
+        val wildcards = MqttTopicRouter<String>().apply {
+            register("#", "all")
+            register("+/broker/load", "load")
+            register("\$SYS/#", "sys")
+        }
+        
+        // When
+        val matches = wildcards.route("\$SYS/broker/load")
+        
+        // Then
+        assertEquals(listOf("sys"), captures(matches).keys.toList())
+    }
+    
+    @Test
+    fun `unregistered handlers stop matching`() {
+        // When
+        val removed = router.unregister("devices/+/status", "status")
+        
+        // Then
+        assertTrue(removed)
+        assertTrue(router.route("devices/token1/status").isEmpty())
+        assertFalse(router.unregister("devices/+/status", "status"))
+    }
+    
+    @Test
+    fun `many sibling levels are all reachable`() {
+        // Given
+        val wide = MqttTopicRouter<Int>()
+        repeat(100) { wide.register("sensors/s$it/value", it) }
+        
+        // When / Then
+        repeat(100) { assertEquals(it, wide.route("sensors/s$it/value").handler(0)) }
+    }
+    
+    @Test(expected = IllegalArgumentException::class)
+    fun `partial level wildcards are rejected`() {
+        router.register("devices/dev+/status", "invalid")
+    }
+    
+    private fun captures(matches: TopicMatches<String>): Map<String, List<String>> {
+        return (0 until matches.size).associate { i ->
+            val variables = matches.variables(i)
+            matches.handler(i) to (0 until variables.size).map { variables[it].toString() }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence
+import org.junit.Assert.*
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * What persisting a QoS 1 publish costs: Paho puts the message before sending it and
+ * removes it on PUBACK. Skipped unless the BENCHMARK environment variable is set, e.g.
+ * BENCHMARK=1 ./gradlew testDebugUnitTest --tests '*SegmentedFilePersistenceBenchmark'
+ */
+class SegmentedFilePersistenceBenchmark {
+    
+    @get:Rule
+    val folder = TemporaryFolder()
+    
+    private val header = ByteArray(40) { it.toByte() }
+    private val payload = """{"value": 25.6, "unit": "°C", "timestamp": 1700000000000}""".toByteArray()
+    
+    @Before
+    fun setup() {
+        assumeTrue(System.getenv("BENCHMARK") != null)
+    }
+    
+    @Test
+    fun `segment files against memory persistence`() {
+        // Given
+        val memory = MemoryPersistence().apply { open("client", "tcp://broker:1883") }
+        val segmented = SegmentedFilePersistence(folder.root).apply { open("client", "tcp://broker:1883") }
+        
+        // When
+        val memoryNs = measure(memory)
+        val segmentedNs = measure(segmented)
+        val overheadNs = segmentedNs - memoryNs
+        println(
+            "Per publish: memory %.0f ns, segment files %.0f ns; %.2f%% of a %d ms broker round trip"
+                .format(memoryNs, segmentedNs, overheadNs / (REFERENCE_ROUND_TRIP_MS * 1e6) * 100, REFERENCE_ROUND_TRIP_MS)
+        )
+        
+        // Then
+        assertFalse(segmented.keys().hasMoreElements())
+        segmented.close()
+    }
+    
+    // Nanoseconds per put/remove pair in the fastest round, after warming up the JIT
+    private fun measure(persistence: MqttClientPersistence): Double {
+        repeat(WARMUP_OPS) { publish(persistence, it) }
+        
+        var best = Double.MAX_VALUE
+        repeat(ROUNDS) {
+            val start = System.nanoTime()
+            for (i in 0 until MEASURED_OPS) publish(persistence, i)
+            best = minOf(best, (System.nanoTime() - start).toDouble() / MEASURED_OPS)
+        }
+        return best
+    }
+    
+    private fun publish(persistence: MqttClientPersistence, id: Int) {
+        val key = "s-${id and 0xFFFF}"
+        persistence.put(key, MqttPersistentData(key, header, 0, header.size, payload, 0, payload.size))
+        persistence.remove(key)
+    }
+    
+    private companion object {
+        const val WARMUP_OPS = 20_000
+        const val MEASURED_OPS = 50_000
+        const val ROUNDS = 5
+        
+        // Typical QoS 1 PUBLISH to PUBACK time on a LAN broker; mobile links are slower
+        const val REFERENCE_ROUND_TRIP_MS = 5
+    }
+}
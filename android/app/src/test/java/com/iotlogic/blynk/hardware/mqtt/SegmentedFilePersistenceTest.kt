@@ -0,0 +1,136 @@
+package com.iotlogic.blynk.hardware.mqtt
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.RandomAccessFile
+
+class SegmentedFilePersistenceTest {
+    
+    @get:Rule
+    val folder = TemporaryFolder()
+    
+    private lateinit var persistence: SegmentedFilePersistence
+    
+    @Before
+    fun setup() {
+        persistence = reopen()
+    }
+    
+    @After
+    fun teardown() {
+        persistence.close()
+    }
+    
+    @Test
+    fun `entries survive a restart`() {
+        // Given
+        persistence.put("s-1", data("s-1", "header1", "payload1"))
+        persistence.put("s-2", data("s-2", "header2", null))
+        persistence.put("s-3", data("s-3", "header3", "payload3"))
+        persistence.remove("s-2")
+        persistence.put("s-1", data("s-1", "header1b", "payload1b"))
+        
+        // When
+        persistence.close()
+        persistence = reopen()
+        
+        // Then
+        assertEquals(listOf("s-1", "s-3"), persistence.keys().toList().sorted())
+        assertEquals("header1b", header(persistence.get("s-1")!!))
+        assertEquals("payload1b", payload(persistence.get("s-1")!!))
+        assertFalse(persistence.containsKey("s-2"))
+    }
+    
+    @Test
+    fun `missing and empty payloads stay distinct`() {
+        // Given
+        persistence.put("none", data("none", "h", null))
+        persistence.put("empty", data("empty", "h", ""))
+        
+        // When
+        persistence.close()
+        persistence = reopen()
+        
+        // Then
+        assertNull(persistence.get("none")!!.payloadBytes)
+        assertArrayEquals(ByteArray(0), persistence.get("empty")!!.payloadBytes)
+    }
+    
+    @Test
+    fun `torn record at the end is discarded`() {
+        // Given
+        persistence.put("s-1", data("s-1", "header1", "payload1"))
+        persistence.put("s-2", data("s-2", "header2", "payload2"))
+        persistence.close()
+        val segment = folder.root.walkTopDown().filter { it.isFile && it.length() > 0 }.single()
+        RandomAccessFile(segment, "rw").use { it.setLength(it.length() - 3) }
+        
+        // When
+        persistence = reopen()
+        persistence.put("s-3", data("s-3", "header3", "payload3"))
+        persistence.close()
+        persistence = reopen()
+        
+        // Then
+        assertEquals(listOf("s-1", "s-3"), persistence.keys().toList().sorted())
+    }
+    
+    @Test
+    fun `superseded records are compacted away`() {
+        // Given
+        val small = SegmentedFilePersistence(folder.newFolder("small"), segmentBytes = 16 shl 10)
+        small.open("client", "tcp://broker:1883")
+        val payload = "x".repeat(512)
+        
+        // When
+        repeat(2_000) { i ->
+            small.put("s-$i", data("s-$i", "header", payload))
+            if (i > 0) small.remove("s-${i - 1}")
+        }
+        
+        // Then
+        assertTrue(small.segmentCount() <= 8)
+        assertEquals(listOf("s-1999"), small.keys().toList())
+        small.close()
+        
+        small.open("client", "tcp://broker:1883")
+        assertEquals(payload, payload(small.get("s-1999")!!))
+        small.close()
+    }
+    
+    @Test
+    fun `clear removes everything`() {
+        // Given
+        persistence.put("s-1", data("s-1", "header1", "payload1"))
+        
+        // When
+        persistence.clear()
+        persistence.close()
+        persistence = reopen()
+        
+        // Then
+        assertFalse(persistence.keys().hasMoreElements())
+    }
+    
+    private fun reopen(): SegmentedFilePersistence {
+        return SegmentedFilePersistence(folder.root).apply { open("client", "tcp://broker:1883") }
+    }
+    
+    private fun data(key: String, header: String, payload: String?): MqttPersistable {
+        val headerBytes = header.toByteArray()
+        val payloadBytes = payload?.toByteArray()
+        return MqttPersistentData(key, headerBytes, 0, headerBytes.size, payloadBytes, 0, payloadBytes?.size ?: 0)
+    }
+    
+    private fun header(persistable: MqttPersistable): String =
+        String(persistable.headerBytes, persistable.headerOffset, persistable.headerLength)
+    
+    private fun payload(persistable: MqttPersistable): String =
+        String(persistable.payloadBytes, persistable.payloadOffset, persistable.payloadLength)
+}